@@ -1,19 +1,24 @@
 package org.apache.chemistry.opencmis.couchbase;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.chemistry.opencmis.commons.data.ContentStream;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
-import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
-import org.apache.chemistry.opencmis.commons.exceptions.CmisStreamNotSupportedException;
 import org.apache.chemistry.opencmis.commons.impl.MimeTypes;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PartialContentStreamImpl;
@@ -25,65 +30,157 @@ import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
 import com.amazonaws.services.s3.model.DeleteObjectRequest;
 import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.PutObjectResult;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 
 public class AWSStorageService implements StorageService {
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(AWSStorageService.class);
 
-	private static final int BUFFER_SIZE = 64 * 1024;
 	private static final String STORAGE_ID = "aws";
 
+	static final long MB = 1024 * 1024;
+	/** Smallest part accepted by S3, but for the last one. */
+	static final long MIN_PART_SIZE = 5 * MB;
+	static final long DEFAULT_PART_SIZE = 8 * MB;
+	static final long DEFAULT_MULTIPART_THRESHOLD = 16 * MB;
+	static final int DEFAULT_MAX_CONCURRENT_PARTS = 4;
+	static final int MAX_PART_ATTEMPTS = 3;
+	/** Largest object copied by a single request. */
+	static final long MAX_COPY_SIZE = 5 * 1024 * MB;
+	static final long DEFAULT_COPY_PART_SIZE = 512 * MB;
+
 	private final String bucket;
-	private final String folder;
 	private AmazonS3 s3client;
 
+	private long partSize = DEFAULT_PART_SIZE;
+	private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+	private int maxConcurrentParts = DEFAULT_MAX_CONCURRENT_PARTS;
+	private long copyThreshold = MAX_COPY_SIZE;
+	private long copyPartSize = DEFAULT_COPY_PART_SIZE;
+	private ExecutorService partExecutor = null;
+	private final StorageInventory inventory;
+
 	public AWSStorageService(String bucket, String folder) {
+		this(bucket, folder, new AmazonS3Client(new ProfileCredentialsProvider(
+				"guest")));
+	}
+
+	/**
+	 * Uses the given client, for instance one configured for another
+	 * endpoint.
+	 */
+	public AWSStorageService(String bucket, String folder, AmazonS3 s3client) {
 		this.bucket = bucket;
-		this.folder = folder;
-		s3client = new AmazonS3Client(new ProfileCredentialsProvider("guest"));
+		this.s3client = s3client;
+		inventory = new StorageInventory(s3client, bucket, folder);
+	}
+
+	/**
+	 * Returns the on demand listing of the contents : the operations on
+	 * contents never list the bucket.
+	 */
+	public StorageInventory getInventory() {
+		return inventory;
+	}
+
+	/**
+	 * Sets the size of the parts of a multipart upload, at least 5 MB. Each
+	 * part being uploaded is held in memory.
+	 */
+	public void setPartSize(long partSize) {
+		if (partSize < MIN_PART_SIZE)
+			throw new IllegalArgumentException("Part size must be at least "
+					+ MIN_PART_SIZE);
+		this.partSize = partSize;
+	}
+
+	/**
+	 * Sets the length above which a content is uploaded in parts. A content of
+	 * unknown length is always uploaded in parts.
+	 */
+	public void setMultipartThreshold(long multipartThreshold) {
+		this.multipartThreshold = multipartThreshold;
 	}
 
-	public void close() {
+	/**
+	 * Sets the number of parts uploaded at the same time, for all the
+	 * uploads.
+	 */
+	public synchronized void setMaxConcurrentParts(int maxConcurrentParts) {
+		if (maxConcurrentParts < 1)
+			throw new IllegalArgumentException(
+					"At least one part must be uploaded at a time");
+		if (partExecutor != null)
+			throw new IllegalStateException("Uploads started already");
+		this.maxConcurrentParts = maxConcurrentParts;
+	}
+
+	/**
+	 * Sets the length above which an object is copied in parts, at most 5 GB,
+	 * and the size of these parts.
+	 */
+	public void setCopyParts(long copyThreshold, long copyPartSize) {
+		if (copyThreshold > MAX_COPY_SIZE)
+			throw new IllegalArgumentException("Copy threshold must be at most "
+					+ MAX_COPY_SIZE);
+		if (copyPartSize < MIN_PART_SIZE || copyPartSize > MAX_COPY_SIZE)
+			throw new IllegalArgumentException("Copy part size must be between "
+					+ MIN_PART_SIZE + " and " + MAX_COPY_SIZE);
+		this.copyThreshold = copyThreshold;
+		this.copyPartSize = copyPartSize;
+	}
+
+	public synchronized void close() {
+		inventory.unregister();
+		if (partExecutor != null) {
+			partExecutor.shutdownNow();
+			partExecutor = null;
+		}
 	}
 
 	public void writeContent(String dataId, ContentStream contentStream)
 			throws StorageException {
-		debug("writeContent dataId=" + dataId);
+		debug("writeContent dataId={}", dataId);
 
 		try {
-			Long contentLength = contentStream.getLength();
-			 ObjectMetadata metadata = new ObjectMetadata();
-			    metadata.setContentLength(contentLength);
-			    
-			s3client.putObject(new PutObjectRequest(bucket, dataId,
-					contentStream.getStream(), metadata));
-			printFiles();
+			long contentLength = contentStream.getLength();
+			ObjectMetadata metadata = new ObjectMetadata();
+			// given back by getContent
+			if (contentStream.getMimeType() != null)
+				metadata.setContentType(contentStream.getMimeType());
+
+			if (contentLength < 0 || contentLength > multipartThreshold) {
+				uploadParts(dataId, contentStream.getStream(), metadata);
+			} else {
+				metadata.setContentLength(contentLength);
+				s3client.putObject(new PutObjectRequest(bucket, dataId,
+						contentStream.getStream(), metadata));
+			}
+		} catch (StorageException e) {
+			throw e;
 		} catch (AmazonServiceException ase) {
-			System.out.println("Amazon Service Error:");
-			System.out.println("Error Message:    " + ase.getMessage());
-			System.out.println("HTTP Status Code: " + ase.getStatusCode());
-			System.out.println("AWS Error Code:   " + ase.getErrorCode());
-			System.out.println("Error Type:       " + ase.getErrorType());
-			System.out.println("Request ID:       " + ase.getRequestId());
+			logServiceError("writeContent", dataId, ase);
 			throw new StorageException("Content could not be added : "
 					+ ase.getMessage());
 		} catch (AmazonClientException ace) {
-			System.out.println("Amazon Client Error:");
-			System.out.println("Error Message: " + ace.getMessage());
+			LOG.warn("writeContent {} : Amazon client error : {}", dataId,
+					ace.getMessage());
 			throw new StorageException("Content could not be added : "
 					+ ace.getMessage());
 		} catch (Exception ex) {
-			System.out.println(ex.toString());
+			LOG.warn("writeContent {} failed", dataId, ex);
 			throw new StorageException("Content could not be added : "
 					+ ex.getMessage());
 		}
@@ -91,29 +188,20 @@ public class AWSStorageService implements StorageService {
 	}
 
 	public boolean deleteContent(String dataId) {
-		debug("deleteContent dataId=" + dataId);
+		debug("deleteContent dataId={}", dataId);
 
 		try {
-			System.out.println("before delete");
-			printFiles();
 			s3client.deleteObject(new DeleteObjectRequest(bucket, dataId));
-			System.out.println("after delete");
-			printFiles();
 			return true;
 		} catch (AmazonServiceException ase) {
-			System.out.println("Amazon Service Error:");
-			System.out.println("Error Message:    " + ase.getMessage());
-			System.out.println("HTTP Status Code: " + ase.getStatusCode());
-			System.out.println("AWS Error Code:   " + ase.getErrorCode());
-			System.out.println("Error Type:       " + ase.getErrorType());
-			System.out.println("Request ID:       " + ase.getRequestId());
+			logServiceError("deleteContent", dataId, ase);
 			return false;
 		} catch (AmazonClientException ace) {
-			System.out.println("Amazon Client Error:");
-			System.out.println("Error Message: " + ace.getMessage());
+			LOG.warn("deleteContent {} : Amazon client error : {}", dataId,
+					ace.getMessage());
 			return false;
 		} catch (Exception ex) {
-			System.out.println(ex.toString());
+			LOG.warn("deleteContent {} failed", dataId, ex);
 			return false;
 		}
 	}
@@ -121,73 +209,80 @@ public class AWSStorageService implements StorageService {
 	public org.apache.chemistry.opencmis.commons.data.ContentStream getContent(
 			String dataId, BigInteger offset, BigInteger length, String filename)
 			throws StorageException {
-		debug("getContent dataId="+dataId);
+		debug("getContent dataId={}", dataId);
 		try {
-			File file = File.createTempFile(dataId, "tmp");
-			s3client.getObject(new GetObjectRequest(bucket, dataId), file);
-
-			if (!file.isFile()) {
-				throw new StorageException("Not a file!");
-			}
-
-			if (file.length() == 0) {
-				throw new StorageException("Document has no content!");
-			}
-
-			InputStream stream = null;
-			try {
-				stream = new BufferedInputStream(new FileInputStream(file),
-						BUFFER_SIZE);
-				if (offset != null || length != null) {
-					stream = new ContentRangeInputStream(stream, offset, length);
-				}
-			} catch (FileNotFoundException e) {
-				throw new CmisObjectNotFoundException(e.getMessage(), e);
+			// the range is read by S3, not skipped here
+			GetObjectRequest request = new GetObjectRequest(bucket, dataId);
+			boolean partial = (offset != null && offset.signum() > 0)
+					|| length != null;
+			if (partial) {
+				long start = offset == null ? 0 : offset.longValue();
+				if (length == null)
+					request.setRange(start);
+				else if (length.signum() > 0)
+					request.setRange(start, start + length.longValue() - 1);
+				else
+					throw new CmisConstraintException("Length must be positive!");
 			}
+			S3Object object = s3client.getObject(request);
+			ObjectMetadata metadata = object.getObjectMetadata();
 
 			// compile data
 			ContentStreamImpl result;
-			if ((offset != null && offset.longValue() > 0) || length != null) {
+			if (partial) {
 				result = new PartialContentStreamImpl();
 			} else {
 				result = new ContentStreamImpl();
 			}
 
 			result.setFileName(filename);
-			result.setLength(BigInteger.valueOf(file.length()));
-			result.setMimeType(MimeTypes.getMIMEType(file));
-			result.setStream(stream);
+			// the length of the range for a partial content
+			result.setLength(BigInteger.valueOf(metadata.getContentLength()));
+			String mimeType = metadata.getContentType();
+			result.setMimeType(mimeType != null ? mimeType : MimeTypes
+					.getMIMEType(filename));
+			result.setStream(object.getObjectContent());
 
 			return result;
 
-		} catch (IOException ioe) {
-			throw new StorageException("Content could not be retrieved : "
-					+ ioe.getMessage());
+		} catch (CmisConstraintException e) {
+			throw e;
 		} catch (AmazonServiceException ase) {
-			System.out.println("Amazon Service Error:");
-			System.out.println("Error Message:    " + ase.getMessage());
-			System.out.println("HTTP Status Code: " + ase.getStatusCode());
-			System.out.println("AWS Error Code:   " + ase.getErrorCode());
-			System.out.println("Error Type:       " + ase.getErrorType());
-			System.out.println("Request ID:       " + ase.getRequestId());
+			logServiceError("getContent", dataId, ase);
 			throw new StorageException("Content could not be retrieved : "
 					+ ase.getMessage());
 		} catch (AmazonClientException ace) {
-			System.out.println("Amazon Client Error:");
-			System.out.println("Error Message: " + ace.getMessage());
+			LOG.warn("getContent {} : Amazon client error : {}", dataId,
+					ace.getMessage());
 			throw new StorageException("Content could not be retrieved : "
 					+ ace.getMessage());
 		} catch (Exception ex) {
-			System.out.println(ex.toString());
+			LOG.warn("getContent {} failed", dataId, ex);
 			throw new StorageException("Content could not be retrieved : "
 					+ ex.getMessage());
 		}
 	}
 
+	public long getLength(String dataId) throws StorageException {
+		debug("getLength dataId = {}", dataId);
+		try {
+			return s3client.getObjectMetadata(bucket, dataId)
+					.getContentLength();
+		} catch (AmazonServiceException ase) {
+			if (ase.getStatusCode() == 404)
+				return -1;
+			logServiceError("getLength", dataId, ase);
+			throw new StorageException("Length could not be retrieved : "
+					+ ase.getMessage());
+		} catch (AmazonClientException ace) {
+			throw new StorageException("Length could not be retrieved : "
+					+ ace.getMessage());
+		}
+	}
+
 	public boolean exists(String dataId) {
-		debug("exists dataId = "+dataId);
+		debug("exists dataId = {}", dataId);
 		try {
-			printFiles();
 			s3client.getObjectMetadata(new GetObjectMetadataRequest(bucket,
 					dataId));
 			return true;
@@ -196,50 +291,214 @@ public class AWSStorageService implements StorageService {
 		}
 	}
 
+	public void moveContent(String dataId, String newDataId)
+			throws StorageException {
+		debug("moveContent dataId={} to {}", dataId, newDataId);
+		copyContent(dataId, newDataId);
+		try {
+			s3client.deleteObject(new DeleteObjectRequest(bucket, dataId));
+		} catch (AmazonClientException ace) {
+			throw new StorageException("Content could not be moved : "
+					+ ace.getMessage());
+		}
+	}
+
+	/**
+	 * Copies an object within the bucket : S3 copies it, in parts above
+	 * {@link #copyThreshold}, and nothing is downloaded.
+	 */
+	public boolean copyContent(String dataId, String newDataId)
+			throws StorageException {
+		debug("copyContent dataId={} to {}", dataId, newDataId);
+		try {
+			ObjectMetadata metadata = s3client.getObjectMetadata(bucket,
+					dataId);
+			if (metadata.getContentLength() <= copyThreshold)
+				s3client.copyObject(bucket, dataId, bucket, newDataId);
+			else
+				copyParts(dataId, newDataId, metadata);
+			return true;
+		} catch (AmazonClientException ace) {
+			throw new StorageException("Content could not be copied : "
+					+ ace.getMessage());
+		}
+	}
+
 	// =========== private ===========
 
-	private List<String> getFileList() {
-		String folderName = folder;
-		if (folder.length() > 0 && !folder.endsWith("/"))
-			folderName = folder + "/";
-
-		ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-				.withBucketName(bucket).withPrefix(folderName);
-		ObjectListing objectListing;
-		List<String> files = new ArrayList<String>();
-		String fileName;
-
-		do {
-			objectListing = s3client.listObjects(listObjectsRequest);
-			for (S3ObjectSummary objectSummary : objectListing
-					.getObjectSummaries()) {
-				// System.out.println(" - " + objectSummary.getKey() + "  " +
-				// "(size = " + objectSummary.getSize() +
-				// ")");
-
-				fileName = objectSummary.getKey().replace(folderName, "");
-				if (fileName.trim().length() > 0)
-					files.add(fileName);
+	/**
+	 * Uploads a content in parts of {@link #partSize}, at most
+	 * {@link #maxConcurrentParts} at a time. The stream is read while the
+	 * previous parts are uploaded. A part which fails is uploaded again, up
+	 * to {@link #MAX_PART_ATTEMPTS} times, then the upload is aborted so that
+	 * S3 does not keep its parts.
+	 */
+	private void uploadParts(String dataId, InputStream stream,
+			ObjectMetadata metadata) throws StorageException {
+		String uploadId = s3client.initiateMultipartUpload(
+				new InitiateMultipartUploadRequest(bucket, dataId, metadata))
+				.getUploadId();
+		debug("uploadParts dataId={} uploadId={}", dataId, uploadId);
+
+		// bounds the parts held in memory by this upload
+		final Semaphore inFlight = new Semaphore(maxConcurrentParts);
+		// stops reading the stream once a part has failed
+		final AtomicBoolean failed = new AtomicBoolean();
+		List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+		try {
+			ExecutorService executor = getPartExecutor();
+			for (int partNumber = 1; !failed.get(); partNumber++) {
+				byte[] part = readPart(stream);
+				// an empty content is uploaded as one empty part
+				if (part.length == 0 && partNumber > 1)
+					break;
+				inFlight.acquire();
+				final UploadPartRequest request = new UploadPartRequest()
+						.withBucketName(bucket).withKey(dataId)
+						.withUploadId(uploadId).withPartNumber(partNumber)
+						.withPartSize(part.length);
+				final byte[] content = part;
+				parts.add(executor.submit(new Callable<PartETag>() {
+					@Override
+					public PartETag call() {
+						try {
+							return uploadPart(request, content);
+						} catch (RuntimeException e) {
+							failed.set(true);
+							throw e;
+						} finally {
+							inFlight.release();
+						}
+					}
+				}));
+				if (part.length < partSize)
+					break;
 			}
-			listObjectsRequest.setMarker(objectListing.getNextMarker());
-		} while (objectListing.isTruncated());
 
-		return files;
+			List<PartETag> etags = new ArrayList<PartETag>();
+			for (Future<PartETag> part : parts)
+				etags.add(part.get());
+			s3client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+					bucket, dataId, uploadId, etags));
+		} catch (Exception e) {
+			for (Future<PartETag> part : parts)
+				part.cancel(true);
+			abortUpload(dataId, uploadId);
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			throw new StorageException("Content could not be added : "
+					+ cause.getMessage());
+		}
 	}
 
-	private void printFiles() {
-		System.out.println("printFiles ...");
-		List<String> files = getFileList();
-		for (String file : files)
-			System.out.println(file);
-		System.out.println("printFiles done.");
+	/**
+	 * Copies an object in parts of {@link #copyPartSize}, one after the other
+	 * since S3 does the work.
+	 */
+	private void copyParts(String dataId, String newDataId,
+			ObjectMetadata source) throws StorageException {
+		ObjectMetadata metadata = new ObjectMetadata();
+		if (source.getContentType() != null)
+			metadata.setContentType(source.getContentType());
+		String uploadId = s3client.initiateMultipartUpload(
+				new InitiateMultipartUploadRequest(bucket, newDataId, metadata))
+				.getUploadId();
+		debug("copyParts dataId={} uploadId={}", dataId, uploadId);
+
+		try {
+			long length = source.getContentLength();
+			List<PartETag> etags = new ArrayList<PartETag>();
+			int partNumber = 1;
+			for (long first = 0; first < length; first += copyPartSize) {
+				CopyPartRequest request = new CopyPartRequest()
+						.withSourceBucketName(bucket).withSourceKey(dataId)
+						.withDestinationBucketName(bucket)
+						.withDestinationKey(newDataId).withUploadId(uploadId)
+						.withPartNumber(partNumber++).withFirstByte(first)
+						.withLastByte(Math.min(first + copyPartSize, length) - 1);
+				etags.add(s3client.copyPart(request).getPartETag());
+			}
+			s3client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+					bucket, newDataId, uploadId, etags));
+		} catch (AmazonClientException e) {
+			abortUpload(newDataId, uploadId);
+			throw new StorageException("Content could not be copied : "
+					+ e.getMessage());
+		}
 	}
 
-	private void debug(String msg) {
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("{}", msg);
+	private PartETag uploadPart(UploadPartRequest request, byte[] content) {
+		for (int attempt = 1;; attempt++) {
+			try {
+				request.setInputStream(new ByteArrayInputStream(content));
+				return s3client.uploadPart(request).getPartETag();
+			} catch (AmazonClientException e) {
+				if (attempt >= MAX_PART_ATTEMPTS)
+					throw e;
+				debug("part {} failed, attempt {} : {}",
+						request.getPartNumber(), attempt, e.getMessage());
+			}
+		}
+	}
+
+	private void abortUpload(String dataId, String uploadId) {
+		try {
+			s3client.abortMultipartUpload(new AbortMultipartUploadRequest(
+					bucket, dataId, uploadId));
+		} catch (AmazonClientException e) {
+			LOG.warn("Upload {} of {} could not be aborted : {}", uploadId,
+					dataId, e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the next part of a stream, shorter than {@link #partSize} at the
+	 * end of the stream only.
+	 */
+	private byte[] readPart(InputStream stream) throws IOException {
+		byte[] buffer = new byte[(int) partSize];
+		int length = 0;
+		int n;
+		while (length < buffer.length
+				&& (n = stream.read(buffer, length, buffer.length - length)) != -1)
+			length += n;
+		return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+	}
+
+	private synchronized ExecutorService getPartExecutor() {
+		if (partExecutor == null) {
+			partExecutor = Executors.newFixedThreadPool(maxConcurrentParts,
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "s3-part-"
+									+ count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
 		}
-		System.out.println("[AWSStorageService] "+msg);
+		return partExecutor;
+	}
+
+	private static void logServiceError(String operation, String dataId,
+			AmazonServiceException ase) {
+		LOG.warn("{} {} : Amazon service error {} ({}, HTTP status {}, request {}) : {}",
+				operation, dataId, ase.getErrorCode(), ase.getErrorType(),
+				ase.getStatusCode(), ase.getRequestId(), ase.getMessage());
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+
+	private void debug(String format, Object... args) {
+		Tracing.debug(LOG, format, args);
 	}
 
 	@Override
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rx.Observable;
+import rx.exceptions.Exceptions;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.JsonLongDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.query.AsyncQueryResult;
+import com.couchbase.client.java.query.AsyncQueryRow;
+import com.couchbase.client.java.query.Query;
+
+/**
+ * Non blocking view of the {@link CouchbaseService}, built on the RxJava
+ * {@link AsyncBucket}. Nothing is sent to Couchbase until the returned
+ * Observables are subscribed to, so that independent calls can be composed
+ * and run concurrently.
+ *
+ * As for the async bucket, a missing document gives an empty Observable.
+ */
+public class AsyncCouchbaseService implements AsyncMetadataStore {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(AsyncCouchbaseService.class);
+
+	/** Number of rows whose documents are fetched together by a query. */
+	static final int QUERY_BATCH_SIZE = 50;
+
+	private final AsyncBucket asyncBucket;
+	private final CouchbaseService cbService;
+
+	AsyncCouchbaseService(AsyncBucket asyncBucket, CouchbaseService cbService) {
+		this.asyncBucket = asyncBucket;
+		this.cbService = cbService;
+	}
+
+	public Observable<JsonDocument> get(String objectId) {
+		debug("get objectId={}", objectId);
+		return asyncBucket.get(objectId);
+	}
+
+	/**
+	 * Writes a document once subscribed to. The cached object is invalidated
+	 * when the write is over, whatever its outcome : a read in the meantime
+	 * could have put the former version back.
+	 */
+	public Observable<JsonDocument> upsert(final JsonDocument document) {
+		debug("upsert objectId={}", document.id());
+		return Observable.defer(new Func0<Observable<JsonDocument>>() {
+			@Override
+			public Observable<JsonDocument> call() {
+				return asyncBucket.upsert(document);
+			}
+		}).doOnTerminate(invalidate(document.id()));
+	}
+
+	/**
+	 * Removes a document once subscribed to, and invalidates the cached
+	 * object when the removal is over.
+	 */
+	public Observable<JsonDocument> remove(final String objectId) {
+		debug("remove objectId={}", objectId);
+		return Observable.defer(new Func0<Observable<JsonDocument>>() {
+			@Override
+			public Observable<JsonDocument> call() {
+				return asyncBucket.remove(objectId);
+			}
+		}).doOnTerminate(invalidate(objectId));
+	}
+
+	private Action0 invalidate(final String objectId) {
+		return new Action0() {
+			@Override
+			public void call() {
+				cbService.getCache().invalidate(objectId);
+			}
+		};
+	}
+
+	/**
+	 * Emits the cmis object with this id, nothing if it is not stored.
+	 */
+	public Observable<CmisObject> getCmisObject(String objectId) {
+		CmisObject cached = cbService.getCache().get(objectId);
+		if (cached != null)
+			return Observable.just(cached);
+
+		final long generation = cbService.getCache().generation(objectId);
+		return get(objectId).map(new Func1<JsonDocument, CmisObject>() {
+			@Override
+			public CmisObject call(JsonDocument jsondoc) {
+				CmisObject data = toCmisObject(jsondoc);
+				data.setCas(jsondoc.cas());
+				cbService.getCache().put(data, generation);
+				return data;
+			}
+		});
+	}
+
+	/**
+	 * Emits the cmis objects with these ids, in no particular order.
+	 */
+	public Observable<CmisObject> getCmisObjects(List<String> objectIds) {
+		return Observable.from(objectIds).flatMap(
+				new Func1<String, Observable<CmisObject>>() {
+					@Override
+					public Observable<CmisObject> call(String objectId) {
+						return getCmisObject(objectId);
+					}
+				});
+	}
+
+	/**
+	 * Emits <code>true</code> if a document is stored with this id.
+	 */
+	public Observable<Boolean> exists(String objectId) {
+		return get(objectId).map(new Func1<JsonDocument, Boolean>() {
+			@Override
+			public Boolean call(JsonDocument jsondoc) {
+				return Boolean.TRUE;
+			}
+		}).defaultIfEmpty(Boolean.FALSE);
+	}
+
+	/**
+	 * Emits <code>true</code> if a folder has a child with this name.
+	 */
+	public Observable<Boolean> hasChild(String folderId, String name) {
+		return exists(NameIndex.nameId(folderId, name));
+	}
+
+	/**
+	 * Emits the number of children of a folder.
+	 */
+	public Observable<Long> getChildrenCount(String folderId) {
+		return asyncBucket.get(ChildIndex.countId(folderId),
+				JsonLongDocument.class)
+				.map(new Func1<JsonLongDocument, Long>() {
+					@Override
+					public Long call(JsonLongDocument counter) {
+						return counter.content() == null ? Long.valueOf(0)
+								: counter.content();
+					}
+				}).defaultIfEmpty(Long.valueOf(0));
+	}
+
+	/**
+	 * Emits the children of a folder, in the order of its child index. The
+	 * index is read on the io scheduler, so that the children of several
+	 * folders can be listed together, and the children are fetched by
+	 * batches of {@link #QUERY_BATCH_SIZE}.
+	 */
+	public Observable<CmisObject> getChildren(final String folderId) {
+		return Observable.defer(new Func0<Observable<String>>() {
+			@Override
+			public Observable<String> call() {
+				return Observable.from(cbService.getChildrenIds(folderId, 0,
+						Integer.MAX_VALUE));
+			}
+		}).subscribeOn(Schedulers.io()).buffer(QUERY_BATCH_SIZE)
+				.concatMap(new Func1<List<String>, Observable<CmisObject>>() {
+					@Override
+					public Observable<CmisObject> call(List<String> ids) {
+						return getCmisObjectsInOrder(ids);
+					}
+				});
+	}
+
+	/**
+	 * Runs a query translated by the {@link N1qlQueryTranslator} and emits
+	 * the ids of the rows, in the order of the query, as they are streamed
+	 * by the query service.
+	 */
+	public Observable<String> queryIds(MetadataQuery query) {
+		debug("query {}", query);
+		cbService.getIndexManager().checkPlan(query);
+		return rows(query.getStatement(), query).map(
+				new Func1<AsyncQueryRow, String>() {
+					@Override
+					public String call(AsyncQueryRow row) {
+						return row.value().getString(N1qlQueryTranslator.ID);
+					}
+				});
+	}
+
+	/**
+	 * Runs a query translated by the {@link N1qlQueryTranslator} and emits
+	 * the cmis objects of the rows in the order of the query. The ids are
+	 * fetched by batches of {@link #QUERY_BATCH_SIZE} while the next rows
+	 * are streamed, nothing is read past what the subscriber takes.
+	 */
+	public Observable<CmisObject> query(MetadataQuery query) {
+		return queryIds(query).buffer(QUERY_BATCH_SIZE).concatMap(
+				new Func1<List<String>, Observable<CmisObject>>() {
+					@Override
+					public Observable<CmisObject> call(List<String> ids) {
+						return getCmisObjectsInOrder(ids);
+					}
+				});
+	}
+
+	/**
+	 * Emits the total number of results of a query, regardless of its page.
+	 */
+	public Observable<Long> count(MetadataQuery query) {
+		debug("count {}", query);
+		return rows(query.getCountStatement(), query).map(
+				new Func1<AsyncQueryRow, Long>() {
+					@Override
+					public Long call(AsyncQueryRow row) {
+						return row.value().getLong(N1qlQueryTranslator.COUNT);
+					}
+				}).defaultIfEmpty(Long.valueOf(0));
+	}
+
+	private Observable<CmisObject> getCmisObjectsInOrder(final List<String> ids) {
+		return getCmisObjects(ids).toMap(new Func1<CmisObject, String>() {
+			@Override
+			public String call(CmisObject data) {
+				return data.getId();
+			}
+		}).flatMap(new Func1<Map<String, CmisObject>, Observable<CmisObject>>() {
+			@Override
+			public Observable<CmisObject> call(Map<String, CmisObject> found) {
+				List<CmisObject> ordered = new ArrayList<CmisObject>(found.size());
+				for (String id : ids) {
+					// deleted since the index was read
+					if (found.containsKey(id))
+						ordered.add(found.get(id));
+				}
+				return Observable.from(ordered);
+			}
+		});
+	}
+
+	/**
+	 * Streams the rows of a statement, then fails if the query service
+	 * reported errors.
+	 */
+	private Observable<AsyncQueryRow> rows(final String statement,
+			MetadataQuery query) {
+		return asyncBucket
+				.query(Query.parametrized(statement, query.getParams()))
+				.flatMap(new Func1<AsyncQueryResult, Observable<AsyncQueryRow>>() {
+					@Override
+					public Observable<AsyncQueryRow> call(AsyncQueryResult result) {
+						return result.rows().concatWith(
+								result.errors().toList().flatMap(
+										new Func1<List<JsonObject>, Observable<AsyncQueryRow>>() {
+											@Override
+											public Observable<AsyncQueryRow> call(
+													List<JsonObject> errors) {
+												if (errors.isEmpty())
+													return Observable.empty();
+												return Observable.error(new RuntimeException(
+														new CouchbaseException("Query failed : "
+																+ errors)));
+											}
+										}));
+					}
+				});
+	}
+
+	private CmisObject toCmisObject(JsonDocument jsondoc) {
+		try {
+			return cbService.getCmisObject(jsondoc.content());
+		} catch (CouchbaseException e) {
+			throw Exceptions.propagate(e);
+		}
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.List;
+
+import rx.Observable;
+
+/**
+ * Non blocking view of a {@link MetadataStore}. Nothing is read until the
+ * returned Observables are subscribed to, and a missing object gives an empty
+ * Observable.
+ */
+public interface AsyncMetadataStore {
+
+	Observable<CmisObject> getCmisObject(String objectId);
+
+	/**
+	 * Emits the objects with these ids, in no particular order.
+	 */
+	Observable<CmisObject> getCmisObjects(List<String> objectIds);
+
+	Observable<Boolean> exists(String objectId);
+
+	/**
+	 * Tells if a folder has a child with this name.
+	 */
+	Observable<Boolean> hasChild(String folderId, String name);
+
+	Observable<Long> getChildrenCount(String folderId);
+
+	/**
+	 * Emits the children of a folder, in the order they were added.
+	 */
+	Observable<CmisObject> getChildren(String folderId);
+
+	/**
+	 * Runs a query, the objects being emitted in the order of the query.
+	 */
+	Observable<CmisObject> query(MetadataQuery query);
+
+	/**
+	 * Counts all the results of a query, regardless of its page.
+	 */
+	Observable<Long> count(MetadataQuery query);
+}
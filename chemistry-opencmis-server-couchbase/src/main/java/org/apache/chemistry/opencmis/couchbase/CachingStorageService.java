@@ -0,0 +1,673 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-through cache of the contents of another {@link StorageService} in a
+ * local directory, typically on a SSD in front of S3.
+ * 
+ * A content is downloaded whole the first time it is read whole, once
+ * whatever the number of concurrent readers : the first reader gets the
+ * bytes as they are written to the cache, the others wait for the cached
+ * file. Its ranges are then read from the cached file; a range of a content
+ * not cached yet is read from the backend. The length of a content is asked
+ * to the backend before it is downloaded : contents larger than
+ * <code>maxEntrySize</code>, or of unknown length, are not admitted and
+ * always read from the backend. The least recently read
+ * contents are evicted once the cache holds <code>maxSize</code> bytes.
+ * Writing, deleting or moving a content through this service invalidates it;
+ * the changes made by the other servers of the backend are not seen until
+ * the content is evicted. The cache is emptied at startup.
+ */
+public class CachingStorageService implements StorageService,
+		CachingStorageServiceMBean {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CachingStorageService.class);
+
+	static final long MB = 1024 * 1024;
+	public static final long DEFAULT_MAX_SIZE = 1024 * MB;
+	public static final long DEFAULT_MAX_ENTRY_SIZE = 64 * MB;
+	/** Contents remembered as not admitted. */
+	static final int MAX_REJECTED = 1024;
+	/** Time a reader waits for the download of another one, in ms. */
+	static final long LOAD_WAIT = 30 * 1000L;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** Prefix of the cached files. */
+	static final String FILE_PREFIX = "blob-";
+
+	private final StorageService backend;
+	private final File dir;
+	private final long maxSize;
+	private long maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+
+	/** Guards the entries, the rejected contents and the size. */
+	private final Object lock = new Object();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private final Map<String, Boolean> rejected = new LinkedHashMap<String, Boolean>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_REJECTED;
+		}
+	};
+	private long size = 0;
+	/** Downloads in progress, shared by the concurrent readers. */
+	private final ConcurrentMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong fills = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+
+	private ObjectName name = null;
+
+	private static class Entry {
+		final File file;
+		final long length;
+		final String mimeType;
+
+		Entry(File file, long length, String mimeType) {
+			this.file = file;
+			this.length = length;
+			this.mimeType = mimeType;
+		}
+	}
+
+	/**
+	 * @param backend
+	 *            the storage of the contents
+	 * @param dir
+	 *            the directory of the cache, created if needed
+	 * @param maxSize
+	 *            the number of bytes cached
+	 */
+	public CachingStorageService(StorageService backend, File dir, long maxSize) {
+		this.backend = backend;
+		this.dir = dir;
+		this.maxSize = maxSize;
+		dir.mkdirs();
+		deleteFiles();
+	}
+
+	/**
+	 * Sets the size of the largest content cached, at most the size of the
+	 * cache.
+	 */
+	public void setMaxEntrySize(long maxEntrySize) {
+		if (maxEntrySize < 0)
+			throw new IllegalArgumentException("Negative size : "
+					+ maxEntrySize);
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	public StorageService getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Registers this cache in the platform MBean server.
+	 */
+	public synchronized void register() {
+		try {
+			ObjectName objectName = new ObjectName(
+					"org.apache.chemistry.opencmis.couchbase:type=StorageCache,path="
+							+ ObjectName.quote(dir.getAbsolutePath()));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+				name = objectName;
+			}
+		} catch (JMException e) {
+			LOG.warn("Storage cache not registered : {}", e.getMessage());
+		}
+	}
+
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			LOG.warn("Storage cache not unregistered : {}", e.getMessage());
+		}
+		name = null;
+	}
+
+	@Override
+	public void writeContent(String dataId, ContentStream contentStream)
+			throws StorageException {
+		try {
+			backend.writeContent(dataId, contentStream);
+		} finally {
+			invalidate(dataId);
+		}
+	}
+
+	@Override
+	public boolean deleteContent(String dataId) {
+		try {
+			return backend.deleteContent(dataId);
+		} finally {
+			invalidate(dataId);
+		}
+	}
+
+	@Override
+	public ContentStream getContent(String dataId, BigInteger offset,
+			BigInteger length, String filename) throws StorageException {
+		Entry entry;
+		synchronized (lock) {
+			entry = entries.get(dataId);
+		}
+		ContentStream stream;
+		if (entry != null) {
+			hits.incrementAndGet();
+			stream = open(dataId, entry, offset, length, filename);
+		} else {
+			misses.incrementAndGet();
+			// a range is read from the backend rather than after the whole
+			// content : it is cached by its next whole read
+			boolean whole = (offset == null || offset.signum() == 0)
+					&& length == null;
+			stream = whole ? load(dataId, filename) : null;
+		}
+		if (stream != null)
+			return stream;
+		return backend.getContent(dataId, offset, length, filename);
+	}
+
+	/**
+	 * Opens a range of a cached content.
+	 * 
+	 * @return the range, or null if the content is not cached any more
+	 */
+	private ContentStream open(String dataId, Entry entry,
+			BigInteger offset, BigInteger length, String filename) {
+		if (entry == null)
+			return null;
+		try {
+			return FileChannelContentStream.open(entry.file, offset, length,
+					filename, entry.mimeType);
+		} catch (IOException e) {
+			// evicted meanwhile
+			debug("cached {} not readable : {}", dataId, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a content which is not cached. Its length is checked before it
+	 * is downloaded; the first reader then downloads it to the cache while
+	 * reading it, and the readers meanwhile wait for the download.
+	 * 
+	 * @return the content, or null if it is to be read from the backend
+	 */
+	private ContentStream load(String dataId, String filename)
+			throws StorageException {
+		synchronized (lock) {
+			if (rejected.containsKey(dataId))
+				return null;
+		}
+
+		Load running = loads.get(dataId);
+		if (running == null) {
+			long length = backend.getLength(dataId);
+			if (length <= 0 || length > Math.min(maxEntrySize, maxSize)) {
+				debug("not admitted {} : {} bytes", dataId, length);
+				rejections.incrementAndGet();
+				synchronized (lock) {
+					rejected.put(dataId, Boolean.TRUE);
+				}
+				return null;
+			}
+			Load load = new Load();
+			running = loads.putIfAbsent(dataId, load);
+			if (running == null)
+				return download(dataId, filename, length, load);
+		}
+		debug("wait for the download of {}", dataId);
+		return open(dataId, running.await(), null, null, filename);
+	}
+
+	/**
+	 * Starts the download of a content, and returns its stream : the bytes
+	 * read are written to the cache as well.
+	 */
+	private ContentStream download(String dataId, String filename,
+			long length, Load load) throws StorageException {
+		debug("download {}", dataId);
+		ContentStream content = null;
+		File file = null;
+		OutputStream out = null;
+		boolean started = false;
+		try {
+			content = backend.getContent(dataId, null, null, filename);
+			file = File.createTempFile(FILE_PREFIX, null, dir);
+			out = new FileOutputStream(file);
+			ContentStream stream = new ContentStreamImpl(
+					content.getFileName(), BigInteger.valueOf(length),
+					content.getMimeType(), new Fill(dataId, load,
+							content.getStream(), file, out, length,
+							content.getMimeType()));
+			started = true;
+			return stream;
+		} catch (IOException e) {
+			throw new CmisStorageException("Could not cache content: "
+					+ e.getMessage(), e);
+		} finally {
+			if (!started) {
+				if (content != null)
+					IOUtils.closeQuietly(content.getStream());
+				IOUtils.closeQuietly(out);
+				if (file != null)
+					file.delete();
+				finish(dataId, load, null);
+			}
+		}
+	}
+
+	/**
+	 * Ends a download : the content is cached unless it changed meanwhile,
+	 * and the readers waiting for it are released.
+	 */
+	private void finish(String dataId, Load load, Entry entry) {
+		synchronized (lock) {
+			if (loads.remove(dataId, load)) {
+				if (entry != null)
+					add(dataId, entry);
+			} else if (entry != null) {
+				entry.file.delete();
+				entry = null;
+			}
+		}
+		load.finish(entry);
+	}
+
+	/**
+	 * A download in progress. The readers which wait for it give up after
+	 * {@link #LOAD_WAIT} ms, as it goes at the pace of the reader which
+	 * started it.
+	 */
+	private static class Load {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Entry entry = null;
+
+		void finish(Entry entry) {
+			this.entry = entry;
+			done.countDown();
+		}
+
+		/**
+		 * @return the cached content, or null if it was not cached in time
+		 */
+		Entry await() {
+			try {
+				if (!done.await(LOAD_WAIT, TimeUnit.MILLISECONDS))
+					return null;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CmisStorageException(
+						"Interrupted while reading content");
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Stream of a content being downloaded, which copies the bytes read to
+	 * the cached file. The failures of the cache are only logged : the
+	 * reader gets the content anyway. A stream closed before its end reads
+	 * the rest, so that the content is cached for the readers waiting.
+	 */
+	private class Fill extends InputStream {
+
+		private final String dataId;
+		private final Load load;
+		private final InputStream in;
+		private final File file;
+		private final long length;
+		private final String mimeType;
+		private OutputStream out;
+		private long copied = 0;
+
+		Fill(String dataId, Load load, InputStream in, File file,
+				OutputStream out, long length, String mimeType) {
+			this.dataId = dataId;
+			this.load = load;
+			this.in = in;
+			this.file = file;
+			this.out = out;
+			this.length = length;
+			this.mimeType = mimeType;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n;
+			try {
+				n = in.read(b, off, len);
+			} catch (IOException e) {
+				abandon();
+				throw e;
+			}
+			if (n > 0)
+				write(b, off, n);
+			else if (n == -1)
+				complete();
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (out != null) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int n;
+					while (out != null && (n = in.read(buffer)) != -1)
+						write(buffer, 0, n);
+					complete();
+				}
+			} catch (IOException e) {
+				debug("download of {} interrupted : {}", dataId,
+						e.getMessage());
+				abandon();
+			} finally {
+				in.close();
+			}
+		}
+
+		private void write(byte[] b, int off, int len) {
+			if (out == null)
+				return;
+			try {
+				out.write(b, off, len);
+				copied += len;
+			} catch (IOException e) {
+				LOG.warn("Could not cache {} : {}", dataId, e.getMessage());
+				abandon();
+			}
+		}
+
+		private void complete() {
+			if (out == null)
+				return;
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOG.warn("Could not cache {} : {}", dataId, e.getMessage());
+				abandon();
+				return;
+			}
+			out = null;
+			if (copied != length) {
+				LOG.warn("Could not cache {} : expected {} bytes, read {}",
+						dataId, length, copied);
+				file.delete();
+				finish(dataId, load, null);
+				return;
+			}
+			fills.incrementAndGet();
+			finish(dataId, load, new Entry(file, length, mimeType));
+		}
+
+		private void abandon() {
+			if (out == null)
+				return;
+			IOUtils.closeQuietly(out);
+			out = null;
+			file.delete();
+			finish(dataId, load, null);
+		}
+	}
+
+	/**
+	 * Caches a content and evicts the least recently read ones. The lock is
+	 * held.
+	 */
+	private void add(String dataId, Entry entry) {
+		Entry old = entries.put(dataId, entry);
+		if (old != null) {
+			size -= old.length;
+			old.file.delete();
+		}
+		size += entry.length;
+
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (size > maxSize && eldest.hasNext()) {
+			Entry evicted = eldest.next();
+			eldest.remove();
+			size -= evicted.length;
+			evicted.file.delete();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Forgets a content, and the download of it in progress.
+	 */
+	private void invalidate(String dataId) {
+		synchronized (lock) {
+			loads.remove(dataId);
+			rejected.remove(dataId);
+			Entry entry = entries.remove(dataId);
+			if (entry != null) {
+				size -= entry.length;
+				entry.file.delete();
+			}
+		}
+	}
+
+	@Override
+	public long getLength(String dataId) throws StorageException {
+		synchronized (lock) {
+			Entry entry = entries.get(dataId);
+			if (entry != null)
+				return entry.length;
+		}
+		return backend.getLength(dataId);
+	}
+
+	@Override
+	public boolean exists(String dataId) {
+		synchronized (lock) {
+			if (entries.containsKey(dataId))
+				return true;
+		}
+		return backend.exists(dataId);
+	}
+
+	@Override
+	public void moveContent(String dataId, String newDataId)
+			throws StorageException {
+		try {
+			backend.moveContent(dataId, newDataId);
+		} finally {
+			invalidate(dataId);
+			invalidate(newDataId);
+		}
+	}
+
+	@Override
+	public boolean copyContent(String dataId, String newDataId)
+			throws StorageException {
+		try {
+			return backend.copyContent(dataId, newDataId);
+		} finally {
+			invalidate(newDataId);
+		}
+	}
+
+	@Override
+	public void close() {
+		unregister();
+		clear();
+		backend.close();
+	}
+
+	@Override
+	public String getStorageId() {
+		return backend.getStorageId();
+	}
+
+	@Override
+	public void clear() {
+		synchronized (lock) {
+			loads.clear();
+			rejected.clear();
+			for (Entry entry : entries.values())
+				entry.file.delete();
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Deletes the files left by a former run.
+	 */
+	private void deleteFiles() {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX);
+			}
+		});
+		if (files == null)
+			return;
+		for (File file : files)
+			file.delete();
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	@Override
+	public long getFillCount() {
+		return fills.get();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	@Override
+	public int getEntryCount() {
+		synchronized (lock) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public long getSize() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	@Override
+	public String toString() {
+		return "entries:" + getEntryCount() + " size:" + getSize() + "/"
+				+ maxSize + " hits:" + getHitCount() + " misses:"
+				+ getMissCount() + " evictions:" + getEvictionCount()
+				+ " rejections:" + getRejectionCount();
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
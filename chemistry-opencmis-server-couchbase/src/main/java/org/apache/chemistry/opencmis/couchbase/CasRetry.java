@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.Random;
+
+/**
+ * Bounded exponential backoff between two attempts of an optimistic (CAS)
+ * update.
+ */
+final class CasRetry {
+
+	static final int MAX_ATTEMPTS = 30;
+	static final long BASE_DELAY_MS = 1;
+	static final long MAX_DELAY_MS = 64;
+
+	private static final Random RANDOM = new Random();
+
+	private CasRetry() {
+	}
+
+	/**
+	 * Waits before the next attempt of an update that failed on a CAS
+	 * mismatch.
+	 *
+	 * @param attempt
+	 *            the number of the attempt that failed, starting at 0
+	 * @param docId
+	 *            the document being updated
+	 * @throws CouchbaseException
+	 *             if the update has failed too many times
+	 */
+	static void backoff(int attempt, String docId) throws CouchbaseException {
+		if (attempt + 1 >= MAX_ATTEMPTS) {
+			throw new CouchbaseException("Too many concurrent updates on "
+					+ docId);
+		}
+
+		long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 16));
+		try {
+			// full jitter so that the competing writers spread out
+			Thread.sleep(1 + (long) (RANDOM.nextDouble() * delay));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CouchbaseException("Interrupted while updating " + docId);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
+
+/**
+ * An entry of the change log of a repository : an object was created,
+ * updated or deleted. Only the identity of the object is kept, its current
+ * properties are read again when the change is reported.
+ *
+ * @see MetadataStore#getChanges(long, int)
+ */
+public class ChangeEvent {
+
+	private final long token;
+	private final ChangeType type;
+	private final String objectId;
+	private final String typeId;
+	private final long time;
+
+	public ChangeEvent(long token, ChangeType type, String objectId,
+			String typeId, long time) {
+		this.token = token;
+		this.type = type;
+		this.objectId = objectId;
+		this.typeId = typeId;
+		this.time = time;
+	}
+
+	/**
+	 * Returns a change of an object happening now, not logged yet.
+	 */
+	static ChangeEvent of(ChangeType type, CmisObject data) {
+		return new ChangeEvent(0, type, data.getId(), data.getType(),
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * The position of the event in the log, starting at 1.
+	 */
+	public long getToken() {
+		return token;
+	}
+
+	public ChangeType getType() {
+		return type;
+	}
+
+	public String getObjectId() {
+		return objectId;
+	}
+
+	public String getTypeId() {
+		return typeId;
+	}
+
+	/**
+	 * The time of the change, in milliseconds.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the same event at a position of the log.
+	 */
+	ChangeEvent withToken(long token) {
+		return new ChangeEvent(token, type, objectId, typeId, time);
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeEvent [" + token + " " + type.value() + " " + objectId
+				+ "]";
+	}
+}
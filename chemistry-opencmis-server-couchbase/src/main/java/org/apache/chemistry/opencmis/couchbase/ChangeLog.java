@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rx.Observable;
+import rx.functions.Func1;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Change log of the repository, kept in the metadata bucket.
+ *
+ * Each event is a small document <code>::change::&lt;token&gt;</code>, the
+ * tokens being taken from the counter <code>::changes</code> : a mutation
+ * reserves a block of tokens with a single increment, then inserts its
+ * events in parallel. The log is read by token, a page being fetched with
+ * one bulk get, so that a client catching up only reads the events it
+ * missed.
+ *
+ * A token is reserved before its event is written : a token without event is
+ * either being written, and the page stops before it, or was lost by a
+ * writer which failed, and it is skipped once the events after it are older
+ * than {@link #GAP_TIMEOUT}.
+ */
+class ChangeLog {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ChangeLog.class);
+
+	static final String COUNTER_ID = "::changes";
+	static final String CHANGE_PREFIX = "::change::";
+	static final String CHANGE_TYPE = "cb:changeType";
+	static final String TIME = "cb:time";
+	/** Time after which a token without event is considered lost. */
+	static final long GAP_TIMEOUT = 30 * 1000;
+	/** Largest number of events fetched at once. */
+	static final int MAX_WINDOW = 1000;
+
+	private final Bucket bucket;
+	private final AsyncBucket asyncBucket;
+
+	ChangeLog(Bucket bucket) {
+		this.bucket = bucket;
+		this.asyncBucket = bucket.async();
+	}
+
+	static String changeId(long token) {
+		return CHANGE_PREFIX + token;
+	}
+
+	/**
+	 * Appends the events of a mutation. The mutation is done already : a
+	 * failure is logged and does not fail it, the log is incomplete then.
+	 */
+	void append(List<ChangeEvent> events) {
+		if (events.isEmpty())
+			return;
+		try {
+			int count = events.size();
+			long last = bucket.counter(COUNTER_ID, count, count).content();
+			List<JsonDocument> docs = new ArrayList<JsonDocument>(count);
+			for (int i = 0; i < count; i++)
+				docs.add(JsonDocument.create(changeId(last - count + 1 + i),
+						toJson(events.get(i))));
+			Observable.from(docs)
+					.flatMap(new Func1<JsonDocument, Observable<JsonDocument>>() {
+						@Override
+						public Observable<JsonDocument> call(JsonDocument doc) {
+							return asyncBucket.insert(doc);
+						}
+					}).toList().toBlocking().single();
+			debug("appended {} events up to {}", count, last);
+		} catch (RuntimeException e) {
+			LOG.warn("Change events not logged : {} ({})", events, e.toString());
+		}
+	}
+
+	/**
+	 * Returns the token of the last event, 0 if there is none.
+	 */
+	long getLatestToken() {
+		return bucket.counter(COUNTER_ID, 0, 0).content();
+	}
+
+	/**
+	 * Reads the events from a token on, in their order.
+	 *
+	 * @param first
+	 *            the token of the first event
+	 * @param max
+	 *            the largest number of events returned
+	 */
+	List<ChangeEvent> read(long first, int max) {
+		List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+		long latest = getLatestToken();
+		long next = Math.max(first, 1);
+		while (events.size() < max && next <= latest) {
+			long last = Math.min(latest,
+					next + Math.min(max - events.size(), MAX_WINDOW) - 1);
+			Map<Long, ChangeEvent> window = fetch(next, last);
+			long limit = System.currentTimeMillis() - GAP_TIMEOUT;
+			for (long token = next; token <= last; token++) {
+				ChangeEvent event = window.get(token);
+				if (event != null) {
+					events.add(event);
+				} else if (!lostToken(window, token, last, limit)) {
+					debug("event {} is being written", token);
+					return events;
+				}
+			}
+			next = last + 1;
+		}
+		return events;
+	}
+
+	/**
+	 * Tells if a token without event is followed by an event older than the
+	 * time limit : its writer had all this time to write it.
+	 */
+	private boolean lostToken(Map<Long, ChangeEvent> window, long token,
+			long last, long limit) {
+		for (long later = token + 1; later <= last; later++) {
+			ChangeEvent event = window.get(later);
+			if (event != null && event.getTime() < limit) {
+				debug("event {} is lost", token);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Map<Long, ChangeEvent> fetch(long first, long last) {
+		List<String> ids = new ArrayList<String>();
+		for (long token = first; token <= last; token++)
+			ids.add(changeId(token));
+		return Observable.from(ids)
+				.flatMap(new Func1<String, Observable<JsonDocument>>() {
+					@Override
+					public Observable<JsonDocument> call(String id) {
+						return asyncBucket.get(id);
+					}
+				}).toMap(new Func1<JsonDocument, Long>() {
+					@Override
+					public Long call(JsonDocument doc) {
+						return Long.valueOf(doc.id().substring(
+								CHANGE_PREFIX.length()));
+					}
+				}, new Func1<JsonDocument, ChangeEvent>() {
+					@Override
+					public ChangeEvent call(JsonDocument doc) {
+						return fromJson(doc);
+					}
+				}).toBlocking().single();
+	}
+
+	private static JsonObject toJson(ChangeEvent event) {
+		return JsonObject.empty()
+				.put(CHANGE_TYPE, event.getType().value())
+				.put(PropertyIds.OBJECT_ID, event.getObjectId())
+				.put(PropertyIds.OBJECT_TYPE_ID, event.getTypeId())
+				.put(TIME, event.getTime());
+	}
+
+	private static ChangeEvent fromJson(JsonDocument doc) {
+		JsonObject content = doc.content();
+		return new ChangeEvent(Long.parseLong(doc.id().substring(
+				CHANGE_PREFIX.length())),
+				ChangeType.fromValue(content.getString(CHANGE_TYPE)),
+				content.getString(PropertyIds.OBJECT_ID),
+				content.getString(PropertyIds.OBJECT_TYPE_ID),
+				content.getLong(TIME));
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rx.Observable;
+import rx.functions.Func1;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.JsonLongDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+
+/**
+ * Children of a folder, stored outside of the folder document.
+ *
+ * The children ids are spread over fixed size pages
+ * <code>folderId::children::N</code>. A counter
+ * <code>folderId::children::next</code> hands out the slots so that an insert
+ * only rewrites one bounded page, and a second counter
+ * <code>folderId::children::count</code> keeps the number of children. Each
+ * child remembers its page (<code>cb:childPage</code>) so that it can be
+ * removed without scanning the folder.
+ *
+ * The number of children of each page is kept in a counter of its own,
+ * <code>folderId::children::N::count</code>, so that a page of children is
+ * read from the pages holding it only, whatever the skip count, and the pages
+ * emptied by removals are not read at all : they are deleted. Being counters,
+ * they are updated without reading them, and writers of different pages never
+ * meet. They are updated after the pages, and corrected when a page read does
+ * not hold the number of children expected.
+ */
+class ChildIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ChildIndex.class);
+
+	static final int PAGE_SIZE = 200;
+	/** Number of pages read in parallel while paging through a folder. */
+	static final int PAGE_BATCH = 4;
+
+	static final String CHILDREN = "cb:children";
+	static final String FOLDER_ID = "cb:folderId";
+	static final String CHILD_PAGE = "cb:childPage";
+
+	private static final String PAGE_PREFIX = "::children::";
+	private static final String NEXT_SUFFIX = "::children::next";
+	private static final String COUNT_SUFFIX = "::children::count";
+	private static final String PAGE_COUNT_SUFFIX = "::count";
+
+	private final Bucket bucket;
+
+	ChildIndex(Bucket bucket) {
+		this.bucket = bucket;
+	}
+
+	static String pageId(String folderId, int page) {
+		return folderId + PAGE_PREFIX + page;
+	}
+
+	static String nextId(String folderId) {
+		return folderId + NEXT_SUFFIX;
+	}
+
+	static String countId(String folderId) {
+		return folderId + COUNT_SUFFIX;
+	}
+
+	static String pageCountId(String folderId, int page) {
+		return pageId(folderId, page) + PAGE_COUNT_SUFFIX;
+	}
+
+	/**
+	 * Reserves a slot for a new child and returns the page it belongs to.
+	 */
+	int allocate(String folderId) {
+		long slot = bucket.counter(nextId(folderId), 1, 1).content() - 1;
+		return (int) (slot / PAGE_SIZE);
+	}
+
+	/**
+	 * Appends a child to the given page of a folder.
+	 */
+	void add(String folderId, int page, String childId)
+			throws CouchbaseException {
+		debug("add child {} to {}", childId, pageId(folderId, page));
+		String pageId = pageId(folderId, page);
+		int size;
+		for (int attempt = 0;; attempt++) {
+			JsonDocument current = bucket.get(pageId);
+			try {
+				if (current == null) {
+					JsonObject content = JsonObject.empty()
+							.put(FOLDER_ID, folderId)
+							.put(CHILDREN, JsonArray.from(childId));
+					bucket.insert(JsonDocument.create(pageId, content));
+					size = 1;
+				} else {
+					JsonArray children = current.content().getArray(CHILDREN);
+					children.add(childId);
+					bucket.replace(current);
+					size = children.size();
+				}
+				break;
+			} catch (DocumentAlreadyExistsException e) {
+				debug("page created concurrently : {}", pageId);
+				CasRetry.backoff(attempt, pageId);
+			} catch (CASMismatchException e) {
+				debug("page updated concurrently : {}", pageId);
+				CasRetry.backoff(attempt, pageId);
+			}
+		}
+		bucket.counter(countId(folderId), 1, 1);
+		addPageCount(folderId, page, 1, size);
+	}
+
+	/**
+	 * Removes a child from the given page of a folder.
+	 *
+	 * @return <code>false</code> if the child was not found in the page
+	 */
+	boolean remove(String folderId, int page, String childId)
+			throws CouchbaseException {
+		debug("remove child {} from {}", childId, pageId(folderId, page));
+		String pageId = pageId(folderId, page);
+		int size;
+		for (int attempt = 0;; attempt++) {
+			JsonDocument current = bucket.get(pageId);
+			if (current == null) {
+				return false;
+			}
+			List<Object> children = current.content().getArray(CHILDREN)
+					.toList();
+			if (!children.remove(childId)) {
+				return false;
+			}
+			current.content().put(CHILDREN, JsonArray.from(children));
+			try {
+				JsonDocument updated = bucket.replace(current);
+				if (children.isEmpty()) {
+					removeEmptyPage(updated);
+				}
+				size = children.size();
+				break;
+			} catch (CASMismatchException e) {
+				debug("page updated concurrently : {}", pageId);
+				CasRetry.backoff(attempt, pageId);
+			}
+		}
+		bucket.counter(countId(folderId), -1, 0);
+		addPageCount(folderId, page, -1, size);
+		return true;
+	}
+
+	/**
+	 * Deletes a page left empty, unless a child has been added to it in the
+	 * meantime.
+	 */
+	private void removeEmptyPage(JsonDocument page) {
+		try {
+			bucket.remove(page);
+		} catch (CASMismatchException e) {
+			debug("page refilled concurrently : {}", page.id());
+		}
+	}
+
+	/**
+	 * Returns the number of children of a folder.
+	 */
+	long count(String folderId) {
+		return readCounter(countId(folderId));
+	}
+
+	/**
+	 * Returns the ids of the children between <code>skip</code> and
+	 * <code>skip + max</code>. The pages holding them are found from the
+	 * counts of the pages, then read at once.
+	 */
+	List<String> list(String folderId, int skip, int max) {
+		long next = readCounter(nextId(folderId));
+		int pageCount = (int) ((next + PAGE_SIZE - 1) / PAGE_SIZE);
+		long[] counts = readPageCounts(folderId, pageCount);
+		long wanted = (long) skip + max;
+
+		// the pages before the window are skipped without being read
+		long seen = 0;
+		int page = 0;
+		while (page < pageCount && counts[page] >= 0
+				&& seen + counts[page] <= skip) {
+			seen += counts[page];
+			page++;
+		}
+
+		List<String> ids = new ArrayList<String>();
+		while (page < pageCount && seen < wanted) {
+			// a page not counted yet (a folder of a former version, or a
+			// page being written) is expected to be full
+			List<Integer> pages = new ArrayList<Integer>();
+			List<String> pageIds = new ArrayList<String>();
+			long covered = seen;
+			for (; page < pageCount && covered < wanted; page++) {
+				if (counts[page] != 0) {
+					pages.add(page);
+					pageIds.add(pageId(folderId, page));
+					covered += counts[page] < 0 ? PAGE_SIZE : counts[page];
+				}
+			}
+			Map<String, JsonDocument> pageDocs = getAll(pageIds);
+
+			for (int i = 0; i < pages.size(); i++) {
+				JsonDocument pageDoc = pageDocs.get(pageIds.get(i));
+				JsonArray children = pageDoc == null ? JsonArray.empty()
+						: pageDoc.content().getArray(CHILDREN);
+				// never down to 0 : the page may be about to be written
+				if (children.size() > 0
+						&& children.size() != counts[pages.get(i)]) {
+					debug("count of {} corrected to {}", pageIds.get(i),
+							children.size());
+					setPageCount(folderId, pages.get(i), children.size());
+				}
+				for (int c = 0; c < children.size() && seen < wanted; c++, seen++) {
+					if (seen >= skip) {
+						ids.add(children.getString(c));
+					}
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Reads the counts of the pages of a folder at once; -1 stands for a page
+	 * which is not counted.
+	 */
+	private long[] readPageCounts(String folderId, int pageCount) {
+		List<String> countIds = new ArrayList<String>();
+		for (int page = 0; page < pageCount; page++) {
+			countIds.add(pageCountId(folderId, page));
+		}
+		Map<String, JsonLongDocument> counters = getAll(countIds,
+				JsonLongDocument.class);
+		long[] counts = new long[pageCount];
+		for (int page = 0; page < pageCount; page++) {
+			JsonLongDocument counter = counters.get(countIds.get(page));
+			counts[page] = counter == null || counter.content() == null ? -1
+					: counter.content().longValue();
+		}
+		return counts;
+	}
+
+	/**
+	 * Rewrites the whole index of a folder from a list of children. Used by
+	 * the migration of the former <code>cb:children</code> array; running it
+	 * twice gives the same result.
+	 *
+	 * @return the page of each child, in the order of <code>childrenIds</code>
+	 */
+	int[] rebuild(String folderId, List<String> childrenIds) {
+		int[] pages = new int[childrenIds.size()];
+		for (int first = 0; first < childrenIds.size(); first += PAGE_SIZE) {
+			int page = first / PAGE_SIZE;
+			List<String> pageChildren = childrenIds.subList(first,
+					Math.min(first + PAGE_SIZE, childrenIds.size()));
+			JsonObject content = JsonObject.empty().put(FOLDER_ID, folderId)
+					.put(CHILDREN, JsonArray.from(new ArrayList<Object>(pageChildren)));
+			bucket.upsert(JsonDocument.create(pageId(folderId, page), content));
+			bucket.upsert(JsonLongDocument.create(pageCountId(folderId, page),
+					Long.valueOf(pageChildren.size())));
+			for (int i = first; i < first + pageChildren.size(); i++) {
+				pages[i] = page;
+			}
+		}
+		bucket.upsert(JsonLongDocument.create(nextId(folderId),
+				Long.valueOf(childrenIds.size())));
+		bucket.upsert(JsonLongDocument.create(countId(folderId),
+				Long.valueOf(childrenIds.size())));
+		return pages;
+	}
+
+	/**
+	 * Adds to the count of children of a page. A page not counted yet starts
+	 * from <code>size</code>, its number of children once written. A failure
+	 * is only logged : the count is corrected by the next read of the page.
+	 */
+	private void addPageCount(String folderId, int page, int delta, int size) {
+		try {
+			bucket.counter(pageCountId(folderId, page), delta, size);
+		} catch (Exception e) {
+			LOG.warn("Count of {} not updated : {}", pageId(folderId, page),
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Sets the count of children of a page, after a read of the page.
+	 */
+	private void setPageCount(String folderId, int page, int count) {
+		try {
+			bucket.upsert(JsonLongDocument.create(pageCountId(folderId, page),
+					Long.valueOf(count)));
+		} catch (Exception e) {
+			LOG.warn("Count of {} not corrected : {}",
+					pageId(folderId, page), e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the pages and counters of a folder.
+	 */
+	void drop(String folderId) {
+		long next = readCounter(nextId(folderId));
+		for (int page = 0; page * (long) PAGE_SIZE < next; page++) {
+			removeQuietly(pageId(folderId, page));
+			removeQuietly(pageCountId(folderId, page));
+		}
+		removeQuietly(nextId(folderId));
+		removeQuietly(countId(folderId));
+	}
+
+	private Map<String, JsonDocument> getAll(List<String> ids) {
+		return getAll(ids, JsonDocument.class);
+	}
+
+	private <D extends Document<?>> Map<String, D> getAll(List<String> ids,
+			final Class<D> target) {
+		if (ids.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		return Observable.from(ids)
+				.flatMap(new Func1<String, Observable<D>>() {
+					@Override
+					public Observable<D> call(String id) {
+						return bucket.async().get(id, target);
+					}
+				}).toMap(new Func1<D, String>() {
+					@Override
+					public String call(D doc) {
+						return doc.id();
+					}
+				}).toBlocking().single();
+	}
+
+	private long readCounter(String counterId) {
+		JsonLongDocument counter = bucket.get(counterId, JsonLongDocument.class);
+		if (counter == null || counter.content() == null) {
+			return 0;
+		}
+		return counter.content().longValue();
+	}
+
+	private void removeQuietly(String id) {
+		try {
+			bucket.remove(id);
+		} catch (Exception e) {
+			debug("nothing to remove : {}", id);
+		}
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
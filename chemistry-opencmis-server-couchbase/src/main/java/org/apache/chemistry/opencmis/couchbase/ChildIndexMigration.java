@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.List;
+
+import com.couchbase.client.java.CouchbaseCluster;
+
+/**
+ * Moves the <code>cb:children</code> arrays of an existing metadata bucket
+ * into the paged child index.
+ * 
+ * Usage : <code>ChildIndexMigration &lt;location&gt; &lt;bucket&gt;</code>,
+ * for example <code>ChildIndexMigration 192.168.56.105 cmismeta</code>. The
+ * migration can be run again if it has been interrupted.
+ */
+public class ChildIndexMigration {
+
+	public static void main(String[] args) throws CouchbaseException {
+		if (args.length != 2) {
+			System.err.println("Usage: ChildIndexMigration <location> <bucket>");
+			System.exit(1);
+		}
+
+		CouchbaseCluster cluster = CouchbaseCluster.create(args[0]);
+		CouchbaseService cbService = new CouchbaseService(cluster, args[1]);
+		try {
+			List<String> folderIds = cbService.getLegacyFolderIds();
+			System.out.println(folderIds.size() + " folder(s) to migrate");
+
+			int folders = 0;
+			long children = 0;
+			for (String folderId : folderIds) {
+				int count = cbService.migrateChildren(folderId);
+				if (count >= 0) {
+					folders++;
+					children += count;
+				}
+			}
+			System.out.println(folders + " folder(s) and " + children
+					+ " child(ren) migrated");
+		} finally {
+			cbService.close();
+		}
+	}
+}
@@ -1,8 +1,6 @@
 package org.apache.chemistry.opencmis.couchbase;
 
-import java.util.ArrayList;
 import java.util.GregorianCalendar;
-import java.util.List;
 
 public class CmisObject {
 
@@ -19,8 +17,8 @@ public class CmisObject {
 	private GregorianCalendar creationDate;
 	private GregorianCalendar lastModificationDate;
 	private String parentId = null;
-	private String path = null;
-	private List<String> children = new ArrayList<String>();;
+	private int childPage = -1;
+	private long cas = 0;
 
 	public CmisObject(String objectId) {
 		this.id = objectId;
@@ -114,38 +112,50 @@ public class CmisObject {
 		return this.parentId;
 	}
 
-	public void setPath(String path) {
-		this.path = path;
-	}
-
-	public String getPath() {
-		return this.path;
+	/**
+	 * Sets the page of the parent's child index holding this object.
+	 */
+	public void setChildPage(int childPage) {
+		this.childPage = childPage;
 	}
 
-	public String getFullPath() {
-		String path = getPath();
-		if (path == null)
-			return null;
-		if (isRoot())
-			return path;
-		return path + getName();
+	public int getChildPage() {
+		return this.childPage;
 	}
 
-	public void addChildren(String childrenId) {
-		if (children == null) {
-			children = new ArrayList<String>();
-		}
-		children.add(childrenId);
+	/**
+	 * Sets the CAS of the Couchbase document this object was read from, 0 if
+	 * unknown.
+	 */
+	public void setCas(long cas) {
+		this.cas = cas;
 	}
 
-	public boolean removeChildren(String childrenId) {
-		if (children == null)
-			return false;
-		return children.remove(childrenId);
+	public long getCas() {
+		return this.cas;
 	}
 
-	public List<String> getChildren() {
-		return this.children;
+	/**
+	 * Returns a copy of this object, which can be changed without changing
+	 * this one.
+	 */
+	public CmisObject copy() {
+		CmisObject copy = new CmisObject(this.id);
+		copy.type = this.type;
+		copy.name = this.name;
+		copy.createdBy = this.createdBy;
+		copy.lastModifiedBy = this.lastModifiedBy;
+		copy.contentType = this.contentType;
+		copy.fileName = this.fileName;
+		copy.contentLength = this.contentLength;
+		copy.creationDate = this.creationDate == null ? null
+				: (GregorianCalendar) this.creationDate.clone();
+		copy.lastModificationDate = this.lastModificationDate == null ? null
+				: (GregorianCalendar) this.lastModificationDate.clone();
+		copy.parentId = this.parentId;
+		copy.childPage = this.childPage;
+		copy.cas = this.cas;
+		return copy;
 	}
 
 	public boolean isDirectory() {
@@ -180,7 +190,6 @@ public class CmisObject {
 		buf.append("lastModificationDate:" + this.getLastModificationDate()
 				+ "\n");
 		buf.append("parentId:" + this.getParentId() + "\n");
-		buf.append("path:" + this.getPath() + "\n");
 
 		return buf.toString();
 	}
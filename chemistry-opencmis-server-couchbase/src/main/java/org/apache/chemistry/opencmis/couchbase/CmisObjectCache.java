@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded in-process cache of the cmis objects read from Couchbase, keyed by
+ * object id.
+ *
+ * The least recently used entries are evicted once <code>maxSize</code> is
+ * reached and an entry is not served anymore after <code>ttl</code>
+ * milliseconds. Each entry keeps the CAS of the document it was decoded
+ * from: a write based on a stale entry is rejected by Couchbase with a CAS
+ * mismatch, and the writers of {@link CouchbaseService} invalidate the
+ * entries they change. Objects are copied in and out so that callers can
+ * change them freely.
+ *
+ * The entries are spread by id over up to {@value #MAX_SEGMENTS} segments,
+ * each an LRU map of its own lock, so that the request threads seldom wait
+ * for one another. A segment holds at least {@value #MIN_SEGMENT_SIZE}
+ * entries : the least recently used entry is evicted from the segment which
+ * is full, which is close to a global LRU.
+ *
+ * A reader takes the {@link #generation(String) generation} of an id before
+ * reading the document, and caches it with that generation : an invalidation
+ * in the meantime moves the generation on, and the version read, which may
+ * be older than the write invalidated, is not cached. The generations are
+ * kept by stripes of ids, so that they survive the eviction of the entries.
+ */
+public class CmisObjectCache implements CmisObjectCacheMBean {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CmisObjectCache.class);
+
+	public static final int DEFAULT_SIZE = 1000;
+	public static final long DEFAULT_TTL = 5000;
+
+	static final int MAX_SEGMENTS = 16;
+	static final int MIN_SEGMENT_SIZE = 64;
+	static final int GENERATION_STRIPES = 1024;
+
+	private final int maxSize;
+	private final long ttl;
+	private final Map<String, CacheEntry>[] segments;
+	private final AtomicLongArray generations = new AtomicLongArray(
+			GENERATION_STRIPES);
+	private ObjectName name = null;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong stalePuts = new AtomicLong();
+
+	private static class CacheEntry {
+		final CmisObject data;
+		final long expires;
+
+		CacheEntry(CmisObject data, long expires) {
+			this.data = data;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of objects kept, 0 disables the cache
+	 * @param ttl
+	 *            the time an object is kept, in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public CmisObjectCache(int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		int count = 1;
+		while (count < MAX_SEGMENTS && maxSize / (count * 2) >= MIN_SEGMENT_SIZE)
+			count *= 2;
+		this.segments = new Map[count];
+		for (int i = 0; i < count; i++)
+			segments[i] = createSegment(maxSize / count);
+	}
+
+	private Map<String, CacheEntry> createSegment(final int segmentSize) {
+		return new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > segmentSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private Map<String, CacheEntry> segment(String objectId) {
+		return segments[hash(objectId) & (segments.length - 1)];
+	}
+
+	private int stripe(String objectId) {
+		return hash(objectId) & (GENERATION_STRIPES - 1);
+	}
+
+	private static int hash(String objectId) {
+		int h = objectId.hashCode();
+		// spreads the high bits, as HashMap does
+		return h ^ (h >>> 16);
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Returns a copy of the cached object, or <code>null</code> if it is not
+	 * cached or has expired.
+	 */
+	public CmisObject get(String objectId) {
+		if (!isEnabled())
+			return null;
+
+		Map<String, CacheEntry> entries = segment(objectId);
+		CacheEntry entry;
+		synchronized (entries) {
+			entry = entries.get(objectId);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				entries.remove(objectId);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.data.copy();
+	}
+
+	/**
+	 * Returns the generation of an id, to be taken before its document is
+	 * read and given back to {@link #put(CmisObject, long)}.
+	 */
+	public long generation(String objectId) {
+		return generations.get(stripe(objectId));
+	}
+
+	/**
+	 * Caches a copy of an object, whatever the invalidations so far.
+	 */
+	public void put(CmisObject data) {
+		if (data != null)
+			put(data, generation(data.getId()));
+	}
+
+	/**
+	 * Caches a copy of an object, unless it has been invalidated since
+	 * <code>generation</code> was taken. An object without CAS is not cached,
+	 * as nothing could tell it is stale.
+	 */
+	public void put(CmisObject data, long generation) {
+		if (!isEnabled() || data == null || data.getCas() == 0)
+			return;
+
+		CacheEntry entry = new CacheEntry(data.copy(), System.currentTimeMillis() + ttl);
+		Map<String, CacheEntry> entries = segment(data.getId());
+		synchronized (entries) {
+			if (generations.get(stripe(data.getId())) != generation) {
+				stalePuts.incrementAndGet();
+				return;
+			}
+			entries.put(data.getId(), entry);
+		}
+	}
+
+	public void invalidate(String objectId) {
+		if (!isEnabled())
+			return;
+
+		Map<String, CacheEntry> entries = segment(objectId);
+		synchronized (entries) {
+			generations.incrementAndGet(stripe(objectId));
+			entries.remove(objectId);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Map<String, CacheEntry> entries : segments) {
+			synchronized (entries) {
+				entries.clear();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Map<String, CacheEntry> entries : segments) {
+			synchronized (entries) {
+				size += entries.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public int getSize() {
+		return size();
+	}
+
+	/**
+	 * Registers this cache in the platform MBean server.
+	 */
+	public synchronized void register(String repositoryId) {
+		try {
+			ObjectName objectName = new ObjectName(
+					"org.apache.chemistry.opencmis.couchbase:type=ObjectCache,repository="
+							+ ObjectName.quote(repositoryId));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+				name = objectName;
+			}
+		} catch (JMException e) {
+			LOG.warn("Object cache not registered : {}", e.getMessage());
+		}
+	}
+
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			LOG.warn("Object cache not unregistered : {}", e.getMessage());
+		}
+		name = null;
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public long getTtl() {
+		return ttl;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	@Override
+	public long getStalePuts() {
+		return stalePuts.get();
+	}
+
+	@Override
+	public String toString() {
+		return "size:" + size() + "/" + maxSize + " ttl:" + ttl + " hits:"
+				+ getHits() + " misses:" + getMisses() + " evictions:"
+				+ getEvictions() + " expirations:" + getExpirations()
+				+ " stalePuts:" + getStalePuts();
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+/**
+ * JMX view of a {@link CmisObjectCache}.
+ */
+public interface CmisObjectCacheMBean {
+
+	long getHits();
+
+	long getMisses();
+
+	/**
+	 * Returns the share of the reads served from the cache, between 0 and 1.
+	 */
+	double getHitRatio();
+
+	/** Number of entries removed because the cache was full. */
+	long getEvictions();
+
+	/** Number of entries removed because they were too old. */
+	long getExpirations();
+
+	/** Number of objects not cached because invalidated while being read. */
+	long getStalePuts();
+
+	int getSize();
+
+	int getMaxSize();
+
+	long getTtl();
+
+	/**
+	 * Removes all the objects from the cache.
+	 */
+	void clear();
+}
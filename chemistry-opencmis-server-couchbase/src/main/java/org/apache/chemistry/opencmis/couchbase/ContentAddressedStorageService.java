@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores each distinct content once, in another {@link StorageService}.
+ * 
+ * A content is hashed (SHA-256) while it is copied to a temporary file, and
+ * stored in the backend under its hash unless a blob of that hash is already
+ * there. The contents are mapped to their blob, and the blobs counted, by the
+ * {@link ContentReferences} : a blob is deleted with the last content which
+ * references it. Moving or copying a content only changes the references.
+ * 
+ * The same bytes may be written with different MIME types : the type of a
+ * content is kept in its reference, not with the blob.
+ */
+public class ContentAddressedStorageService implements StorageService {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ContentAddressedStorageService.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String STORAGE_ID = "cas";
+	private static final String DIGEST = "SHA-256";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final StorageService backend;
+	private final ContentReferences references;
+	private File tempDir = null;
+
+	public ContentAddressedStorageService(StorageService backend,
+			ContentReferences references) {
+		this.backend = backend;
+		this.references = references;
+	}
+
+	/**
+	 * Sets the directory of the temporary files, the default one of the
+	 * platform if null.
+	 */
+	public void setTempDir(File tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public StorageService getBackend() {
+		return backend;
+	}
+
+	@Override
+	public void writeContent(String dataId, ContentStream contentStream)
+			throws StorageException {
+		debug("writeContent dataId:{}", dataId);
+		if (references.getHash(dataId) != null) {
+			throw new StorageException("Document already exists!");
+		}
+
+		File tempFile;
+		try {
+			tempFile = File.createTempFile("cas", null, tempDir);
+		} catch (IOException e) {
+			throw new StorageException("Could not create file: "
+					+ e.getMessage());
+		}
+		try {
+			String hash = copy(contentStream, tempFile);
+			references.acquire(hash);
+			boolean mapped = false;
+			try {
+				if (!backend.exists(hash)) {
+					storeBlob(hash, tempFile);
+				} else {
+					debug("blob {} already stored", hash);
+				}
+				mapped = references.map(dataId, hash,
+						contentStream == null ? null : contentStream
+								.getMimeType());
+				if (!mapped)
+					throw new StorageException("Document already exists!");
+			} finally {
+				if (!mapped)
+					release(hash);
+			}
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Copies a content to a file, and returns its hash.
+	 */
+	private static String copy(ContentStream contentStream, File file) {
+		InputStream stream = contentStream == null ? null : contentStream
+				.getStream();
+		OutputStream out = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance(DIGEST);
+			out = new FileOutputStream(file);
+			if (stream != null) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = stream.read(buffer)) != -1) {
+					digest.update(buffer, 0, n);
+					out.write(buffer, 0, n);
+				}
+			}
+			return hex(digest.digest());
+		} catch (IOException e) {
+			throw new CmisStorageException("Could not write content: "
+					+ e.getMessage(), e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(stream);
+		}
+	}
+
+	private void storeBlob(String hash, File file) throws StorageException {
+		debug("store blob {}", hash);
+		InputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (IOException e) {
+			throw new StorageException("Could not read file: " + e.getMessage());
+		}
+		try {
+			backend.writeContent(hash, new ContentStreamImpl(hash, BigInteger
+					.valueOf(file.length()), null, in));
+		} catch (StorageException e) {
+			// stored by a concurrent writer of the same content
+			if (!backend.exists(hash))
+				throw e;
+		} catch (CmisBaseException e) {
+			if (!backend.exists(hash))
+				throw e;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	@Override
+	public boolean deleteContent(String dataId) {
+		debug("deleteContent dataId:{}", dataId);
+		try {
+			String hash = references.unmap(dataId);
+			if (hash == null)
+				return false;
+			release(hash);
+			return true;
+		} catch (StorageException e) {
+			throw new CmisStorageException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes a reference to a blob, and deletes the blob if it was the last
+	 * one. A blob which cannot be deleted is forgotten anyway : it is left in
+	 * the backend, where the next write of the same content finds it. So is a
+	 * blob whose deletion took so long that it was abandoned.
+	 */
+	private void release(String hash) throws StorageException {
+		if (!references.release(hash))
+			return;
+		debug("delete blob {}", hash);
+		try {
+			if (!references.isDeleting(hash)) {
+				LOG.warn("Deletion of blob {} abandoned, blob left", hash);
+				return;
+			}
+			if (!backend.deleteContent(hash))
+				LOG.warn("Blob {} could not be deleted", hash);
+		} catch (RuntimeException e) {
+			LOG.warn("Blob {} could not be deleted : {}", hash, e.getMessage());
+		} finally {
+			references.forget(hash);
+		}
+	}
+
+	@Override
+	public ContentStream getContent(String dataId, BigInteger offset,
+			BigInteger length, String filename) throws StorageException {
+		debug("getContent dataId={}", dataId);
+		ContentReferences.Reference reference = references
+				.getReference(dataId);
+		if (reference == null)
+			throw new StorageException("Content not found: " + dataId);
+		ContentStream content = backend.getContent(reference.getHash(),
+				offset, length, filename);
+		String mimeType = reference.getMimeType();
+		if (content == null || mimeType == null)
+			return content;
+		if (content instanceof ContentStreamImpl) {
+			// keeps a partial content partial
+			((ContentStreamImpl) content).setMimeType(mimeType);
+			return content;
+		}
+		return new ContentStreamImpl(content.getFileName(),
+				content.getBigLength(), mimeType, content.getStream());
+	}
+
+	@Override
+	public long getLength(String dataId) throws StorageException {
+		String hash = references.getHash(dataId);
+		return hash == null ? -1 : backend.getLength(hash);
+	}
+
+	@Override
+	public boolean exists(String dataId) {
+		try {
+			return references.getHash(dataId) != null;
+		} catch (StorageException e) {
+			LOG.warn("Cannot read the content of {} : {}", dataId,
+					e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public void moveContent(String dataId, String newDataId)
+			throws StorageException {
+		debug("moveContent dataId:{} to {}", dataId, newDataId);
+		ContentReferences.Reference reference = references
+				.getReference(dataId);
+		if (reference == null)
+			throw new StorageException("Content not found: " + dataId);
+		if (!references.map(newDataId, reference.getHash(),
+				reference.getMimeType()))
+			throw new StorageException("Document already exists!");
+		references.unmap(dataId);
+	}
+
+	/**
+	 * Copies a content to another identifier, by adding a reference to its
+	 * blob : nothing is read nor written in the backend.
+	 */
+	@Override
+	public boolean copyContent(String dataId, String newDataId)
+			throws StorageException {
+		debug("copyContent dataId:{} to {}", dataId, newDataId);
+		ContentReferences.Reference reference = references
+				.getReference(dataId);
+		if (reference == null)
+			throw new StorageException("Content not found: " + dataId);
+		String hash = reference.getHash();
+		references.acquire(hash);
+		if (!references.map(newDataId, hash, reference.getMimeType())) {
+			release(hash);
+			throw new StorageException("Document already exists!");
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		backend.close();
+	}
+
+	@Override
+	public String getStorageId() {
+		return STORAGE_ID;
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+/**
+ * References of the contents to the blobs of a
+ * {@link ContentAddressedStorageService}.
+ * 
+ * Each content id is mapped to the hash of its blob and to its own MIME type,
+ * since a blob is shared by contents of any type. Each blob counts the
+ * contents which reference it. A blob whose count falls to zero is marked as
+ * being deleted until it is forgotten : it cannot be referenced again in the
+ * meantime, so that a blob is never deleted under a new reference.
+ */
+public interface ContentReferences {
+
+	/**
+	 * Returns the hash of the blob of a content.
+	 * 
+	 * @param dataId
+	 *            the content identifier
+	 * @return the hash, or null if the content is not mapped
+	 */
+	String getHash(String dataId) throws StorageException;
+
+	/**
+	 * Returns the reference of a content to its blob.
+	 * 
+	 * @param dataId
+	 *            the content identifier
+	 * @return the reference, or null if the content is not mapped
+	 */
+	Reference getReference(String dataId) throws StorageException;
+
+	/**
+	 * Maps a content to a blob, unless it is already mapped.
+	 * 
+	 * @param mimeType
+	 *            the MIME type of the content, may be null
+	 * @return false if the content is already mapped
+	 */
+	boolean map(String dataId, String hash, String mimeType)
+			throws StorageException;
+
+	/**
+	 * Removes the mapping of a content.
+	 * 
+	 * @return the hash the content was mapped to, or null if it was not mapped
+	 */
+	String unmap(String dataId) throws StorageException;
+
+	/**
+	 * Adds a reference to a blob, waiting for the blob to be forgotten if it
+	 * is being deleted.
+	 */
+	void acquire(String hash) throws StorageException;
+
+	/**
+	 * Removes a reference to a blob.
+	 * 
+	 * @return true if the blob is not referenced any more : it is marked as
+	 *         being deleted, and the caller must delete it and then
+	 *         {@link #forget(String)} it
+	 */
+	boolean release(String hash) throws StorageException;
+
+	/**
+	 * Tells whether a blob is still marked as being deleted. Checked right
+	 * before deleting it : a deletion which took too long may have been
+	 * abandoned, and the blob referenced again.
+	 */
+	boolean isDeleting(String hash) throws StorageException;
+
+	/**
+	 * Forgets a blob once it is deleted.
+	 */
+	void forget(String hash) throws StorageException;
+
+	/**
+	 * The blob of a content, and the MIME type of the content.
+	 */
+	class Reference {
+
+		private final String hash;
+		private final String mimeType;
+
+		public Reference(String hash, String mimeType) {
+			this.hash = hash;
+			this.mimeType = mimeType;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+	}
+}
@@ -115,7 +115,7 @@ public class CouchbaseCmisService extends AbstractCmisService implements CallCon
 
     @Override
     public RepositoryInfo getRepositoryInfo(String repositoryId, ExtensionsData extension) {
-    	debug("getRepositoryInfo repoId="+repositoryId);
+    	debug("getRepositoryInfo repoId={}", repositoryId);
         for (CouchbaseRepository fsr : repositoryManager.getRepositories()) {
             if (fsr.getRepositoryId().equals(repositoryId)) {
                 return fsr.getRepositoryInfo(getCallContext());
@@ -160,7 +160,7 @@ public class CouchbaseCmisService extends AbstractCmisService implements CallCon
     public ObjectInFolderList getChildren(String repositoryId, String folderId, String filter, String orderBy,
             Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
             Boolean includePathSegment, BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
-    	System.out.println("CouchbaseCmisService getChildren folderId:"+folderId);
+    	debug("getChildren folderId:{}", folderId);
         return getRepository().getChildren(getCallContext(), folderId, filter, includeAllowableActions,
                 includePathSegment, maxItems, skipCount, this);
     }
@@ -376,11 +376,29 @@ public class CouchbaseCmisService extends AbstractCmisService implements CallCon
 				extension, this);
 	}
 
-    
-    private void debug(String msg) {
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("<{}> {}",  msg);
-		}
-		System.out.println("{" + msg + "}");
+	@Override
+	public ObjectList getContentChanges(String repositoryId,
+			Holder<String> changeLogToken, Boolean includeProperties,
+			String filter, Boolean includePolicyIds, Boolean includeAcl,
+			BigInteger maxItems, ExtensionsData extension) {
+		return getRepository().getContentChanges(getCallContext(),
+				changeLogToken, includeProperties, filter, maxItems, this);
+	}
+
+    /**
+     * Ends the request, and its trace.
+     */
+    @Override
+    public void close() {
+        super.close();
+        Tracing.end();
+    }
+
+	private void debug(String msg) {
+		Tracing.debug(LOG, msg);
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
 	}
 }
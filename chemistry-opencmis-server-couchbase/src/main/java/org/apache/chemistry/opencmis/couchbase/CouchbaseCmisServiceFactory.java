@@ -22,6 +22,7 @@ import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -31,6 +32,7 @@ import org.apache.chemistry.opencmis.commons.impl.server.AbstractServiceFactory;
 import org.apache.chemistry.opencmis.commons.server.CallContext;
 import org.apache.chemistry.opencmis.commons.server.CmisService;
 import org.apache.chemistry.opencmis.server.support.wrapper.CallContextAwareCmisService;
+import org.apache.chemistry.opencmis.server.support.wrapper.CmisServiceMetrics;
 import org.apache.chemistry.opencmis.server.support.wrapper.CmisServiceWrapperManager;
 import org.apache.chemistry.opencmis.server.support.wrapper.ConformanceCmisServiceWrapper;
 import org.slf4j.Logger;
@@ -52,11 +54,16 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 	private static final String PREFIX_LOGIN = "login.";
 	private static final String PREFIX_REPOSITORY = "repository.";
 	private static final String PREFIX_TYPE = "type.";
+	private static final String KEY_TRACING_SAMPLE = "tracing.sample";
+	private static final String KEY_LOGIN_CACHE_TTL = "logincache.ttl";
 	private static final String SUFFIX_READWRITE = ".readwrite";
 	private static final String SUFFIX_READONLY = ".readonly";
 	private static final String SUFFIX_STORAGE = ".storage";
 	private static final String SUFFIX_METADATA = ".metadata";
 	private static final String SUFFIX_LOCATION = ".location";
+	private static final String SUFFIX_CACHE = ".cache";
+	private static final String SUFFIX_PATH_CACHE = ".pathcache";
+	private static final String SUFFIX_INDEXES = ".indexes";
 
 	/** Default maxItems value for getTypeChildren()}. */
 	private static final BigInteger DEFAULT_MAX_ITEMS_TYPES = BigInteger
@@ -110,39 +117,57 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 				DEFAULT_MAX_ITEMS_OBJECTS, DEFAULT_DEPTH_OBJECTS);
 
 		readConfiguration(parameters);
+		// metrics only for the configured repositories
+		for (CouchbaseRepository repository : repositoryManager
+				.getRepositories()) {
+			CmisServiceMetrics.getInstance().addRepository(
+					repository.getRepositoryId());
+		}
+		resumeDeleteTrees();
+	}
+
+	/**
+	 * Resumes in the background the deletions of trees interrupted by the
+	 * last stop of the server.
+	 */
+	private void resumeDeleteTrees() {
+		Thread resume = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (CouchbaseRepository repository : repositoryManager
+						.getRepositories()) {
+					repository.resumeDeleteTrees();
+				}
+			}
+		}, "resumeDeleteTrees");
+		resume.setDaemon(true);
+		resume.start();
 	}
 
 	@Override
 	public void destroy() {
-		System.out
-				.println("<CouchbaseCmisServiceFactory> destroy called by thread "
-						+ Thread.currentThread().getName()
-						+ " - class:"
-						+ Thread.currentThread().getClass()
-						+ " - id:"
-						+ Thread.currentThread().getId()
-						+ " - state:"
-						+ Thread.currentThread().getState());
+		debug("destroy called by thread {}", Thread.currentThread().getName());
 
 		repositoryManager.closeAll();
 
 		threadLocalService = null;
 	}
 	
-	 private void debug(String msg) {
-			if (LOG.isDebugEnabled()) {
-				LOG.debug("<CouchbaseCmisServiceFactory> {}",  msg);
-			}
-			System.out.println("CouchbaseCmisServiceFactory {" + msg + "}");
-		}
-
 	@Override
 	public CmisService getService(CallContext context) {
+		// the request ends with the close() of the service
+		Tracing.begin(context.getRepositoryId());
 		debug("getService");
 		// authenticate the user
 		// if the authentication fails, authenticate() throws a
 		// CmisPermissionDeniedException
-		userManager.authenticate(context);
+		try {
+			userManager.authenticate(context);
+		} catch (RuntimeException e) {
+			// no service is returned, whose close() would end the request
+			Tracing.end();
+			throw e;
+		}
 
 		// get service object for this thread
 		CallContextAwareCmisService service = threadLocalService.get();
@@ -173,12 +198,24 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 		debug("readConfiguration");
 		CouchbaseCluster cluster = null;
 		String location = null;
+		// the metadata of a repository is configured before its storage
+		Map<String, CouchbaseService> services = new HashMap<String, CouchbaseService>();
 		List<String> keys = new ArrayList<String>(parameters.keySet());
 		Collections.sort(keys);
 
 		for (String key : keys) {
-			System.out.println("Config key=" + key);
-			if (key.startsWith(PREFIX_LOGIN)) {
+			debug("Config key={}", key);
+			if (KEY_TRACING_SAMPLE.equals(key)) {
+				// one request traced out of n
+				Tracing.setSampleRate(Integer.parseInt(parameters.get(key)
+						.trim()));
+				LOG.info("Tracing one request out of {}",
+						Tracing.getSampleRate());
+			} else if (KEY_LOGIN_CACHE_TTL.equals(key)) {
+				// hashed passwords verified, remembered for ttl ms
+				userManager.setVerifiedCacheTtl(Long.parseLong(parameters.get(
+						key).trim()));
+			} else if (key.startsWith(PREFIX_LOGIN)) {
 				// get logins
 				String usernameAndPassword = replaceSystemProperties(parameters
 						.get(key));
@@ -231,7 +268,6 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 							typeFile, e.getMessage(), e);
 				}
 			} else if (key.startsWith(PREFIX_REPOSITORY)) {
-				System.out.println("config starts with " + PREFIX_REPOSITORY);
 				// configure repositories
 				String repositoryId = key.substring(PREFIX_REPOSITORY.length())
 						.trim();
@@ -245,8 +281,6 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 				}
 
 				if (key.endsWith(SUFFIX_READWRITE)) {
-					System.out.println("config ends with " + SUFFIX_READWRITE);
-
 					// read-write users
 					CouchbaseRepository cbr = repositoryManager
 							.getRepository(repositoryId);
@@ -254,8 +288,6 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 						cbr.setUserReadWrite(replaceSystemProperties(user));
 					}
 				} else if (key.endsWith(SUFFIX_READONLY)) {
-					System.out.println("config ends with " + SUFFIX_READONLY);
-
 					// read-only users
 					CouchbaseRepository cbr = repositoryManager
 							.getRepository(repositoryId);
@@ -263,26 +295,31 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 						cbr.setUserReadOnly(replaceSystemProperties(user));
 					}
 				} else if (key.endsWith(SUFFIX_LOCATION)) {
-					System.out.println("Config ends with " + SUFFIX_LOCATION);
 					location = parameters.get(key);
-					System.out.println("Config couchbase location " + location);
+					debug("Config couchbase location {}", location);
 					cluster = CouchbaseCluster.create(location);
 				}else if (key.endsWith(SUFFIX_METADATA)) {
-					System.out.println("Config ends with " + SUFFIX_METADATA);
 					CouchbaseRepository cbr = repositoryManager
 							.getRepository(repositoryId);
 					String metadataBucket = parameters.get(key);
-					System.out.println("Config metadata bucket " + metadataBucket);
+					debug("Config metadata bucket {}", metadataBucket);
 
 					CouchbaseService cbService = new CouchbaseService(cluster, metadataBucket);
-					cbr.setCouchbaseService(cbService);
+					cbService.setCache(createCache(parameters, repositoryId));
+					cbService.setPathCache(createPathCache(parameters, repositoryId));
+					Collection<IndexManager.Index> indexes = createIndexes(parameters, repositoryId);
+					if (indexes != null) {
+						cbService.getIndexManager().provision(indexes);
+					}
+					// timed as a span of the operations by the metrics wrapper
+					cbr.setMetadataStore(new MeteredMetadataStore(cbService));
+					services.put(repositoryId, cbService);
 					
 				}else if (key.endsWith(SUFFIX_STORAGE)) {
-					System.out.println("Config ends with " + SUFFIX_STORAGE);
 					CouchbaseRepository cbr = repositoryManager
 							.getRepository(repositoryId);
 					String storagetype = parameters.get(key);
-					System.out.println("Config storage type " + storagetype);
+					debug("Config storage type {}", storagetype);
 
 		
 					Map<String, String> storageMap = new HashMap<String, String>();
@@ -292,22 +329,19 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 							+ SUFFIX_STORAGE+".";
 
 					for (String k : parameters.keySet()) {
-						System.out.println(k + " starts with " + prefix + " : "
-								+ k.startsWith(prefix));
 						if (k.startsWith(prefix)) {
 							String newkey = k.substring(prefix.length());
-							System.out.println("newkey=" + newkey);
 							storageMap.put(newkey, parameters.get(k));
 						}
 					}
+					CouchbaseService cbService = services.get(repositoryId);
 					StorageService storageService = StorageFactory
-							.createStorageService(storageMap);
-					cbr.setStorageService(storageService);
+							.createStorageService(storageMap,
+									cbService == null ? null : cbService
+											.getContentReferences());
+					cbr.setStorageService(new MeteredStorageService(storageService));
 
 				} else if((PREFIX_REPOSITORY + repositoryId).equals(key)) {
-					System.out.println("Config default : creation of repo "
-							+ repositoryId);
-
 					// new repository
 					// String root =
 					// replaceSystemProperties(parameters.get(key));
@@ -325,6 +359,102 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 		}
 	}
 
+	/**
+	 * Creates the object cache of a repository from
+	 * <code>repository.&lt;id&gt;.cache.size</code> (number of objects, 0
+	 * disables the cache) and <code>repository.&lt;id&gt;.cache.ttl</code>
+	 * (in milliseconds).
+	 */
+	private CmisObjectCache createCache(Map<String, String> parameters,
+			String repositoryId) {
+		String prefix = PREFIX_REPOSITORY + repositoryId + SUFFIX_CACHE;
+		int size = CmisObjectCache.DEFAULT_SIZE;
+		long ttl = CmisObjectCache.DEFAULT_TTL;
+		try {
+			String value = parameters.get(prefix + ".size");
+			if (value != null) {
+				size = Integer.parseInt(value.trim());
+			}
+			value = parameters.get(prefix + ".ttl");
+			if (value != null) {
+				ttl = Long.parseLong(value.trim());
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cache configuration for repository "
+					+ repositoryId + ": " + e.getMessage());
+		}
+		LOG.info("Cache of repository '{}' : size={} ttl={}ms", repositoryId, size, ttl);
+		CmisObjectCache cache = new CmisObjectCache(size, ttl);
+		if (cache.isEnabled()) {
+			cache.register(repositoryId);
+		}
+		return cache;
+	}
+
+	/**
+	 * Creates the cache of the path segments of a repository from
+	 * <code>repository.&lt;id&gt;.pathcache.size</code> (number of segments,
+	 * 0 disables the cache) and
+	 * <code>repository.&lt;id&gt;.pathcache.ttl</code> (in milliseconds).
+	 */
+	private PathSegmentCache createPathCache(Map<String, String> parameters,
+			String repositoryId) {
+		String prefix = PREFIX_REPOSITORY + repositoryId + SUFFIX_PATH_CACHE;
+		int size = PathSegmentCache.DEFAULT_SIZE;
+		long ttl = PathSegmentCache.DEFAULT_TTL;
+		try {
+			String value = parameters.get(prefix + ".size");
+			if (value != null) {
+				size = Integer.parseInt(value.trim());
+			}
+			value = parameters.get(prefix + ".ttl");
+			if (value != null) {
+				ttl = Long.parseLong(value.trim());
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid path cache configuration for repository "
+					+ repositoryId + ": " + e.getMessage());
+		}
+		LOG.info("Path cache of repository '{}' : size={} ttl={}ms", repositoryId, size, ttl);
+		return new PathSegmentCache(size, ttl);
+	}
+
+	/**
+	 * Reads the indexes of a repository : the default ones, changed by
+	 * <code>repository.&lt;id&gt;.indexes.&lt;name&gt; = field, field...</code>
+	 * (<code>none</code> drops an index). With
+	 * <code>repository.&lt;id&gt;.indexes = none</code> no index is created.
+	 * 
+	 * @return the indexes, <code>null</code> if they are not managed
+	 */
+	private Collection<IndexManager.Index> createIndexes(Map<String, String> parameters,
+			String repositoryId) {
+		String key = PREFIX_REPOSITORY + repositoryId + SUFFIX_INDEXES;
+		if ("none".equals(trim(parameters.get(key)))) {
+			LOG.info("Indexes of repository '{}' are not managed", repositoryId);
+			return null;
+		}
+
+		Map<String, IndexManager.Index> indexes = IndexManager.getDefaultIndexes();
+		String prefix = key + ".";
+		for (String k : parameters.keySet()) {
+			if (k.startsWith(prefix)) {
+				String name = k.substring(prefix.length());
+				String fields = trim(parameters.get(k));
+				if ("none".equals(fields)) {
+					indexes.remove(name);
+				} else {
+					indexes.put(name, new IndexManager.Index(name, split(fields)));
+				}
+			}
+		}
+		return indexes.values();
+	}
+
+	private static String trim(String s) {
+		return s == null ? null : s.trim();
+	}
+
 	/**
 	 * Splits a string by comma.
 	 */
@@ -380,4 +510,11 @@ public class CouchbaseCmisServiceFactory extends AbstractServiceFactory {
 		return result.toString();
 	}
 
+	private void debug(String msg) {
+		Tracing.debug(LOG, msg);
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
 }
@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+
+/**
+ * {@link ContentReferences} kept in the metadata bucket.
+ * 
+ * A content is mapped by the document <code>dataId::content</code>, which
+ * holds the hash of its blob and its MIME type, and is created with an atomic
+ * insert. A blob is
+ * counted by the document <code>::blob::hash</code>, updated with a CAS loop,
+ * and flagged while it is being deleted.
+ * 
+ * The flag holds the time it was set at. A flag older than
+ * {@link #DELETING_TIMEOUT} was left by a process which died while deleting
+ * the blob : the blob is forgotten, and referenced again as a new one, whose
+ * writer stores it again if it was deleted. A deleter which was only late
+ * finds the flag gone when it checks it right before deleting, and leaves
+ * the blob.
+ */
+class CouchbaseContentReferences implements ContentReferences {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CouchbaseContentReferences.class);
+
+	static final String HASH = "cb:hash";
+	static final String MIME_TYPE = "cb:mimeType";
+	static final String REFS = "cb:refs";
+	static final String DELETING = "cb:deleting";
+	static final String DELETING_SINCE = "cb:deletingSince";
+
+	/** Time after which a deletion is deemed abandoned, in ms. */
+	static final long DELETING_TIMEOUT = 60 * 1000L;
+
+	private static final String CONTENT_SUFFIX = "::content";
+	private static final String BLOB_PREFIX = "::blob::";
+
+	private final Bucket bucket;
+
+	CouchbaseContentReferences(Bucket bucket) {
+		this.bucket = bucket;
+	}
+
+	static String contentId(String dataId) {
+		return dataId + CONTENT_SUFFIX;
+	}
+
+	static String blobId(String hash) {
+		return BLOB_PREFIX + hash;
+	}
+
+	@Override
+	public String getHash(String dataId) throws StorageException {
+		Reference reference = getReference(dataId);
+		return reference == null ? null : reference.getHash();
+	}
+
+	@Override
+	public Reference getReference(String dataId) throws StorageException {
+		try {
+			JsonDocument doc = bucket.get(contentId(dataId));
+			if (doc == null)
+				return null;
+			return new Reference(doc.content().getString(HASH), doc.content()
+					.getString(MIME_TYPE));
+		} catch (RuntimeException e) {
+			throw new StorageException("Cannot read the content of " + dataId
+					+ " : " + e.getMessage());
+		}
+	}
+
+	@Override
+	public boolean map(String dataId, String hash, String mimeType)
+			throws StorageException {
+		debug("map {} to {}", dataId, hash);
+		try {
+			JsonObject content = JsonObject.empty().put(HASH, hash);
+			if (mimeType != null)
+				content.put(MIME_TYPE, mimeType);
+			bucket.insert(JsonDocument.create(contentId(dataId), content));
+			return true;
+		} catch (DocumentAlreadyExistsException e) {
+			return false;
+		} catch (RuntimeException e) {
+			throw new StorageException("Cannot map the content of " + dataId
+					+ " : " + e.getMessage());
+		}
+	}
+
+	@Override
+	public String unmap(String dataId) throws StorageException {
+		debug("unmap {}", dataId);
+		try {
+			JsonDocument doc = bucket.get(contentId(dataId));
+			if (doc == null)
+				return null;
+			// only the caller which removes the mapping releases the blob
+			bucket.remove(doc);
+			return doc.content().getString(HASH);
+		} catch (DocumentDoesNotExistException e) {
+			return null;
+		} catch (CASMismatchException e) {
+			return null;
+		} catch (RuntimeException e) {
+			throw new StorageException("Cannot unmap the content of " + dataId
+					+ " : " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void acquire(String hash) throws StorageException {
+		String id = blobId(hash);
+		try {
+			for (int attempt = 0;; attempt++) {
+				JsonDocument current = bucket.get(id);
+				try {
+					if (current == null) {
+						bucket.insert(JsonDocument.create(id, JsonObject.empty()
+								.put(REFS, 1).put(DELETING, false)));
+						return;
+					}
+					JsonObject refs = current.content();
+					if (refs.getBoolean(DELETING)) {
+						if (reclaim(current)) {
+							continue;
+						}
+						debug("blob {} is being deleted", hash);
+						CasRetry.backoff(attempt, id);
+						continue;
+					}
+					refs.put(REFS, refs.getInt(REFS) + 1);
+					bucket.replace(current);
+					return;
+				} catch (DocumentAlreadyExistsException e) {
+					debug("blob {} referenced concurrently", hash);
+					CasRetry.backoff(attempt, id);
+				} catch (CASMismatchException e) {
+					debug("blob {} referenced concurrently", hash);
+					CasRetry.backoff(attempt, id);
+				} catch (DocumentDoesNotExistException e) {
+					debug("blob {} forgotten concurrently", hash);
+				}
+			}
+		} catch (CouchbaseException e) {
+			throw new StorageException(e.getMessage());
+		} catch (RuntimeException e) {
+			throw new StorageException("Cannot reference the blob " + hash
+					+ " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Forgets a blob whose deletion was abandoned. A flag without a time,
+	 * set by an older version, is given one so that it expires.
+	 * 
+	 * @return true if the blob document was changed
+	 */
+	private boolean reclaim(JsonDocument blob) {
+		JsonObject refs = blob.content();
+		Long since = refs.getLong(DELETING_SINCE);
+		long now = System.currentTimeMillis();
+		if (since == null) {
+			refs.put(DELETING_SINCE, now);
+			bucket.replace(blob);
+			return true;
+		}
+		if (now - since.longValue() < DELETING_TIMEOUT) {
+			return false;
+		}
+
+		LOG.warn("Deletion of {} abandoned for {} ms, forgotten", blob.id(),
+				now - since.longValue());
+		bucket.remove(blob);
+		return true;
+	}
+
+	@Override
+	public boolean release(String hash) throws StorageException {
+		String id = blobId(hash);
+		try {
+			for (int attempt = 0;; attempt++) {
+				JsonDocument current = bucket.get(id);
+				if (current == null)
+					return false;
+				JsonObject refs = current.content();
+				if (refs.getBoolean(DELETING))
+					return false;
+				int count = refs.getInt(REFS) - 1;
+				refs.put(REFS, count);
+				if (count <= 0)
+					refs.put(DELETING, true).put(DELETING_SINCE,
+							System.currentTimeMillis());
+				try {
+					bucket.replace(current);
+					return count <= 0;
+				} catch (CASMismatchException e) {
+					debug("blob {} released concurrently", hash);
+					CasRetry.backoff(attempt, id);
+				}
+			}
+		} catch (CouchbaseException e) {
+			throw new StorageException(e.getMessage());
+		} catch (RuntimeException e) {
+			throw new StorageException("Cannot release the blob " + hash
+					+ " : " + e.getMessage());
+		}
+	}
+
+	@Override
+	public boolean isDeleting(String hash) throws StorageException {
+		try {
+			JsonDocument current = bucket.get(blobId(hash));
+			return current != null && current.content().getBoolean(DELETING);
+		} catch (RuntimeException e) {
+			throw new StorageException("Cannot read the blob " + hash + " : "
+					+ e.getMessage());
+		}
+	}
+
+	@Override
+	public void forget(String hash) throws StorageException {
+		debug("forget {}", hash);
+		try {
+			JsonDocument current = bucket.get(blobId(hash));
+			// reclaimed and referenced again if the deletion took too long
+			if (current == null || !current.content().getBoolean(DELETING))
+				return;
+			bucket.remove(current);
+		} catch (DocumentDoesNotExistException e) {
+			// already forgotten
+		} catch (CASMismatchException e) {
+			debug("blob {} reclaimed concurrently", hash);
+		} catch (RuntimeException e) {
+			throw new StorageException("Cannot forget the blob " + hash
+					+ " : " + e.getMessage());
+		}
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
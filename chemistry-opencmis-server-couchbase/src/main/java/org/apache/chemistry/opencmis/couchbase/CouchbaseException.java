@@ -7,4 +7,8 @@ public class CouchbaseException extends Exception {
 	public CouchbaseException(String msg){
 		super(msg);
 	}
+
+	public CouchbaseException(String msg, Throwable cause){
+		super(msg, cause);
+	}
 }
@@ -22,10 +22,13 @@ import java.io.File;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -66,6 +69,7 @@ import org.apache.chemistry.opencmis.commons.enums.CapabilityJoin;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityOrderBy;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityQuery;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityRenditions;
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
 import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
 import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
 import org.apache.chemistry.opencmis.commons.enums.SupportedPermissions;
@@ -73,20 +77,26 @@ import org.apache.chemistry.opencmis.commons.enums.Updatability;
 import org.apache.chemistry.opencmis.commons.enums.VersioningState;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisContentAlreadyExistsException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisNameConstraintViolationException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisPermissionDeniedException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisRuntimeException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlEntryImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlListImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlPrincipalDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.AclCapabilitiesDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.BulkUpdateObjectIdAndChangeTokenImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ChangeEventInfoDataImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.CreatablePropertyTypesImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.FailedToDeleteDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.NewTypeSettableAttributesImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectDataImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderContainerImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderListImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectListImpl;
@@ -112,6 +122,12 @@ import org.apache.chemistry.opencmis.server.impl.ServerVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.schedulers.Schedulers;
+
 /**
  * Implements all repository operations.
  */
@@ -120,6 +136,13 @@ public class CouchbaseRepository {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(CouchbaseRepository.class);
 
+	/** Folders whose children are read at the same time by getDescendants. */
+	static final int MAX_CONCURRENT_FOLDERS = 16;
+	/** Contents deleted at the same time by deleteTree. */
+	static final int MAX_CONCURRENT_DELETES = 16;
+	/** Largest number of changes returned at once, and the default. */
+	static final int MAX_CHANGES = 1000;
+
 	/** Repository id. */
 	private final String repositoryId;
 	/** Root directory. */
@@ -134,7 +157,7 @@ public class CouchbaseRepository {
 	/** CMIS 1.1 repository info. */
 	private final RepositoryInfo repositoryInfo11;
 
-	private CouchbaseService cbService;
+	private MetadataStore metadataStore;
 	private StorageService storeService;
 
 	static public String ROOT_ID = "@root@";
@@ -176,8 +199,16 @@ public class CouchbaseRepository {
 	}
 
 	public void setCouchbaseService(CouchbaseService couchbaseService) {
-		debug("couchbase service set");
-		this.cbService = couchbaseService;
+		setMetadataStore(couchbaseService);
+	}
+
+	/**
+	 * Sets the store of the metadata, Couchbase or any other
+	 * {@link MetadataStore}.
+	 */
+	public void setMetadataStore(MetadataStore metadataStore) {
+		debug("metadata store set");
+		this.metadataStore = metadataStore;
 	}
 
 	public void close() {
@@ -185,9 +216,9 @@ public class CouchbaseRepository {
 			storeService.close();
 			storeService = null;
 		}
-		if (cbService != null) {
-			cbService.close();
-			cbService = null;
+		if (metadataStore != null) {
+			metadataStore.close();
+			metadataStore = null;
 		}
 	}
 
@@ -211,6 +242,8 @@ public class CouchbaseRepository {
 
 		repositoryInfo.setThinClientUri("");
 		repositoryInfo.setChangesIncomplete(true);
+		repositoryInfo.setChangesOnType(Arrays.asList(BaseTypeId.CMIS_FOLDER,
+				BaseTypeId.CMIS_DOCUMENT));
 
 		RepositoryCapabilitiesImpl capabilities = new RepositoryCapabilitiesImpl();
 		capabilities.setCapabilityAcl(CapabilityAcl.DISCOVER);
@@ -224,7 +257,7 @@ public class CouchbaseRepository {
 		// capabilities.setCapabilityQuery(CapabilityQuery.NONE);
 		capabilities.setCapabilityQuery(CapabilityQuery.METADATAONLY);
 
-		capabilities.setCapabilityChanges(CapabilityChanges.NONE);
+		capabilities.setCapabilityChanges(CapabilityChanges.PROPERTIES);
 		capabilities
 				.setCapabilityContentStreamUpdates(CapabilityContentStreamUpdates.ANYTIME);
 		capabilities.setSupportsGetDescendants(true);
@@ -232,7 +265,7 @@ public class CouchbaseRepository {
 		capabilities.setCapabilityRendition(CapabilityRenditions.NONE);
 
 		if (cmisVersion != CmisVersion.CMIS_1_0) {
-			capabilities.setCapabilityOrderBy(CapabilityOrderBy.NONE);
+			capabilities.setCapabilityOrderBy(CapabilityOrderBy.COMMON);
 
 			NewTypeSettableAttributesImpl typeSetAttributes = new NewTypeSettableAttributesImpl();
 			typeSetAttributes.setCanSetControllableAcl(false);
@@ -381,11 +414,21 @@ public class CouchbaseRepository {
 
 		checkUser(context, false);
 
-		if (context.getCmisVersion() == CmisVersion.CMIS_1_0) {
-			return repositoryInfo10;
-		} else {
-			return repositoryInfo11;
+		RepositoryInfo info = (context.getCmisVersion() == CmisVersion.CMIS_1_0 ? repositoryInfo10
+				: repositoryInfo11);
+		if (metadataStore == null) {
+			return info;
+		}
+
+		// a copy, with the current end of the change log
+		RepositoryInfoImpl result = new RepositoryInfoImpl(info);
+		try {
+			result.setLatestChangeLogToken(String.valueOf(metadataStore
+					.getLatestChangeToken()));
+		} catch (CouchbaseException e) {
+			debug("latest change token unknown : {}", e.getMessage());
 		}
+		return result;
 	}
 
 	/**
@@ -430,7 +473,7 @@ public class CouchbaseRepository {
 	public ObjectData create(CallContext context, Properties properties,
 			String folderId, ContentStream contentStream,
 			VersioningState versioningState, ObjectInfoHandler objectInfos) {
-		debug("create in folderId=" + folderId);
+		debug("create in folderId={}", folderId);
 		boolean userReadOnly = checkUser(context, true);
 
 		String typeId = CouchbaseUtils.getObjectTypeId(properties);
@@ -459,13 +502,13 @@ public class CouchbaseRepository {
 					"Cannot create object of type '" + typeId + "'!");
 
 		try {
-			data = cbService.getCmisObject(dataId);
+			data = metadataStore.getCmisObject(dataId);
 		} catch (CouchbaseException e) {
 			throw new CmisObjectNotFoundException(
 					"Cannot create object of type '" + typeId + "'!");
 		}
 
-		debug("create compileObjectData objectId:" + data.getId());
+		debug("create compileObjectData objectId:{}", data.getId());
 
 		return compileObjectData(context, data, null, false, false,
 				userReadOnly, objectInfos);
@@ -478,7 +521,7 @@ public class CouchbaseRepository {
 	public String createDocument(CallContext context, Properties properties,
 			String folderId, ContentStream contentStream,
 			VersioningState versioningState) {
-		debug("createDocument in folder " + folderId);
+		debug("createDocument in folder {}", folderId);
 		checkUser(context, true);
 
 		// check properties
@@ -514,22 +557,12 @@ public class CouchbaseRepository {
 			throw new CmisNameConstraintViolationException("Name is not valid!");
 		}
 
-		// get parent File
-		// File parent = getFile(folderId);
-		CmisObject parentData = null;
-
-		try {
-			parentData = cbService.getCmisObject(folderId);
-		} catch (CouchbaseException e) {
-			throw new CmisStorageException("Parent folder doesn't exist!");
-		}
-		if (!parentData.isDirectory()) {
-			throw new CmisObjectNotFoundException("Parent is not a folder!");
-		}
+		// get parent folder and check the name is free, in parallel
+		CmisObject parentData = getParentForNewChild(folderId, name);
 
 		// create the metadata in couchbase
 		try {
-			CmisObject data = cbService.createDocument(parentData, name,
+			CmisObject data = metadataStore.createDocument(parentData, name,
 					context.getUsername(), contentStream);
 
 			try {
@@ -550,7 +583,7 @@ public class CouchbaseRepository {
 				return data.getId();
 			} catch (StorageException e) {
 				// remove the document from metadata
-				cbService.deleteProperties(data, context.getUsername());
+				metadataStore.deleteProperties(data, context.getUsername());
 				throw new CmisStorageException("Could not store file: "
 						+ e.getMessage(), e);
 			}
@@ -562,108 +595,105 @@ public class CouchbaseRepository {
 	}
 
 	/**
-	 * CMIS createDocumentFromSource.
+	 * CMIS createDocumentFromSource. The new document gets the name, unless
+	 * another one is given, and the content of the source. The content is
+	 * copied by the storage service when it can, so that it does not go
+	 * through the server.
 	 */
 	public String createDocumentFromSource(CallContext context,
 			String sourceId, Properties properties, String folderId,
 			VersioningState versioningState) {
-		debug("createDocumentFromSource noyt yet implemented");
-		/*
-		 * checkUser(context, true);
-		 * 
-		 * // check versioning state if (!(VersioningState.NONE ==
-		 * versioningState || versioningState == null)) { throw new
-		 * CmisConstraintException("Versioning not supported!"); }
-		 * 
-		 * // get parent File File parent = getFile(folderId); if
-		 * (!parent.isDirectory()) { throw new
-		 * CmisObjectNotFoundException("Parent is not a folder!"); }
-		 * 
-		 * // get source File File source = getFile(sourceId); if
-		 * (!source.isFile()) { throw new
-		 * CmisObjectNotFoundException("Source is not a document!"); }
-		 * 
-		 * // file name String name = source.getName();
-		 * 
-		 * // get properties PropertiesImpl sourceProperties = new
-		 * PropertiesImpl(); readCustomProperties(source, sourceProperties,
-		 * null, new ObjectInfoImpl());
-		 * 
-		 * // get the type id String typeId =
-		 * CouchbaseUtils.getIdProperty(sourceProperties,
-		 * PropertyIds.OBJECT_TYPE_ID); if (typeId == null) { typeId =
-		 * BaseTypeId.CMIS_DOCUMENT.value(); }
-		 * 
-		 * // copy properties PropertiesImpl newProperties = new
-		 * PropertiesImpl(); for (PropertyData<?> prop :
-		 * sourceProperties.getProperties().values()) { if
-		 * (prop.getId().equals(PropertyIds.OBJECT_TYPE_ID) ||
-		 * prop.getId().equals(PropertyIds.CREATED_BY) ||
-		 * prop.getId().equals(PropertyIds.CREATION_DATE) ||
-		 * prop.getId().equals(PropertyIds.LAST_MODIFIED_BY)) { continue; }
-		 * 
-		 * newProperties.addProperty(prop); }
-		 * 
-		 * // replace properties if (properties != null) { // find new name
-		 * String newName = CouchbaseUtils.getStringProperty(properties,
-		 * PropertyIds.NAME); if (newName != null) { if (!isValidName(newName))
-		 * { throw new CmisNameConstraintViolationException(
-		 * "Name is not valid!"); } name = newName; }
-		 * 
-		 * // get the property definitions TypeDefinition type =
-		 * typeManager.getInternalTypeDefinition(typeId); if (type == null) {
-		 * throw new CmisObjectNotFoundException("Type '" + typeId +
-		 * "' is unknown!"); } if (type.getBaseTypeId() !=
-		 * BaseTypeId.CMIS_DOCUMENT) { throw new CmisInvalidArgumentException(
-		 * "Type must be a document type!"); }
-		 * 
-		 * // replace with new values for (PropertyData<?> prop :
-		 * properties.getProperties().values()) { PropertyDefinition<?> propType
-		 * = type.getPropertyDefinitions() .get(prop.getId());
-		 * 
-		 * // do we know that property? if (propType == null) { throw new
-		 * CmisConstraintException("Property '" + prop.getId() +
-		 * "' is unknown!"); }
-		 * 
-		 * // can it be set? if (propType.getUpdatability() !=
-		 * Updatability.READWRITE) { throw new
-		 * CmisConstraintException("Property '" + prop.getId() +
-		 * "' cannot be updated!"); }
-		 * 
-		 * // empty properties are invalid if (isEmptyProperty(prop)) { throw
-		 * new CmisConstraintException("Property '" + prop.getId() +
-		 * "' must not be empty!"); }
-		 * 
-		 * newProperties.addProperty(prop); } }
-		 * 
-		 * addPropertyId(newProperties, typeId, null,
-		 * PropertyIds.OBJECT_TYPE_ID, typeId); addPropertyString(newProperties,
-		 * typeId, null, PropertyIds.CREATED_BY, context.getUsername());
-		 * addPropertyDateTime(newProperties, typeId, null,
-		 * PropertyIds.CREATION_DATE,
-		 * CouchbaseUtils.millisToCalendar(System.currentTimeMillis()));
-		 * addPropertyString(newProperties, typeId, null,
-		 * PropertyIds.LAST_MODIFIED_BY, context.getUsername());
-		 * 
-		 * // check the file File newFile = new File(parent, name); if
-		 * (newFile.exists()) { throw new CmisNameConstraintViolationException(
-		 * "Document already exists."); }
-		 * 
-		 * // create the file try { newFile.createNewFile(); } catch
-		 * (IOException e) { throw new
-		 * CmisStorageException("Could not create file: " + e.getMessage(), e);
-		 * }
-		 * 
-		 * // copy content try { writeContent(newFile, new
-		 * FileInputStream(source)); } catch (IOException e) { throw new
-		 * CmisStorageException("Could not roead or write content: " +
-		 * e.getMessage(), e); }
-		 * 
-		 * // write properties writePropertiesFile(newFile, newProperties);
-		 * 
-		 * return getId(newFile);
-		 */
-		return null;
+		debug("createDocumentFromSource {} in folder {}", sourceId, folderId);
+		checkUser(context, true);
+
+		// check versioning state
+		if (!(VersioningState.NONE == versioningState || versioningState == null)) {
+			throw new CmisConstraintException("Versioning not supported!");
+		}
+
+		// get the source
+		CmisObject source = null;
+		try {
+			source = metadataStore.getCmisObject(sourceId);
+		} catch (CouchbaseException e) {
+			throw new CmisObjectNotFoundException("Source not found : "
+					+ sourceId);
+		}
+		if (source.isDirectory()) {
+			throw new CmisObjectNotFoundException("Source is not a document!");
+		}
+
+		// replace the name and check the type, if given
+		String name = source.getName();
+		if (properties != null && properties.getProperties() != null) {
+			String typeId = CouchbaseUtils.getIdProperty(properties,
+					PropertyIds.OBJECT_TYPE_ID);
+			if (typeId != null) {
+				TypeDefinition type = typeManager
+						.getInternalTypeDefinition(typeId);
+				if (type == null) {
+					throw new CmisObjectNotFoundException("Type '" + typeId
+							+ "' is unknown!");
+				}
+				if (type.getBaseTypeId() != BaseTypeId.CMIS_DOCUMENT) {
+					throw new CmisInvalidArgumentException(
+							"Type must be a document type!");
+				}
+			}
+			String newName = CouchbaseUtils.getStringProperty(properties,
+					PropertyIds.NAME);
+			if (newName != null) {
+				if (!isValidName(newName)) {
+					throw new CmisNameConstraintViolationException(
+							"Name is not valid!");
+				}
+				name = newName;
+			}
+		}
+
+		// get parent folder and check the name is free, in parallel
+		CmisObject parentData = getParentForNewChild(folderId, name);
+
+		// the metadata of the copy, with the content properties of the source
+		ContentStream content = new ContentStreamImpl(name,
+				BigInteger.valueOf(source.getContentLength()),
+				source.getContentType(), null);
+		try {
+			CmisObject data = metadataStore.createDocument(parentData, name,
+					context.getUsername(), content);
+			try {
+				if (storeService.exists(sourceId)) {
+					copyContent(sourceId, data.getId(), source.getFileName());
+				}
+				return data.getId();
+			} catch (StorageException e) {
+				// remove the document from metadata
+				metadataStore.deleteProperties(data, context.getUsername());
+				throw new CmisStorageException("Could not copy file: "
+						+ e.getMessage(), e);
+			}
+		} catch (CouchbaseException e) {
+			throw new CmisStorageException("Could not create metadata file: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Copies a content within the storage service, or reads and writes it if
+	 * the storage cannot copy it.
+	 */
+	private void copyContent(String sourceId, String targetId, String filename)
+			throws StorageException {
+		if (storeService.copyContent(sourceId, targetId))
+			return;
+		debug("streamed copy of {} to {}", sourceId, targetId);
+		ContentStream content = storeService.getContent(sourceId, null, null,
+				filename);
+		try {
+			storeService.writeContent(targetId, content);
+		} finally {
+			IOUtils.closeQuietly(content.getStream());
+		}
 	}
 
 	/**
@@ -673,7 +703,7 @@ public class CouchbaseRepository {
 	 */
 	public String createFolder(CallContext context, Properties properties,
 			String folderId) {
-		debug("createFolder in folderId=" + folderId);
+		debug("createFolder in folderId={}", folderId);
 		checkUser(context, true);
 
 		// check properties
@@ -704,23 +734,16 @@ public class CouchbaseRepository {
 			throw new CmisNameConstraintViolationException("Name is not valid.");
 		}
 
-		// get parent from couchbase
-		try {
-			debug("get parent with id:" + folderId);
-			CmisObject parentData = cbService.getCmisObject(folderId);
-
-			if (parentData == null)
-				throw new CmisObjectNotFoundException("Parent is unknown !");
-
-			if (!parentData.isDirectory()) {
-				throw new CmisObjectNotFoundException("Parent is not a folder!");
-			}
+		// get parent from couchbase and check the name is free, in parallel
+		debug("get parent with id:{}", folderId);
+		CmisObject parentData = getParentForNewChild(folderId, name);
 
+		try {
 			// create the folder
-			CmisObject folderData = cbService.createFolder(parentData, name,
+			CmisObject folderData = metadataStore.createFolder(parentData, name,
 					context.getUsername());
 
-			debug("folderData=" + folderData);
+			debug("folderData={}", folderData);
 
 			// set creation date
 			addPropertyDateTime(props, typeId, null, PropertyIds.CREATION_DATE,
@@ -731,7 +754,7 @@ public class CouchbaseRepository {
 			return folderData.getId();
 
 		} catch (CouchbaseException e) {
-			debug("Impossible to create folder " + folderId);
+			debug("Impossible to create folder {}", folderId);
 			return null;
 		}
 
@@ -742,8 +765,45 @@ public class CouchbaseRepository {
 	 */
 	public ObjectData moveObject(CallContext context, Holder<String> objectId,
 			String targetFolderId, ObjectInfoHandler objectInfos) {
-		debug("moveObject not yet implemented");
-		return null;
+		debug("moveObject objectId={} to {}", objectId, targetFolderId);
+		boolean userReadOnly = checkUser(context, true);
+
+		if (objectId == null || objectId.getValue() == null) {
+			throw new CmisInvalidArgumentException("Id is not valid!");
+		}
+
+		// get the object and the target folder
+		CmisObject data = getCmisObject(objectId.getValue());
+		if (data.isRoot()) {
+			throw new CmisConstraintException("The root folder cannot be moved!");
+		}
+		CmisObject targetData = getCmisObject(targetFolderId);
+		if (!targetData.isDirectory()) {
+			throw new CmisInvalidArgumentException("Target is not a folder!");
+		}
+
+		try {
+			if (!targetData.getId().equals(data.getParentId())) {
+				// a folder cannot go below itself
+				if (data.isDirectory()
+						&& metadataStore.isInTree(targetData, data.getId())) {
+					throw new CmisConstraintException(
+							"A folder cannot be moved into its own tree!");
+				}
+				if (!metadataStore.moveObject(data, targetData,
+						context.getUsername())) {
+					throw new CmisContentAlreadyExistsException(
+							"An object with this name already exists!");
+				}
+			}
+		} catch (CouchbaseException e) {
+			throw new CmisStorageException("Could not move object: "
+					+ e.getMessage(), e);
+		}
+
+		// the id does not change
+		return compileObjectData(context, getCmisObject(data.getId()), null,
+				false, false, userReadOnly, objectInfos);
 	}
 
 	/**
@@ -786,18 +846,36 @@ public class CouchbaseRepository {
 	 * CMIS deleteObject.
 	 */
 	public void deleteObject(CallContext context, String objectId) {
-		debug("deleteObject objectId=" + objectId);
+		debug("deleteObject objectId={}", objectId);
 		checkUser(context, true);
 
 		// get the file or folder
-		debug("get the Cmis object objectId=" + objectId);
-		CmisObject data = null;
+		debug("get the Cmis object objectId={}", objectId);
+		// the children count is read along, it is only used for folders
+		final CmisObject data;
+		final long childrenCount;
 		try {
-			data = cbService.getCmisObject(objectId);
-		} catch (CouchbaseException e) {
-			throw new CmisObjectNotFoundException("Object not found!");
+			AsyncMetadataStore async = metadataStore.async();
+			Object[] read = Observable.zip(async.getCmisObject(objectId),
+					async.getChildrenCount(objectId),
+					new Func2<CmisObject, Long, Object[]>() {
+						@Override
+						public Object[] call(CmisObject object, Long count) {
+							return new Object[] { object, count };
+						}
+					}).toBlocking().singleOrDefault(null);
+			if (read == null) {
+				throw new CmisObjectNotFoundException("Object not found!");
+			}
+			data = (CmisObject) read[0];
+			childrenCount = ((Long) read[1]).longValue();
+		} catch (CmisBaseException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new CmisStorageException("Could not read object: "
+					+ e.getMessage(), e);
 		}
-		debug("check if object exists objectId=" + objectId);
+		debug("check if object exists objectId={}", objectId);
 
 		// boolean contentExists = storeService.exists(objectId);
 
@@ -807,15 +885,15 @@ public class CouchbaseRepository {
 		 */
 
 		// check if it is a folder and if it is empty
-		if (data.isDirectory() && (!data.getChildren().isEmpty())) {
+		if (data.isDirectory() && childrenCount > 0) {
 			throw new CmisConstraintException("Folder is not empty!");
 		}
 
 		// delete properties and actual file
 		try {
-			debug("delete properties on objectId=" + objectId);
+			debug("delete properties on objectId={}", objectId);
 
-			boolean propertiesDeleted = cbService.deleteProperties(data,
+			boolean propertiesDeleted = metadataStore.deleteProperties(data,
 					context.getUsername());
 			if (!propertiesDeleted) {
 				throw new CmisStorageException("Deletion properties failed!");
@@ -824,7 +902,7 @@ public class CouchbaseRepository {
 			throw new CmisStorageException("Deletion properties failed!");
 		}
 		if (!data.isDirectory()) {
-			debug("delete content on objectId=" + objectId);
+			debug("delete content on objectId={}", objectId);
 
 			boolean contentDeleted = storeService.deleteContent(objectId);
 			if (!contentDeleted) {
@@ -835,28 +913,209 @@ public class CouchbaseRepository {
 
 	/**
 	 * CMIS deleteTree.
+	 * 
+	 * The folder is first detached from its parent, so that the whole tree
+	 * disappears at once for the other clients, then its objects are deleted
+	 * from the deepest level up : the contents first, then the metadata. An
+	 * object which cannot be deleted keeps its ancestors, and the deletion
+	 * stays recorded by the store until the tree is empty so that it can be
+	 * resumed by {@link #resumeDeleteTrees()}.
 	 */
 	public FailedToDeleteData deleteTree(CallContext context, String folderId,
 			Boolean continueOnFailure) {
-		debug("deleteTree not yet implemented");
-		/*
-		 * checkUser(context, true);
-		 * 
-		 * boolean cof = CouchbaseUtils.getBooleanParameter(continueOnFailure,
-		 * false);
-		 * 
-		 * // get the file or folder File file = getFile(folderId);
-		 * 
-		 * FailedToDeleteDataImpl result = new FailedToDeleteDataImpl();
-		 * result.setIds(new ArrayList<String>());
-		 * 
-		 * // if it is a folder, remove it recursively if (file.isDirectory()) {
-		 * deleteFolder(file, cof, result); } else { throw new
-		 * CmisConstraintException("Object is not a folder!"); }
-		 * 
-		 * return result;
-		 */
-		return null;
+		debug("deleteTree folderId={}", folderId);
+		checkUser(context, true);
+
+		boolean cof = CouchbaseUtils.getBooleanParameter(continueOnFailure,
+				false);
+
+		CmisObject folder = getCmisObject(folderId);
+		if (!folder.isDirectory()) {
+			throw new CmisConstraintException("Object is not a folder!");
+		}
+		if (folder.isRoot()) {
+			throw new CmisConstraintException("Cannot delete root folder!");
+		}
+
+		try {
+			metadataStore.detachTree(folder, context.getUsername());
+		} catch (CouchbaseException e) {
+			throw new CmisStorageException("Could not detach folder: "
+					+ e.getMessage(), e);
+		}
+
+		FailedToDeleteDataImpl result = new FailedToDeleteDataImpl();
+		result.setIds(deleteDetachedTree(folder, cof));
+		return result;
+	}
+
+	/**
+	 * Resumes the deletions of trees interrupted by a stop of the server.
+	 * The deletions still run by another server are left to it.
+	 */
+	public void resumeDeleteTrees() {
+		List<String> folderIds;
+		try {
+			folderIds = metadataStore.getDeletedTrees();
+		} catch (CouchbaseException e) {
+			LOG.warn("Could not read the trees being deleted: {}",
+					e.getMessage());
+			return;
+		}
+		for (String folderId : folderIds) {
+			try {
+				if (!metadataStore.claimDeletedTree(folderId)) {
+					debug("deleteTree folderId={} run elsewhere", folderId);
+					continue;
+				}
+				debug("resume deleteTree folderId={}", folderId);
+				CmisObject folder;
+				try {
+					folder = metadataStore.getCmisObject(folderId);
+				} catch (CouchbaseException e) {
+					// the folder was the last object removed
+					metadataStore.forgetDeletedTree(folderId);
+					continue;
+				}
+				// it may have been stopped before it was detached
+				metadataStore.detachTree(folder, folder.getLastModifiedBy());
+				List<String> failed = deleteDetachedTree(folder, true);
+				if (!failed.isEmpty()) {
+					LOG.warn("Could not delete {} object(s) of the tree {}",
+							failed.size(), folderId);
+				}
+			} catch (CouchbaseException e) {
+				LOG.warn("Could not resume the deletion of the tree {}: {}",
+						folderId, e.getMessage());
+			} catch (CmisBaseException e) {
+				LOG.warn("Could not resume the deletion of the tree {}: {}",
+						folderId, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Deletes a detached folder and its descendants.
+	 * 
+	 * @return the ids of the objects which could not be deleted
+	 */
+	private List<String> deleteDetachedTree(CmisObject folder, boolean cof) {
+		// the objects of the tree, level by level
+		List<List<CmisObject>> levels = new ArrayList<List<CmisObject>>();
+		List<CmisObject> level = Collections.singletonList(folder);
+		while (!level.isEmpty()) {
+			levels.add(level);
+			List<String> folderIds = new ArrayList<String>();
+			for (CmisObject data : level) {
+				if (data.isDirectory())
+					folderIds.add(data.getId());
+			}
+			Map<String, List<CmisObject>> children = readChildren(folderIds);
+			level = new ArrayList<CmisObject>();
+			for (String id : folderIds) {
+				List<CmisObject> folderChildren = children.get(id);
+				if (folderChildren != null)
+					level.addAll(folderChildren);
+			}
+		}
+		debug("deleteTree {} : {} level(s)", folder.getId(), levels.size());
+
+		List<String> failed = new ArrayList<String>();
+		// folders keeping a child which could not be deleted
+		Set<String> kept = new HashSet<String>();
+		for (int l = levels.size() - 1; l >= 0; l--) {
+			List<CmisObject> removable = new ArrayList<CmisObject>();
+			List<CmisObject> documents = new ArrayList<CmisObject>();
+			for (CmisObject data : levels.get(l)) {
+				if (data.isDirectory()) {
+					if (kept.contains(data.getId())) {
+						failed.add(data.getId());
+						kept.add(data.getParentId());
+					} else {
+						removable.add(data);
+					}
+				} else {
+					documents.add(data);
+				}
+			}
+
+			List<String> contentFailed = deleteContents(documents);
+			for (CmisObject document : documents) {
+				if (contentFailed.contains(document.getId())) {
+					failed.add(document.getId());
+					kept.add(document.getParentId());
+				} else {
+					removable.add(document);
+				}
+			}
+
+			Set<String> removeFailed = new HashSet<String>(
+					metadataStore.removeTreeObjects(removable));
+			for (CmisObject data : removable) {
+				if (removeFailed.contains(data.getId())) {
+					failed.add(data.getId());
+					kept.add(data.getParentId());
+				}
+			}
+
+			if (!cof && !failed.isEmpty())
+				break;
+		}
+
+		try {
+			if (failed.isEmpty()) {
+				metadataStore.forgetDeletedTree(folder.getId());
+			} else {
+				metadataStore.releaseDeletedTree(folder.getId());
+			}
+		} catch (CouchbaseException e) {
+			LOG.warn("Could not forget the deleted tree {}: {}",
+					folder.getId(), e.getMessage());
+		}
+		return failed;
+	}
+
+	/**
+	 * Deletes the contents of documents, at most
+	 * {@link #MAX_CONCURRENT_DELETES} at a time. A content which does not
+	 * exist is deleted already.
+	 * 
+	 * @return the ids of the documents whose content could not be deleted
+	 */
+	private List<String> deleteContents(List<CmisObject> documents) {
+		if (documents.isEmpty())
+			return Collections.emptyList();
+		return Observable.merge(
+				Observable.from(documents).map(
+						new Func1<CmisObject, Observable<String>>() {
+							@Override
+							public Observable<String> call(CmisObject document) {
+								return deleteContent(document.getId());
+							}
+						}), MAX_CONCURRENT_DELETES).toList().toBlocking()
+				.single();
+	}
+
+	/**
+	 * Emits the id of the document if its content could not be deleted.
+	 */
+	private Observable<String> deleteContent(final String documentId) {
+		return Observable.defer(new Func0<Observable<String>>() {
+			@Override
+			public Observable<String> call() {
+				boolean deleted;
+				try {
+					deleted = !storeService.exists(documentId)
+							|| storeService.deleteContent(documentId);
+				} catch (RuntimeException e) {
+					debug("cannot delete content of {} : {}",
+							documentId, e.getMessage());
+					deleted = false;
+				}
+				return deleted ? Observable.<String> empty() : Observable
+						.just(documentId);
+			}
+		}).subscribeOn(Schedulers.io());
 	}
 
 	/**
@@ -865,8 +1124,68 @@ public class CouchbaseRepository {
 	public ObjectData updateProperties(CallContext context,
 			Holder<String> objectId, Properties properties,
 			ObjectInfoHandler objectInfos) {
-		debug("updateProperties not yet implemented");
-		return null;
+		debug("updateProperties objectId={}", objectId);
+		boolean userReadOnly = checkUser(context, true);
+
+		if (objectId == null || objectId.getValue() == null) {
+			throw new CmisInvalidArgumentException("Id is not valid!");
+		}
+		if (properties == null || properties.getProperties() == null) {
+			throw new CmisInvalidArgumentException("Properties must be set!");
+		}
+
+		CmisObject data = getCmisObject(objectId.getValue());
+		TypeDefinition type = typeManager.getInternalTypeDefinition(data
+				.getType());
+		if (type == null) {
+			throw new CmisObjectNotFoundException("Type '" + data.getType()
+					+ "' is unknown!");
+		}
+
+		// the name is the only property stored which can be changed
+		String newName = null;
+		for (PropertyData<?> prop : properties.getProperties().values()) {
+			PropertyDefinition<?> propType = type.getPropertyDefinitions().get(
+					prop.getId());
+			if (propType == null) {
+				throw new CmisConstraintException("Property '" + prop.getId()
+						+ "' is unknown!");
+			}
+			if (propType.getUpdatability() != Updatability.READWRITE) {
+				throw new CmisConstraintException("Property '" + prop.getId()
+						+ "' cannot be updated!");
+			}
+			if (!PropertyIds.NAME.equals(prop.getId())) {
+				throw new CmisConstraintException("Property '" + prop.getId()
+						+ "' is not stored by this repository!");
+			}
+			newName = (String) prop.getFirstValue();
+		}
+
+		if (newName != null && !newName.equals(data.getName())) {
+			if (!isValidName(newName)) {
+				throw new CmisNameConstraintViolationException(
+						"Name is not valid!");
+			}
+			if (data.isRoot()) {
+				throw new CmisConstraintException(
+						"The root folder cannot be renamed!");
+			}
+			try {
+				// the id does not change
+				if (!metadataStore.renameObject(data, newName,
+						context.getUsername())) {
+					throw new CmisContentAlreadyExistsException(
+							"An object with this name already exists!");
+				}
+			} catch (CouchbaseException e) {
+				throw new CmisStorageException("Could not rename object: "
+						+ e.getMessage(), e);
+			}
+		}
+
+		return compileObjectData(context, getCmisObject(data.getId()), null,
+				false, false, userReadOnly, objectInfos);
 	}
 
 	/**
@@ -990,8 +1309,8 @@ public class CouchbaseRepository {
 			Boolean includeAllowableActions, Boolean includeAcl,
 			ObjectInfoHandler objectInfos) {
 		debug("getObject");
-		debug("getObject objectId:" + objectId + " - versionServicesId="
-				+ versionServicesId);
+		debug("getObject objectId:{} - versionServicesId={}",
+				objectId, versionServicesId);
 
 		boolean userReadOnly = checkUser(context, false);
 
@@ -1018,7 +1337,7 @@ public class CouchbaseRepository {
 		Set<String> filterCollection = CouchbaseUtils.splitFilter(filter);
 
 		// gather properties
-		debug("getObject compileObjectData file:" + objectId);
+		debug("getObject compileObjectData file:{}", objectId);
 		return compileObjectData(context, data, filterCollection, iaa, iacl,
 				userReadOnly, objectInfos);
 	}
@@ -1033,7 +1352,7 @@ public class CouchbaseRepository {
 
 	public CmisObject getCmisObject(String objectId) {
 		try {
-			return this.cbService.getCmisObject(objectId);
+			return this.metadataStore.getCmisObject(objectId);
 		} catch (Exception e) {
 			throw new CmisObjectNotFoundException(e.getMessage(), e);
 		}
@@ -1078,22 +1397,21 @@ public class CouchbaseRepository {
 	 */
 	public ContentStream getContentStream(CallContext context, String objectId,
 			BigInteger offset, BigInteger length) {
-		debug("getContentStream objectId=" + objectId);
+		debug("getContentStream objectId={}", objectId);
 		try {
-			System.out.println("getContentStream objectId=" + objectId);
 			checkUser(context, false);
 
 			// get the filename
 			CmisObject data = null;
 
 			try {
-				data = cbService.getCmisObject(objectId);
+				data = metadataStore.getCmisObject(objectId);
 
 			} catch (CouchbaseException e) {
 				throw new CmisObjectNotFoundException(
 						"this file does not exist : " + objectId);
 			}
-			System.out.println("filename = " + data.getFileName());
+			debug("getContentStream filename={}", data.getFileName());
 			// get the file
 
 			return storeService.getContent(objectId, offset, length,
@@ -1110,7 +1428,7 @@ public class CouchbaseRepository {
 			String filter, Boolean includeAllowableActions,
 			Boolean includePathSegment, BigInteger maxItems,
 			BigInteger skipCount, ObjectInfoHandler objectInfos) {
-		debug("getChildren folderId=" + folderId);
+		debug("getChildren folderId={}", folderId);
 
 		boolean userReadOnly = checkUser(context, false);
 
@@ -1155,31 +1473,25 @@ public class CouchbaseRepository {
 		// prepare result
 		ObjectInFolderListImpl result = new ObjectInFolderListImpl();
 		result.setObjects(new ArrayList<ObjectInFolderData>());
-		result.setHasMoreItems(false);
-		int count = 0;
 
-		// iterate through children
-		CmisObject child;
-		for (String childId : data.getChildren()) {
-			count++;
-
-			if (skip > 0) {
-				skip--;
-				continue;
-			}
+		// read only the children ids of the requested page
+		long count = metadataStore.getChildrenCount(folderId);
+		List<String> childrenIds = metadataStore.getChildrenIds(folderId, skip,
+				max);
+		result.setHasMoreItems(skip + (long) childrenIds.size() < count);
+		result.setNumItems(BigInteger.valueOf(count));
 
-			if (result.getObjects().size() >= max) {
-				result.setHasMoreItems(true);
-				continue;
-			}
+		// fetch the whole page at once
+		List<CmisObject> children;
+		try {
+			children = metadataStore.getCmisObjects(childrenIds);
+		} catch (CouchbaseException e) {
+			throw new CmisObjectNotFoundException(e.getMessage(), e);
+		}
 
-			// build and add child object
+		// build and add child objects
+		for (CmisObject child : children) {
 			ObjectInFolderDataImpl objectInFolder = new ObjectInFolderDataImpl();
-			child = getCmisObject(childId);
-			if (child == null) {
-				debug("This object is not stored in Couchbase : " + childId);
-				continue; // move to the next object
-			}
 			objectInFolder.setObject(compileObjectData(context, child,
 					filterCollection, iaa, false, userReadOnly, objectInfos));
 			if (ips) {
@@ -1189,8 +1501,6 @@ public class CouchbaseRepository {
 			result.getObjects().add(objectInFolder);
 		}
 
-		result.setNumItems(BigInteger.valueOf(count));
-
 		return result;
 	}
 
@@ -1201,19 +1511,152 @@ public class CouchbaseRepository {
 			String folderId, BigInteger depth, String filter,
 			Boolean includeAllowableActions, Boolean includePathSegment,
 			ObjectInfoHandler objectInfos, boolean foldersOnly) {
-		debug("getDescendants or getFolderTree not yet implemented");
-		return null;
+		debug("getDescendants or getFolderTree folderId={}", folderId);
+
+		boolean userReadOnly = checkUser(context, false);
+
+		// check depth
+		int d = (depth == null ? 2 : depth.intValue());
+		if (d == 0) {
+			throw new CmisInvalidArgumentException("Depth must not be 0!");
+		}
+		if (d < -1) {
+			d = -1;
+		}
+
+		// split filter
+		Set<String> filterCollection = CouchbaseUtils.splitFilter(filter);
+
+		// set defaults if values not set
+		boolean iaa = CouchbaseUtils.getBooleanParameter(
+				includeAllowableActions, false);
+		boolean ips = CouchbaseUtils.getBooleanParameter(includePathSegment,
+				false);
+
+		// get the folder
+		CmisObject data = getCmisObject(folderId);
+		if (!data.isDirectory()) {
+			throw new CmisObjectNotFoundException("Not a folder!");
+		}
+
+		// set object info of the the folder
+		if (context.isObjectInfoRequired()) {
+			compileObjectData(context, data, null, false, false, userReadOnly,
+					objectInfos);
+		}
+
+		// get the tree
+		List<ObjectInFolderContainer> result = new ArrayList<ObjectInFolderContainer>();
+		gatherDescendants(context, data, result, foldersOnly, d,
+				filterCollection, iaa, ips, userReadOnly, objectInfos);
+
+		return result;
 	}
 
 	/**
-	 * Gather the children of a folder.
+	 * Gather the descendants of a folder, one level after the other. The
+	 * children of all the folders of a level are read together, at most
+	 * {@link #MAX_CONCURRENT_FOLDERS} folders at a time, then the folders
+	 * found become the next level.
 	 */
-	private void gatherDescendants(CallContext context, File folder,
+	private void gatherDescendants(CallContext context, CmisObject folder,
 			List<ObjectInFolderContainer> list, boolean foldersOnly, int depth,
 			Set<String> filter, boolean includeAllowableActions,
 			boolean includePathSegments, boolean userReadOnly,
 			ObjectInfoHandler objectInfos) {
-		debug("gatherDescendants not yet implemented");
+		// the folders to expand, with the list receiving their children
+		Map<String, List<ObjectInFolderContainer>> level = new LinkedHashMap<String, List<ObjectInFolderContainer>>();
+		level.put(folder.getId(), list);
+
+		for (int l = 1; !level.isEmpty(); l++) {
+			debug("gatherDescendants level {} : {} folder(s)", l, level.size());
+			Map<String, List<CmisObject>> children = readChildren(level
+					.keySet());
+
+			// the next level is only read if the depth allows it
+			boolean expand = depth < 0 || l < depth;
+			Map<String, List<ObjectInFolderContainer>> next = new LinkedHashMap<String, List<ObjectInFolderContainer>>();
+			for (Map.Entry<String, List<ObjectInFolderContainer>> entry : level
+					.entrySet()) {
+				List<CmisObject> folderChildren = children.get(entry.getKey());
+				if (folderChildren == null)
+					continue;
+				for (CmisObject child : folderChildren) {
+					if (foldersOnly && !child.isDirectory()) {
+						continue;
+					}
+
+					// add to list
+					ObjectInFolderDataImpl objectInFolder = new ObjectInFolderDataImpl();
+					objectInFolder.setObject(compileObjectData(context, child,
+							filter, includeAllowableActions, false,
+							userReadOnly, objectInfos));
+					if (includePathSegments) {
+						objectInFolder.setPathSegment(child.getName());
+					}
+
+					ObjectInFolderContainerImpl container = new ObjectInFolderContainerImpl();
+					container.setObject(objectInFolder);
+					entry.getValue().add(container);
+
+					// move to next level
+					if (expand && child.isDirectory()) {
+						container.setChildren(new ArrayList<ObjectInFolderContainer>());
+						next.put(child.getId(), container.getChildren());
+					}
+				}
+			}
+			level = next;
+		}
+	}
+
+	/**
+	 * Reads the children of several folders, at most
+	 * {@link #MAX_CONCURRENT_FOLDERS} folders at a time.
+	 * 
+	 * @return the children by folder id, folders which do not exist any more
+	 *         having no children
+	 */
+	private Map<String, List<CmisObject>> readChildren(
+			Collection<String> folderIds) {
+		final AsyncMetadataStore async = metadataStore.async();
+		try {
+			return Observable
+					.merge(Observable.from(folderIds).map(
+							new Func1<String, Observable<Map<String, List<CmisObject>>>>() {
+								@Override
+								public Observable<Map<String, List<CmisObject>>> call(
+										String folderId) {
+									return async.getChildren(folderId).toList()
+											.map(singletonMap(folderId));
+								}
+							}), MAX_CONCURRENT_FOLDERS)
+					.reduce(new HashMap<String, List<CmisObject>>(),
+							new Func2<Map<String, List<CmisObject>>, Map<String, List<CmisObject>>, Map<String, List<CmisObject>>>() {
+								@Override
+								public Map<String, List<CmisObject>> call(
+										Map<String, List<CmisObject>> all,
+										Map<String, List<CmisObject>> one) {
+									all.putAll(one);
+									return all;
+								}
+							}).toBlocking().single();
+		} catch (CmisBaseException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new CmisStorageException("Could not read children: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	private static Func1<List<CmisObject>, Map<String, List<CmisObject>>> singletonMap(
+			final String folderId) {
+		return new Func1<List<CmisObject>, Map<String, List<CmisObject>>>() {
+			@Override
+			public Map<String, List<CmisObject>> call(List<CmisObject> children) {
+				return Collections.singletonMap(folderId, children);
+			}
+		};
 	}
 
 	/**
@@ -1221,7 +1664,7 @@ public class CouchbaseRepository {
 	 */
 	public ObjectData getFolderParent(CallContext context, String folderId,
 			String filter, ObjectInfoHandler objectInfos) {
-		debug("getFolderParent folderId=" + folderId);
+		debug("getFolderParent folderId={}", folderId);
 
 		List<ObjectParentData> parents = getObjectParents(context, folderId,
 				filter, false, false, objectInfos);
@@ -1240,7 +1683,7 @@ public class CouchbaseRepository {
 	public List<ObjectParentData> getObjectParents(CallContext context,
 			String objectId, String filter, Boolean includeAllowableActions,
 			Boolean includeRelativePathSegment, ObjectInfoHandler objectInfos) {
-		debug("getObjectParents objectId:" + objectId);
+		debug("getObjectParents objectId:{}", objectId);
 		boolean userReadOnly = checkUser(context, false);
 
 		// split filter
@@ -1255,7 +1698,7 @@ public class CouchbaseRepository {
 		// get the file or folder
 		CmisObject data = null;
 		try {
-			data = cbService.getCmisObject(objectId);
+			data = metadataStore.getCmisObject(objectId);
 		} catch (CouchbaseException e) {
 			throw new CmisObjectNotFoundException("Object not found : id = "
 					+ objectId);
@@ -1268,7 +1711,7 @@ public class CouchbaseRepository {
 
 		// set object info of the the object
 		if (context.isObjectInfoRequired()) {
-			debug("getObjectParents compileObjectData file:" + data.getName());
+			debug("getObjectParents compileObjectData file:{}", data.getName());
 			compileObjectData(context, data, null, false, false, userReadOnly,
 					objectInfos);
 		}
@@ -1277,12 +1720,12 @@ public class CouchbaseRepository {
 		CmisObject parentData = null;
 		
 		try{
-			parentData = cbService.getCmisObject(data.getParentId());
+			parentData = metadataStore.getCmisObject(data.getParentId());
 		}
 		catch(CouchbaseException e){throw new CmisObjectNotFoundException("Object not found id = "+data.getParentId());}
 
-		debug("getObjectParents compileObjectData parent:"
-				+ parentData.getName());
+		debug("getObjectParents compileObjectData parent:{}",
+				parentData.getName());
 		ObjectData object = compileObjectData(context, parentData,
 				filterCollection, iaa, false, userReadOnly, objectInfos);
 
@@ -1301,8 +1744,28 @@ public class CouchbaseRepository {
 	public ObjectData getObjectByPath(CallContext context, String folderPath,
 			String filter, boolean includeAllowableActions, boolean includeACL,
 			ObjectInfoHandler objectInfos) {
-		debug("getObjectByPath not yet implemented");
-		return null;
+		debug("getObjectByPath folderPath={}", folderPath);
+		boolean userReadOnly = checkUser(context, false);
+
+		// check path
+		if (folderPath == null || !folderPath.startsWith("/")) {
+			throw new CmisInvalidArgumentException("Invalid folder path!");
+		}
+
+		// get the file or folder
+		CmisObject data;
+		try {
+			data = metadataStore.getCmisObjectByPath(folderPath);
+		} catch (CouchbaseException e) {
+			throw new CmisObjectNotFoundException(e.getMessage(), e);
+		}
+
+		// split filter
+		Set<String> filterCollection = CouchbaseUtils.splitFilter(filter);
+
+		// gather properties
+		return compileObjectData(context, data, filterCollection,
+				includeAllowableActions, includeACL, userReadOnly, objectInfos);
 	}
 
 	// --- helpers ---
@@ -1339,25 +1802,24 @@ public class CouchbaseRepository {
 		if (context.isObjectInfoRequired()) {
 			objectInfo.setObject(result);
 			objectInfos.addObjectInfo(objectInfo);
-			debug("addObjectInfo objectInfo:" + objectInfo);
+			debug("addObjectInfo objectInfo:{}", objectInfo);
 		}
 
 		debug("compileObjectData done.");
 
-		// display result
-		displayObject(result);
+		// display result, property by property
+		if (Tracing.isTraceEnabled(LOG)) {
+			displayObject(result);
+		}
 		return result;
 	}
 
 	private void displayObject(ObjectData o) {
-		Properties prop = o.getProperties();
-		List<PropertyData<?>> al = new ArrayList<PropertyData<?>>(
-				prop.getPropertyList());
-		for (PropertyData<?> p : al) {
-			System.out
-					.println("displayObject : id = " + p.getId() + "displayName = "
-							+ p.getDisplayName() + " - queryName = "
-							+ p.getQueryName()+" - firstValue = "+p.getFirstValue());
+		for (PropertyData<?> p : o.getProperties().getPropertyList()) {
+			LOG.trace(
+					"displayObject : id = {} - displayName = {} - queryName = {} - firstValue = {}",
+					p.getId(), p.getDisplayName(), p.getQueryName(),
+					p.getFirstValue());
 		}
 	}
 
@@ -1387,7 +1849,7 @@ public class CouchbaseRepository {
 
 		if (data.isDirectory()) {
 			typeId = BaseTypeId.CMIS_FOLDER.value();
-			debug("compileProperties typeId=" + typeId);
+			debug("compileProperties typeId={}", typeId);
 			objectInfo.setBaseType(BaseTypeId.CMIS_FOLDER);
 			objectInfo.setTypeId(typeId);
 			objectInfo.setContentType(null);
@@ -1407,7 +1869,7 @@ public class CouchbaseRepository {
 			objectInfo.setWorkingCopyOriginalId(null);
 		} else {
 			typeId = BaseTypeId.CMIS_DOCUMENT.value();
-			debug("compileProperties typeId=" + typeId);
+			debug("compileProperties typeId={}", typeId);
 			objectInfo.setBaseType(BaseTypeId.CMIS_DOCUMENT);
 			objectInfo.setTypeId(typeId);
 			objectInfo.setHasAcl(true);
@@ -1484,10 +1946,19 @@ public class CouchbaseRepository {
 						PropertyIds.OBJECT_TYPE_ID,
 						BaseTypeId.CMIS_FOLDER.value());
 				// String path = getRepositoryPath(file);
-				String path = data.getFullPath();
-				addPropertyString(result, typeId, filter, PropertyIds.PATH,
-						path);
-				debug("compileProperties repopath=" + path);
+				// the path is resolved through the ancestors : only if asked
+				if (filter == null || filter.contains(PropertyIds.PATH)) {
+					String path;
+					try {
+						path = metadataStore.getPath(data);
+					} catch (CouchbaseException e) {
+						throw new CmisObjectNotFoundException(
+								"Parent folder not found: " + e.getMessage(), e);
+					}
+					addPropertyString(result, typeId, filter,
+							PropertyIds.PATH, path);
+					debug("compileProperties repopath={}", path);
+				}
 
 				// folder properties
 				if (!data.isRoot()) {
@@ -1495,8 +1966,7 @@ public class CouchbaseRepository {
 					addPropertyId(result, typeId, filter,
 							PropertyIds.PARENT_ID, parentId);
 					objectInfo.setHasParent(true);
-					System.out
-							.println("compileProperties parentId=" + parentId);
+					debug("compileProperties parentId={}", parentId);
 
 				} else {
 					addPropertyId(result, typeId, filter,
@@ -1504,7 +1974,7 @@ public class CouchbaseRepository {
 					objectInfo.setHasParent(false);
 				}
 
-				debug("compileProperties hasParent=" + objectInfo.hasParent());
+				debug("compileProperties hasParent={}", objectInfo.hasParent());
 
 				addPropertyIdList(result, typeId, filter,
 						PropertyIds.ALLOWED_CHILD_OBJECT_TYPE_IDS, null);
@@ -1568,7 +2038,7 @@ public class CouchbaseRepository {
 
 			if (filter != null) {
 				if (!filter.isEmpty()) {
-					debug("Unknown filter properties: " + filter.toString());
+					debug("Unknown filter properties: {}", filter);
 				}
 			}
 
@@ -1980,6 +2450,44 @@ public class CouchbaseRepository {
 		return true;
 	}
 
+	/**
+	 * Reads the parent of a new object and checks that no object with the
+	 * same name exists in it. Both reads are sent to Couchbase together, the
+	 * name being looked up with the id of the parent.
+	 */
+	private CmisObject getParentForNewChild(String folderId, String name) {
+		AsyncMetadataStore async = metadataStore.async();
+		try {
+			return Observable.zip(
+					async.getCmisObject(folderId).defaultIfEmpty(null),
+					async.hasChild(folderId, name),
+					new Func2<CmisObject, Boolean, CmisObject>() {
+						@Override
+						public CmisObject call(CmisObject parentData,
+								Boolean exists) {
+							if (parentData == null) {
+								throw new CmisObjectNotFoundException(
+										"Parent folder doesn't exist!");
+							}
+							if (!parentData.isDirectory()) {
+								throw new CmisObjectNotFoundException(
+										"Parent is not a folder!");
+							}
+							if (exists.booleanValue()) {
+								throw new CmisContentAlreadyExistsException(
+										"An object with this name already exists!");
+							}
+							return parentData;
+						}
+					}).toBlocking().single();
+		} catch (CmisBaseException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new CmisStorageException("Could not read parent folder: "
+					+ e.getMessage(), e);
+		}
+	}
+
 	/**
 	 * Checks if the user in the given context is valid for this repository and
 	 * if the user has the required permissions.
@@ -2037,51 +2545,187 @@ public class CouchbaseRepository {
 			IncludeRelationships includeRelationships, String renditionFilter,
 			BigInteger maxItems, BigInteger skipCount,
 			ExtensionsData extension, ObjectInfoHandler objectInfos) {
+		// translate the statement, the page is read by Couchbase
+		int skip = (skipCount == null ? 0 : skipCount.intValue());
+		if (skip < 0) {
+			skip = 0;
+		}
+		int max = (maxItems == null ? -1 : maxItems.intValue());
+		MetadataQuery query = new N1qlQueryTranslator(typeManager,
+				metadataStore.getBucketName(), metadataStore)
+				.translate(statement, skip, max);
+
+		// set defaults if values not set
+		boolean iaa = CouchbaseUtils.getBooleanParameter(
+				includeAllowableActions, false);
+
+		boolean userReadOnly = checkUser(context, false);
+
+		AsyncMetadataStore async = metadataStore.async();
+		ObjectListImpl resultList = new ObjectListImpl();
+		List<ObjectData> tmpList = new ArrayList<ObjectData>();
 		try {
-			List<CmisObject> dataList = this.cbService
-					.query(compileStatement(statement));
+			// the rows are converted as they arrive, the statement asks for
+			// one more row than needed which tells if there are more items
+			Iterator<CmisObject> rows = async.query(query).toBlocking()
+					.getIterator();
+			while ((max < 0 || tmpList.size() < max) && rows.hasNext()) {
+				tmpList.add(compileObjectData(context, rows.next(),
+						query.getFilter(), iaa, false, userReadOnly, objectInfos));
+			}
+			boolean hasMoreItems = max >= 0 && rows.hasNext();
 
-			ObjectListImpl resultList = new ObjectListImpl();
-			List<ObjectData> tmpList = new ArrayList<ObjectData>();
+			resultList.setObjects(tmpList);
+			resultList.setHasMoreItems(hasMoreItems);
+			if (!hasMoreItems && (skip == 0 || !tmpList.isEmpty())) {
+				resultList.setNumItems(BigInteger.valueOf(skip + tmpList.size()));
+			} else if (hasMoreItems) {
+				// counted by the index, without reading the other pages
+				resultList.setNumItems(BigInteger.valueOf(async.count(query)
+						.toBlocking().single().longValue()));
+			}
 
-			// set defaults if values not set
-			boolean iaa = CouchbaseUtils.getBooleanParameter(
-					includeAllowableActions, false);
+			return resultList;
 
-			// split filter
-			Set<String> filterCollection = CouchbaseUtils
-					.splitFilter(renditionFilter);
+		} catch (CmisBaseException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new CmisStorageException("Query failed: " + e.getMessage(), e);
+		}
+	}
 
-			boolean userReadOnly = checkUser(context, false);
-			
-			for (CmisObject rawResult : dataList) {
-				ObjectData result = compileObjectData(context, rawResult,
-						filterCollection, iaa, false, userReadOnly, objectInfos);
-				tmpList.add(result);
+	/**
+	 * CMIS getContentChanges. The changes are read from the change log of
+	 * the metadata store, from the given token on : the first change returned
+	 * is the one of the token, and the token is set to the last change
+	 * returned, or left as it is if none is. The properties, when included, are the current ones of the
+	 * objects, a deleted object only has its id and type.
+	 */
+	public ObjectList getContentChanges(CallContext context,
+			Holder<String> changeLogToken, Boolean includeProperties,
+			String filter, BigInteger maxItems, ObjectInfoHandler objectInfos) {
+		debug("getContentChanges");
+		checkUser(context, false);
+
+		long first = 1;
+		if (changeLogToken != null && changeLogToken.getValue() != null) {
+			try {
+				first = Long.parseLong(changeLogToken.getValue());
+			} catch (NumberFormatException e) {
+				throw new CmisInvalidArgumentException("Invalid change log token: "
+						+ changeLogToken.getValue());
 			}
+		}
+		int max = (maxItems == null ? MAX_CHANGES : (int) Math.min(
+				maxItems.longValue(), MAX_CHANGES));
+		if (max < 0) {
+			max = MAX_CHANGES;
+		}
+		boolean properties = CouchbaseUtils.getBooleanParameter(
+				includeProperties, false);
+		Set<String> filterCollection = CouchbaseUtils.splitFilter(filter);
 
+		try {
+			List<ChangeEvent> events = metadataStore.getChanges(first, max);
+			long latest = metadataStore.getLatestChangeToken();
+
+			// the current properties of the objects, read at once
+			Map<String, CmisObject> current = new HashMap<String, CmisObject>();
+			if (properties) {
+				List<String> ids = new ArrayList<String>();
+				for (ChangeEvent event : events) {
+					if (event.getType() != ChangeType.DELETED)
+						ids.add(event.getObjectId());
+				}
+				for (CmisObject data : metadataStore.getCmisObjects(ids))
+					current.put(data.getId(), data);
+			}
+
+			List<ObjectData> tmpList = new ArrayList<ObjectData>(events.size());
+			for (ChangeEvent event : events) {
+				tmpList.add(compileChangeEvent(context, event,
+						current.get(event.getObjectId()), filterCollection,
+						objectInfos));
+			}
+
+			ObjectListImpl resultList = new ObjectListImpl();
 			resultList.setObjects(tmpList);
-			resultList.setNumItems(BigInteger.valueOf(tmpList.size()));
+			if (events.isEmpty()) {
+				// the event of the token may be still being written : the
+				// token is kept, not to skip it
+				resultList.setHasMoreItems(first <= latest);
+				if (first > latest) {
+					resultList.setNumItems(BigInteger.ZERO);
+				}
+				return resultList;
+			}
 
+			long last = events.get(events.size() - 1).getToken();
+			if (changeLogToken != null) {
+				changeLogToken.setValue(String.valueOf(last));
+			}
+			resultList.setHasMoreItems(last < latest);
+			if (last >= latest) {
+				resultList.setNumItems(BigInteger.valueOf(tmpList.size()));
+			}
 			return resultList;
-
 		} catch (CouchbaseException e) {
-			throw new CmisStorageException(e.getMessage());
+			throw new CmisStorageException("Changes cannot be read: "
+					+ e.getMessage(), e);
 		}
 	}
 
-	private String compileStatement(String cmisStatement) {
-		if ("SELECT * FROM cmis:document".equals(cmisStatement)) {
-			return "SELECT * FROM cmismeta WHERE `cmis:objectTypeId` = \"cmis:document\"";
+	/**
+	 * Compiles a change event, with the current properties of the object if
+	 * they were read.
+	 */
+	private ObjectData compileChangeEvent(CallContext context,
+			ChangeEvent event, CmisObject data, Set<String> filter,
+			ObjectInfoHandler objectInfos) {
+		ObjectDataImpl result = new ObjectDataImpl();
+		ObjectInfoImpl objectInfo = new ObjectInfoImpl();
+		BaseTypeId baseType = BaseTypeId.CMIS_FOLDER.value().equals(
+				event.getTypeId()) ? BaseTypeId.CMIS_FOLDER
+				: BaseTypeId.CMIS_DOCUMENT;
+
+		if (data != null) {
+			result.setProperties(compileProperties(context, data, filter,
+					objectInfo));
+		} else {
+			List<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+			propList.add(new PropertyIdImpl(PropertyIds.OBJECT_ID, event
+					.getObjectId()));
+			propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID, event
+					.getTypeId()));
+			propList.add(new PropertyIdImpl(PropertyIds.BASE_TYPE_ID, baseType
+					.value()));
+			result.setProperties(new PropertiesImpl(propList));
+			objectInfo.setId(event.getObjectId());
+			objectInfo.setBaseType(baseType);
+			objectInfo.setTypeId(event.getTypeId());
+		}
+
+		GregorianCalendar time = new GregorianCalendar();
+		time.setTimeInMillis(event.getTime());
+		result.setChangeEventInfo(new ChangeEventInfoDataImpl(event.getType(),
+				time));
+
+		if (context.isObjectInfoRequired()) {
+			objectInfo.setObject(result);
+			objectInfos.addObjectInfo(objectInfo);
 		}
-		throw new CmisInvalidArgumentException("Query is invalid : "
-				+ cmisStatement);
+		return result;
 	}
 
 	private void debug(String msg) {
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("<{}> {}", repositoryId, msg);
-		}
-		System.out.println("(" + repositoryId + ") {" + msg + "}");
+		Tracing.debug(LOG, msg);
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
 	}
 }
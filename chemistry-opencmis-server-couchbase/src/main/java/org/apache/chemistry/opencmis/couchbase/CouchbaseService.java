@@ -5,14 +5,22 @@ import org.apache.chemistry.opencmis.commons.data.ObjectList;
 import org.apache.chemistry.opencmis.commons.data.Properties;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.GregorianCalendar;
+import java.util.LinkedList;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
 
+import rx.Observable;
+import rx.functions.Func1;
+
+import com.couchbase.client.java.AsyncBucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.Bucket;
@@ -20,6 +28,8 @@ import com.couchbase.client.java.bucket.BucketManager;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
 import com.couchbase.client.java.query.Query;
 import com.couchbase.client.java.query.QueryResult;
 import com.couchbase.client.java.query.QueryRow;
@@ -27,48 +37,75 @@ import com.couchbase.client.java.query.Statement;
 
 import org.apache.chemistry.opencmis.commons.data.PropertyData;
 import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
 import org.apache.chemistry.opencmis.commons.PropertyIds;
-import org.apache.chemistry.opencmis.commons.impl.Base64;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
 import org.apache.chemistry.opencmis.commons.impl.server.ObjectInfoImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectListImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyDateTimeImpl;
 import org.apache.chemistry.opencmis.commons.impl.jaxb.CmisException;
-import org.apache.chemistry.opencmis.commons.impl.json.JSONArray;
 import org.omg.CORBA.TCKind;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class CouchbaseService {
+public class CouchbaseService implements MetadataStore {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(CouchbaseService.class);
 
-	static private final String CHILDREN = "cb:children";
 	static public final String PATH_SEPARATOR = "/";
 
+	/** Former key of an object whose id was migrated. */
+	static final String MIGRATED_FROM = "cb:migratedFrom";
+	/** Deepest folder tree walked, to stop on a corrupted parent chain. */
+	static final int MAX_DEPTH = 1000;
+	/** Largest number of folders searched by a query on a tree. */
+	static final int MAX_TREE_FOLDERS = 10000;
+	/** Objects of a deleted tree removed at the same time. */
+	static final int MAX_CONCURRENT_REMOVES = 32;
+
 	private Cluster cluster = null;
 	private Bucket bucket = null;
+	private AsyncBucket asyncBucket = null;
+	private AsyncCouchbaseService asyncService = null;
+	private ChildIndex childIndex = null;
+	private NameIndex nameIndex = null;
+	private TreeDeletions treeDeletions = null;
+	private ChangeLog changeLog = null;
+	private CouchbaseContentReferences contentReferences = null;
+	private IndexManager indexManager = null;
+	private CmisObjectCache cache = new CmisObjectCache(
+			CmisObjectCache.DEFAULT_SIZE, CmisObjectCache.DEFAULT_TTL);
 	private String bucketId = null;
 
 	public CouchbaseService(Cluster cluster, String bucketId) {
 		this.cluster = cluster;
 		this.bucketId = bucketId;
 		bucket = cluster.openBucket(this.bucketId);
+		asyncBucket = bucket.async();
+		asyncService = new AsyncCouchbaseService(asyncBucket, this);
+		childIndex = new ChildIndex(bucket);
+		nameIndex = new NameIndex(bucket);
+		treeDeletions = new TreeDeletions(bucket);
+		changeLog = new ChangeLog(bucket);
+		contentReferences = new CouchbaseContentReferences(bucket);
+		indexManager = new IndexManager(bucket, bucketId);
 		
 		// creation of root node if not exist yet
 		createRootFolderIfNotExists();
-		debug("CouchbaseService started : bucket=" + bucket.name());
+		debug("CouchbaseService started : bucket={}", bucket.name());
 	}
 
 	private boolean createRootFolderIfNotExists() {
 		try {
 			boolean rootExist = checkIfExists(CouchbaseRepository.ROOT_ID);
-			debug("root exists ? "+rootExist);
+			debug("root exists ? {}", rootExist);
 			if (!rootExist) {
 				// create the root document in Couchbase
-				JsonDocument doc = createFolderProperties(null, CouchbaseRepository.ROOT_ID, null);
-				debug("root doc = "+doc);
+				JsonDocument doc = createFolderProperties(null,
+						CouchbaseRepository.ROOT_ID, CouchbaseRepository.ROOT_ID,
+						null, -1);
+				debug("root doc = {}", doc);
 				return doc!=null;
 			}
 			
@@ -79,11 +116,60 @@ public class CouchbaseService {
 		}
 	}
 
+	/**
+	 * Replaces the cache of the objects read by this service.
+	 */
+	public void setCache(CmisObjectCache cache) {
+		this.cache = cache;
+	}
+
+	public CmisObjectCache getCache() {
+		return cache;
+	}
+
+	public String getBucketName() {
+		return bucketId;
+	}
+
+	/**
+	 * Replaces the cache of the path segments resolved by this service.
+	 */
+	public void setPathCache(PathSegmentCache pathCache) {
+		nameIndex.setCache(pathCache);
+	}
+
+	public PathSegmentCache getPathCache() {
+		return nameIndex.getCache();
+	}
+
+	public IndexManager getIndexManager() {
+		return indexManager;
+	}
+
+	/**
+	 * Returns the references of the contents to their blobs, kept in the
+	 * metadata bucket for a {@link ContentAddressedStorageService}.
+	 */
+	public ContentReferences getContentReferences() {
+		return contentReferences;
+	}
+
+	/**
+	 * Returns the non blocking view of this service.
+	 */
+	public AsyncCouchbaseService async() {
+		return asyncService;
+	}
+
 	public void close() {
+		debug("cache : {}", cache);
+		debug("path cache : {}", nameIndex.getCache());
+		cache.unregister();
+		treeDeletions.close();
 		if (cluster != null) {
 			debug("CouchbaseService is stopped ...");
 			Boolean isDisconnected = cluster.disconnect();
-			debug("CouchbaseService stopped ? "+isDisconnected);
+			debug("CouchbaseService stopped ? {}", isDisconnected);
 		}
 	}
 
@@ -93,27 +179,98 @@ public class CouchbaseService {
 	 * @return 
 	 */
 	public CmisObject getCmisObject(String objectId) throws CouchbaseException{
-		debug("CouchbaseService getCmisObject objectId:"
-				+ objectId);
+		debug("CouchbaseService getCmisObject objectId:{}", objectId);
 		if (this.bucket == null)
 			return null;
-	
+
+		CmisObject cached = cache.get(objectId);
+		if (cached != null)
+			return cached;
+
+		long generation = cache.generation(objectId);
 		JsonDocument jsondoc = this.bucket.get(objectId);
 	
-		if(jsondoc == null) new CouchbaseException("Object does not exists. objectId = "+objectId);
-		return getCmisObject(jsondoc.content());
+		if (jsondoc == null)
+			throw new CouchbaseException("Object does not exists. objectId = " + objectId);
+		CmisObject object = getCmisObject(jsondoc.content());
+		object.setCas(jsondoc.cas());
+		cache.put(object, generation);
+		return object;
+	}
+
+	/**
+	 * Fetch several cmis objects at once. The gets are sent in parallel
+	 * through the async bucket instead of one round trip after the other.
+	 * 
+	 * @param objectIds
+	 *            the identifiers of the objects to fetch
+	 * @return the objects in the same order as <code>objectIds</code>,
+	 *         identifiers that are not stored in Couchbase are skipped
+	 */
+	public List<CmisObject> getCmisObjects(List<String> objectIds)
+			throws CouchbaseException {
+		debug("CouchbaseService getCmisObjects count:{}",
+				(objectIds == null ? 0 : objectIds.size()));
+		if (this.bucket == null)
+			throw new CouchbaseException("Bucket cannot be found");
+		if (objectIds == null || objectIds.isEmpty())
+			return Collections.emptyList();
+
+		// only the objects missing from the cache are fetched
+		Map<String, CmisObject> cached = new HashMap<String, CmisObject>();
+		List<String> missingIds = new ArrayList<String>();
+		Map<String, Long> generations = new HashMap<String, Long>();
+		for (String id : objectIds) {
+			CmisObject object = cache.get(id);
+			if (object != null) {
+				cached.put(id, object);
+			} else {
+				missingIds.add(id);
+				generations.put(id, cache.generation(id));
+			}
+		}
+
+		Map<String, JsonDocument> docs = missingIds.isEmpty() ? Collections
+				.<String, JsonDocument> emptyMap() : Observable.from(missingIds)
+				.flatMap(new Func1<String, Observable<JsonDocument>>() {
+					@Override
+					public Observable<JsonDocument> call(String id) {
+						return asyncBucket.get(id);
+					}
+				}).toMap(new Func1<JsonDocument, String>() {
+					@Override
+					public String call(JsonDocument doc) {
+						return doc.id();
+					}
+				}).toBlocking().single();
+
+		List<CmisObject> result = new ArrayList<CmisObject>(objectIds.size());
+		for (String id : objectIds) {
+			CmisObject object = cached.get(id);
+			if (object == null) {
+				JsonDocument jsondoc = docs.get(id);
+				if (jsondoc == null) {
+					debug("This object is not stored in Couchbase : {}", id);
+					continue;
+				}
+				object = getCmisObject(jsondoc.content());
+				object.setCas(jsondoc.cas());
+				cache.put(object, generations.get(id));
+			}
+			result.add(object);
+		}
+		return result;
 	}
 	
 	
 	/**
-	 *  Create a cmis object by its cmis id.
-	 * @param objectId
+	 *  Create a cmis object from its json content.
+	 * @param doc
 	 * @return 
 	 */
 	public CmisObject getCmisObject(JsonObject doc) throws CouchbaseException{
-		debug("CouchbaseService getCmisObject doc:"
-				+ doc);
-		if (this.bucket == null) throw new CouchbaseException("Bucket cannot be found");
+		debug("CouchbaseService getCmisObject doc:{}", doc);
+		if (doc == null) throw new CouchbaseException("Document is empty");
 		
 		// get the identifier inside the doc
 		String objectId = doc.getString(PropertyIds.OBJECT_ID);
@@ -121,21 +278,18 @@ public class CouchbaseService {
 		if(objectId == null) throw new CouchbaseException("identifier unknown");
 		CmisObject data = new CmisObject(objectId);
 
-		JsonDocument jsondoc = this.bucket.get(objectId);
-		debug("jsondoc = " + jsondoc);
-		if (jsondoc == null) throw new CouchbaseException("Document is empty");
-
 		java.util.Set<java.lang.String> names = doc.getNames();
 
 		for (String propId : names) {
-			debug("propId = " + propId);
+			debug("propId = {}", propId);
 
 			// String Property
 			if (PropertyIds.NAME.equals(propId)) {
 				// debug("reading "+propId+" : "+doc.getString(propId));
 				// objectInfo.setName(doc.getString(propId));
 				data.setName(doc.getString(propId));
-				data.setFileName(doc.getString(propId));
+				if (data.getFileName() == null)
+					data.setFileName(doc.getString(propId));
 			} else if (PropertyIds.OBJECT_TYPE_ID.equals(propId)) {
 				// debug("reading "+propId+" : "+doc.getString(propId));
 				data.setType(doc.getString(propId));
@@ -181,26 +335,13 @@ public class CouchbaseService {
 				// objectInfo.setLastModificationDate(doc.ge
 				data.setParentId(doc.getString(propId));
 			} else if (PropertyIds.OBJECT_ID.equals(propId)) {
-				debug("Don't ovewrite property : " + propId);
+				debug("Don't ovewrite property : {}", propId);
 				continue;
 			}
 
-			else if (PropertyIds.PATH.equals(propId)) {
-				data.setPath(doc.getString(propId));
-			}
-
-			// list of children
-			else if (CHILDREN.equals(propId)) {
-				debug("CouchbaseService children ...");
-				JsonArray jsa = doc.getArray(CHILDREN);
-				int count = jsa.size();
-				debug("CouchbaseService children count=" + count);
-
-				for (int i = 0; i < count; i++) {
-					debug("CouchbaseService children child[" + i
-							+ "]=" + jsa.get(i));
-					data.addChildren((String) jsa.get(i));
-				}
+			// page of the parent's child index
+			else if (ChildIndex.CHILD_PAGE.equals(propId)) {
+				data.setChildPage(doc.getInt(propId));
 			}
 		}
 
@@ -221,99 +362,241 @@ public class CouchbaseService {
 	public CmisObject createFolder(CmisObject parentData, String foldername,
 			String username) throws CouchbaseException {
 
-		debug("createFolder parentDataId:" + parentData.getId()
-				+ " - folderName:" + foldername);
-		try {
-			// 0) folder id
-			String folderId = getId(parentData, foldername);
-			debug("FolderId will be = " + folderId);
-
-			// 1) check if another folder with the same name doesn't exist
-			List<String> folderList = parentData.getChildren();
-			boolean alreadyExist = false;
-			for (String child : folderList) {
-				if (child != null && child.equals(folderId)) {
-					debug("folder already exists : child=" + child);
-					alreadyExist = true;
-				}
-			}
-
-			if (alreadyExist) {
-				throw new CouchbaseException(
-						"Impossible to create this folder : it exists already.");
-			}
+		debug("createFolder parentDataId:{} - folderName:{}",
+				parentData.getId(), foldername);
+		// 0) folder id
+		String folderId = newId();
+		debug("FolderId will be = {}", folderId);
 
+		// 1) take the name, no other object of the parent can have it
+		if (!nameIndex.reserve(parentData.getId(), foldername, folderId)) {
+			debug("folder already exists : {}", foldername);
+			throw new CouchbaseException(
+					"Impossible to create this folder : it exists already.");
+		}
+		int childPage = -1;
+		boolean added = false;
+		try {
 			// 2) création du folder dans Couchbase
+			childPage = childIndex.allocate(parentData.getId());
 			JsonDocument result = createFolderProperties(parentData,
-					foldername, username);
+					folderId, foldername, username, childPage);
 			if (result == null) {
 				debug("Impossible to create folder properties in Couchbase");
 				throw new CouchbaseException(
 						"Impossible to create folder properties in Couchbase");
 			}
 
-			// 3) mise à jour des children de parentData et insertion dans
-			// Couchbase
-			parentData.addChildren(folderId);
-			updateFolderProperties(parentData, username);
+			// 3) ajout dans les children de parentData
+			childIndex.add(parentData.getId(), childPage, folderId);
+			added = true;
 
-			return getCmisObject(folderId);
+			CmisObject folder = getCmisObject(folderId);
+			logChange(ChangeType.CREATED, folder);
+			return folder;
 
 		} catch (Exception e) {
-			debug("Impossible to create the new folder " + foldername);
+			debug("Impossible to create the new folder {}", foldername);
+			undoCreate(parentData.getId(), foldername, folderId, childPage,
+					added);
+			try {
+				childIndex.drop(folderId);
+			} catch (Exception e2) {
+				LOG.warn("Children of {} not removed after a failed creation : {}",
+						folderId, e2.toString());
+			}
 			throw new CouchbaseException("Impossible to create the new folder "
-					+ foldername);
+					+ foldername, e);
 		}
 
 	}
 
-	/*
-	 * return the identifier of a folder or a document
+	/**
+	 * Returns a new identifier for a folder or a document. The identifier
+	 * does not depend on the path of the object, which can then be moved or
+	 * renamed without changing its key.
 	 */
-	public String getId(CmisObject parentData, String objectname)
-			throws UnsupportedEncodingException {
-		String path = getPath(parentData);
-		String fullpath = path + PATH_SEPARATOR + objectname;
-		String folderId = Base64.encodeBytes(fullpath.getBytes("UTF-8"));
-		return folderId;
+	public static String newId() {
+		return UUID.randomUUID().toString().replace("-", "");
 	}
 
-	// Path always ends with '/'
-	public String getPath(CmisObject parentData) {
-		return (parentData.isRoot() ? PATH_SEPARATOR : parentData.getPath()
-				+ parentData.getName() + PATH_SEPARATOR);
+	/**
+	 * Returns the identifier of the child of a folder with this name,
+	 * <code>null</code> if there is none.
+	 */
+	public String getChildId(String parentId, String objectname) {
+		return nameIndex.lookup(parentId, objectname);
 	}
 
-	public boolean checkIfExists(CmisObject parentData, String dataId)
-			throws CouchbaseException {
-		debug("checkifExists parentData" + parentData.getId() + " - docname="
-				+ dataId);
+	/**
+	 * Returns the object at this path, resolved one segment after the other
+	 * from the root. The segments come from the {@link PathSegmentCache}
+	 * when they are cached : a deep tree is resolved without reading the name
+	 * index, the folders on the way being usually in the object cache. If the
+	 * cache turns out to be stale the segments are read again from Couchbase.
+	 */
+	public CmisObject getCmisObjectByPath(String path) throws CouchbaseException {
+		debug("getCmisObjectByPath path={}", path);
+		List<String> segments = new ArrayList<String>();
+		for (String segment : path.split(PATH_SEPARATOR)) {
+			if (segment.length() > 0)
+				segments.add(segment);
+		}
+
+		CmisObject data = resolvePath(segments, true);
+		if (data == null)
+			data = resolvePath(segments, false);
+		if (data == null)
+			throw new CouchbaseException("Path not found : " + path);
+		return data;
+	}
+
+	private CmisObject resolvePath(List<String> segments, boolean cached) {
+		if (segments.isEmpty()) {
+			try {
+				return getCmisObject(CouchbaseRepository.ROOT_ID);
+			} catch (CouchbaseException e) {
+				return null;
+			}
+		}
+
+		String objectId = CouchbaseRepository.ROOT_ID;
+		CmisObject data = null;
+		for (int i = 0; i < segments.size(); i++) {
+			String segment = segments.get(i);
+			String parentId = objectId;
+			objectId = cached ? nameIndex.lookup(parentId, segment)
+					: nameIndex.read(parentId, segment);
+			if (objectId == null) {
+				debug("path segment not found : {} in {}", segment, parentId);
+				return null;
+			}
+			// any cached segment may be stale, a folder moved or renamed
+			// since : each one is checked, not only the last
+			if (cached || i == segments.size() - 1) {
+				data = checkSegment(parentId, segment, objectId);
+				if (data == null)
+					return null;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Returns the object of a path segment if it is still where the segment
+	 * says it is, or forgets the segment.
+	 */
+	private CmisObject checkSegment(String parentId, String name,
+			String objectId) {
+		CmisObject data;
 		try {
-			String objectId = getId(parentData, dataId);
-			JsonDocument jsondoc = this.bucket.get(objectId);
-			return jsondoc != null;
-		} catch (UnsupportedEncodingException e) {
-			throw new CouchbaseException("The name is incorrect : "
-					+ e.getMessage());
+			data = getCmisObject(objectId);
+		} catch (CouchbaseException e) {
+			data = null;
+		}
+		if (data == null || !parentId.equals(data.getParentId())
+				|| !name.equals(data.getName())) {
+			debug("stale path segment : {} in {}", name, parentId);
+			nameIndex.invalidate(parentId, name);
+			return null;
 		}
+		return data;
+	}
+
+	/**
+	 * Returns the path of a folder or a document. Paths are not stored : the
+	 * path is built from the names of the parents, which are usually cached.
+	 */
+	public String getPath(CmisObject data) throws CouchbaseException {
+		if (data.isRoot())
+			return PATH_SEPARATOR;
+		List<String> names = new ArrayList<String>();
+		names.add(data.getName());
+		String parentId = data.getParentId();
+		while (parentId != null && !CouchbaseRepository.ROOT_ID.equals(parentId)) {
+			CmisObject parent = getCmisObject(parentId);
+			names.add(parent.getName());
+			parentId = parent.getParentId();
+			if (names.size() > MAX_DEPTH)
+				throw new CouchbaseException("Cycle in the parents of "
+						+ data.getId());
+		}
+		StringBuilder path = new StringBuilder();
+		for (int i = names.size() - 1; i >= 0; i--) {
+			path.append(PATH_SEPARATOR).append(names.get(i));
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Tells if a folder is the given object or one of its descendants.
+	 */
+	public boolean isInTree(CmisObject folder, String ancestorId)
+			throws CouchbaseException {
+		CmisObject current = folder;
+		for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+			if (current.getId().equals(ancestorId))
+				return true;
+			if (current.isRoot() || current.getParentId() == null)
+				return false;
+			current = getCmisObject(current.getParentId());
+		}
+		throw new CouchbaseException("Cycle in the parents of "
+				+ folder.getId());
+	}
+
+	/**
+	 * Returns the ids of a folder and of all the folders below it. The tree
+	 * is read level by level, with one query per level on the parent index.
+	 */
+	public List<String> getFolderTreeIds(String folderId)
+			throws CouchbaseException {
+		List<String> ids = new ArrayList<String>();
+		List<String> level = Collections.singletonList(folderId);
+		while (!level.isEmpty()) {
+			ids.addAll(level);
+			if (ids.size() > MAX_TREE_FOLDERS)
+				throw new CouchbaseException("Too many folders below "
+						+ folderId);
+			QueryResult result = bucket.query(Query.parametrized(
+					"SELECT META(m).id AS id FROM `" + bucketId + "` m WHERE m.`"
+							+ PropertyIds.PARENT_ID + "` IN $1 AND m.`"
+							+ PropertyIds.OBJECT_TYPE_ID + "` = $2",
+					JsonArray.from(JsonArray.from(new ArrayList<Object>(level)),
+							BaseTypeId.CMIS_FOLDER.value())));
+			if (!result.finalSuccess())
+				throw new CouchbaseException("Query failed : " + result.errors());
+			List<String> next = new ArrayList<String>();
+			for (QueryRow row : result.allRows()) {
+				next.add(row.value().getString("id"));
+			}
+			level = next;
+		}
+		return ids;
+	}
+
+	public boolean checkIfExists(CmisObject parentData, String dataId)
+			throws CouchbaseException {
+		debug("checkifExists parentData{} - docname={}",
+				parentData.getId(), dataId);
+		return getChildId(parentData.getId(), dataId) != null;
 	}
 
 	public boolean checkIfExists(String dataId) throws CouchbaseException {
-		debug("checkifExists dataId" + dataId);
+		debug("checkifExists dataId{}", dataId);
 		JsonDocument jsondoc = this.bucket.get(dataId);
 		return jsondoc != null;
 	}
 
 	public JsonDocument createFolderProperties(CmisObject parentData,
-			String foldername, String username) {
+			String folderId, String foldername, String username, int childPage) {
 
 		debug("createFolderProperties ...");
 		try {
 			JsonObject doc = JsonObject.empty();
 
 			// id of the new folder
-			String folderId = parentData == null ? CouchbaseRepository.ROOT_ID : getId(parentData, foldername);
-			debug("folderId created : " + folderId);
+			debug("folderId created : {}", folderId);
 			doc.put(PropertyIds.OBJECT_ID, folderId);
 
 			// type of the new folder
@@ -322,14 +605,11 @@ public class CouchbaseService {
 			// name of the new folder
 			doc.put(PropertyIds.NAME, foldername);
 
-			// path of the new folder
-			String path;
-			if(parentData!=null) path = getPath(parentData);
-			else path = "/";
-			doc.put(PropertyIds.PATH, path);
-
-			// id of the parent folder
-			if(parentData!=null) doc.put(PropertyIds.PARENT_ID, parentData.getId());
+			// id of the parent folder and page in its children
+			if(parentData!=null) {
+				doc.put(PropertyIds.PARENT_ID, parentData.getId());
+				doc.put(ChildIndex.CHILD_PAGE, childPage);
+			}
 
 			// last modified by
 			doc.put(PropertyIds.LAST_MODIFIED_BY, username);
@@ -344,32 +624,29 @@ public class CouchbaseService {
 			doc.put(PropertyIds.CREATION_DATE, time);
 			doc.put(PropertyIds.LAST_MODIFICATION_DATE, time);
 
-			// children empty
-			doc.put(CHILDREN, new JSONArray());
-
 			// store in couchbase
 			JsonDocument jsondoc = JsonDocument.create(folderId, doc);
 			JsonDocument response = bucket.upsert(jsondoc);
+			cache.invalidate(jsondoc.id());
 
 			debug("Folder properties created in Couchbase");
 			return response;
 		} catch (Exception e) {
-			debug("Cannot create folder");
-			e.printStackTrace();
+			LOG.warn("Cannot create folder", e);
 			return null;
 		}
 	}
 
 	public JsonDocument createDocumentProperties(CmisObject parentData,
-			String docname, String username, ContentStream contentStream) {
+			String docId, String docname, String username,
+			ContentStream contentStream, int childPage) {
 
 		debug("createDocumentProperties ...");
 		try {
 			JsonObject doc = JsonObject.empty();
 
 			// id of the new document
-			String docId = getId(parentData, docname);
-			debug("docId created : " + docId);
+			debug("docId created : {}", docId);
 			doc.put(PropertyIds.OBJECT_ID, docId);
 
 			// type of the new document
@@ -379,12 +656,9 @@ public class CouchbaseService {
 			// name of the new document
 			doc.put(PropertyIds.NAME, docname);
 
-			// path of the new folder
-			String path = getPath(parentData);
-			doc.put(PropertyIds.PATH, path);
-
-			// id of the parent folder
+			// id of the parent folder and page in its children
 			doc.put(PropertyIds.PARENT_ID, parentData.getId());
+			doc.put(ChildIndex.CHILD_PAGE, childPage);
 
 			// last modified by
 			doc.put(PropertyIds.LAST_MODIFIED_BY, username);
@@ -409,45 +683,63 @@ public class CouchbaseService {
 			// store in couchbase
 			JsonDocument jsondoc = JsonDocument.create(docId, doc);
 			JsonDocument response = bucket.upsert(jsondoc);
+			cache.invalidate(jsondoc.id());
 
 			debug("Folder properties created in Couchbase");
 			return response;
 		} catch (Exception e) {
-			debug("Cannot create folder");
-			e.printStackTrace();
+			LOG.warn("Cannot create folder", e);
 			return null;
 		}
 	}
 
+	/**
+	 * Rewrites the properties of a folder. The write is guarded by the CAS
+	 * the folder was read with; when another writer got there first, or when
+	 * the folder was not read from Couchbase, the folder is read again and
+	 * only its modification is applied to it, with a bounded backoff between
+	 * the attempts.
+	 * 
+	 * The creation of a child does not go through here : the children are
+	 * kept in the child index, and rewriting the parent for each of them
+	 * would serialize the writers of a folder on its document.
+	 */
 	public JsonDocument updateFolderProperties(CmisObject folderData,
-			String username) {
-		debug("updateFolderProperties folderData=" + folderData);
+			String username) throws CouchbaseException {
+		debug("updateFolderProperties folderData={}", folderData);
+		String docId = folderData.getId();
 		try {
+			JsonDocument response;
+			if (folderData.getCas() == 0) {
+				response = changeObject(docId, username, null);
+				folderData.setCas(response.cas());
+				return response;
+			}
+
 			JsonObject doc = JsonObject.empty();
 
 			/*
 			 * "cmis:objectId": "xxxx", "cmis:objectTypeId":"cmis:folder",
-			 * "cmis:name": "folder1", "cmis:path": "/", "cmis:parent":"@root@"
+			 * "cmis:name": "folder1", "cmis:parent":"@root@"
 			 * "cmis:lastModifiedBy": "test", "cmis:createdBy": "test",
 			 * "cmis:creationDate":1441200150000, "cmis:lastModificationDate":
-			 * 1441200150000, "cb:children": []
+			 * 1441200150000
 			 */
 
-			// id of the new folder
-			doc.put(PropertyIds.OBJECT_ID, folderData.getId());
+			// id of the folder
+			doc.put(PropertyIds.OBJECT_ID, docId);
 
-			// type of the new folder
+			// type of the folder
 			doc.put(PropertyIds.OBJECT_TYPE_ID, folderData.getType());
 
-			// name of the new folder
+			// name of the folder
 			doc.put(PropertyIds.NAME, folderData.getName());
 
-			// path of the new folder
-			doc.put(PropertyIds.PATH, folderData.getPath());
-
-			// id of the parent folder
-			if (folderData.getParentId() != null)
+			// id of the parent folder and page in its children
+			if (folderData.getParentId() != null) {
 				doc.put(PropertyIds.PARENT_ID, folderData.getParentId());
+				doc.put(ChildIndex.CHILD_PAGE, folderData.getChildPage());
+			}
 
 			// last modified by
 			doc.put(PropertyIds.LAST_MODIFIED_BY, username);
@@ -460,82 +752,103 @@ public class CouchbaseService {
 					.getTimeInMillis());
 
 			// last modification date
-			Long time = System.currentTimeMillis();
-			// GregorianCalendar cal = new GregorianCalendar();
-			// cal.setTimeInMillis(Long.valueOf(time));
-			doc.put(PropertyIds.LAST_MODIFICATION_DATE, time);
-
-			// children
-			debug("storing children ...");
-			JsonArray children = JsonArray.from(folderData.getChildren());
-			doc.put(CHILDREN, children);
-			debug("storing children ok.");
+			doc.put(PropertyIds.LAST_MODIFICATION_DATE,
+					System.currentTimeMillis());
 
 			// store in couchbase
-			String docId = (String) doc.get(PropertyIds.OBJECT_ID);
-			JsonDocument jsondoc = JsonDocument.create(docId, doc);
-			debug("Folder properties created in Couchbase ...");
-
-			JsonDocument response = bucket.upsert(jsondoc);
-
-			debug("Folder properties created in Couchbase done.");
+			try {
+				response = bucket.replace(JsonDocument.create(docId, doc,
+						folderData.getCas()));
+				cache.invalidate(docId);
+			} catch (CASMismatchException e) {
+				// the folder was read from a stale cache entry or changed
+				// since : it may have been moved or renamed, keep it as it is
+				debug("Folder updated concurrently : {}", docId);
+				cache.invalidate(docId);
+				response = changeObject(docId, username, null);
+			}
+			folderData.setCas(response.cas());
+			debug("Folder properties updated in Couchbase.");
 			return response;
+		} catch (CouchbaseException e) {
+			throw e;
 		} catch (Exception e) {
-			debug("Cannot create folder");
-			e.printStackTrace();
-			return null;
+			throw new CouchbaseException("Cannot update folder " + docId, e);
 		}
 	}
 
 	public CmisObject createDocument(CmisObject parentData,
 			String documentname, String username, ContentStream contentStream)
 			throws CouchbaseException {
-		debug("createNewDocument documentName="+documentname);
-
-		try {
-			// 0) document id
-			String docId = getId(parentData, documentname);
-			debug("docId will be = " + docId);
-
-			// 1) check if another document with the same name doesn't exist
-			// in the same folder
-			List<String> folderList = parentData.getChildren();
-			boolean alreadyExist = false;
-			for (String child : folderList) {
-				if (child != null && child.equals(docId)) {
-					debug("document or folder already exists : child=" + child);
-					alreadyExist = true;
-				}
-			}
+		debug("createNewDocument documentName={}", documentname);
 
-			if (alreadyExist) {
-				throw new CouchbaseException(
-						"Impossible to create this document : it exists already.");
-			}
+		// 0) document id
+		String docId = newId();
+		debug("docId will be = {}", docId);
 
+		// 1) take the name, no other object of the parent can have it
+		if (!nameIndex.reserve(parentData.getId(), documentname, docId)) {
+			debug("document or folder already exists : {}", documentname);
+			throw new CouchbaseException(
+					"Impossible to create this document : it exists already.");
+		}
+		int childPage = -1;
+		boolean added = false;
+		try {
 			// 2) creation of the document in Couchbase
-			JsonDocument result = createDocumentProperties(parentData,
-					documentname, username, contentStream);
+			childPage = childIndex.allocate(parentData.getId());
+			JsonDocument result = createDocumentProperties(parentData, docId,
+					documentname, username, contentStream, childPage);
 			if (result == null) {
 				debug("Impossible to create document properties in Couchbase");
 				throw new CouchbaseException(
 						"Impossible to create document properties in Couchbase");
 			}
 
-			// 3) update children of parentData and insertion in
-			// Couchbase
-			parentData.addChildren(docId);
-			updateFolderProperties(parentData, username);
+			// 3) add the document to the children of parentData
+			childIndex.add(parentData.getId(), childPage, docId);
+			added = true;
 
-			return getCmisObject(docId);
+			CmisObject document = getCmisObject(docId);
+			logChange(ChangeType.CREATED, document);
+			return document;
 
 		} catch (Exception e) {
-			debug("Impossible to create the new folder " + documentname);
+			debug("Impossible to create the new document {}", documentname);
+			undoCreate(parentData.getId(), documentname, docId, childPage,
+					added);
 			throw new CouchbaseException(
-					"Impossible to create the new document " + documentname);
+					"Impossible to create the new document " + documentname, e);
 		}
 	}
 
+	/**
+	 * Undoes a creation which failed : an object whose metadata would be left
+	 * would be found by the queries, not by its parent. The failures are only
+	 * logged, the original one is the one reported.
+	 */
+	private void undoCreate(String parentId, String name, String objectId,
+			int childPage, boolean added) {
+		try {
+			if (added) {
+				childIndex.remove(parentId, childPage, objectId);
+			}
+		} catch (Exception e) {
+			LOG.warn("Child {} of {} not removed after a failed creation : {}",
+					objectId, parentId, e.toString());
+		}
+		try {
+			bucket.remove(objectId);
+		} catch (DocumentDoesNotExistException e) {
+			// not created
+		} catch (Exception e) {
+			LOG.warn("Object {} not removed after a failed creation : {}",
+					objectId, e.toString());
+		}
+		cache.invalidate(objectId);
+		nameIndex.release(parentId, name);
+	}
+
 	public boolean deleteProperties(CmisObject data, String username)
 			throws CouchbaseException {
 		if (data == null)
@@ -549,26 +862,11 @@ public class CouchbaseService {
 		if (parentData == null)
 			throw new CouchbaseException("Parent is not set");
 
-		// 1) check if another document with the same name doesn't exist
-		// in the same folder
-		List<String> folderList = parentData.getChildren();
-		boolean alreadyExist = false;
-		for (String child : folderList) {
-			if (child != null && child.equals(data.getId())) {
-				debug("document or folder already exists : child=" + child);
-				alreadyExist = true;
-			}
-		}
-
-		if (!alreadyExist)
-			throw new CouchbaseException("data does not belong to its parent");
-
-		// 3) update children of parentData and insertion in
-		// Couchbase
-		boolean removedFromParent = parentData.removeChildren(data.getId());
+		// remove the data from the children of its parent
+		boolean removedFromParent = childIndex.remove(parentData.getId(),
+				data.getChildPage(), data.getId());
 		if (!removedFromParent)
-			throw new CouchbaseException(
-					"cannot remove data from parent properties");
+			throw new CouchbaseException("data does not belong to its parent");
 
 		// update last modification date
 		GregorianCalendar cal = new GregorianCalendar();
@@ -578,23 +876,508 @@ public class CouchbaseService {
 		// update last user
 		parentData.setLastModifiedBy(username);
 
-		JsonDocument newParentDoc = updateFolderProperties(parentData, username);
-		if (newParentDoc == null)
-			throw new CouchbaseException("cannot update parent properties");
+		updateFolderProperties(parentData, username);
 
-		// remove the data itself
+		// remove the data itself and free its name
 		JsonDocument doc = bucket.remove(data.getId());
+		cache.invalidate(data.getId());
+		nameIndex.release(parentData.getId(), data.getName());
+		if (data.isDirectory())
+			childIndex.drop(data.getId());
+		if (doc != null)
+			logChange(ChangeType.DELETED, data);
 		return doc != null;
 	}
 
+	/**
+	 * Moves an object to another folder. Only the object and the indexes of
+	 * the two folders are written : the descendants of a folder keep their
+	 * ids and their documents.
+	 * 
+	 * @return <code>false</code> if the target folder has a child with the
+	 *         same name already
+	 */
+	public boolean moveObject(CmisObject data, CmisObject targetData,
+			String username) throws CouchbaseException {
+		if (data.isRoot())
+			throw new CouchbaseException("Cannot move root");
+		debug("moveObject {} to {}", data.getId(), targetData.getId());
+
+		if (!nameIndex.reserve(targetData.getId(), data.getName(), data.getId()))
+			return false;
+
+		CmisObject sourceData = getCmisObject(data.getParentId());
+		int childPage = childIndex.allocate(targetData.getId());
+		try {
+			// listed in the target before it leaves the source
+			childIndex.add(targetData.getId(), childPage, data.getId());
+		} catch (CouchbaseException e) {
+			nameIndex.release(targetData.getId(), data.getName());
+			throw e;
+		}
+		if (!childIndex.remove(sourceData.getId(), data.getChildPage(),
+				data.getId()))
+			debug("object was not listed in its parent : {}", data.getId());
+
+		final String targetId = targetData.getId();
+		final int page = childPage;
+		changeObject(data.getId(), username, new Change() {
+			@Override
+			public void apply(JsonObject doc) {
+				doc.put(PropertyIds.PARENT_ID, targetId);
+				doc.put(ChildIndex.CHILD_PAGE, page);
+			}
+		});
+		data.setParentId(targetId);
+		data.setChildPage(childPage);
+		nameIndex.release(sourceData.getId(), data.getName());
+		logChange(ChangeType.UPDATED, data);
+
+		// the object is moved already : the dates of the folders are not
+		// worth failing it
+		try {
+			updateFolderProperties(sourceData, username);
+			updateFolderProperties(targetData, username);
+		} catch (CouchbaseException e) {
+			LOG.warn("Folders of {} not updated after its move : {}",
+					data.getId(), e.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Renames an object. Only the object and its name in the parent folder
+	 * are written.
+	 * 
+	 * @return <code>false</code> if the parent folder has a child with the
+	 *         new name already
+	 */
+	public boolean renameObject(CmisObject data, String newName,
+			String username) throws CouchbaseException {
+		if (data.isRoot())
+			throw new CouchbaseException("Cannot rename root");
+		debug("renameObject {} to {}", data.getId(), newName);
+
+		if (!nameIndex.reserve(data.getParentId(), newName, data.getId()))
+			return false;
+
+		final String name = newName;
+		try {
+			changeObject(data.getId(), username, new Change() {
+				@Override
+				public void apply(JsonObject doc) {
+					doc.put(PropertyIds.NAME, name);
+				}
+			});
+		} catch (CouchbaseException e) {
+			nameIndex.release(data.getParentId(), newName);
+			throw e;
+		}
+		nameIndex.release(data.getParentId(), data.getName());
+		data.setName(newName);
+		logChange(ChangeType.UPDATED, data);
+		return true;
+	}
+
+	/**
+	 * Detaches a folder from its parent : it is removed from the child index
+	 * of the parent and its name is freed, once it has been recorded as
+	 * being deleted.
+	 */
+	public void detachTree(CmisObject folder, String username)
+			throws CouchbaseException {
+		if (folder.isRoot())
+			throw new CouchbaseException("Cannot delete root");
+		debug("detachTree {}", folder.getId());
+
+		treeDeletions.record(folder, username);
+		String parentId = folder.getParentId();
+		if (!childIndex.remove(parentId, folder.getChildPage(), folder.getId()))
+			debug("folder was not listed in its parent : {}", folder.getId());
+		// the name may have been taken again since a first attempt
+		if (folder.getId().equals(nameIndex.read(parentId, folder.getName())))
+			nameIndex.release(parentId, folder.getName());
+		try {
+			changeObject(parentId, username, null);
+		} catch (CouchbaseException e) {
+			debug("parent of the tree not found : {}", parentId);
+		}
+	}
+
+	public List<String> getDeletedTrees() throws CouchbaseException {
+		return treeDeletions.list();
+	}
+
+	public boolean claimDeletedTree(String folderId)
+			throws CouchbaseException {
+		return treeDeletions.claim(folderId);
+	}
+
+	public void releaseDeletedTree(String folderId) {
+		treeDeletions.release(folderId);
+	}
+
+	public void forgetDeletedTree(String folderId) throws CouchbaseException {
+		treeDeletions.forget(folderId);
+	}
+
+	/**
+	 * Removes objects of a detached tree, at most
+	 * {@link #MAX_CONCURRENT_REMOVES} at a time. The name of an object is
+	 * only freed if it still belongs to the object.
+	 */
+	public List<String> removeTreeObjects(List<CmisObject> objects) {
+		debug("removeTreeObjects count={}", objects.size());
+		List<String> failed = Observable.merge(
+				Observable.from(objects).map(
+						new Func1<CmisObject, Observable<String>>() {
+							@Override
+							public Observable<String> call(CmisObject data) {
+								return removeTreeObject(data);
+							}
+						}), MAX_CONCURRENT_REMOVES).toList().toBlocking()
+				.single();
+
+		List<ChangeEvent> deletions = new ArrayList<ChangeEvent>();
+		for (CmisObject data : objects) {
+			cache.invalidate(data.getId());
+			if (data.getParentId() != null)
+				nameIndex.invalidate(data.getParentId(), data.getName());
+			if (failed.contains(data.getId()))
+				continue;
+			if (data.isDirectory())
+				childIndex.drop(data.getId());
+			deletions.add(ChangeEvent.of(ChangeType.DELETED, data));
+		}
+		changeLog.append(deletions);
+		return failed;
+	}
+
+	/**
+	 * Removes an object then its name, emits its id if it could not be
+	 * removed.
+	 */
+	private Observable<String> removeTreeObject(final CmisObject data) {
+		final String nameId = NameIndex.nameId(data.getParentId(),
+				data.getName());
+		return asyncBucket
+				.remove(data.getId())
+				.onErrorResumeNext(
+						new Func1<Throwable, Observable<JsonDocument>>() {
+							@Override
+							public Observable<JsonDocument> call(Throwable e) {
+								if (e instanceof DocumentDoesNotExistException)
+									return Observable.just(JsonDocument
+											.create(data.getId()));
+								return Observable.error(e);
+							}
+						})
+				.flatMap(new Func1<JsonDocument, Observable<JsonDocument>>() {
+					@Override
+					public Observable<JsonDocument> call(JsonDocument removed) {
+						return asyncBucket.get(nameId);
+					}
+				})
+				.filter(new Func1<JsonDocument, Boolean>() {
+					@Override
+					public Boolean call(JsonDocument name) {
+						return data.getId().equals(
+								name.content().getString(NameIndex.CHILD_ID));
+					}
+				})
+				.flatMap(new Func1<JsonDocument, Observable<String>>() {
+					@Override
+					public Observable<String> call(JsonDocument name) {
+						// with its CAS : a name taken again is kept
+						return asyncBucket.remove(name)
+								.onErrorResumeNext(Observable.<JsonDocument> empty())
+								.flatMap(new Func1<JsonDocument, Observable<String>>() {
+									@Override
+									public Observable<String> call(
+											JsonDocument removed) {
+										return Observable.empty();
+									}
+								});
+					}
+				})
+				.onErrorResumeNext(new Func1<Throwable, Observable<String>>() {
+					@Override
+					public Observable<String> call(Throwable e) {
+						debug("cannot remove {} : {}", data.getId(), e);
+						return Observable.just(data.getId());
+					}
+				});
+	}
+
+	public List<ChangeEvent> getChanges(long first, int max)
+			throws CouchbaseException {
+		return changeLog.read(first, max);
+	}
+
+	public long getLatestChangeToken() throws CouchbaseException {
+		return changeLog.getLatestToken();
+	}
+
+	private void logChange(ChangeType type, CmisObject data) {
+		changeLog.append(Collections.singletonList(ChangeEvent.of(type, data)));
+	}
+
+	/**
+	 * A change to the stored properties of an object.
+	 */
+	private interface Change {
+		void apply(JsonObject doc);
+	}
+
+	/**
+	 * Applies a change to the current version of an object, along with its
+	 * modification date and user. When another writer got there first, the
+	 * object is read again and the change applied once more, with a bounded
+	 * backoff between the attempts.
+	 * 
+	 * @param change
+	 *            the change, <code>null</code> to only update the
+	 *            modification
+	 */
+	private JsonDocument changeObject(String objectId, String username,
+			Change change) throws CouchbaseException {
+		for (int attempt = 0;; attempt++) {
+			JsonDocument current = bucket.get(objectId);
+			if (current == null)
+				throw new CouchbaseException("Object does not exists. objectId = " + objectId);
+			if (change != null)
+				change.apply(current.content());
+			current.content().put(PropertyIds.LAST_MODIFIED_BY, username);
+			current.content().put(PropertyIds.LAST_MODIFICATION_DATE,
+					System.currentTimeMillis());
+			try {
+				JsonDocument response = bucket.replace(current);
+				cache.invalidate(objectId);
+				return response;
+			} catch (CASMismatchException e) {
+				debug("Object updated concurrently : {}", objectId);
+				cache.invalidate(objectId);
+				CasRetry.backoff(attempt, objectId);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of children of a folder.
+	 */
+	public long getChildrenCount(String folderId) {
+		return childIndex.count(folderId);
+	}
+
+	/**
+	 * Returns the ids of a page of children of a folder. Only the pages of
+	 * the child index covering the requested window are read.
+	 */
+	public List<String> getChildrenIds(String folderId, int skip, int max) {
+		return childIndex.list(folderId, skip, max);
+	}
+
+	/**
+	 * Returns the ids of the folders still holding their children in a
+	 * <code>cb:children</code> array.
+	 */
+	public List<String> getLegacyFolderIds() {
+		List<String> ids = new ArrayList<String>();
+		Query query = Query.simple("SELECT META(m).id AS id FROM `" + bucketId
+				+ "` m WHERE `" + PropertyIds.OBJECT_TYPE_ID + "` = \""
+				+ BaseTypeId.CMIS_FOLDER.value() + "\" AND `"
+				+ ChildIndex.CHILDREN + "` IS NOT MISSING");
+		for (QueryRow row : bucket.query(query)) {
+			ids.add(row.value().getString("id"));
+		}
+		return ids;
+	}
+
+	/**
+	 * Moves the children stored in the <code>cb:children</code> array of a
+	 * folder document into the child index.
+	 * 
+	 * @return the number of children migrated, -1 if the folder was already
+	 *         migrated
+	 */
+	public int migrateChildren(String folderId) throws CouchbaseException {
+		JsonDocument folderDoc = bucket.get(folderId);
+		if (folderDoc == null)
+			throw new CouchbaseException("Folder does not exist : " + folderId);
+		JsonArray legacy = folderDoc.content().getArray(ChildIndex.CHILDREN);
+		if (legacy == null)
+			return -1;
+
+		List<String> childrenIds = new ArrayList<String>();
+		for (int i = 0; i < legacy.size(); i++) {
+			childrenIds.add(legacy.getString(i));
+		}
+		int[] pages = childIndex.rebuild(folderId, childrenIds);
+
+		// tell each child where it is stored
+		for (int i = 0; i < childrenIds.size(); i++) {
+			JsonDocument child = bucket.get(childrenIds.get(i));
+			if (child == null) {
+				debug("Child not found during migration : {}",
+						childrenIds.get(i));
+				continue;
+			}
+			child.content().put(ChildIndex.CHILD_PAGE, pages[i]);
+			bucket.upsert(child);
+			cache.invalidate(child.id());
+		}
+
+		folderDoc.content().removeKey(ChildIndex.CHILDREN);
+		bucket.upsert(folderDoc);
+		cache.invalidate(folderId);
+		return childrenIds.size();
+	}
+
+	/**
+	 * Gives a new id to every object still keyed by its path, walking the
+	 * folders from the root. The child index and the name of each child are
+	 * written under the new id of its folder, and the content of the
+	 * documents is moved to the new key in the storage.
+	 * 
+	 * The new id of an object is derived from its former one, and the former
+	 * key is kept in <code>cb:migratedFrom</code>, so the migration can be
+	 * run again if it has been interrupted.
+	 * 
+	 * @return the number of objects migrated
+	 */
+	public long migrateIds(StorageService storage) throws CouchbaseException {
+		if (!getLegacyFolderIds().isEmpty())
+			throw new CouchbaseException(
+					"Some folders still hold their children, migrate them first");
+
+		JsonDocument root = bucket.get(CouchbaseRepository.ROOT_ID);
+		if (root != null && root.content().containsKey(PropertyIds.PATH)) {
+			root.content().removeKey(PropertyIds.PATH);
+			bucket.upsert(root);
+			cache.invalidate(root.id());
+		}
+
+		long migrated = 0;
+		LinkedList<String[]> folders = new LinkedList<String[]>();
+		folders.add(new String[] { CouchbaseRepository.ROOT_ID,
+				CouchbaseRepository.ROOT_ID });
+		while (!folders.isEmpty()) {
+			String[] folder = folders.removeFirst();
+			migrated += migrateFolder(folder[0], folder[1], storage, folders);
+		}
+		return migrated;
+	}
+
+	/**
+	 * Migrates the children of a folder and queues its sub folders.
+	 */
+	private int migrateFolder(String oldFolderId, String newFolderId,
+			StorageService storage, List<String[]> folders)
+			throws CouchbaseException {
+		List<String> oldChildren = childIndex.list(oldFolderId, 0,
+				Integer.MAX_VALUE);
+		if (oldChildren.isEmpty() && !oldFolderId.equals(newFolderId)) {
+			// index moved by a previous run, the children may not be
+			oldFolderId = newFolderId;
+			oldChildren = childIndex.list(newFolderId, 0, Integer.MAX_VALUE);
+		}
+		debug("migrate {} child(ren) of {} to {}",
+				oldChildren.size(), oldFolderId, newFolderId);
+
+		List<String> legacyIds = new ArrayList<String>();
+		List<String> childIds = new ArrayList<String>();
+		List<JsonObject> contents = new ArrayList<JsonObject>();
+		for (String oldId : oldChildren) {
+			JsonDocument doc = bucket.get(oldId);
+			String childId = oldId;
+			if (doc != null && doc.content().containsKey(PropertyIds.PATH)) {
+				childId = migratedId(oldId);
+				doc.content().put(MIGRATED_FROM, oldId);
+			} else if (doc == null) {
+				// moved by a previous run
+				childId = migratedId(oldId);
+				doc = bucket.get(childId);
+				if (doc == null) {
+					debug("Child not found during migration : {}", oldId);
+					continue;
+				}
+			}
+			JsonObject content = doc.content();
+			content.removeKey(PropertyIds.PATH);
+			content.put(PropertyIds.OBJECT_ID, childId);
+			content.put(PropertyIds.PARENT_ID, newFolderId);
+			legacyIds.add(oldId);
+			childIds.add(childId);
+			contents.add(content);
+		}
+
+		int migrated = 0;
+		int[] pages = childIndex.rebuild(newFolderId, childIds);
+		for (int i = 0; i < childIds.size(); i++) {
+			String oldId = legacyIds.get(i);
+			String childId = childIds.get(i);
+			JsonObject content = contents.get(i);
+			content.put(ChildIndex.CHILD_PAGE, pages[i]);
+			bucket.upsert(JsonDocument.create(childId, content));
+			cache.invalidate(childId);
+			nameIndex.put(newFolderId, content.getString(PropertyIds.NAME),
+					childId);
+
+			if (!oldId.equals(childId)) {
+				if (storage != null && storage.exists(oldId)) {
+					try {
+						storage.moveContent(oldId, childId);
+					} catch (StorageException e) {
+						throw new CouchbaseException("Cannot move the content of "
+								+ oldId + " : " + e.getMessage());
+					}
+				}
+				removeQuietly(oldId);
+				cache.invalidate(oldId);
+				migrated++;
+			}
+
+			if (BaseTypeId.CMIS_FOLDER.value().equals(
+					content.getString(PropertyIds.OBJECT_TYPE_ID))) {
+				String from = content.getString(MIGRATED_FROM);
+				folders.add(new String[] { from == null ? childId : from,
+						childId });
+			}
+		}
+
+		if (!oldFolderId.equals(newFolderId))
+			childIndex.drop(oldFolderId);
+		return migrated;
+	}
+
+	/**
+	 * The id given by the migration to an object keyed by its path.
+	 */
+	static String migratedId(String oldId) {
+		try {
+			return UUID.nameUUIDFromBytes(oldId.getBytes("UTF-8")).toString()
+					.replace("-", "");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void removeQuietly(String id) {
+		try {
+			bucket.remove(id);
+		} catch (Exception e) {
+			debug("nothing to remove : {}", id);
+		}
+	}
+
 	public void readProperties(String objectId, PropertiesImpl properties,
 			Set<String> filter, ObjectInfoImpl objectInfo) throws Exception {
-		debug("=======readProperties objectId = " + objectId);
+		debug("=======readProperties objectId = {}", objectId);
 		// get the json from couchbase
 		if (this.bucket == null)
 			return;
 		JsonDocument jsondoc = this.bucket.get(objectId);
-		debug("jsondoc = " + jsondoc);
+		debug("jsondoc = {}", jsondoc);
 		if (jsondoc == null)
 			throw new Exception("Document does not exist  - docId : "
 					+ objectId);
@@ -605,7 +1388,7 @@ public class CouchbaseService {
 		PropertyData<?> prop = null;
 
 		for (String propId : names) {
-			debug("propId = " + propId);
+			debug("propId = {}", propId);
 
 			// String Property
 			if (PropertyIds.NAME.equals(propId)) {
@@ -681,33 +1464,38 @@ public class CouchbaseService {
 
 			// don't overwrite id
 			if (PropertyIds.OBJECT_ID.equals(propId)) {
-				debug("Don't ovewrite property : " + propId);
+				debug("Don't ovewrite property : {}", propId);
 				continue;
 			}
 
 			// don't overwrite base type
 			if (PropertyIds.BASE_TYPE_ID.equals(propId)) {
-				debug("Don't ovewrite property : " + propId);
+				debug("Don't ovewrite property : {}", propId);
 				continue;
 			}
 
-			debug("Replacing property : " + prop);
+			debug("Replacing property : {}", prop);
 			properties.replaceProperty(prop);
 		}
 
 		debug("=======readProperties done======");
 	}
 	
-	public List<CmisObject> query(String statement) throws CouchbaseException{
-		List<CmisObject> dataList = new ArrayList<CmisObject>();
-		Query query = Query.simple("select * from cmismeta where `cmis:objectTypeId`=\"cmis:document\"");
-		QueryResult results = bucket.query(query);
-		for(QueryRow row : results.allRows()){
-			System.out.println("result : "+row.value().getObject("cmismeta"));
-			CmisObject obj = getCmisObject(row.value().getObject("cmismeta"));
-			dataList.add(obj);
+	/**
+	 * Runs a query translated by the {@link N1qlQueryTranslator}. The query
+	 * only returns ids, which an index can cover, and the objects are then
+	 * fetched by batches, in the order of the query.
+	 * 
+	 * @see AsyncCouchbaseService#query(MetadataQuery)
+	 */
+	public List<CmisObject> query(MetadataQuery query) throws CouchbaseException{
+		try {
+			return asyncService.query(query).toList().toBlocking().single();
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof CouchbaseException)
+				throw (CouchbaseException) e.getCause();
+			throw e;
 		}
-		return dataList;
 	}
 	
 	@Override
@@ -724,9 +1512,18 @@ public class CouchbaseService {
 	}
 
 	private void debug(String msg) {
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("[CouchbaseService] {}", msg);
-		}
-		//System.out.println("{" + msg + "}");
+		Tracing.debug(LOG, msg);
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+
+	private void debug(String format, Object... args) {
+		Tracing.debug(LOG, format, args);
 	}
 }
@@ -23,10 +23,15 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
@@ -39,25 +44,41 @@ import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionContainer;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionList;
+import org.apache.chemistry.opencmis.commons.PropertyIds;
 import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisNotSupportedException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
 import org.apache.chemistry.opencmis.commons.impl.IOUtils;
 import org.apache.chemistry.opencmis.commons.impl.XMLConverter;
 import org.apache.chemistry.opencmis.commons.impl.XMLUtils;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.TypeDefinitionContainerImpl;
 import org.apache.chemistry.opencmis.commons.server.CallContext;
 import org.apache.chemistry.opencmis.server.support.TypeDefinitionFactory;
+import org.apache.chemistry.opencmis.server.support.TypeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Manages the type definitions for all FileShare repositories.
+ * Manages the type definitions for all Couchbase repositories. It also
+ * serves as the {@link TypeManager} of the query parser.
  */
-public class CouchbaseTypeManager {
+public class CouchbaseTypeManager implements TypeManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(CouchbaseTypeManager.class);
 
     private static final String NAMESPACE = "http://chemistry.apache.org/opencmis/couchbase";
 
+    /**
+     * The properties stored in the Couchbase documents, the only ones that
+     * can be used in a query.
+     */
+    public static final Set<String> QUERYABLE_PROPERTIES = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList(PropertyIds.OBJECT_ID, PropertyIds.OBJECT_TYPE_ID, PropertyIds.NAME,
+                    PropertyIds.PARENT_ID, PropertyIds.CREATED_BY, PropertyIds.LAST_MODIFIED_BY,
+                    PropertyIds.CREATION_DATE, PropertyIds.LAST_MODIFICATION_DATE,
+                    PropertyIds.CONTENT_STREAM_MIME_TYPE, PropertyIds.CONTENT_STREAM_FILE_NAME,
+                    PropertyIds.CONTENT_STREAM_LENGTH)));
+
     private final TypeDefinitionFactory typeDefinitionFactory;
     private final Map<String, TypeDefinition> typeDefinitions;
 
@@ -77,13 +98,13 @@ public class CouchbaseTypeManager {
         // add base folder type
         MutableFolderTypeDefinition folderType = typeDefinitionFactory
                 .createBaseFolderTypeDefinition(CmisVersion.CMIS_1_1);
-        removeQueryableAndOrderableFlags(folderType);
+        setQueryableAndOrderableFlags(folderType);
         typeDefinitions.put(folderType.getId(), folderType);
 
         // add base document type
         MutableDocumentTypeDefinition documentType = typeDefinitionFactory
                 .createBaseDocumentTypeDefinition(CmisVersion.CMIS_1_1);
-        removeQueryableAndOrderableFlags(documentType);
+        setQueryableAndOrderableFlags(documentType);
         typeDefinitions.put(documentType.getId(), documentType);
     }
 
@@ -125,15 +146,17 @@ public class CouchbaseTypeManager {
     }
 
     /**
-     * Removes the queryable and orderable flags from the property definitions
-     * of a type definition because this implementations does neither support
-     * queries nor can order objects.
+     * Sets the queryable and orderable flags of the property definitions of a
+     * type definition : only the properties stored in Couchbase can be
+     * queried and used to order the results.
      */
-    private void removeQueryableAndOrderableFlags(MutableTypeDefinition type) {
+    private void setQueryableAndOrderableFlags(MutableTypeDefinition type) {
+        type.setIsQueryable(true);
         for (PropertyDefinition<?> propDef : type.getPropertyDefinitions().values()) {
             MutablePropertyDefinition<?> mutablePropDef = (MutablePropertyDefinition<?>) propDef;
-            mutablePropDef.setIsQueryable(false);
-            mutablePropDef.setIsOrderable(false);
+            boolean stored = QUERYABLE_PROPERTIES.contains(propDef.getId());
+            mutablePropDef.setIsQueryable(stored);
+            mutablePropDef.setIsOrderable(stored);
         }
     }
 
@@ -207,6 +230,95 @@ public class CouchbaseTypeManager {
                 context.getCmisVersion());
     }
 
+    // --- query support ---
+
+    @Override
+    public synchronized TypeDefinitionContainer getTypeById(String typeId) {
+        TypeDefinition type = typeDefinitions.get(typeId);
+        return type == null ? null : createContainer(type);
+    }
+
+    @Override
+    public synchronized TypeDefinition getTypeByQueryName(String typeQueryName) {
+        for (TypeDefinition type : typeDefinitions.values()) {
+            if (type.getQueryName().equals(typeQueryName)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Collection<TypeDefinitionContainer> getTypeDefinitionList() {
+        List<TypeDefinitionContainer> result = new ArrayList<TypeDefinitionContainer>();
+        for (TypeDefinition type : typeDefinitions.values()) {
+            result.add(createContainer(type));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<TypeDefinitionContainer> getRootTypes() {
+        List<TypeDefinitionContainer> result = new ArrayList<TypeDefinitionContainer>();
+        for (TypeDefinition type : typeDefinitions.values()) {
+            if (type.getParentTypeId() == null) {
+                result.add(createContainer(type));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getPropertyIdForQueryName(TypeDefinition typeDefinition, String propQueryName) {
+        for (PropertyDefinition<?> propDef : typeDefinition.getPropertyDefinitions().values()) {
+            if (propDef.getQueryName().equals(propQueryName)) {
+                return propDef.getId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the id of a type and of all its subtypes.
+     */
+    public synchronized List<String> getTypeIdsWithSubtypes(String typeId) {
+        List<String> result = new ArrayList<String>();
+        result.add(typeId);
+        for (TypeDefinition type : typeDefinitions.values()) {
+            if (typeId.equals(type.getParentTypeId())) {
+                result.addAll(getTypeIdsWithSubtypes(type.getId()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void addTypeDefinition(TypeDefinition typeDefinition, boolean addInheritedProperties) {
+        addTypeDefinition(typeDefinition);
+    }
+
+    @Override
+    public void updateTypeDefinition(TypeDefinition typeDefinition) {
+        throw new CmisNotSupportedException("updating a type definition is not supported.");
+    }
+
+    @Override
+    public void deleteTypeDefinition(String typeId) {
+        throw new CmisNotSupportedException("deleting a type definition is not supported.");
+    }
+
+    private TypeDefinitionContainer createContainer(TypeDefinition type) {
+        TypeDefinitionContainerImpl container = new TypeDefinitionContainerImpl(type);
+        List<TypeDefinitionContainer> children = new ArrayList<TypeDefinitionContainer>();
+        for (TypeDefinition child : typeDefinitions.values()) {
+            if (type.getId().equals(child.getParentTypeId())) {
+                children.add(createContainer(child));
+            }
+        }
+        container.setChildren(children);
+        return container;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(128);
@@ -18,28 +18,67 @@
  */
 package org.apache.chemistry.opencmis.couchbase;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 import org.apache.chemistry.opencmis.commons.exceptions.CmisPermissionDeniedException;
+import org.apache.chemistry.opencmis.commons.impl.Base64;
 import org.apache.chemistry.opencmis.commons.server.CallContext;
 
 /**
  * Manages users for the FileShare repository.
+ * 
+ * The logins are an immutable snapshot, replaced as a whole when one is
+ * added, so that the requests are authenticated without any lock. A password
+ * is given in clear, or hashed with PBKDF2 as
+ * <code>{PBKDF2}iterations:salt:hash</code> (see {@link #hashPassword(String)}
+ * ), and compared in a time which does not depend on where it differs.
+ * 
+ * Checking a hashed password costs the iterations of PBKDF2. Once verified, a
+ * password can be remembered for a while (see
+ * {@link #setVerifiedCacheTtl(long)}) as a salted SHA-256 digest, checked
+ * instead until it expires.
  */
 public class CouchbaseUserManager {
 
-    private final Map<String, String> logins;
+    static final String PBKDF2_PREFIX = "{PBKDF2}";
+    static final int PBKDF2_ITERATIONS = 10000;
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 20;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Read by the requests, replaced by {@link #addLogin(String, String)}. */
+    private volatile Map<String, Credential> logins = Collections.emptyMap();
+
+    /** The last password verified of each user, with a hashed password. */
+    private final ConcurrentMap<String, Verified> verified = new ConcurrentHashMap<String, Verified>();
+    private volatile long verifiedTtl = 0;
+    /** Salt of the digests of the verified passwords. */
+    private final byte[] verifiedSalt = new byte[SALT_LENGTH];
 
     public CouchbaseUserManager() {
-        logins = new HashMap<String, String>();
+        RANDOM.nextBytes(verifiedSalt);
     }
 
     /**
      * Returns all logins.
      */
-    public synchronized Collection<String> getLogins() {
+    public Collection<String> getLogins() {
         return logins.keySet();
     }
 
@@ -51,13 +90,28 @@ public class CouchbaseUserManager {
             return;
         }
 
-        logins.put(username.trim(), password);
+        username = username.trim();
+        Map<String, Credential> newLogins = new HashMap<String, Credential>(logins);
+        newLogins.put(username, createCredential(password));
+        logins = Collections.unmodifiableMap(newLogins);
+        verified.remove(username);
+    }
+
+    /**
+     * Remembers the hashed passwords verified for <code>ttl</code> ms, 0 not
+     * to remember them.
+     */
+    public void setVerifiedCacheTtl(long ttl) {
+        verifiedTtl = ttl;
+        if (ttl <= 0) {
+            verified.clear();
+        }
     }
 
     /**
      * Takes user and password from the CallContext and checks them.
      */
-    public synchronized String authenticate(CallContext context) {
+    public String authenticate(CallContext context) {
         // try to get the remote user first
         // HttpServletRequest request = (HttpServletRequest)
         // context.get(CallContext.HTTP_SERVLET_REQUEST);
@@ -76,13 +130,153 @@ public class CouchbaseUserManager {
     /**
      * Authenticates a user against the configured logins.
      */
-    private synchronized boolean authenticate(String username, String password) {
-        String pwd = logins.get(username);
-        if (pwd == null) {
+    private boolean authenticate(String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+        Credential credential = logins.get(username);
+        if (credential == null) {
+            return false;
+        }
+
+        long ttl = verifiedTtl;
+        if (ttl <= 0 || !credential.isHashed()) {
+            return credential.matches(password);
+        }
+
+        // the password verified last, unless the login has been replaced
+        long now = System.currentTimeMillis();
+        byte[] digest = digest(username, password);
+        Verified last = verified.get(username);
+        if (last != null && last.credential == credential && last.expires > now
+                && MessageDigest.isEqual(last.digest, digest)) {
+            return true;
+        }
+        if (!credential.matches(password)) {
+            return false;
+        }
+        verified.put(username, new Verified(credential, digest, now + ttl));
+        return true;
+    }
+
+    private byte[] digest(String username, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(verifiedSalt);
+            md.update(utf8(username));
+            md.update((byte) 0);
+            return md.digest(utf8(password));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes a password with PBKDF2, to be given to
+     * {@link #addLogin(String, String)} instead of the password.
+     */
+    public static String hashPassword(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, PBKDF2_ITERATIONS, HASH_LENGTH);
+        return PBKDF2_PREFIX + PBKDF2_ITERATIONS + ":" + Base64.encodeBytes(salt) + ":"
+                + Base64.encodeBytes(hash);
+    }
+
+    private static Credential createCredential(String password) {
+        if (!password.startsWith(PBKDF2_PREFIX)) {
+            return new PlainCredential(utf8(password));
+        }
+
+        String[] parts = password.substring(PBKDF2_PREFIX.length()).split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid PBKDF2 password: expected "
+                    + PBKDF2_PREFIX + "iterations:salt:hash");
+        }
+        try {
+            return new Pbkdf2Credential(Integer.parseInt(parts[0]), Base64.decode(parts[1]),
+                    Base64.decode(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid PBKDF2 iterations: " + parts[0], e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid PBKDF2 password: " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+            try {
+                return SecretKeyFactory.getInstance(PBKDF2_ALGORITHM).generateSecret(spec)
+                        .getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface Credential {
+        boolean isHashed();
+
+        boolean matches(String password);
+    }
+
+    private static class PlainCredential implements Credential {
+        private final byte[] password;
+
+        PlainCredential(byte[] password) {
+            this.password = password;
+        }
+
+        public boolean isHashed() {
             return false;
         }
 
-        return pwd.equals(password);
+        public boolean matches(String password) {
+            return MessageDigest.isEqual(this.password, utf8(password));
+        }
+    }
+
+    private static class Pbkdf2Credential implements Credential {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        Pbkdf2Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        public boolean isHashed() {
+            return true;
+        }
+
+        public boolean matches(String password) {
+            return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations, hash.length));
+        }
+    }
+
+    private static class Verified {
+        final Credential credential;
+        final byte[] digest;
+        final long expires;
+
+        Verified(Credential credential, byte[] digest, long expires) {
+            this.credential = credential;
+            this.digest = digest;
+            this.expires = expires;
+        }
     }
 
     @Override
@@ -97,4 +291,16 @@ public class CouchbaseUserManager {
 
         return sb.toString();
     }
+
+    /**
+     * Prints the PBKDF2 hash of a password, for a login of the configuration.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: CouchbaseUserManager <password>");
+            System.exit(1);
+        }
+
+        System.out.println(hashPassword(args[0]));
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.chemistry.opencmis.commons.data.PartialContentStream;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+
+/**
+ * Content of a file read through its {@link FileChannel}.
+ * 
+ * A range is read at its position, without reading or skipping what is
+ * before it, and the length is the exact length of the range. The stream
+ * reads straight into the buffer of the caller, and
+ * {@link #transferTo(WritableByteChannel)} lets the file system copy the
+ * content to another channel without going through the heap.
+ */
+public class FileChannelContentStream extends ContentStreamImpl {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient ChannelInputStream stream;
+
+	/**
+	 * Opens the content of a file, from an offset and for a length.
+	 * 
+	 * @param offset
+	 *            <code>null</code> to start at the beginning
+	 * @param length
+	 *            <code>null</code> to read up to the end
+	 * @throws CmisConstraintException
+	 *             if the offset is negative or the length is not positive
+	 */
+	public static FileChannelContentStream open(File file, BigInteger offset,
+			BigInteger length, String filename, String mimeType)
+			throws IOException {
+		if (offset != null && offset.signum() < 0)
+			throw new CmisConstraintException("Offset must not be negative!");
+		if (length != null && length.signum() <= 0)
+			throw new CmisConstraintException("Length must be positive!");
+		long start = offset == null ? 0 : offset.longValue();
+		long count = length == null ? Long.MAX_VALUE : length.longValue();
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			if ((offset != null && offset.signum() > 0) || length != null)
+				return new Partial(channel, start, count, filename, mimeType);
+			return new FileChannelContentStream(channel, start, count,
+					filename, mimeType);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	FileChannelContentStream(FileChannel channel, long start, long count,
+			String filename, String mimeType) throws IOException {
+		long size = channel.size();
+		start = Math.min(start, size);
+		long end = count > size - start ? size : start + count;
+		stream = new ChannelInputStream(channel, start, end);
+		setFileName(filename);
+		setMimeType(mimeType);
+		setLength(BigInteger.valueOf(end - start));
+		setStream(stream);
+	}
+
+	/**
+	 * Returns the channel of the file, positioned independently of the
+	 * stream.
+	 */
+	public FileChannel getChannel() {
+		return stream.channel;
+	}
+
+	/**
+	 * Returns the position in the file of the next byte of the stream.
+	 */
+	public long getPosition() {
+		return stream.position;
+	}
+
+	/**
+	 * Copies what is left of the content to a channel, then closes the file.
+	 * The copy is done by the operating system when the target is a socket
+	 * or a file.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		return stream.transferTo(target);
+	}
+
+	/**
+	 * Part of a content.
+	 */
+	static class Partial extends FileChannelContentStream implements
+			PartialContentStream {
+
+		private static final long serialVersionUID = 1L;
+
+		Partial(FileChannel channel, long start, long count, String filename,
+				String mimeType) throws IOException {
+			super(channel, start, count, filename, mimeType);
+		}
+	}
+
+	/**
+	 * Reads a range of a file with positional reads : the position of the
+	 * channel itself is never used.
+	 */
+	static class ChannelInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		ChannelInputStream(FileChannel channel, long position, long end) {
+			this.channel = channel;
+			this.position = position;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end)
+				return -1;
+			if (len == 0)
+				return 0;
+			int n = channel.read(
+					ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)),
+					position);
+			if (n == -1)
+				return -1;
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		long transferTo(WritableByteChannel target) throws IOException {
+			long transferred = 0;
+			try {
+				while (position < end) {
+					long n = channel.transferTo(position, end - position,
+							target);
+					if (n <= 0)
+						break;
+					position += n;
+					transferred += n;
+				}
+			} finally {
+				close();
+			}
+			return transferred;
+		}
+	}
+}
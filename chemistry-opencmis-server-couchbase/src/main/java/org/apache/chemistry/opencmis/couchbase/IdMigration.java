@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.couchbase.client.java.CouchbaseCluster;
+
+/**
+ * Re-keys an existing metadata bucket whose ids are the encoded paths of the
+ * objects, and moves the contents of the documents to their new ids.
+ *
+ * Usage :
+ * <code>IdMigration &lt;location&gt; &lt;bucket&gt; &lt;key=value&gt;...</code>
+ * where the key/value pairs are the storage parameters of the repository,
+ * for example
+ * <code>IdMigration 192.168.56.105 cmismeta storage=local path=/data/cmis</code>
+ * . The repository must be stopped, and the <code>cb:children</code> arrays
+ * migrated with {@link ChildIndexMigration} first. The migration can be run
+ * again if it has been interrupted.
+ */
+public class IdMigration {
+
+	public static void main(String[] args) throws CouchbaseException {
+		if (args.length < 3) {
+			System.err.println("Usage: IdMigration <location> <bucket> <key=value>...");
+			System.exit(1);
+		}
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		for (int i = 2; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 0) {
+				System.err.println("Not a storage parameter : " + args[i]);
+				System.exit(1);
+			}
+			parameters.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		StorageService storage = StorageFactory.createStorageService(parameters);
+
+		CouchbaseCluster cluster = CouchbaseCluster.create(args[0]);
+		CouchbaseService cbService = new CouchbaseService(cluster, args[1]);
+		try {
+			long count = cbService.migrateIds(storage);
+			System.out.println(count + " object(s) migrated");
+		} finally {
+			storage.close();
+			cbService.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link ContentReferences} kept in the memory of the process, for the tests
+ * without a Couchbase cluster. A blob being deleted blocks the new references
+ * until it is forgotten.
+ */
+public class InMemoryContentReferences implements ContentReferences {
+
+	private final Map<String, Reference> references = new HashMap<String, Reference>();
+	private final Map<String, Integer> refs = new HashMap<String, Integer>();
+	private final Map<String, Boolean> deleting = new HashMap<String, Boolean>();
+
+	@Override
+	public synchronized String getHash(String dataId) {
+		Reference reference = references.get(dataId);
+		return reference == null ? null : reference.getHash();
+	}
+
+	@Override
+	public synchronized Reference getReference(String dataId) {
+		return references.get(dataId);
+	}
+
+	@Override
+	public synchronized boolean map(String dataId, String hash,
+			String mimeType) {
+		if (references.containsKey(dataId))
+			return false;
+		references.put(dataId, new Reference(hash, mimeType));
+		return true;
+	}
+
+	@Override
+	public synchronized String unmap(String dataId) {
+		Reference reference = references.remove(dataId);
+		return reference == null ? null : reference.getHash();
+	}
+
+	@Override
+	public synchronized void acquire(String hash) throws StorageException {
+		while (deleting.containsKey(hash)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted while referencing "
+						+ hash);
+			}
+		}
+		Integer count = refs.get(hash);
+		refs.put(hash, count == null ? 1 : count + 1);
+	}
+
+	@Override
+	public synchronized boolean release(String hash) {
+		Integer count = refs.get(hash);
+		if (count == null)
+			return false;
+		if (count > 1) {
+			refs.put(hash, count - 1);
+			return false;
+		}
+		refs.remove(hash);
+		deleting.put(hash, Boolean.TRUE);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isDeleting(String hash) {
+		return deleting.containsKey(hash);
+	}
+
+	@Override
+	public synchronized void forget(String hash) {
+		deleting.remove(hash);
+		notifyAll();
+	}
+
+	/**
+	 * Returns the number of contents referencing a blob.
+	 */
+	public synchronized int getReferenceCount(String hash) {
+		Integer count = refs.get(hash);
+		return count == null ? 0 : count;
+	}
+}
@@ -0,0 +1,615 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * {@link MetadataStore} kept in the memory of the process, for the tests and
+ * the benchmarks of the repository without a Couchbase cluster.
+ *
+ * It has the semantics of the Couchbase store : names are reserved with an
+ * atomic insert, every write of an object replaces the version it was
+ * computed from or is applied again to the current one (CAS), reads return
+ * copies, and queries are evaluated by a {@link MetadataQueryEvaluator} on
+ * the translated {@link MetadataQuery}. Nothing expires and nothing is
+ * persisted.
+ */
+public class InMemoryMetadataStore implements MetadataStore {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(InMemoryMetadataStore.class);
+
+	static final String BUCKET_NAME = "memory";
+
+	private final ConcurrentMap<String, CmisObject> objects = new ConcurrentHashMap<String, CmisObject>();
+	/** Id of each child, by {@link NameIndex#nameId(String, String)}. */
+	private final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+	/** Ids of the children of each folder, in the order they were added. */
+	private final ConcurrentMap<String, Set<String>> children = new ConcurrentHashMap<String, Set<String>>();
+	/** Folders whose tree is being deleted. */
+	private final Set<String> deletedTrees = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong casCounter = new AtomicLong();
+	/** The change log, the token of an event being its index plus one. */
+	private final List<ChangeEvent> changes = new ArrayList<ChangeEvent>();
+	private final AsyncMetadataStore async = new Async();
+
+	public InMemoryMetadataStore() {
+		CmisObject root = new CmisObject(CouchbaseRepository.ROOT_ID);
+		root.setType(BaseTypeId.CMIS_FOLDER.value());
+		root.setName(CouchbaseRepository.ROOT_ID);
+		root.setFileName(CouchbaseRepository.ROOT_ID);
+		GregorianCalendar now = new GregorianCalendar();
+		root.setCreationDate(now);
+		root.setLastModificationDate(now);
+		root.setCas(casCounter.incrementAndGet());
+		objects.put(root.getId(), root);
+	}
+
+	@Override
+	public String getBucketName() {
+		return BUCKET_NAME;
+	}
+
+	@Override
+	public AsyncMetadataStore async() {
+		return async;
+	}
+
+	@Override
+	public void close() {
+		debug("closed with {} object(s)", objects.size());
+	}
+
+	@Override
+	public CmisObject getCmisObject(String objectId) throws CouchbaseException {
+		CmisObject data = objects.get(objectId);
+		if (data == null)
+			throw new CouchbaseException("Object does not exists. objectId = "
+					+ objectId);
+		return data.copy();
+	}
+
+	@Override
+	public List<CmisObject> getCmisObjects(List<String> objectIds)
+			throws CouchbaseException {
+		if (objectIds == null || objectIds.isEmpty())
+			return Collections.emptyList();
+		List<CmisObject> result = new ArrayList<CmisObject>(objectIds.size());
+		for (String id : objectIds) {
+			CmisObject data = objects.get(id);
+			if (data != null)
+				result.add(data.copy());
+		}
+		return result;
+	}
+
+	@Override
+	public CmisObject getCmisObjectByPath(String path)
+			throws CouchbaseException {
+		String objectId = CouchbaseRepository.ROOT_ID;
+		for (String segment : path.split(CouchbaseService.PATH_SEPARATOR)) {
+			if (segment.length() == 0)
+				continue;
+			objectId = names.get(NameIndex.nameId(objectId, segment));
+			if (objectId == null)
+				throw new CouchbaseException("Path not found : " + path);
+		}
+		return getCmisObject(objectId);
+	}
+
+	@Override
+	public String getPath(CmisObject data) throws CouchbaseException {
+		if (data.isRoot())
+			return CouchbaseService.PATH_SEPARATOR;
+		List<String> segments = new ArrayList<String>();
+		segments.add(data.getName());
+		String parentId = data.getParentId();
+		while (parentId != null && !CouchbaseRepository.ROOT_ID.equals(parentId)) {
+			CmisObject parent = getCmisObject(parentId);
+			segments.add(parent.getName());
+			parentId = parent.getParentId();
+			if (segments.size() > CouchbaseService.MAX_DEPTH)
+				throw new CouchbaseException("Cycle in the parents of "
+						+ data.getId());
+		}
+		StringBuilder path = new StringBuilder();
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			path.append(CouchbaseService.PATH_SEPARATOR).append(segments.get(i));
+		}
+		return path.toString();
+	}
+
+	@Override
+	public boolean isInTree(CmisObject folder, String ancestorId)
+			throws CouchbaseException {
+		CmisObject current = folder;
+		for (int depth = 0; depth <= CouchbaseService.MAX_DEPTH; depth++) {
+			if (current.getId().equals(ancestorId))
+				return true;
+			if (current.isRoot() || current.getParentId() == null)
+				return false;
+			current = getCmisObject(current.getParentId());
+		}
+		throw new CouchbaseException("Cycle in the parents of "
+				+ folder.getId());
+	}
+
+	@Override
+	public List<String> getFolderTreeIds(String folderId)
+			throws CouchbaseException {
+		List<String> ids = new ArrayList<String>();
+		List<String> level = Collections.singletonList(folderId);
+		while (!level.isEmpty()) {
+			ids.addAll(level);
+			if (ids.size() > CouchbaseService.MAX_TREE_FOLDERS)
+				throw new CouchbaseException("Too many folders below "
+						+ folderId);
+			List<String> next = new ArrayList<String>();
+			for (String id : level) {
+				for (CmisObject child : getCmisObjects(getChildrenIds(id, 0,
+						Integer.MAX_VALUE))) {
+					if (child.isDirectory())
+						next.add(child.getId());
+				}
+			}
+			level = next;
+		}
+		return ids;
+	}
+
+	@Override
+	public CmisObject createFolder(CmisObject parentData, String foldername,
+			String username) throws CouchbaseException {
+		CmisObject data = newObject(parentData, foldername, username);
+		data.setType(BaseTypeId.CMIS_FOLDER.value());
+		data.setFileName(foldername);
+		return create(parentData, data, username);
+	}
+
+	@Override
+	public CmisObject createDocument(CmisObject parentData,
+			String documentname, String username, ContentStream contentStream)
+			throws CouchbaseException {
+		CmisObject data = newObject(parentData, documentname, username);
+		data.setType(BaseTypeId.CMIS_DOCUMENT.value());
+		data.setFileName(documentname);
+		data.setContentType(contentStream.getMimeType());
+		data.setContentLength(contentStream.getLength());
+		return create(parentData, data, username);
+	}
+
+	@Override
+	public boolean deleteProperties(CmisObject data, String username)
+			throws CouchbaseException {
+		if (data == null)
+			throw new CouchbaseException("Properties unknown");
+		if (data.isRoot())
+			throw new CouchbaseException("Cannot delete root");
+
+		String parentId = data.getParentId();
+		if (!childrenOf(parentId).remove(data.getId()))
+			throw new CouchbaseException("data does not belong to its parent");
+		change(parentId, username, null);
+
+		CmisObject removed = objects.remove(data.getId());
+		names.remove(NameIndex.nameId(parentId, data.getName()));
+		if (data.isDirectory())
+			children.remove(data.getId());
+		if (removed != null)
+			logChange(ChangeType.DELETED, data);
+		return removed != null;
+	}
+
+	@Override
+	public boolean moveObject(CmisObject data, CmisObject targetData,
+			final String username) throws CouchbaseException {
+		if (data.isRoot())
+			throw new CouchbaseException("Cannot move root");
+		debug("moveObject {} to {}", data.getId(), targetData.getId());
+
+		if (names.putIfAbsent(NameIndex.nameId(targetData.getId(),
+				data.getName()), data.getId()) != null)
+			return false;
+
+		String sourceId = data.getParentId();
+		final String targetId = targetData.getId();
+		// listed in the target before it leaves the source
+		childrenOf(targetId).add(data.getId());
+		childrenOf(sourceId).remove(data.getId());
+		change(data.getId(), username, new Change() {
+			@Override
+			public void apply(CmisObject object) {
+				object.setParentId(targetId);
+			}
+		});
+		data.setParentId(targetId);
+		names.remove(NameIndex.nameId(sourceId, data.getName()));
+		logChange(ChangeType.UPDATED, data);
+
+		change(sourceId, username, null);
+		change(targetId, username, null);
+		return true;
+	}
+
+	@Override
+	public boolean renameObject(CmisObject data, final String newName,
+			String username) throws CouchbaseException {
+		if (data.isRoot())
+			throw new CouchbaseException("Cannot rename root");
+		debug("renameObject {} to {}", data.getId(), newName);
+
+		if (names.putIfAbsent(NameIndex.nameId(data.getParentId(), newName),
+				data.getId()) != null)
+			return false;
+
+		try {
+			change(data.getId(), username, new Change() {
+				@Override
+				public void apply(CmisObject object) {
+					object.setName(newName);
+					if (object.isDirectory())
+						object.setFileName(newName);
+				}
+			});
+		} catch (CouchbaseException e) {
+			names.remove(NameIndex.nameId(data.getParentId(), newName));
+			throw e;
+		}
+		names.remove(NameIndex.nameId(data.getParentId(), data.getName()));
+		data.setName(newName);
+		logChange(ChangeType.UPDATED, data);
+		return true;
+	}
+
+	@Override
+	public void detachTree(CmisObject folder, String username)
+			throws CouchbaseException {
+		if (folder.isRoot())
+			throw new CouchbaseException("Cannot delete root");
+		debug("detachTree {}", folder.getId());
+
+		deletedTrees.add(folder.getId());
+		String parentId = folder.getParentId();
+		childrenOf(parentId).remove(folder.getId());
+		names.remove(NameIndex.nameId(parentId, folder.getName()),
+				folder.getId());
+		try {
+			change(parentId, username, null);
+		} catch (CouchbaseException e) {
+			debug("parent of the tree not found : {}", parentId);
+		}
+	}
+
+	@Override
+	public List<String> getDeletedTrees() {
+		return new ArrayList<String>(deletedTrees);
+	}
+
+	@Override
+	public boolean claimDeletedTree(String folderId) {
+		return deletedTrees.contains(folderId);
+	}
+
+	@Override
+	public void releaseDeletedTree(String folderId) {
+	}
+
+	@Override
+	public void forgetDeletedTree(String folderId) {
+		deletedTrees.remove(folderId);
+	}
+
+	@Override
+	public List<String> removeTreeObjects(List<CmisObject> objects) {
+		for (CmisObject data : objects) {
+			if (this.objects.remove(data.getId()) != null)
+				logChange(ChangeType.DELETED, data);
+			if (data.getParentId() != null)
+				names.remove(NameIndex.nameId(data.getParentId(),
+						data.getName()), data.getId());
+			if (data.isDirectory())
+				children.remove(data.getId());
+		}
+		return new ArrayList<String>();
+	}
+
+	@Override
+	public long getChildrenCount(String folderId) {
+		Set<String> ids = children.get(folderId);
+		if (ids == null)
+			return 0;
+		synchronized (ids) {
+			return ids.size();
+		}
+	}
+
+	@Override
+	public List<String> getChildrenIds(String folderId, int skip, int max) {
+		List<String> result = new ArrayList<String>();
+		Set<String> ids = children.get(folderId);
+		if (ids == null)
+			return result;
+		long wanted = (long) skip + max;
+		synchronized (ids) {
+			int seen = 0;
+			for (String id : ids) {
+				if (seen >= wanted)
+					break;
+				if (seen >= skip)
+					result.add(id);
+				seen++;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public List<CmisObject> query(MetadataQuery query) throws CouchbaseException {
+		List<CmisObject> results = evaluate(query);
+		int from = Math.min(query.getSkipCount(), results.size());
+		int to = results.size();
+		if (query.getMaxItems() >= 0) {
+			// one more row, as the N1QL statement
+			to = (int) Math.min(to, (long) from + query.getMaxItems() + 1);
+		}
+		return new ArrayList<CmisObject>(results.subList(from, to));
+	}
+
+	@Override
+	public List<ChangeEvent> getChanges(long first, int max) {
+		synchronized (changes) {
+			int from = (int) Math.min(Math.max(first, 1) - 1, changes.size());
+			int to = (int) Math.min((long) from + max, changes.size());
+			return new ArrayList<ChangeEvent>(changes.subList(from, to));
+		}
+	}
+
+	@Override
+	public long getLatestChangeToken() {
+		synchronized (changes) {
+			return changes.size();
+		}
+	}
+
+	private void logChange(ChangeType type, CmisObject data) {
+		synchronized (changes) {
+			changes.add(ChangeEvent.of(type, data).withToken(
+					changes.size() + 1));
+		}
+	}
+
+	/**
+	 * The results of a query, sorted, regardless of its page.
+	 */
+	private List<CmisObject> evaluate(MetadataQuery query) {
+		debug("query {}", query.getQueryObject().getMainFromName().getId());
+		MetadataQueryEvaluator evaluator = new MetadataQueryEvaluator(query,
+				this);
+		List<CmisObject> results = new ArrayList<CmisObject>();
+		for (CmisObject data : objects.values()) {
+			if (evaluator.matches(data))
+				results.add(data.copy());
+		}
+		Collections.sort(results, evaluator.comparator());
+		return results;
+	}
+
+	/**
+	 * A change to the stored properties of an object.
+	 */
+	private interface Change {
+		void apply(CmisObject object);
+	}
+
+	/**
+	 * Applies a change to the current version of an object, along with its
+	 * modification date and user, until no other writer got there first.
+	 *
+	 * @param change
+	 *            the change, <code>null</code> to only update the
+	 *            modification
+	 */
+	private CmisObject change(String objectId, String username, Change change)
+			throws CouchbaseException {
+		for (;;) {
+			CmisObject current = objects.get(objectId);
+			if (current == null)
+				throw new CouchbaseException("Object does not exists. objectId = "
+						+ objectId);
+			CmisObject next = current.copy();
+			if (change != null)
+				change.apply(next);
+			next.setLastModifiedBy(username);
+			next.setLastModificationDate(new GregorianCalendar());
+			next.setCas(casCounter.incrementAndGet());
+			// the versions are compared by identity, as the CAS of a document
+			if (objects.replace(objectId, current, next))
+				return next;
+			debug("Object updated concurrently : {}", objectId);
+		}
+	}
+
+	private CmisObject newObject(CmisObject parentData, String name,
+			String username) {
+		CmisObject data = new CmisObject(CouchbaseService.newId());
+		data.setName(name);
+		data.setParentId(parentData.getId());
+		data.setCreatedBy(username);
+		data.setLastModifiedBy(username);
+		GregorianCalendar now = new GregorianCalendar();
+		data.setCreationDate(now);
+		data.setLastModificationDate((GregorianCalendar) now.clone());
+		return data;
+	}
+
+	private CmisObject create(CmisObject parentData, CmisObject data,
+			String username) throws CouchbaseException {
+		// take the name, no other object of the parent can have it
+		String nameId = NameIndex.nameId(parentData.getId(), data.getName());
+		if (names.putIfAbsent(nameId, data.getId()) != null) {
+			debug("object already exists : {}", data.getName());
+			throw new CouchbaseException("Impossible to create "
+					+ data.getName() + " : it exists already.");
+		}
+		// the parent is left as it is, as by CouchbaseService
+		data.setCas(casCounter.incrementAndGet());
+		objects.put(data.getId(), data);
+		childrenOf(parentData.getId()).add(data.getId());
+		logChange(ChangeType.CREATED, data);
+		return data.copy();
+	}
+
+	private Set<String> childrenOf(String folderId) {
+		Set<String> ids = children.get(folderId);
+		if (ids == null) {
+			Set<String> created = Collections
+					.synchronizedSet(new LinkedHashSet<String>());
+			ids = children.putIfAbsent(folderId, created);
+			if (ids == null)
+				ids = created;
+		}
+		return ids;
+	}
+
+	/**
+	 * Non blocking view of the store. As the async bucket, nothing is read
+	 * until subscription.
+	 */
+	private class Async implements AsyncMetadataStore {
+
+		@Override
+		public Observable<CmisObject> getCmisObject(final String objectId) {
+			return Observable.defer(new Func0<Observable<CmisObject>>() {
+				@Override
+				public Observable<CmisObject> call() {
+					CmisObject data = objects.get(objectId);
+					return data == null ? Observable.<CmisObject> empty()
+							: Observable.just(data.copy());
+				}
+			});
+		}
+
+		@Override
+		public Observable<CmisObject> getCmisObjects(List<String> objectIds) {
+			return Observable.from(objectIds).concatMap(
+					new Func1<String, Observable<CmisObject>>() {
+						@Override
+						public Observable<CmisObject> call(String objectId) {
+							return getCmisObject(objectId);
+						}
+					});
+		}
+
+		@Override
+		public Observable<Boolean> exists(final String objectId) {
+			return Observable.defer(new Func0<Observable<Boolean>>() {
+				@Override
+				public Observable<Boolean> call() {
+					return Observable.just(objects.containsKey(objectId));
+				}
+			});
+		}
+
+		@Override
+		public Observable<Boolean> hasChild(final String folderId,
+				final String name) {
+			return Observable.defer(new Func0<Observable<Boolean>>() {
+				@Override
+				public Observable<Boolean> call() {
+					return Observable.just(names.containsKey(NameIndex.nameId(
+							folderId, name)));
+				}
+			});
+		}
+
+		@Override
+		public Observable<Long> getChildrenCount(final String folderId) {
+			return Observable.defer(new Func0<Observable<Long>>() {
+				@Override
+				public Observable<Long> call() {
+					return Observable.just(InMemoryMetadataStore.this
+							.getChildrenCount(folderId));
+				}
+			});
+		}
+
+		@Override
+		public Observable<CmisObject> getChildren(final String folderId) {
+			return Observable.defer(new Func0<Observable<CmisObject>>() {
+				@Override
+				public Observable<CmisObject> call() {
+					return getCmisObjects(getChildrenIds(folderId, 0,
+							Integer.MAX_VALUE));
+				}
+			});
+		}
+
+		@Override
+		public Observable<CmisObject> query(final MetadataQuery query) {
+			return Observable.defer(new Func0<Observable<CmisObject>>() {
+				@Override
+				public Observable<CmisObject> call() {
+					try {
+						return Observable.from(InMemoryMetadataStore.this
+								.query(query));
+					} catch (CouchbaseException e) {
+						return Observable.error(new RuntimeException(e));
+					}
+				}
+			});
+		}
+
+		@Override
+		public Observable<Long> count(final MetadataQuery query) {
+			return Observable.defer(new Func0<Observable<Long>>() {
+				@Override
+				public Observable<Long> call() {
+					return Observable.just(Long.valueOf(evaluate(query).size()));
+				}
+			});
+		}
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.query.Query;
+import com.couchbase.client.java.query.QueryResult;
+import com.couchbase.client.java.query.QueryRow;
+
+/**
+ * Creates the GSI indexes of the metadata bucket and checks that the queries
+ * use them.
+ *
+ * The SDK has no index management API, so everything goes through N1QL :
+ * <code>system:indexes</code> to list the indexes, <code>CREATE INDEX</code>
+ * with a deferred build then one <code>BUILD INDEX</code> for the missing
+ * ones, and <code>EXPLAIN</code> to find the queries which fall back to a
+ * primary scan.
+ */
+public class IndexManager {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(IndexManager.class);
+
+	/** Maximum number of statements whose plan is remembered. */
+	static final int MAX_CHECKED_PLANS = 1000;
+
+	/**
+	 * A GSI index on some properties of the metadata documents.
+	 */
+	public static class Index {
+		private final String name;
+		private final List<String> fields;
+
+		public Index(String name, List<String> fields) {
+			if (fields.isEmpty())
+				throw new IllegalArgumentException("Index " + name
+						+ " has no field");
+			this.name = name;
+			this.fields = Collections.unmodifiableList(new ArrayList<String>(
+					fields));
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public List<String> getFields() {
+			return fields;
+		}
+
+		@Override
+		public String toString() {
+			return name + fields;
+		}
+	}
+
+	private final Bucket bucket;
+	private final String bucketName;
+	private final Map<String, Boolean> checkedPlans = new ConcurrentHashMap<String, Boolean>();
+
+	IndexManager(Bucket bucket, String bucketName) {
+		this.bucket = bucket;
+		this.bucketName = bucketName;
+	}
+
+	/**
+	 * The indexes needed by the repository itself. The type comes first as
+	 * every query filters on it, the other fields make the usual queries
+	 * covered.
+	 */
+	public static Map<String, Index> getDefaultIndexes() {
+		Map<String, Index> indexes = new LinkedHashMap<String, Index>();
+		addIndex(indexes, "cmis_type_name", PropertyIds.OBJECT_TYPE_ID,
+				PropertyIds.NAME);
+		addIndex(indexes, "cmis_parent", PropertyIds.PARENT_ID,
+				PropertyIds.OBJECT_TYPE_ID, PropertyIds.NAME);
+		addIndex(indexes, "cmis_type_modified", PropertyIds.OBJECT_TYPE_ID,
+				PropertyIds.LAST_MODIFICATION_DATE);
+		return indexes;
+	}
+
+	private static void addIndex(Map<String, Index> indexes, String name,
+			String... fields) {
+		indexes.put(name, new Index(name, Arrays.asList(fields)));
+	}
+
+	/**
+	 * Returns the state of the indexes of the bucket, by name.
+	 */
+	public Map<String, String> getIndexStates() {
+		Map<String, String> states = new HashMap<String, String>();
+		QueryResult result = bucket.query(Query.parametrized(
+				"SELECT name, state FROM system:indexes WHERE keyspace_id = $1",
+				JsonArray.from(bucketName)));
+		for (QueryRow row : result.allRows()) {
+			states.put(row.value().getString("name"),
+					row.value().getString("state"));
+		}
+		return states;
+	}
+
+	/**
+	 * Creates the indexes which do not exist yet, builds them together and
+	 * logs the state of every index.
+	 *
+	 * @return the state of each index, by name
+	 */
+	public Map<String, String> provision(Iterable<Index> indexes) {
+		Map<String, String> states = getIndexStates();
+
+		List<String> created = new ArrayList<String>();
+		for (Index index : indexes) {
+			if (states.containsKey(index.getName()))
+				continue;
+			if (create(index)) {
+				created.add("`" + index.getName() + "`");
+			}
+		}
+		if (!created.isEmpty()) {
+			run("BUILD INDEX ON `" + bucketName + "`(" + join(created) + ")");
+			states = getIndexStates();
+		}
+
+		Map<String, String> report = new LinkedHashMap<String, String>();
+		for (Index index : indexes) {
+			String state = states.get(index.getName());
+			report.put(index.getName(), state == null ? "missing" : state);
+			if ("online".equals(state)) {
+				LOG.info("Index {} on {} : {}", index, bucketName, state);
+			} else {
+				LOG.warn("Index {} on {} : {}", index, bucketName,
+						state == null ? "missing" : state);
+			}
+		}
+		if (!states.containsKey("#primary")) {
+			LOG.info("No primary index on {} : queries need one of the indexes above",
+					bucketName);
+		}
+		return report;
+	}
+
+	/**
+	 * Logs a warning the first time a statement is planned as a primary
+	 * scan, which reads the whole bucket.
+	 */
+	public void checkPlan(MetadataQuery query) {
+		if (checkedPlans.containsKey(query.getStatement()))
+			return;
+		if (checkedPlans.size() >= MAX_CHECKED_PLANS)
+			checkedPlans.clear();
+
+		boolean scan = false;
+		try {
+			QueryResult result = bucket.query(Query.parametrized("EXPLAIN "
+					+ query.getStatement(), query.getParams()));
+			for (QueryRow row : result.allRows()) {
+				if (usesPrimaryScan(row.value()))
+					scan = true;
+			}
+		} catch (RuntimeException e) {
+			debug("cannot explain {} : {}", query, e.getMessage());
+		}
+		checkedPlans.put(query.getStatement(), Boolean.valueOf(scan));
+		if (scan) {
+			LOG.warn("Query on {} uses a primary scan, declare an index for it : {}",
+					bucketName, query.getStatement());
+		}
+	}
+
+	static boolean usesPrimaryScan(JsonObject plan) {
+		return plan.toString().contains("\"PrimaryScan\"");
+	}
+
+	private boolean create(Index index) {
+		List<String> fields = new ArrayList<String>();
+		for (String field : index.getFields()) {
+			fields.add("`" + field + "`");
+		}
+		return run("CREATE INDEX `" + index.getName() + "` ON `" + bucketName
+				+ "`(" + join(fields) + ") USING GSI WITH {\"defer_build\":true}");
+	}
+
+	private boolean run(String statement) {
+		debug(statement);
+		QueryResult result = bucket.query(Query.simple(statement));
+		if (!result.finalSuccess()) {
+			LOG.warn("{} failed : {}", statement, result.errors());
+			return false;
+		}
+		return true;
+	}
+
+	private static String join(List<String> values) {
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	private void debug(String msg) {
+		Tracing.debug(LOG, msg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
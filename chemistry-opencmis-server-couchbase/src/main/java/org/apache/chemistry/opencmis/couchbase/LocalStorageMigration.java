@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+/**
+ * Moves the contents of a local storage from the flat layout of former
+ * versions to the sharded layout of {@link LocalStorageService}.
+ *
+ * Usage : <code>LocalStorageMigration &lt;path&gt;</code> where the path is
+ * the <code>storage.path</code> of the repository. The repository must be
+ * stopped. The migration can be run again if it has been interrupted.
+ */
+public class LocalStorageMigration {
+
+	public static void main(String[] args) throws StorageException {
+		if (args.length != 1) {
+			System.err.println("Usage: LocalStorageMigration <path>");
+			System.exit(1);
+		}
+
+		LocalStorageService storage = new LocalStorageService(args[0]);
+		try {
+			long count = storage.migrateToShards();
+			System.out.println(count + " content(s) migrated");
+		} finally {
+			storage.close();
+		}
+	}
+}
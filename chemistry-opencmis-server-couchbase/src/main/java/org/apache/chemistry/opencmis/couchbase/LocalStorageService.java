@@ -1,14 +1,16 @@
 package org.apache.chemistry.opencmis.couchbase;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.apache.chemistry.opencmis.commons.data.ContentStream;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
@@ -18,11 +20,19 @@ import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisStreamNotSupportedException;
 import org.apache.chemistry.opencmis.commons.impl.IOUtils;
 import org.apache.chemistry.opencmis.commons.impl.MimeTypes;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.PartialContentStreamImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Stores the contents in a local directory.
+ * 
+ * A content is stored in a tree of directories sharded by the hash of its
+ * id, <code>root/ab/cd/id</code>, so that no directory holds all the
+ * contents. It is written to a temporary file which is then renamed, so that
+ * a content is either complete or missing, and synced to the disk first if
+ * asked for. Contents stored flat by former versions are still found, until
+ * {@link #migrateToShards()} moves them.
+ */
 public class LocalStorageService implements StorageService{
 
 	private static final Logger LOG = LoggerFactory
@@ -30,39 +40,55 @@ public class LocalStorageService implements StorageService{
 
 	private static final int BUFFER_SIZE = 64 * 1024;
 	private static final String STORAGE_ID = "local";
+	/** Prefix of the contents being written. */
+	static final String TEMP_PREFIX = ".tmp-";
 	
 	final File root;
+	private boolean sync = false;
 
 	public LocalStorageService(String rootpath) {
 		root = new File(rootpath);
 	}
 
+	/**
+	 * Syncs each content to the disk before it is visible.
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
 	public void close() {
 	}
 
 	public void writeContent(String dataId, ContentStream contentStream)
 			throws StorageException {
-		debug("writeContent dataId:"+dataId);
-		if (root == null)
-			throw new StorageException("Root folder does not exist");
-		File newFile = new File(root, dataId);
-		if (newFile.exists()) {
+		debug("writeContent dataId:{}", dataId);
+		File newFile = getFile(dataId);
+		if (locate(dataId).exists()) {
 			throw new StorageException("Document already exists!");
 		}
 
-		// create the file
+		// write to a temporary file of the same directory, then rename it
+		File tempFile;
 		try {
-			newFile.createNewFile();
+			newFile.getParentFile().mkdirs();
+			tempFile = File.createTempFile(TEMP_PREFIX, null,
+					newFile.getParentFile());
 		} catch (IOException e) {
 			throw new StorageException("Could not create file: "
 					+ e.getMessage());
 		}
-
-		// write content, if available
-		if (contentStream != null && contentStream.getStream() != null) {
-			writeContent(newFile, contentStream.getStream());
+		try {
+			InputStream stream = contentStream == null ? null : contentStream
+					.getStream();
+			writeContent(tempFile, stream);
+			if (!tempFile.renameTo(newFile)) {
+				throw new StorageException("Could not create file: " + dataId);
+			}
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
 		}
-
 	}
 
 	/**
@@ -75,7 +101,7 @@ public class LocalStorageService implements StorageService{
 	 */
 	public boolean deleteContent(String dataId) {
 		try {
-			File file = getFile(dataId); 
+			File file = locate(dataId);
 
 			if (file == null || !file.isFile()) {
 				throw new CmisStreamNotSupportedException("Not a file!");
@@ -96,10 +122,13 @@ public class LocalStorageService implements StorageService{
 	 * Writes the content to disc.
 	 */
 	private void writeContent(File newFile, InputStream stream) {
-		OutputStream out = null;
+		FileOutputStream out = null;
 		try {
 			out = new FileOutputStream(newFile);
-			IOUtils.copy(stream, out, BUFFER_SIZE);
+			if (stream != null)
+				IOUtils.copy(stream, out, BUFFER_SIZE);
+			if (sync)
+				out.getFD().sync();
 		} catch (IOException e) {
 			throw new CmisStorageException("Could not write content: "
 					+ e.getMessage(), e);
@@ -111,9 +140,9 @@ public class LocalStorageService implements StorageService{
 
 	public org.apache.chemistry.opencmis.commons.data.ContentStream getContent(
 			String dataId, BigInteger offset, BigInteger length, String filename) {
-		debug("getContent not yet implemented");
+		debug("getContent dataId={}", dataId);
 		try {
-			File file = getFile(dataId);
+			File file = locate(dataId);
 			if (!file.isFile()) {
 				throw new StorageException("Not a file!");
 			}
@@ -122,49 +151,101 @@ public class LocalStorageService implements StorageService{
 				throw new StorageException("Document has no content!");
 			}
 
-			InputStream stream = null;
-			try {
-				stream = new BufferedInputStream(new FileInputStream(file),
-						BUFFER_SIZE);
-				if (offset != null || length != null) {
-					stream = new ContentRangeInputStream(stream, offset, length);
-				}
-			} catch (FileNotFoundException e) {
-				throw new CmisObjectNotFoundException(e.getMessage(), e);
-			}
-
-			// compile data
-			ContentStreamImpl result;
-			if ((offset != null && offset.longValue() > 0) || length != null) {
-				result = new PartialContentStreamImpl();
-			} else {
-				result = new ContentStreamImpl();
-			}
-
-			result.setFileName(filename);
-			result.setLength(BigInteger.valueOf(file.length()));
-			result.setMimeType(MimeTypes.getMIMEType(file));
-			result.setStream(stream);
-
-			return result;
+			// the range is read at its position, with its exact length
+			return FileChannelContentStream.open(file, offset, length,
+					filename, MimeTypes.getMIMEType(file));
+		} catch (CmisConstraintException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new CmisObjectNotFoundException(e.getMessage(), e);
 		}
 
 	}
 
+	public long getLength(String dataId) throws StorageException {
+		File file = locate(dataId);
+		return file.isFile() ? file.length() : -1;
+	}
+
 	public boolean exists(String dataId) {
 		try {
-			File file = getFile(dataId);
-			if (file == null)
-				return false;
-			return file.exists();
+			return locate(dataId).exists();
 		} catch (StorageException e) {
-			e.printStackTrace();
+			LOG.warn("Cannot locate {}", dataId, e);
 			return false;
 		}
 	}
 
+	public void moveContent(String dataId, String newDataId)
+			throws StorageException {
+		debug("moveContent dataId:{} to {}", dataId, newDataId);
+		File file = locate(dataId);
+		File newFile = getFile(newDataId);
+		if (locate(newDataId).exists()) {
+			throw new StorageException("Document already exists!");
+		}
+		newFile.getParentFile().mkdirs();
+		if (!file.renameTo(newFile)) {
+			throw new StorageException("Could not move file: " + dataId);
+		}
+	}
+
+	/**
+	 * Copies a file with {@link FileChannel#transferTo}, which lets the
+	 * system copy it without going through the memory of the JVM.
+	 */
+	public boolean copyContent(String dataId, String newDataId)
+			throws StorageException {
+		debug("copyContent dataId:{} to {}", dataId, newDataId);
+		File file = locate(dataId);
+		File newFile = getFile(newDataId);
+		if (!file.isFile()) {
+			throw new StorageException("Not a file!");
+		}
+		if (locate(newDataId).exists()) {
+			throw new StorageException("Document already exists!");
+		}
+
+		File tempFile;
+		try {
+			newFile.getParentFile().mkdirs();
+			tempFile = File.createTempFile(TEMP_PREFIX, null,
+					newFile.getParentFile());
+		} catch (IOException e) {
+			throw new StorageException("Could not create file: "
+					+ e.getMessage());
+		}
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new FileInputStream(file);
+			out = new FileOutputStream(tempFile);
+			FileChannel source = in.getChannel();
+			FileChannel target = out.getChannel();
+			long size = source.size();
+			long position = 0;
+			while (position < size)
+				position += source.transferTo(position, size - position,
+						target);
+			if (sync)
+				out.getFD().sync();
+			out.close();
+			if (!tempFile.renameTo(newFile)) {
+				throw new StorageException("Could not create file: "
+						+ newDataId);
+			}
+			return true;
+		} catch (IOException e) {
+			throw new StorageException("Could not copy content: "
+					+ e.getMessage());
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
 	private File getFile(String dataId) throws StorageException {
 		if (dataId == null || dataId.length() == 0) {
 			throw new CmisInvalidArgumentException("Id is not valid!");
@@ -173,13 +254,98 @@ public class LocalStorageService implements StorageService{
 		if (root == null)
 			throw new StorageException("Root folder does not exist");
 
-		return new File(root, dataId);
+		String hash = shardHash(dataId);
+		File shard = new File(new File(root, hash.substring(0, 2)),
+				hash.substring(2, 4));
+		return new File(shard, dataId);
+	}
+
+	/**
+	 * Returns the file of a content, in its shard or else where former
+	 * versions stored it.
+	 */
+	private File locate(String dataId) throws StorageException {
+		File file = getFile(dataId);
+		if (!file.exists()) {
+			File flat = new File(root, dataId);
+			if (flat.isFile())
+				return flat;
+		}
+		return file;
+	}
+
+	private static String shardHash(String dataId) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(
+					dataId.getBytes("UTF-8"));
+			return String.format("%02x%02x", digest[0] & 0xff,
+					digest[1] & 0xff);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
-	private void debug(String msg) {
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("{}", msg);
+	/**
+	 * Moves the contents stored flat in the root directory to their shard, and
+	 * removes the temporary files left by interrupted writes. The repository
+	 * must be stopped.
+	 * 
+	 * @return the number of contents moved
+	 */
+	public long migrateToShards() throws StorageException {
+		if (root == null || !root.isDirectory())
+			throw new StorageException("Root folder does not exist");
+
+		long count = 0;
+		File[] files = root.listFiles();
+		for (File file : files) {
+			if (file.isDirectory())
+				continue;
+			if (file.getName().startsWith(TEMP_PREFIX)) {
+				file.delete();
+				continue;
+			}
+			File newFile = getFile(file.getName());
+			if (newFile.exists()) {
+				LOG.warn("Content {} is stored twice, the flat copy is kept",
+						file.getName());
+				continue;
+			}
+			newFile.getParentFile().mkdirs();
+			if (!file.renameTo(newFile))
+				throw new StorageException("Could not move file: "
+						+ file.getName());
+			count++;
+		}
+
+		// interrupted writes
+		for (File level1 : files) {
+			if (!level1.isDirectory())
+				continue;
+			for (File level2 : level1.listFiles()) {
+				File[] temps = level2.listFiles(new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.startsWith(TEMP_PREFIX);
+					}
+				});
+				if (temps == null)
+					continue;
+				for (File temp : temps)
+					temp.delete();
+			}
 		}
+		return count;
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
 	}
 
 	@Override
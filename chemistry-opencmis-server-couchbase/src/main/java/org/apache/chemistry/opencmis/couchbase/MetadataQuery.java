@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.List;
+import java.util.Set;
+
+import org.antlr.runtime.tree.Tree;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject;
+
+import com.couchbase.client.java.document.json.JsonArray;
+
+/**
+ * A CMIS query translated by the {@link N1qlQueryTranslator}: the
+ * parameterized N1QL statement along with the parsed CMIS query it comes
+ * from.
+ *
+ * The statement asks for one row more than <code>maxItems</code> so that the
+ * caller can tell whether more items are available.
+ */
+public class MetadataQuery {
+
+	private final String statement;
+	private final String countStatement;
+	private final JsonArray params;
+	private final QueryObject queryObject;
+	private final Tree whereTree;
+	private final List<String> typeIds;
+	private final Set<String> filter;
+	private final int skipCount;
+	private final int maxItems;
+
+	MetadataQuery(String statement, String countStatement, JsonArray params,
+			QueryObject queryObject, Tree whereTree, List<String> typeIds,
+			Set<String> filter, int skipCount, int maxItems) {
+		this.statement = statement;
+		this.countStatement = countStatement;
+		this.params = params;
+		this.queryObject = queryObject;
+		this.whereTree = whereTree;
+		this.typeIds = typeIds;
+		this.filter = filter;
+		this.skipCount = skipCount;
+		this.maxItems = maxItems;
+	}
+
+	/** The N1QL statement, with positional parameters. */
+	public String getStatement() {
+		return statement;
+	}
+
+	/**
+	 * The N1QL statement counting all the results, regardless of the page,
+	 * with the same parameters.
+	 */
+	public String getCountStatement() {
+		return countStatement;
+	}
+
+	/** The values of the positional parameters of the statements. */
+	public JsonArray getParams() {
+		return params;
+	}
+
+	public QueryObject getQueryObject() {
+		return queryObject;
+	}
+
+	/** The WHERE clause of the CMIS query, <code>null</code> if there is none. */
+	public Tree getWhereTree() {
+		return whereTree;
+	}
+
+	/** The type queried and its subtypes. */
+	public List<String> getTypeIds() {
+		return typeIds;
+	}
+
+	/** The properties selected, <code>null</code> for all of them. */
+	public Set<String> getFilter() {
+		return filter;
+	}
+
+	public int getSkipCount() {
+		return skipCount;
+	}
+
+	public int getMaxItems() {
+		return maxItems;
+	}
+
+	@Override
+	public String toString() {
+		return statement + " " + params;
+	}
+}
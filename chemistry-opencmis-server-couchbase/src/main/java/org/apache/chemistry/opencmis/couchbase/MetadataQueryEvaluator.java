@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.antlr.runtime.tree.Tree;
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.server.support.query.AbstractPredicateWalker;
+import org.apache.chemistry.opencmis.server.support.query.CalendarHelper;
+import org.apache.chemistry.opencmis.server.support.query.CmisSelector;
+import org.apache.chemistry.opencmis.server.support.query.ColumnReference;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject.SortSpec;
+
+/**
+ * Evaluates a {@link MetadataQuery} on the objects themselves instead of
+ * running its N1QL statement. The WHERE tree is walked once per object with
+ * the semantics of the statement built by the {@link N1qlQueryTranslator} :
+ * a comparison with a missing property is false, and dates are compared as
+ * milliseconds.
+ *
+ * An evaluator is built for one query and is not thread-safe.
+ */
+class MetadataQueryEvaluator extends AbstractPredicateWalker {
+
+	private final MetadataQuery query;
+	private final MetadataStore store;
+	private final Set<String> typeIds;
+	/** Folders of each IN_TREE, read once per query. */
+	private final Map<String, Set<String>> trees = new HashMap<String, Set<String>>();
+
+	private CmisObject current;
+
+	/**
+	 * @param store
+	 *            the store used to read the folders of IN_TREE
+	 */
+	MetadataQueryEvaluator(MetadataQuery query, MetadataStore store) {
+		this.query = query;
+		this.store = store;
+		this.typeIds = new HashSet<String>(query.getTypeIds());
+	}
+
+	/**
+	 * Tells if an object is a result of the query, regardless of its page.
+	 */
+	boolean matches(CmisObject data) {
+		if (!typeIds.contains(data.getType()))
+			return false;
+		if (query.getWhereTree() == null)
+			return true;
+		current = data;
+		try {
+			return walkPredicate(query.getWhereTree()).booleanValue();
+		} finally {
+			current = null;
+		}
+	}
+
+	/**
+	 * The order of the results : the ORDER BY of the query then the ids,
+	 * which keeps the pages stable.
+	 */
+	Comparator<CmisObject> comparator() {
+		final List<SortSpec> orderBys = query.getQueryObject().getOrderBys();
+		return new Comparator<CmisObject>() {
+			@Override
+			public int compare(CmisObject o1, CmisObject o2) {
+				for (SortSpec sort : orderBys) {
+					String propertyId = getPropertyId(sort.getSelector());
+					int c = compareForOrder(value(o1, propertyId),
+							value(o2, propertyId));
+					if (c != 0)
+						return sort.isAscending() ? c : -c;
+				}
+				return o1.getId().compareTo(o2.getId());
+			}
+		};
+	}
+
+	/**
+	 * The value of a queryable property of an object, <code>null</code> if
+	 * it is not stored.
+	 */
+	static Object value(CmisObject data, String propertyId) {
+		if (PropertyIds.OBJECT_ID.equals(propertyId))
+			return data.getId();
+		if (PropertyIds.OBJECT_TYPE_ID.equals(propertyId))
+			return data.getType();
+		if (PropertyIds.NAME.equals(propertyId))
+			return data.getName();
+		if (PropertyIds.PARENT_ID.equals(propertyId))
+			return data.getParentId();
+		if (PropertyIds.CREATED_BY.equals(propertyId))
+			return data.getCreatedBy();
+		if (PropertyIds.LAST_MODIFIED_BY.equals(propertyId))
+			return data.getLastModifiedBy();
+		if (PropertyIds.CREATION_DATE.equals(propertyId))
+			return millis(data.getCreationDate());
+		if (PropertyIds.LAST_MODIFICATION_DATE.equals(propertyId))
+			return millis(data.getLastModificationDate());
+		// the content is only stored for the documents
+		if (data.isDirectory())
+			return null;
+		if (PropertyIds.CONTENT_STREAM_MIME_TYPE.equals(propertyId))
+			return data.getContentType();
+		if (PropertyIds.CONTENT_STREAM_FILE_NAME.equals(propertyId))
+			return data.getFileName();
+		if (PropertyIds.CONTENT_STREAM_LENGTH.equals(propertyId))
+			return Long.valueOf(data.getContentLength());
+		return null;
+	}
+
+	// --- predicates ---
+
+	@Override
+	public Boolean walkNot(Tree opNode, Tree node) {
+		return !walkPredicate(node).booleanValue();
+	}
+
+	@Override
+	public Boolean walkAnd(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkPredicate(leftNode).booleanValue()
+				&& walkPredicate(rightNode).booleanValue();
+	}
+
+	@Override
+	public Boolean walkOr(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkPredicate(leftNode).booleanValue()
+				|| walkPredicate(rightNode).booleanValue();
+	}
+
+	@Override
+	public Boolean walkEquals(Tree opNode, Tree leftNode, Tree rightNode) {
+		Integer c = compare(walkExpr(leftNode), walkExpr(rightNode));
+		return c != null && c.intValue() == 0;
+	}
+
+	@Override
+	public Boolean walkNotEquals(Tree opNode, Tree leftNode, Tree rightNode) {
+		Integer c = compare(walkExpr(leftNode), walkExpr(rightNode));
+		return c != null && c.intValue() != 0;
+	}
+
+	@Override
+	public Boolean walkGreaterThan(Tree opNode, Tree leftNode, Tree rightNode) {
+		Integer c = compare(walkExpr(leftNode), walkExpr(rightNode));
+		return c != null && c.intValue() > 0;
+	}
+
+	@Override
+	public Boolean walkGreaterOrEquals(Tree opNode, Tree leftNode,
+			Tree rightNode) {
+		Integer c = compare(walkExpr(leftNode), walkExpr(rightNode));
+		return c != null && c.intValue() >= 0;
+	}
+
+	@Override
+	public Boolean walkLessThan(Tree opNode, Tree leftNode, Tree rightNode) {
+		Integer c = compare(walkExpr(leftNode), walkExpr(rightNode));
+		return c != null && c.intValue() < 0;
+	}
+
+	@Override
+	public Boolean walkLessOrEquals(Tree opNode, Tree leftNode, Tree rightNode) {
+		Integer c = compare(walkExpr(leftNode), walkExpr(rightNode));
+		return c != null && c.intValue() <= 0;
+	}
+
+	@Override
+	public Boolean walkIn(Tree opNode, Tree colNode, Tree listNode) {
+		Object value = walkExpr(colNode);
+		for (Object item : walkList(listNode)) {
+			Integer c = compare(value, item);
+			if (c != null && c.intValue() == 0)
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Boolean walkNotIn(Tree opNode, Tree colNode, Tree listNode) {
+		return walkExpr(colNode) != null
+				&& !walkIn(opNode, colNode, listNode).booleanValue();
+	}
+
+	@Override
+	public Boolean walkLike(Tree opNode, Tree colNode, Tree stringNode) {
+		Object value = walkExpr(colNode);
+		return value instanceof String
+				&& like(walkString(stringNode)).matcher(value.toString())
+						.matches();
+	}
+
+	@Override
+	public Boolean walkNotLike(Tree opNode, Tree colNode, Tree stringNode) {
+		return walkExpr(colNode) instanceof String
+				&& !walkLike(opNode, colNode, stringNode).booleanValue();
+	}
+
+	@Override
+	public Boolean walkIsNull(Tree opNode, Tree colNode) {
+		return walkExpr(colNode) == null;
+	}
+
+	@Override
+	public Boolean walkIsNotNull(Tree opNode, Tree colNode) {
+		return walkExpr(colNode) != null;
+	}
+
+	@Override
+	public Boolean walkInFolder(Tree opNode, Tree qualNode, Tree paramNode) {
+		return walkExpr(paramNode).equals(current.getParentId());
+	}
+
+	@Override
+	public Boolean walkInTree(Tree opNode, Tree qualNode, Tree paramNode) {
+		String folderId = walkString(paramNode);
+		if (CouchbaseRepository.ROOT_ID.equals(folderId)) {
+			// everything is below the root
+			return !current.isRoot();
+		}
+		return current.getParentId() != null
+				&& getTree(folderId).contains(current.getParentId());
+	}
+
+	@Override
+	public Boolean walkInAny(Tree opNode, Tree colNode, Tree listNode) {
+		throw new CmisInvalidArgumentException(
+				"ANY is not supported : no multi-valued property can be queried");
+	}
+
+	@Override
+	public Boolean walkNotInAny(Tree opNode, Tree colNode, Tree listNode) {
+		return walkInAny(opNode, colNode, listNode);
+	}
+
+	@Override
+	public Boolean walkEqAny(Tree opNode, Tree literalNode, Tree colNode) {
+		return walkInAny(opNode, colNode, literalNode);
+	}
+
+	@Override
+	public Boolean walkContains(Tree opNode, Tree qualNode, Tree queryNode) {
+		throw new CmisInvalidArgumentException(
+				"CONTAINS is not supported : only metadata can be queried");
+	}
+
+	// --- expressions ---
+
+	@Override
+	public Object walkCol(Tree node) {
+		return value(current, getPropertyId(query.getQueryObject()
+				.getColumnReference(node.getTokenStartIndex())));
+	}
+
+	@Override
+	public String walkString(Tree node) {
+		return String.valueOf(super.walkString(node));
+	}
+
+	@Override
+	public List<Object> walkList(Tree node) {
+		List<Object> values = new ArrayList<Object>(node.getChildCount());
+		for (int i = 0; i < node.getChildCount(); i++)
+			values.add(walkExpr(node.getChild(i)));
+		return values;
+	}
+
+	@Override
+	public Object walkTimestamp(Tree node) {
+		// dates are compared as milliseconds
+		String text = node.getText();
+		return millis(CalendarHelper.fromString(text.substring(
+				text.indexOf('\'') + 1, text.length() - 1)));
+	}
+
+	// --- helpers ---
+
+	private Set<String> getTree(String folderId) {
+		Set<String> tree = trees.get(folderId);
+		if (tree != null)
+			return tree;
+		try {
+			CmisObject folder = store.getCmisObject(folderId);
+			if (!folder.isDirectory()) {
+				throw new CmisInvalidArgumentException("Not a folder in IN_TREE : "
+						+ folderId);
+			}
+			tree = new HashSet<String>(store.getFolderTreeIds(folderId));
+		} catch (CouchbaseException e) {
+			throw new CmisInvalidArgumentException("Unknown folder in IN_TREE : "
+					+ folderId);
+		}
+		trees.put(folderId, tree);
+		return tree;
+	}
+
+	private static String getPropertyId(CmisSelector selector) {
+		if (!(selector instanceof ColumnReference)) {
+			throw new CmisInvalidArgumentException("Unexpected expression : "
+					+ selector);
+		}
+		return ((ColumnReference) selector).getPropertyId();
+	}
+
+	/**
+	 * Compares two values of the same kind, <code>null</code> if they cannot
+	 * be compared.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Integer compare(Object v1, Object v2) {
+		if (v1 == null || v2 == null)
+			return null;
+		if (v1 instanceof Number && v2 instanceof Number) {
+			if (v1 instanceof Long && v2 instanceof Long)
+				return ((Long) v1).compareTo((Long) v2);
+			return Double.compare(((Number) v1).doubleValue(),
+					((Number) v2).doubleValue());
+		}
+		if (v1.getClass() != v2.getClass() || !(v1 instanceof Comparable))
+			return null;
+		return ((Comparable) v1).compareTo(v2);
+	}
+
+	/**
+	 * Orders the values as N1QL does : missing values first.
+	 */
+	private static int compareForOrder(Object v1, Object v2) {
+		if (v1 == null)
+			return v2 == null ? 0 : -1;
+		if (v2 == null)
+			return 1;
+		Integer c = compare(v1, v2);
+		return c == null ? 0 : c.intValue();
+	}
+
+	private static Long millis(GregorianCalendar cal) {
+		return cal == null ? null : Long.valueOf(cal.getTimeInMillis());
+	}
+
+	/**
+	 * The regular expression of a LIKE pattern.
+	 */
+	private static Pattern like(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '%' || c == '_') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '%' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0)
+			regex.append(Pattern.quote(literal.toString()));
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+}
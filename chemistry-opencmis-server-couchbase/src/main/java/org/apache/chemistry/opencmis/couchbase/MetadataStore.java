@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.List;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+
+/**
+ * Store of the metadata of the folders and documents of a repository : what
+ * the {@link CouchbaseRepository} needs from {@link CouchbaseService}.
+ *
+ * Implementations must keep the semantics of the Couchbase store :
+ * <ul>
+ * <li>a name is unique within a folder, whatever the concurrent writers</li>
+ * <li>updates of an object are applied to its current version (CAS), never
+ * to a stale copy</li>
+ * <li>a missing object is reported with a {@link CouchbaseException}</li>
+ * <li>several objects are read at once by {@link #getCmisObjects(List)}, in
+ * the order of their ids, the missing ones being skipped</li>
+ * </ul>
+ *
+ * @see InMemoryMetadataStore
+ */
+public interface MetadataStore {
+
+	/**
+	 * The name of the keyspace queried by the translated statements.
+	 */
+	String getBucketName();
+
+	/**
+	 * Returns the non blocking view of this store.
+	 */
+	AsyncMetadataStore async();
+
+	void close();
+
+	CmisObject getCmisObject(String objectId) throws CouchbaseException;
+
+	/**
+	 * Fetches several objects at once.
+	 *
+	 * @return the objects in the same order as <code>objectIds</code>, ids
+	 *         that are not stored being skipped
+	 */
+	List<CmisObject> getCmisObjects(List<String> objectIds)
+			throws CouchbaseException;
+
+	CmisObject getCmisObjectByPath(String path) throws CouchbaseException;
+
+	/**
+	 * Returns the path of an object, "/" for the root.
+	 */
+	String getPath(CmisObject data) throws CouchbaseException;
+
+	/**
+	 * Tells if a folder is the given object or one of its descendants.
+	 */
+	boolean isInTree(CmisObject folder, String ancestorId)
+			throws CouchbaseException;
+
+	/**
+	 * Returns the ids of a folder and of all the folders below it.
+	 */
+	List<String> getFolderTreeIds(String folderId) throws CouchbaseException;
+
+	CmisObject createFolder(CmisObject parentData, String foldername,
+			String username) throws CouchbaseException;
+
+	CmisObject createDocument(CmisObject parentData, String documentname,
+			String username, ContentStream contentStream)
+			throws CouchbaseException;
+
+	boolean deleteProperties(CmisObject data, String username)
+			throws CouchbaseException;
+
+	/**
+	 * @return <code>false</code> if the target folder has a child with the
+	 *         same name already
+	 */
+	boolean moveObject(CmisObject data, CmisObject targetData, String username)
+			throws CouchbaseException;
+
+	/**
+	 * @return <code>false</code> if the parent folder has a child with the
+	 *         new name already
+	 */
+	boolean renameObject(CmisObject data, String newName, String username)
+			throws CouchbaseException;
+
+	/**
+	 * Detaches a folder from its parent before its tree is deleted : the
+	 * folder is neither listed nor reachable by path any more. The folder is
+	 * recorded as being deleted until {@link #forgetDeletedTree(String)}, so
+	 * that a deletion interrupted by a restart can be resumed. Detaching a
+	 * folder again does no harm.
+	 */
+	void detachTree(CmisObject folder, String username)
+			throws CouchbaseException;
+
+	/**
+	 * Returns the ids of the folders whose tree is being deleted.
+	 */
+	List<String> getDeletedTrees() throws CouchbaseException;
+
+	/**
+	 * Takes over the deletion of a tree, unless another running server is
+	 * deleting it.
+	 *
+	 * @return <code>false</code> if the deletion is run by another server, or
+	 *         if the tree is not being deleted any more
+	 */
+	boolean claimDeletedTree(String folderId) throws CouchbaseException;
+
+	/**
+	 * Gives up the deletion of a tree which could not be completed, so that
+	 * another server can resume it.
+	 */
+	void releaseDeletedTree(String folderId) throws CouchbaseException;
+
+	void forgetDeletedTree(String folderId) throws CouchbaseException;
+
+	/**
+	 * Removes objects of a detached tree along with their names and, for the
+	 * folders, their children. The index of their parent is not updated : the
+	 * parents are removed after them.
+	 *
+	 * @return the ids of the objects which could not be removed
+	 */
+	List<String> removeTreeObjects(List<CmisObject> objects);
+
+	long getChildrenCount(String folderId);
+
+	/**
+	 * Returns the ids of a page of children of a folder, in the order they
+	 * were added.
+	 */
+	List<String> getChildrenIds(String folderId, int skip, int max);
+
+	List<CmisObject> query(MetadataQuery query) throws CouchbaseException;
+
+	/**
+	 * Returns the changes of the objects from a token on, in the order they
+	 * were made. Each creation, move, rename or deletion of an object is
+	 * logged, the updates of a folder by its children are not.
+	 *
+	 * @param first
+	 *            the token of the first change returned
+	 * @param max
+	 *            the largest number of changes returned
+	 */
+	List<ChangeEvent> getChanges(long first, int max) throws CouchbaseException;
+
+	/**
+	 * Returns the token of the last change, 0 if nothing was changed yet.
+	 */
+	long getLatestChangeToken() throws CouchbaseException;
+}
@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.server.support.wrapper.CmisServiceMetrics;
+import org.apache.chemistry.opencmis.server.support.wrapper.CmisServiceMetrics.Span;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+
+/**
+ * {@link MetadataStore} which attributes the time spent in another store to
+ * the CMIS operation being served, as a span of its
+ * {@link CmisServiceMetrics} : the queries as {@link #N1QL}, the other calls
+ * as {@link #KV}. A call of the non blocking view is timed from its
+ * subscription to its end.
+ */
+public class MeteredMetadataStore implements MetadataStore {
+
+	static final String KV = "couchbase.kv";
+	static final String N1QL = "couchbase.n1ql";
+
+	private final MetadataStore store;
+	private final AsyncMetadataStore async;
+
+	public MeteredMetadataStore(MetadataStore store) {
+		this.store = store;
+		this.async = new Async(store.async());
+	}
+
+	/**
+	 * Returns the store being timed.
+	 */
+	public MetadataStore getStore() {
+		return store;
+	}
+
+	@Override
+	public String getBucketName() {
+		return store.getBucketName();
+	}
+
+	@Override
+	public AsyncMetadataStore async() {
+		return async;
+	}
+
+	@Override
+	public void close() {
+		store.close();
+	}
+
+	@Override
+	public CmisObject getCmisObject(String objectId) throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getCmisObject(objectId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<CmisObject> getCmisObjects(List<String> objectIds)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getCmisObjects(objectIds);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public CmisObject getCmisObjectByPath(String path)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getCmisObjectByPath(path);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public String getPath(CmisObject data) throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getPath(data);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean isInTree(CmisObject folder, String ancestorId)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.isInTree(folder, ancestorId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<String> getFolderTreeIds(String folderId)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getFolderTreeIds(folderId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public CmisObject createFolder(CmisObject parentData, String foldername,
+			String username) throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.createFolder(parentData, foldername, username);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public CmisObject createDocument(CmisObject parentData,
+			String documentname, String username, ContentStream contentStream)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.createDocument(parentData, documentname, username,
+					contentStream);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean deleteProperties(CmisObject data, String username)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.deleteProperties(data, username);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean moveObject(CmisObject data, CmisObject targetData,
+			String username) throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.moveObject(data, targetData, username);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean renameObject(CmisObject data, String newName,
+			String username) throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.renameObject(data, newName, username);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void detachTree(CmisObject folder, String username)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			store.detachTree(folder, username);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<String> getDeletedTrees() throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getDeletedTrees();
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean claimDeletedTree(String folderId) throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.claimDeletedTree(folderId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void releaseDeletedTree(String folderId) throws CouchbaseException {
+		store.releaseDeletedTree(folderId);
+	}
+
+	@Override
+	public void forgetDeletedTree(String folderId) throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			store.forgetDeletedTree(folderId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<String> removeTreeObjects(List<CmisObject> objects) {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.removeTreeObjects(objects);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public long getChildrenCount(String folderId) {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getChildrenCount(folderId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<String> getChildrenIds(String folderId, int skip, int max) {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getChildrenIds(folderId, skip, max);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<CmisObject> query(MetadataQuery query)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(N1QL);
+		try {
+			return store.query(query);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public List<ChangeEvent> getChanges(long first, int max)
+			throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getChanges(first, max);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public long getLatestChangeToken() throws CouchbaseException {
+		Span span = CmisServiceMetrics.startSpan(KV);
+		try {
+			return store.getLatestChangeToken();
+		} finally {
+			span.end();
+		}
+	}
+
+	/**
+	 * Times an Observable from its subscription, in the thread subscribing,
+	 * to its end or to its unsubscription, whichever comes first.
+	 */
+	static <T> Observable<T> timed(final Observable<T> observable,
+			final String name) {
+		return Observable.defer(new Func0<Observable<T>>() {
+			@Override
+			public Observable<T> call() {
+				final Span span = CmisServiceMetrics.startSpan(name);
+				final AtomicBoolean ended = new AtomicBoolean();
+				Action0 end = new Action0() {
+					@Override
+					public void call() {
+						if (ended.compareAndSet(false, true))
+							span.end();
+					}
+				};
+				return observable.doOnTerminate(end).doOnUnsubscribe(end);
+			}
+		});
+	}
+
+	private static class Async implements AsyncMetadataStore {
+
+		private final AsyncMetadataStore async;
+
+		Async(AsyncMetadataStore async) {
+			this.async = async;
+		}
+
+		@Override
+		public Observable<CmisObject> getCmisObject(String objectId) {
+			return timed(async.getCmisObject(objectId), KV);
+		}
+
+		@Override
+		public Observable<CmisObject> getCmisObjects(List<String> objectIds) {
+			return timed(async.getCmisObjects(objectIds), KV);
+		}
+
+		@Override
+		public Observable<Boolean> exists(String objectId) {
+			return timed(async.exists(objectId), KV);
+		}
+
+		@Override
+		public Observable<Boolean> hasChild(String folderId, String name) {
+			return timed(async.hasChild(folderId, name), KV);
+		}
+
+		@Override
+		public Observable<Long> getChildrenCount(String folderId) {
+			return timed(async.getChildrenCount(folderId), KV);
+		}
+
+		@Override
+		public Observable<CmisObject> getChildren(String folderId) {
+			return timed(async.getChildren(folderId), KV);
+		}
+
+		@Override
+		public Observable<CmisObject> query(MetadataQuery query) {
+			return timed(async.query(query), N1QL);
+		}
+
+		@Override
+		public Observable<Long> count(MetadataQuery query) {
+			return timed(async.count(query), N1QL);
+		}
+	}
+}
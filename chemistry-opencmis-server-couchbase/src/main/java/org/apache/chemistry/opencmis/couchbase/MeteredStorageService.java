@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.math.BigInteger;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.server.support.wrapper.CmisServiceMetrics;
+import org.apache.chemistry.opencmis.server.support.wrapper.CmisServiceMetrics.Span;
+
+/**
+ * {@link StorageService} which attributes the time spent in another storage
+ * to the CMIS operation being served, as a span
+ * <code>storage.&lt;storage id&gt;</code> of its {@link CmisServiceMetrics}.
+ * A content read is timed until its stream is opened : the transfer itself
+ * is done by the binding once the operation has returned.
+ */
+public class MeteredStorageService implements StorageService {
+
+	static final String PREFIX = "storage.";
+
+	private final StorageService storage;
+	private final String span;
+
+	public MeteredStorageService(StorageService storage) {
+		this.storage = storage;
+		this.span = PREFIX + storage.getStorageId();
+	}
+
+	/**
+	 * Returns the storage being timed.
+	 */
+	public StorageService getStorage() {
+		return storage;
+	}
+
+	@Override
+	public String getStorageId() {
+		return storage.getStorageId();
+	}
+
+	@Override
+	public void close() {
+		storage.close();
+	}
+
+	@Override
+	public void writeContent(String dataId, ContentStream contentStream)
+			throws StorageException {
+		Span span = CmisServiceMetrics.startSpan(this.span);
+		try {
+			storage.writeContent(dataId, contentStream);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean deleteContent(String dataId) {
+		Span span = CmisServiceMetrics.startSpan(this.span);
+		try {
+			return storage.deleteContent(dataId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public ContentStream getContent(String dataId, BigInteger offset,
+			BigInteger length, String filename) throws StorageException {
+		Span span = CmisServiceMetrics.startSpan(this.span);
+		try {
+			return storage.getContent(dataId, offset, length, filename);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public long getLength(String dataId) throws StorageException {
+		Span span = CmisServiceMetrics.startSpan(this.span);
+		try {
+			return storage.getLength(dataId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean exists(String dataId) {
+		Span span = CmisServiceMetrics.startSpan(this.span);
+		try {
+			return storage.exists(dataId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public void moveContent(String dataId, String newDataId)
+			throws StorageException {
+		Span span = CmisServiceMetrics.startSpan(this.span);
+		try {
+			storage.moveContent(dataId, newDataId);
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	public boolean copyContent(String dataId, String newDataId)
+			throws StorageException {
+		Span span = CmisServiceMetrics.startSpan(this.span);
+		try {
+			return storage.copyContent(dataId, newDataId);
+		} finally {
+			span.end();
+		}
+	}
+}
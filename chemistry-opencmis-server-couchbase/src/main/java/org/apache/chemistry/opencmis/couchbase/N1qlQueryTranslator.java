@@ -0,0 +1,396 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.antlr.runtime.tree.Tree;
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.server.support.query.AbstractPredicateWalker;
+import org.apache.chemistry.opencmis.server.support.query.CalendarHelper;
+import org.apache.chemistry.opencmis.server.support.query.CmisQueryWalker;
+import org.apache.chemistry.opencmis.server.support.query.CmisSelector;
+import org.apache.chemistry.opencmis.server.support.query.ColumnReference;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject;
+import org.apache.chemistry.opencmis.server.support.query.QueryObject.SortSpec;
+import org.apache.chemistry.opencmis.server.support.query.QueryUtilStrict;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.client.java.document.json.JsonArray;
+
+/**
+ * Translates a CMIS query into a parameterized N1QL statement.
+ *
+ * The statement is parsed by the server-support query parser, then its WHERE
+ * tree is walked to build the N1QL condition. Every literal becomes a
+ * positional parameter. ORDER BY, skipCount and maxItems are pushed down to
+ * N1QL so that only the requested page is read. The statement selects the
+ * ids of the documents only, which lets the GSI indexes of the
+ * {@link IndexManager} cover it. Only the properties stored
+ * in the documents ({@link CouchbaseTypeManager#QUERYABLE_PROPERTIES}) can be
+ * used.
+ *
+ * A translator is built for one statement and is not thread-safe.
+ */
+public class N1qlQueryTranslator extends AbstractPredicateWalker {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(N1qlQueryTranslator.class);
+
+	static final String ALIAS = "m";
+	static final String ID = "id";
+	static final String COUNT = "count";
+
+	private final CouchbaseTypeManager typeManager;
+	private final String bucketName;
+	private final MetadataStore store;
+
+	private QueryObject queryObj;
+	private StringBuilder where;
+	private JsonArray params;
+
+	/**
+	 * @param typeManager
+	 *            the types of the repository
+	 * @param bucketName
+	 *            the bucket holding the metadata
+	 * @param store
+	 *            the store used to read the folders of IN_TREE
+	 */
+	public N1qlQueryTranslator(CouchbaseTypeManager typeManager,
+			String bucketName, MetadataStore store) {
+		this.typeManager = typeManager;
+		this.bucketName = bucketName;
+		this.store = store;
+	}
+
+	/**
+	 * Translates a CMIS statement.
+	 *
+	 * @param statement
+	 *            the CMIS query
+	 * @param skipCount
+	 *            the number of results to skip
+	 * @param maxItems
+	 *            the number of results wanted, negative for all
+	 * @throws CmisInvalidArgumentException
+	 *             if the statement is not valid or cannot be run on Couchbase
+	 */
+	public MetadataQuery translate(String statement, int skipCount,
+			int maxItems) {
+		debug("translate {}", statement);
+		QueryUtilStrict queryUtil = new QueryUtilStrict(statement,
+				typeManager, null, false);
+		queryUtil.processStatementUsingCmisExceptions();
+		CmisQueryWalker walker = queryUtil.getWalker();
+		queryObj = queryUtil.getQueryObject();
+
+		if (!queryObj.getJoins().isEmpty()
+				|| queryObj.getJoinedSecondaryTypes() != null) {
+			throw new CmisInvalidArgumentException("JOIN is not supported");
+		}
+		if (walker.getNumberOfContainsClauses() > 0) {
+			throw new CmisInvalidArgumentException(
+					"CONTAINS is not supported : only metadata can be queried");
+		}
+
+		where = new StringBuilder();
+		params = JsonArray.empty();
+
+		// type of the objects
+		TypeDefinition mainType = queryObj.getMainFromName();
+		List<String> typeIds = typeManager.getTypeIdsWithSubtypes(mainType
+				.getId());
+		where.append(field(PropertyIds.OBJECT_TYPE_ID)).append(" IN ")
+				.append(param(JsonArray.from(new ArrayList<Object>(typeIds))));
+
+		// conditions
+		Tree whereTree = walker.getWherePredicateTree();
+		if (whereTree != null) {
+			where.append(" AND (");
+			walkPredicate(whereTree);
+			where.append(')');
+		}
+
+		StringBuilder n1ql = new StringBuilder();
+		// only the ids, so that an index can cover the query
+		n1ql.append("SELECT META(").append(ALIAS).append(").id AS ")
+				.append(ID).append(" FROM `")
+				.append(bucketName).append("` ").append(ALIAS)
+				.append(" WHERE ").append(where);
+
+		// order, the id keeps the pages stable
+		n1ql.append(" ORDER BY ");
+		for (SortSpec sort : queryObj.getOrderBys()) {
+			n1ql.append(field(getPropertyId(sort.getSelector())))
+					.append(sort.isAscending() ? " ASC, " : " DESC, ");
+		}
+		n1ql.append("META(").append(ALIAS).append(").id");
+
+		// page, with one more row to know if there are more items
+		if (maxItems >= 0) {
+			n1ql.append(" LIMIT ").append(maxItems + 1);
+		}
+		if (skipCount > 0) {
+			n1ql.append(" OFFSET ").append(skipCount);
+		}
+
+		String count = "SELECT COUNT(*) AS " + COUNT + " FROM `" + bucketName
+				+ "` " + ALIAS + " WHERE " + where;
+
+		MetadataQuery query = new MetadataQuery(n1ql.toString(), count,
+				params, queryObj, whereTree, typeIds, getFilter(), skipCount,
+				maxItems);
+		debug("translated to {}", query);
+		return query;
+	}
+
+	// --- predicates ---
+
+	@Override
+	public Boolean walkNot(Tree opNode, Tree node) {
+		where.append("NOT (");
+		walkPredicate(node);
+		where.append(')');
+		return false;
+	}
+
+	@Override
+	public Boolean walkAnd(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkBinary(leftNode, " AND ", rightNode);
+	}
+
+	@Override
+	public Boolean walkOr(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkBinary(leftNode, " OR ", rightNode);
+	}
+
+	@Override
+	public Boolean walkEquals(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkComparison(leftNode, " = ", rightNode);
+	}
+
+	@Override
+	public Boolean walkNotEquals(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkComparison(leftNode, " != ", rightNode);
+	}
+
+	@Override
+	public Boolean walkGreaterThan(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkComparison(leftNode, " > ", rightNode);
+	}
+
+	@Override
+	public Boolean walkGreaterOrEquals(Tree opNode, Tree leftNode,
+			Tree rightNode) {
+		return walkComparison(leftNode, " >= ", rightNode);
+	}
+
+	@Override
+	public Boolean walkLessThan(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkComparison(leftNode, " < ", rightNode);
+	}
+
+	@Override
+	public Boolean walkLessOrEquals(Tree opNode, Tree leftNode, Tree rightNode) {
+		return walkComparison(leftNode, " <= ", rightNode);
+	}
+
+	@Override
+	public Boolean walkIn(Tree opNode, Tree colNode, Tree listNode) {
+		return walkComparison(colNode, " IN ", listNode);
+	}
+
+	@Override
+	public Boolean walkNotIn(Tree opNode, Tree colNode, Tree listNode) {
+		return walkComparison(colNode, " NOT IN ", listNode);
+	}
+
+	@Override
+	public Boolean walkLike(Tree opNode, Tree colNode, Tree stringNode) {
+		return walkComparison(colNode, " LIKE ", stringNode);
+	}
+
+	@Override
+	public Boolean walkNotLike(Tree opNode, Tree colNode, Tree stringNode) {
+		return walkComparison(colNode, " NOT LIKE ", stringNode);
+	}
+
+	@Override
+	public Boolean walkIsNull(Tree opNode, Tree colNode) {
+		String field = column(colNode);
+		where.append('(').append(field).append(" IS MISSING OR ")
+				.append(field).append(" IS NULL)");
+		return false;
+	}
+
+	@Override
+	public Boolean walkIsNotNull(Tree opNode, Tree colNode) {
+		String field = column(colNode);
+		where.append('(').append(field).append(" IS NOT MISSING AND ")
+				.append(field).append(" IS NOT NULL)");
+		return false;
+	}
+
+	@Override
+	public Boolean walkInFolder(Tree opNode, Tree qualNode, Tree paramNode) {
+		where.append(field(PropertyIds.PARENT_ID)).append(" = ")
+				.append(param(walkExpr(paramNode)));
+		return false;
+	}
+
+	@Override
+	public Boolean walkInTree(Tree opNode, Tree qualNode, Tree paramNode) {
+		String folderId = walkString(paramNode);
+		if (CouchbaseRepository.ROOT_ID.equals(folderId)) {
+			// everything is below the root
+			where.append("META(").append(ALIAS).append(").id != ")
+					.append(param(folderId));
+			return false;
+		}
+
+		CmisObject folder;
+		List<String> folderIds;
+		try {
+			folder = store.getCmisObject(folderId);
+			if (!folder.isDirectory()) {
+				throw new CmisInvalidArgumentException("Not a folder in IN_TREE : "
+						+ folderId);
+			}
+			// paths are not stored : the objects of the tree are the children
+			// of the folder and of its sub folders
+			folderIds = store.getFolderTreeIds(folderId);
+		} catch (CouchbaseException e) {
+			throw new CmisInvalidArgumentException("Unknown folder in IN_TREE : "
+					+ folderId);
+		}
+		where.append(field(PropertyIds.PARENT_ID)).append(" IN ")
+				.append(param(folderIds));
+		return false;
+	}
+
+	@Override
+	public Boolean walkInAny(Tree opNode, Tree colNode, Tree listNode) {
+		throw new CmisInvalidArgumentException(
+				"ANY is not supported : no multi-valued property can be queried");
+	}
+
+	@Override
+	public Boolean walkNotInAny(Tree opNode, Tree colNode, Tree listNode) {
+		return walkInAny(opNode, colNode, listNode);
+	}
+
+	@Override
+	public Boolean walkEqAny(Tree opNode, Tree literalNode, Tree colNode) {
+		return walkInAny(opNode, colNode, literalNode);
+	}
+
+	@Override
+	public Boolean walkContains(Tree opNode, Tree qualNode, Tree queryNode) {
+		throw new CmisInvalidArgumentException(
+				"CONTAINS is not supported : only metadata can be queried");
+	}
+
+	@Override
+	public String walkString(Tree node) {
+		return String.valueOf(super.walkString(node));
+	}
+
+	@Override
+	public Object walkTimestamp(Tree node) {
+		// dates are stored as milliseconds
+		String text = node.getText();
+		return Long.valueOf(CalendarHelper.fromString(
+				text.substring(text.indexOf('\'') + 1, text.length() - 1))
+				.getTimeInMillis());
+	}
+
+	// --- helpers ---
+
+	private Boolean walkBinary(Tree leftNode, String op, Tree rightNode) {
+		where.append('(');
+		walkPredicate(leftNode);
+		where.append(op);
+		walkPredicate(rightNode);
+		where.append(')');
+		return false;
+	}
+
+	private Boolean walkComparison(Tree colNode, String op, Tree valueNode) {
+		where.append(column(colNode)).append(op)
+				.append(param(walkExpr(valueNode)));
+		return false;
+	}
+
+	private String column(Tree colNode) {
+		CmisSelector selector = queryObj.getColumnReference(colNode
+				.getTokenStartIndex());
+		return field(getPropertyId(selector));
+	}
+
+	private String getPropertyId(CmisSelector selector) {
+		if (!(selector instanceof ColumnReference)) {
+			throw new CmisInvalidArgumentException("Unexpected expression : "
+					+ selector);
+		}
+		String propertyId = ((ColumnReference) selector).getPropertyId();
+		if (!CouchbaseTypeManager.QUERYABLE_PROPERTIES.contains(propertyId)) {
+			throw new CmisInvalidArgumentException("Property " + propertyId
+					+ " cannot be queried");
+		}
+		return propertyId;
+	}
+
+	private String field(String propertyId) {
+		return ALIAS + ".`" + propertyId + "`";
+	}
+
+	@SuppressWarnings("unchecked")
+	private String param(Object value) {
+		if (value instanceof List) {
+			value = JsonArray.from((List<Object>) value);
+		}
+		params.add(value);
+		return "$" + params.size();
+	}
+
+	/**
+	 * The properties in the SELECT clause, <code>null</code> for *.
+	 */
+	private Set<String> getFilter() {
+		Set<String> filter = new HashSet<String>();
+		for (String propertyId : queryObj.getRequestedPropertiesByAlias()
+				.values()) {
+			if ("*".equals(propertyId)) {
+				return null;
+			}
+			filter.add(propertyId);
+		}
+		return filter;
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+}
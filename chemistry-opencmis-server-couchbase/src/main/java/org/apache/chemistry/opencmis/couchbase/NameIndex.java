@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+
+/**
+ * Name of each object within its folder.
+ *
+ * The ids of the objects do not depend on their path any more, so a lookup
+ * document <code>parentId::name::name</code> gives the id of the child
+ * called <code>name</code>. The lookup document is inserted before the
+ * object is created : only one writer can take a name in a folder. A path is
+ * resolved one segment after the other from the root, the segments being
+ * kept in a {@link PathSegmentCache}.
+ */
+class NameIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NameIndex.class);
+
+	static final String CHILD_ID = "cb:childId";
+
+	private static final String NAME_PREFIX = "::name::";
+	/** Longest key accepted by Couchbase, in bytes. */
+	private static final int MAX_KEY_LENGTH = 250;
+
+	private final Bucket bucket;
+	private PathSegmentCache cache = new PathSegmentCache(
+			PathSegmentCache.DEFAULT_SIZE, PathSegmentCache.DEFAULT_TTL);
+
+	NameIndex(Bucket bucket) {
+		this.bucket = bucket;
+	}
+
+	void setCache(PathSegmentCache cache) {
+		this.cache = cache;
+	}
+
+	PathSegmentCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Key of the lookup document of a name. Names too long for a key are
+	 * replaced by their digest.
+	 */
+	static String nameId(String folderId, String name) {
+		String key = folderId + NAME_PREFIX + name;
+		try {
+			if (key.getBytes("UTF-8").length <= MAX_KEY_LENGTH)
+				return key;
+			return folderId + NAME_PREFIX + "#" + digest(name);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Takes a name in a folder for a child.
+	 *
+	 * @return <code>false</code> if another child has this name already
+	 */
+	boolean reserve(String folderId, String name, String childId) {
+		debug("reserve {} in {} for {}", name, folderId, childId);
+		try {
+			bucket.insert(JsonDocument.create(nameId(folderId, name),
+					content(folderId, name, childId)));
+			cache.put(folderId, name, childId);
+			return true;
+		} catch (DocumentAlreadyExistsException e) {
+			debug("name already taken : {} in {}", name, folderId);
+			return false;
+		}
+	}
+
+	/**
+	 * Records the name of a child, whether it was taken or not. Used by the
+	 * migration, which can be run again.
+	 */
+	void put(String folderId, String name, String childId) {
+		bucket.upsert(JsonDocument.create(nameId(folderId, name),
+				content(folderId, name, childId)));
+		cache.put(folderId, name, childId);
+	}
+
+	/**
+	 * Returns the id of the child with this name, <code>null</code> if there
+	 * is none. The cache is read first.
+	 */
+	String lookup(String folderId, String name) {
+		String childId = cache.get(folderId, name);
+		if (childId != null)
+			return childId;
+		childId = read(folderId, name);
+		cache.put(folderId, name, childId);
+		return childId;
+	}
+
+	/**
+	 * Returns the id of the child with this name as stored, without reading
+	 * the cache.
+	 */
+	String read(String folderId, String name) {
+		JsonDocument doc = bucket.get(nameId(folderId, name));
+		return doc == null ? null : doc.content().getString(CHILD_ID);
+	}
+
+	/**
+	 * Forgets a cached segment which turned out to be stale.
+	 */
+	void invalidate(String folderId, String name) {
+		cache.invalidate(folderId, name);
+	}
+
+	/**
+	 * Frees the name of a child.
+	 */
+	void release(String folderId, String name) {
+		debug("release {} in {}", name, folderId);
+		cache.invalidate(folderId, name);
+		try {
+			bucket.remove(nameId(folderId, name));
+		} catch (Exception e) {
+			debug("name not found : {} in {}", name, folderId);
+		}
+	}
+
+	private static JsonObject content(String folderId, String name,
+			String childId) {
+		return JsonObject.empty().put(ChildIndex.FOLDER_ID, folderId)
+				.put(PropertyIds.NAME, name).put(CHILD_ID, childId);
+	}
+
+	private static String digest(String name)
+			throws UnsupportedEncodingException {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+					name.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : hash) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+
+	private void debug(String format, Object... args) {
+		Tracing.debug(LOG, format, args);
+	}
+}
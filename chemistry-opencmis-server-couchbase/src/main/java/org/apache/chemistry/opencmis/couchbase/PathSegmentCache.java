@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process cache of the path segments resolved by the
+ * {@link NameIndex} : the id of the child of a folder with a given name.
+ *
+ * The least recently used entries are evicted once <code>maxSize</code> is
+ * reached and an entry is not served anymore after <code>ttl</code>
+ * milliseconds. The names taken and freed by this process update the cache
+ * at once; a change made by another process is seen after at most
+ * <code>ttl</code>, and {@link CouchbaseService#getCmisObjectByPath(String)}
+ * reads the segments again when the object found does not match the path.
+ */
+public class PathSegmentCache {
+
+	public static final int DEFAULT_SIZE = 10000;
+	public static final long DEFAULT_TTL = 5000;
+
+	private final int maxSize;
+	private final long ttl;
+	private final Map<String, CacheEntry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	private static class CacheEntry {
+		final String childId;
+		final long expires;
+
+		CacheEntry(String childId, long expires) {
+			this.childId = childId;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of segments kept, 0 disables the cache
+	 * @param ttl
+	 *            the time a segment is kept, in milliseconds
+	 */
+	public PathSegmentCache(final int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Returns the id of the child of a folder with this name, or
+	 * <code>null</code> if it is not cached or has expired.
+	 */
+	public String get(String folderId, String name) {
+		if (!isEnabled())
+			return null;
+
+		String key = key(folderId, name);
+		CacheEntry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				entries.remove(key);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.childId;
+	}
+
+	public void put(String folderId, String name, String childId) {
+		if (!isEnabled() || childId == null)
+			return;
+
+		CacheEntry entry = new CacheEntry(childId, System.currentTimeMillis() + ttl);
+		synchronized (entries) {
+			entries.put(key(folderId, name), entry);
+		}
+	}
+
+	public void invalidate(String folderId, String name) {
+		if (!isEnabled())
+			return;
+
+		synchronized (entries) {
+			entries.remove(key(folderId, name));
+		}
+	}
+
+	private static String key(String folderId, String name) {
+		return folderId + "/" + name;
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** Number of entries removed because the cache was full. */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/** Number of entries removed because they were too old. */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "size:" + size() + "/" + maxSize + " ttl:" + ttl + " hits:"
+				+ getHits() + " misses:" + getMisses() + " evictions:"
+				+ getEvictions() + " expirations:" + getExpirations();
+	}
+}
@@ -18,33 +18,64 @@
  */
 package org.apache.chemistry.opencmis.couchbase;
 
+import java.io.File;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Manages all repositories.
  */
 public class StorageFactory {
 
+	private static final Logger LOG = LoggerFactory
+			.getLogger(StorageFactory.class);
+
 	static final String STORAGE = "storage";
 	static final String PATH = "path";
+	static final String SYNC = "sync";
 	static final String LOCAL = "local";
 	static final String AWS = "aws";
+	static final String CAS = "cas";
+	static final String BACKEND = "backend";
+	static final String TEMP = "temp";
+	static final String CACHE_PATH = "cache.path";
+	static final String CACHE_SIZE = "cache.size";
+	static final String CACHE_MAXENTRY = "cache.maxentry";
 	static final String BUCKET = "bucket";
 	static final String FOLDER = "folder";
+	static final String MULTIPART_THRESHOLD = "multipart.threshold";
+	static final String MULTIPART_PARTSIZE = "multipart.partsize";
+	static final String MULTIPART_THREADS = "multipart.threads";
 
 	
 	static public StorageService createStorageService(Map<String,String> parameters) throws CmisConstraintException{
-		System.out.println("===STORAGE FACTORY===");
-		for(String paramkey : parameters.keySet()){
-			System.out.println("key="+paramkey+" - value="+parameters.get(paramkey));
+		return createStorageService(parameters, null);
+	}
+
+	/**
+	 * Creates a storage service, with the references of the contents to their
+	 * blobs if it is content-addressed.
+	 */
+	static public StorageService createStorageService(Map<String,String> parameters, ContentReferences references) throws CmisConstraintException{
+		if (LOG.isDebugEnabled()) {
+			for (Map.Entry<String, String> param : parameters.entrySet())
+				LOG.debug("storage {} = {}", param.getKey(), param.getValue());
 		}
-		System.out.println("=================");
 		
+		StorageService service = createBackendStorageService(parameters, references);
+		if(parameters.get(CACHE_PATH)!=null) return createCachingStorageService(parameters, service);
+		return service;
+	}
+
+	static private StorageService createBackendStorageService(Map<String,String> parameters, ContentReferences references) throws CmisConstraintException{
 		String storageType = parameters.get(STORAGE);
 		if(LOCAL.equals(storageType)) return createLocalStorageService(parameters);
 		if(AWS.equals(storageType)) return createAWSStorageService(parameters);
+		if(CAS.equals(storageType)) return createContentAddressedStorageService(parameters, references);
 		
 		throw new CmisConstraintException("Storage undefined : type="+storageType);
 	}
@@ -54,7 +85,11 @@ public class StorageFactory {
 		if(! LOCAL.equals(storageType)) return null;
 		String rootpath = parameters.get(PATH);
 		if(rootpath==null) throw new CmisConstraintException("Local storage path is undefined");
-		return new LocalStorageService(rootpath);
+		LocalStorageService service = new LocalStorageService(rootpath);
+		String sync = parameters.get(SYNC);
+		if (sync != null)
+			service.setSync(Boolean.parseBoolean(sync.trim()));
+		return service;
 	}
 	
 	static private StorageService createAWSStorageService(Map<String,String> parameters) throws CmisConstraintException{
@@ -65,7 +100,68 @@ public class StorageFactory {
 		String folder = parameters.get(FOLDER);
 		if(folder==null) throw new CmisConstraintException("AWS folder is undefined");
 		
-		return new AWSStorageService(bucket, folder);
+		AWSStorageService service = new AWSStorageService(bucket, folder);
+		try {
+			// sizes in MB
+			String value = parameters.get(MULTIPART_THRESHOLD);
+			if (value != null)
+				service.setMultipartThreshold(Long.parseLong(value.trim())
+						* AWSStorageService.MB);
+			value = parameters.get(MULTIPART_PARTSIZE);
+			if (value != null)
+				service.setPartSize(Long.parseLong(value.trim())
+						* AWSStorageService.MB);
+			value = parameters.get(MULTIPART_THREADS);
+			if (value != null)
+				service.setMaxConcurrentParts(Integer.parseInt(value.trim()));
+		} catch (IllegalArgumentException e) {
+			throw new CmisConstraintException("Invalid AWS multipart setting : "
+					+ e.getMessage());
+		}
+		service.getInventory().register();
+		return service;
+	}
+
+	/**
+	 * The blobs are stored in the backend storage, configured with the same
+	 * parameters.
+	 */
+	static private StorageService createContentAddressedStorageService(Map<String,String> parameters, ContentReferences references) throws CmisConstraintException{
+		String backendType = parameters.get(BACKEND);
+		if(backendType==null || CAS.equals(backendType)) throw new CmisConstraintException("Content-addressed storage backend is undefined");
+		if(references==null) throw new CmisConstraintException("Content-addressed storage needs the metadata of the repository");
+
+		Map<String,String> backendParameters = new HashMap<String,String>(parameters);
+		backendParameters.remove(BACKEND);
+		backendParameters.put(STORAGE, backendType);
+		ContentAddressedStorageService service = new ContentAddressedStorageService(createBackendStorageService(backendParameters, null), references);
+		String temp = parameters.get(TEMP);
+		if (temp != null)
+			service.setTempDir(new File(temp.trim()));
+		return service;
+	}
+
+	/**
+	 * Caches the contents of a storage in a local directory : sizes in MB.
+	 */
+	static private StorageService createCachingStorageService(Map<String,String> parameters, StorageService backend) throws CmisConstraintException{
+		try {
+			long size = CachingStorageService.DEFAULT_MAX_SIZE;
+			String value = parameters.get(CACHE_SIZE);
+			if (value != null)
+				size = Long.parseLong(value.trim()) * CachingStorageService.MB;
+			CachingStorageService service = new CachingStorageService(backend,
+					new File(parameters.get(CACHE_PATH).trim()), size);
+			value = parameters.get(CACHE_MAXENTRY);
+			if (value != null)
+				service.setMaxEntrySize(Long.parseLong(value.trim())
+						* CachingStorageService.MB);
+			service.register();
+			return service;
+		} catch (IllegalArgumentException e) {
+			throw new CmisConstraintException("Invalid storage cache setting : "
+					+ e.getMessage());
+		}
 	}
 	
 	
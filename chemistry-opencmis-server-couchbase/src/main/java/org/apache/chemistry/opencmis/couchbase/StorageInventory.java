@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Inventory of the contents of an S3 folder, taken on demand.
+ * 
+ * The listing runs in a background thread, one page of keys after the other,
+ * and is never done by the operations on contents. The report keeps the
+ * first {@link #getMaxReportKeys()} keys only, along with the count and the
+ * size of all the objects, so that a large bucket does not fill the memory.
+ */
+public class StorageInventory implements StorageInventoryMBean {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(StorageInventory.class);
+
+	static final int DEFAULT_PAGE_SIZE = 1000;
+	static final int DEFAULT_MAX_REPORT_KEYS = 1000;
+
+	private final AmazonS3 s3client;
+	private final String bucket;
+	private final String prefix;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private int maxReportKeys = DEFAULT_MAX_REPORT_KEYS;
+
+	private Thread listing = null;
+	private ObjectName name = null;
+
+	// the current or last listing
+	private volatile long objectCount = 0;
+	private volatile long totalSize = 0;
+	private List<String> keys = new ArrayList<String>();
+	private String status = "not started";
+
+	public StorageInventory(AmazonS3 s3client, String bucket, String folder) {
+		this.s3client = s3client;
+		this.bucket = bucket;
+		this.prefix = folder.length() > 0 && !folder.endsWith("/") ? folder
+				+ "/" : folder;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public int getMaxReportKeys() {
+		return maxReportKeys;
+	}
+
+	public void setMaxReportKeys(int maxReportKeys) {
+		this.maxReportKeys = maxReportKeys;
+	}
+
+	/**
+	 * Registers this inventory in the platform MBean server.
+	 */
+	public synchronized void register() {
+		try {
+			ObjectName objectName = new ObjectName(
+					"org.apache.chemistry.opencmis.couchbase:type=StorageInventory,bucket="
+							+ ObjectName.quote(bucket) + ",folder="
+							+ ObjectName.quote(prefix));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+				name = objectName;
+			}
+		} catch (JMException e) {
+			LOG.warn("Storage inventory not registered : {}", e.getMessage());
+		}
+	}
+
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			LOG.warn("Storage inventory not unregistered : {}", e.getMessage());
+		}
+		name = null;
+	}
+
+	@Override
+	public synchronized boolean start() {
+		if (isRunning())
+			return false;
+		objectCount = 0;
+		totalSize = 0;
+		keys = new ArrayList<String>();
+		status = "running";
+		listing = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				list();
+			}
+		}, "storage-inventory-" + bucket);
+		listing.setDaemon(true);
+		listing.start();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isRunning() {
+		return listing != null && listing.isAlive();
+	}
+
+	/**
+	 * Waits for the end of the listing.
+	 */
+	public void await() throws InterruptedException {
+		Thread current;
+		synchronized (this) {
+			current = listing;
+		}
+		if (current != null)
+			current.join();
+	}
+
+	@Override
+	public long getObjectCount() {
+		return objectCount;
+	}
+
+	@Override
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	@Override
+	public synchronized String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("s3://").append(bucket).append('/').append(prefix)
+				.append(" : ").append(status).append(", ")
+				.append(objectCount).append(" object(s), ").append(totalSize)
+				.append(" byte(s)\n");
+		for (String key : keys)
+			sb.append(key).append('\n');
+		if (objectCount > keys.size())
+			sb.append("... ").append(objectCount - keys.size())
+					.append(" more\n");
+		return sb.toString();
+	}
+
+	private void list() {
+		long start = System.currentTimeMillis();
+		ListObjectsRequest request = new ListObjectsRequest()
+				.withBucketName(bucket).withPrefix(prefix)
+				.withMaxKeys(pageSize);
+		try {
+			ObjectListing page;
+			do {
+				page = s3client.listObjects(request);
+				for (S3ObjectSummary summary : page.getObjectSummaries())
+					add(summary.getKey().substring(prefix.length()),
+							summary.getSize());
+				request.setMarker(page.getNextMarker());
+			} while (page.isTruncated() && !Thread.interrupted());
+			finish("done in " + (System.currentTimeMillis() - start) + " ms");
+		} catch (AmazonClientException e) {
+			LOG.warn("Storage inventory failed : {}", e.getMessage());
+			finish("failed : " + e.getMessage());
+		}
+	}
+
+	private synchronized void add(String key, long size) {
+		objectCount++;
+		totalSize += size;
+		if (keys.size() < maxReportKeys)
+			keys.add(key + " (" + size + ")");
+	}
+
+	private synchronized void finish(String status) {
+		this.status = status;
+	}
+}
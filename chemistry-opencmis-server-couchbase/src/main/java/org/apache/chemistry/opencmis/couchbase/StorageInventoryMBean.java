@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+/**
+ * JMX view of a {@link StorageInventory}.
+ */
+public interface StorageInventoryMBean {
+
+	/**
+	 * Starts listing the contents in the background.
+	 * 
+	 * @return <code>false</code> if a listing is running already
+	 */
+	boolean start();
+
+	boolean isRunning();
+
+	long getObjectCount();
+
+	long getTotalSize();
+
+	/**
+	 * Returns the report of the last listing : the first keys found and the
+	 * totals.
+	 */
+	String getReport();
+}
@@ -34,6 +34,13 @@ public interface StorageService {
 	public org.apache.chemistry.opencmis.commons.data.ContentStream getContent(
 			String dataId, BigInteger offset, BigInteger length, String filename) throws StorageException;
 
+	/**
+	 * Returns the length of a content, without reading it.
+	 * @param dataId the content identifier
+	 * @return the length in bytes, -1 if the content is not stored
+	 */
+	public long getLength(String dataId) throws StorageException;
+
 	/**
 	 * Tests if a content is already stored.
 	 * @param dataId the content identifier
@@ -41,4 +48,23 @@ public interface StorageService {
 	 */
 	public boolean exists(String dataId);
 
+	/**
+	 * Moves a content to another identifier.
+	 * @param dataId the current content identifier
+	 * @param newDataId the new content identifier
+	 */
+	public void moveContent(String dataId, String newDataId)
+			throws StorageException;
+
+	/**
+	 * Copies a content to another identifier within the storage, without
+	 * reading it through the server.
+	 * @param dataId the content identifier
+	 * @param newDataId the identifier of the copy
+	 * @return false if the storage cannot copy a content by itself : the
+	 *         caller has to read and write it
+	 */
+	public boolean copyContent(String dataId, String newDataId)
+			throws StorageException;
+
 }
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.MDC;
+
+/**
+ * Per-request tracing of the debug output.
+ * 
+ * A request begins with {@link #begin(String)} and ends with {@link #end()},
+ * on the thread serving it. One request out of {@link #setSampleRate(int)} is
+ * traced : its debug messages are logged with its trace id and repository in
+ * the MDC (<code>traceId</code> and <code>repositoryId</code>, to be shown by
+ * the layout of the appender), those of the other requests are dropped. Out of
+ * a request, the debug messages are always logged.
+ * 
+ * The messages are formatted by the logger, from their arguments, only when
+ * they are logged : when the debug level is disabled, a message costs the
+ * check of {@link Logger#isDebugEnabled()}.
+ */
+public final class Tracing {
+
+	public static final String MDC_TRACE_ID = "traceId";
+	public static final String MDC_REPOSITORY_ID = "repositoryId";
+
+	/** The request served by each thread, reused from one to the next. */
+	private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>() {
+		@Override
+		protected Trace initialValue() {
+			return new Trace();
+		}
+	};
+
+	private static final AtomicLong REQUESTS = new AtomicLong();
+
+	private static volatile int sampleRate = 1;
+
+	private Tracing() {
+	}
+
+	private static final class Trace {
+		boolean active = false;
+		boolean sampled = true;
+	}
+
+	/**
+	 * Traces one request out of <code>rate</code>, none if 0.
+	 */
+	public static void setSampleRate(int rate) {
+		if (rate < 0)
+			throw new IllegalArgumentException("Negative sample rate: " + rate);
+		sampleRate = rate;
+	}
+
+	public static int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Begins a request on the current thread, and decides whether it is
+	 * traced.
+	 */
+	public static void begin(String repositoryId) {
+		Trace trace = CURRENT.get();
+		long request = REQUESTS.incrementAndGet();
+		int rate = sampleRate;
+		trace.active = true;
+		trace.sampled = rate > 0 && request % rate == 0;
+		if (trace.sampled) {
+			MDC.put(MDC_TRACE_ID, Long.toHexString(request));
+			if (repositoryId != null)
+				MDC.put(MDC_REPOSITORY_ID, repositoryId);
+		} else {
+			MDC.remove(MDC_TRACE_ID);
+			MDC.remove(MDC_REPOSITORY_ID);
+		}
+	}
+
+	/**
+	 * Ends the request of the current thread.
+	 */
+	public static void end() {
+		Trace trace = CURRENT.get();
+		trace.active = false;
+		trace.sampled = true;
+		MDC.remove(MDC_TRACE_ID);
+		MDC.remove(MDC_REPOSITORY_ID);
+	}
+
+	/**
+	 * Whether the current request is traced, or there is none.
+	 */
+	public static boolean isSampled() {
+		Trace trace = CURRENT.get();
+		return !trace.active || trace.sampled;
+	}
+
+	/**
+	 * Whether a debug message of the logger is logged.
+	 */
+	public static boolean isDebugEnabled(Logger log) {
+		return log.isDebugEnabled() && isSampled();
+	}
+
+	/**
+	 * Whether a trace message of the logger is logged.
+	 */
+	public static boolean isTraceEnabled(Logger log) {
+		return log.isTraceEnabled() && isSampled();
+	}
+
+	public static void debug(Logger log, String msg) {
+		if (isDebugEnabled(log)) {
+			log.debug(msg);
+		}
+	}
+
+	public static void debug(Logger log, String format, Object arg) {
+		if (isDebugEnabled(log)) {
+			log.debug(format, arg);
+		}
+	}
+
+	public static void debug(Logger log, String format, Object arg1,
+			Object arg2) {
+		if (isDebugEnabled(log)) {
+			log.debug(format, arg1, arg2);
+		}
+	}
+
+	/**
+	 * With more than two arguments : the array of the arguments is created
+	 * even when the message is not logged, to be checked first with
+	 * {@link #isDebugEnabled(Logger)} on the hot paths.
+	 */
+	public static void debug(Logger log, String format, Object... args) {
+		if (isDebugEnabled(log)) {
+			log.debug(format, args);
+		}
+	}
+}
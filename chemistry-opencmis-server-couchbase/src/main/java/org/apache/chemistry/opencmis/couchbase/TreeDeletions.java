@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.couchbase;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+
+/**
+ * Tombstones of the folder trees being deleted.
+ *
+ * A single document <code>::deletedTrees</code> holds, for each folder whose
+ * tree is being deleted, its former parent and name, the user and the time
+ * the deletion started. The entry is written before the folder is detached
+ * and removed once the whole tree is gone, so that a deletion interrupted by
+ * a restart can be found and resumed. Few trees are deleted at the same
+ * time : the document is updated with a CAS loop.
+ *
+ * Each entry also holds the process running the deletion and the last time
+ * that process was seen alive : a background thread renews this heartbeat
+ * every {@link #HEARTBEAT_INTERVAL} ms while the process runs deletions. A
+ * deletion is only taken over by another process once its heartbeat is older
+ * than {@link #HEARTBEAT_TIMEOUT} ms.
+ */
+class TreeDeletions {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TreeDeletions.class);
+
+	static final String DELETED_TREES_ID = "::deletedTrees";
+	static final String TREES = "cb:trees";
+	static final String STARTED = "cb:started";
+	static final String OWNER = "cb:owner";
+	static final String HEARTBEAT = "cb:heartbeat";
+
+	static final long HEARTBEAT_INTERVAL = 30 * 1000L;
+	static final long HEARTBEAT_TIMEOUT = 4 * HEARTBEAT_INTERVAL;
+
+	private final Bucket bucket;
+	/** This process, as pid@host followed by a unique id. */
+	private final String owner = ManagementFactory.getRuntimeMXBean()
+			.getName() + "/" + UUID.randomUUID();
+	/** Deletions run by this process, guarded by this. */
+	private final Set<String> running = new HashSet<String>();
+	private Thread heartbeat = null;
+
+	TreeDeletions(Bucket bucket) {
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Records that the tree of a folder is being deleted by this process.
+	 * Recording it again keeps the first record.
+	 */
+	void record(CmisObject folder, String username) throws CouchbaseException {
+		debug("record {}", folder.getId());
+		long now = System.currentTimeMillis();
+		JsonObject tombstone = JsonObject.empty()
+				.put(PropertyIds.PARENT_ID, folder.getParentId())
+				.put(PropertyIds.NAME, folder.getName())
+				.put(PropertyIds.LAST_MODIFIED_BY, username)
+				.put(STARTED, now).put(OWNER, owner).put(HEARTBEAT, now);
+		run(folder.getId());
+		for (int attempt = 0;; attempt++) {
+			JsonDocument current = bucket.get(DELETED_TREES_ID);
+			try {
+				if (current == null) {
+					JsonObject trees = JsonObject.empty().put(folder.getId(),
+							tombstone);
+					bucket.insert(JsonDocument.create(DELETED_TREES_ID,
+							JsonObject.empty().put(TREES, trees)));
+				} else {
+					JsonObject trees = current.content().getObject(TREES);
+					if (trees.containsKey(folder.getId()))
+						return;
+					trees.put(folder.getId(), tombstone);
+					bucket.replace(current);
+				}
+				return;
+			} catch (DocumentAlreadyExistsException e) {
+				debug("tombstones created concurrently");
+				CasRetry.backoff(attempt, DELETED_TREES_ID);
+			} catch (CASMismatchException e) {
+				debug("tombstones updated concurrently");
+				CasRetry.backoff(attempt, DELETED_TREES_ID);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of the folders whose tree is being deleted.
+	 */
+	List<String> list() {
+		JsonDocument current = bucket.get(DELETED_TREES_ID);
+		if (current == null)
+			return new ArrayList<String>();
+		return new ArrayList<String>(current.content().getObject(TREES)
+				.getNames());
+	}
+
+	/**
+	 * Takes over the deletion of a tree, unless the process running it is
+	 * alive.
+	 *
+	 * @return false if another live process runs the deletion, or if the
+	 *         tree is not being deleted any more
+	 */
+	boolean claim(String folderId) throws CouchbaseException {
+		for (int attempt = 0;; attempt++) {
+			JsonDocument current = bucket.get(DELETED_TREES_ID);
+			JsonObject tombstone = current == null ? null : current.content()
+					.getObject(TREES).getObject(folderId);
+			if (tombstone == null)
+				return false;
+			long now = System.currentTimeMillis();
+			Long seen = tombstone.getLong(HEARTBEAT);
+			if (!owner.equals(tombstone.getString(OWNER)) && seen != null
+					&& now - seen.longValue() < HEARTBEAT_TIMEOUT) {
+				debug("{} run by {}", folderId, tombstone.getString(OWNER));
+				return false;
+			}
+			tombstone.put(OWNER, owner).put(HEARTBEAT, now);
+			try {
+				bucket.replace(current);
+				run(folderId);
+				return true;
+			} catch (CASMismatchException e) {
+				debug("tombstones updated concurrently");
+				CasRetry.backoff(attempt, DELETED_TREES_ID);
+			}
+		}
+	}
+
+	/**
+	 * Stops renewing the heartbeat of a deletion this process gives up, so
+	 * that another process can take it over.
+	 */
+	synchronized void release(String folderId) {
+		running.remove(folderId);
+	}
+
+	/**
+	 * Forgets a tree once it is deleted.
+	 */
+	void forget(String folderId) throws CouchbaseException {
+		debug("forget {}", folderId);
+		release(folderId);
+		for (int attempt = 0;; attempt++) {
+			JsonDocument current = bucket.get(DELETED_TREES_ID);
+			if (current == null
+					|| !current.content().getObject(TREES).containsKey(folderId))
+				return;
+			current.content().getObject(TREES).removeKey(folderId);
+			try {
+				bucket.replace(current);
+				return;
+			} catch (CASMismatchException e) {
+				debug("tombstones updated concurrently");
+				CasRetry.backoff(attempt, DELETED_TREES_ID);
+			}
+		}
+	}
+
+	/**
+	 * Stops the heartbeat. The deletions still running are taken over by
+	 * another process once their heartbeat is too old.
+	 */
+	synchronized void close() {
+		running.clear();
+		if (heartbeat != null)
+			heartbeat.interrupt();
+		heartbeat = null;
+	}
+
+	private synchronized void run(String folderId) {
+		running.add(folderId);
+		if (heartbeat != null)
+			return;
+		heartbeat = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (beat()) {
+					try {
+						Thread.sleep(HEARTBEAT_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "deleteTree-heartbeat");
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+
+	/**
+	 * Renews the heartbeat of the deletions run by this process.
+	 *
+	 * @return false once there are none, the thread then stops
+	 */
+	private boolean beat() {
+		Set<String> ids;
+		synchronized (this) {
+			if (running.isEmpty() || heartbeat != Thread.currentThread()) {
+				if (heartbeat == Thread.currentThread())
+					heartbeat = null;
+				return false;
+			}
+			ids = new HashSet<String>(running);
+		}
+		try {
+			for (int attempt = 0;; attempt++) {
+				JsonDocument current = bucket.get(DELETED_TREES_ID);
+				if (current == null)
+					return true;
+				JsonObject trees = current.content().getObject(TREES);
+				long now = System.currentTimeMillis();
+				for (String id : ids) {
+					JsonObject tombstone = trees.getObject(id);
+					if (tombstone == null)
+						continue;
+					if (!owner.equals(tombstone.getString(OWNER))) {
+						LOG.warn("Deletion of the tree {} taken over by {}",
+								id, tombstone.getString(OWNER));
+						release(id);
+						continue;
+					}
+					tombstone.put(HEARTBEAT, now);
+				}
+				try {
+					bucket.replace(current);
+					return true;
+				} catch (CASMismatchException e) {
+					debug("tombstones updated concurrently");
+					CasRetry.backoff(attempt, DELETED_TREES_ID);
+				}
+			}
+		} catch (CouchbaseException e) {
+			LOG.warn("Heartbeat of the deleted trees not renewed: {}",
+					e.getMessage());
+		} catch (RuntimeException e) {
+			LOG.warn("Heartbeat of the deleted trees not renewed: {}",
+					e.getMessage());
+		}
+		return true;
+	}
+
+	private void debug(String msg) {
+		Tracing.debug(LOG, msg);
+	}
+
+	private void debug(String format, Object arg) {
+		Tracing.debug(LOG, format, arg);
+	}
+
+	private void debug(String format, Object arg1, Object arg2) {
+		Tracing.debug(LOG, format, arg1, arg2);
+	}
+}
@@ -0,0 +1,118 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.HashMap;
+
+import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.commons.server.ObjectInfo;
+import org.apache.chemistry.opencmis.commons.server.ObjectInfoHandler;
+
+/**
+ * Call contexts and object info handlers shared by the tests.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+		/**
+	 * Returns the context of a call by a user, which asks for the object
+	 * infos or not as the binding would.
+	 */
+	static CallContext createContext(final String username,
+			final String password, final boolean objectInfoRequired) {
+		return new CallContext() {
+
+			@Override
+			public boolean isObjectInfoRequired() {
+				return objectInfoRequired;
+			}
+
+			@Override
+			public String getUsername() {
+				return username;
+			}
+
+			@Override
+			public File getTempDirectory() {
+				return new File(System.getProperty("java.io.tmpdir"));
+			}
+
+			@Override
+			public String getRepositoryId() {
+				return "test";
+			}
+
+			@Override
+			public String getPassword() {
+				return password;
+			}
+
+			@Override
+			public BigInteger getOffset() {
+				return null;
+			}
+
+			@Override
+			public int getMemoryThreshold() {
+				return 4194304;
+			}
+
+			@Override
+			public long getMaxContentSize() {
+				return 4294967296l;
+			}
+
+			@Override
+			public String getLocale() {
+				return null;
+			}
+
+			@Override
+			public BigInteger getLength() {
+				return null;
+			}
+
+			@Override
+			public CmisVersion getCmisVersion() {
+				return CmisVersion.CMIS_1_1;
+			}
+
+			@Override
+			public String getBinding() {
+				return "atompub";
+			}
+
+			@Override
+			public Object get(String key) {
+				return null;
+			}
+
+			@Override
+			public boolean encryptTempFiles() {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns a handler which keeps the object infos in a map.
+	 */
+	static ObjectInfoHandler createObjectInfoHandler() {
+		return new ObjectInfoHandler() {
+			HashMap<String, ObjectInfo> infoMap = new HashMap<String, ObjectInfo>();
+
+			@Override
+			public ObjectInfo getObjectInfo(String repositoryId, String objectId) {
+				return infoMap.get(objectId);
+			}
+
+			@Override
+			public void addObjectInfo(ObjectInfo objectInfo) {
+				infoMap.put(objectInfo.getId(), objectInfo);
+			}
+		};
+	}
+}
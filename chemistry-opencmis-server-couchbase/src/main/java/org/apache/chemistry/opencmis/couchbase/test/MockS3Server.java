@@ -0,0 +1,481 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in of S3 serving the objects of one bucket from memory, with
+ * path style urls : PUT, GET with an optional Range header, HEAD, DELETE,
+ * the multipart uploads, the copies of objects and parts, and the listings
+ * page by page. It counts the requests
+ * and the bytes sent so that tests can check the I/O of an operation, and can
+ * fail the uploads of a part.
+ */
+public class MockS3Server {
+
+	static class StoredObject {
+		final byte[] content;
+		final String contentType;
+		final String etag;
+
+		StoredObject(byte[] content, String contentType) {
+			this.content = content;
+			this.contentType = contentType;
+			this.etag = md5(content);
+		}
+	}
+
+	static final String LAST_MODIFIED = "2015-09-01T12:00:00.000Z";
+
+	private final String bucket;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, StoredObject> objects = new ConcurrentSkipListMap<String, StoredObject>();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger copies = new AtomicInteger();
+	/** Parts of the uploads in progress, by upload id then part number. */
+	private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+	private final Map<String, String> uploadTypes = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger uploadCount = new AtomicInteger();
+	private final AtomicInteger abortedUploads = new AtomicInteger();
+	/** Failures left for each part number. */
+	private final Map<Integer, AtomicInteger> partFailures = new ConcurrentHashMap<Integer, AtomicInteger>();
+	private final AtomicInteger partsInProgress = new AtomicInteger();
+	private final AtomicInteger maxPartsInProgress = new AtomicInteger();
+	private volatile long partDelay = 0;
+
+	public MockS3Server(String bucket) throws IOException {
+		this.bucket = bucket;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// the JDK server does not always keep a connection usable
+				// after a response without body
+				exchange.getResponseHeaders().set("Connection", "close");
+				try {
+					MockS3Server.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * A client of this server.
+	 */
+	public AmazonS3 client() {
+		return AmazonS3ClientBuilder
+				.standard()
+				.withEndpointConfiguration(
+						new EndpointConfiguration("http://127.0.0.1:"
+								+ server.getAddress().getPort(), "us-east-1"))
+				.withPathStyleAccessEnabled(true)
+				.withChunkedEncodingDisabled(true)
+				// failures are seen by the caller
+				.withClientConfiguration(
+						new ClientConfiguration().withMaxErrorRetry(0))
+				.withCredentials(
+						new AWSStaticCredentialsProvider(new BasicAWSCredentials(
+								"access", "secret"))).build();
+	}
+
+	public boolean contains(String key) {
+		return objects.containsKey(key);
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	public void resetCounts() {
+		bytesSent.set(0);
+		requests.set(0);
+		copies.set(0);
+	}
+
+	public byte[] getContent(String key) {
+		StoredObject object = objects.get(key);
+		return object == null ? null : object.content;
+	}
+
+	public String getContentType(String key) {
+		StoredObject object = objects.get(key);
+		return object == null ? null : object.contentType;
+	}
+
+	/**
+	 * Fails the next uploads of a part with an internal error.
+	 */
+	public void failPart(int partNumber, int times) {
+		partFailures.put(partNumber, new AtomicInteger(times));
+	}
+
+	/**
+	 * Slows down the uploads of the parts, to see them overlap.
+	 */
+	public void setPartDelay(long millis) {
+		partDelay = millis;
+	}
+
+	public int getUploadsInProgress() {
+		return uploads.size();
+	}
+
+	public int getAbortedUploads() {
+		return abortedUploads.get();
+	}
+
+	/** Number of objects and parts copied within the bucket. */
+	public int getCopyCount() {
+		return copies.get();
+	}
+
+	public int getMaxPartsInProgress() {
+		return maxPartsInProgress.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String prefix = "/" + bucket + "/";
+		if (!path.startsWith(prefix)) {
+			error(exchange, 404, "NoSuchBucket");
+			return;
+		}
+		requests.incrementAndGet();
+		String key = path.substring(prefix.length());
+		String method = exchange.getRequestMethod();
+		Map<String, String> query = query(exchange.getRequestURI()
+				.getRawQuery());
+
+		if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+			handleUpload(exchange, method, key, query);
+			return;
+		}
+
+		if ("PUT".equals(method) && copySource(exchange) != null) {
+			StoredObject source = objects.get(copySource(exchange));
+			if (source == null) {
+				error(exchange, 404, "NoSuchKey");
+				return;
+			}
+			copies.incrementAndGet();
+			objects.put(key, source);
+			xml(exchange, "<CopyObjectResult><LastModified>" + LAST_MODIFIED
+					+ "</LastModified><ETag>\"" + source.etag
+					+ "\"</ETag></CopyObjectResult>");
+			return;
+		}
+
+		if ("PUT".equals(method)) {
+			StoredObject object = new StoredObject(
+					read(exchange.getRequestBody()), exchange
+							.getRequestHeaders().getFirst("Content-Type"));
+			objects.put(key, object);
+			exchange.getResponseHeaders().set("ETag",
+					"\"" + object.etag + "\"");
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+
+		if (key.length() == 0 && "GET".equals(method)) {
+			list(exchange, query);
+			return;
+		}
+
+		StoredObject object = objects.get(key);
+		if ("DELETE".equals(method)) {
+			objects.remove(key);
+			exchange.sendResponseHeaders(204, -1);
+			return;
+		}
+		if (object == null) {
+			if ("HEAD".equals(method))
+				exchange.sendResponseHeaders(404, -1);
+			else
+				error(exchange, 404, "NoSuchKey");
+			return;
+		}
+
+		int start = 0;
+		int end = object.content.length - 1;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null) {
+			String[] bounds = range.substring("bytes=".length()).split("-", -1);
+			start = Integer.parseInt(bounds[0]);
+			if (bounds[1].length() > 0)
+				end = (int) Math.min(end, Long.parseLong(bounds[1]));
+			if (start > end) {
+				error(exchange, 416, "InvalidRange");
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Range",
+					"bytes " + start + "-" + end + "/" + object.content.length);
+		}
+		int length = end - start + 1;
+		exchange.getResponseHeaders().set("ETag", "\"" + object.etag + "\"");
+		if (object.contentType != null)
+			exchange.getResponseHeaders().set("Content-Type",
+					object.contentType);
+		exchange.getResponseHeaders().set("Content-Length",
+				String.valueOf(length));
+		if ("HEAD".equals(method)) {
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		// counted first : the client may be done before the stream is closed
+		bytesSent.addAndGet(length);
+		exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(object.content, start, length);
+		out.close();
+	}
+
+	private void handleUpload(HttpExchange exchange, String method,
+			String key, Map<String, String> query) throws IOException {
+		if ("POST".equals(method) && query.containsKey("uploads")) {
+			String uploadId = "upload" + uploadCount.incrementAndGet();
+			uploads.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+			String contentType = exchange.getRequestHeaders().getFirst(
+					"Content-Type");
+			if (contentType != null)
+				uploadTypes.put(uploadId, contentType);
+			xml(exchange, "<InitiateMultipartUploadResult><Bucket>" + bucket
+					+ "</Bucket><Key>" + key + "</Key><UploadId>" + uploadId
+					+ "</UploadId></InitiateMultipartUploadResult>");
+			return;
+		}
+
+		String uploadId = query.get("uploadId");
+		Map<Integer, byte[]> parts = uploads.get(uploadId);
+		if (parts == null) {
+			error(exchange, 404, "NoSuchUpload");
+			return;
+		}
+		if ("PUT".equals(method)) {
+			int partNumber = Integer.parseInt(query.get("partNumber"));
+			if (copySource(exchange) != null) {
+				copyPart(exchange, parts, partNumber);
+				return;
+			}
+			byte[] content = read(exchange.getRequestBody());
+			int inProgress = partsInProgress.incrementAndGet();
+			try {
+				synchronized (maxPartsInProgress) {
+					if (inProgress > maxPartsInProgress.get())
+						maxPartsInProgress.set(inProgress);
+				}
+				if (partDelay > 0)
+					Thread.sleep(partDelay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				partsInProgress.decrementAndGet();
+			}
+			AtomicInteger failures = partFailures.get(partNumber);
+			if (failures != null && failures.getAndDecrement() > 0) {
+				error(exchange, 500, "InternalError");
+				return;
+			}
+			parts.put(partNumber, content);
+			exchange.getResponseHeaders().set("ETag",
+					"\"" + md5(content) + "\"");
+			exchange.sendResponseHeaders(200, -1);
+		} else if ("POST".equals(method)) {
+			read(exchange.getRequestBody());
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			for (int partNumber : new TreeSet<Integer>(parts.keySet()))
+				content.write(parts.get(partNumber));
+			uploads.remove(uploadId);
+			StoredObject object = new StoredObject(content.toByteArray(),
+					uploadTypes.remove(uploadId));
+			objects.put(key, object);
+			xml(exchange, "<CompleteMultipartUploadResult><Bucket>" + bucket
+					+ "</Bucket><Key>" + key + "</Key><ETag>\"" + object.etag
+					+ "-" + parts.size()
+					+ "\"</ETag></CompleteMultipartUploadResult>");
+		} else if ("DELETE".equals(method)) {
+			uploads.remove(uploadId);
+			uploadTypes.remove(uploadId);
+			abortedUploads.incrementAndGet();
+			exchange.sendResponseHeaders(204, -1);
+		}
+	}
+
+	/**
+	 * Returns the key of the object copied by a request, if it is a copy.
+	 */
+	private String copySource(HttpExchange exchange) throws IOException {
+		String source = exchange.getRequestHeaders().getFirst(
+				"x-amz-copy-source");
+		if (source == null)
+			return null;
+		source = URLDecoder.decode(source, "UTF-8");
+		if (source.startsWith("/"))
+			source = source.substring(1);
+		return source.substring(bucket.length() + 1);
+	}
+
+	private void copyPart(HttpExchange exchange, Map<Integer, byte[]> parts,
+			int partNumber) throws IOException {
+		read(exchange.getRequestBody());
+		StoredObject source = objects.get(copySource(exchange));
+		if (source == null) {
+			error(exchange, 404, "NoSuchKey");
+			return;
+		}
+		String[] bounds = exchange.getRequestHeaders()
+				.getFirst("x-amz-copy-source-range")
+				.substring("bytes=".length()).split("-");
+		byte[] content = Arrays.copyOfRange(source.content,
+				Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1);
+		copies.incrementAndGet();
+		parts.put(partNumber, content);
+		xml(exchange, "<CopyPartResult><LastModified>" + LAST_MODIFIED
+				+ "</LastModified><ETag>\"" + md5(content)
+				+ "\"</ETag></CopyPartResult>");
+	}
+
+	private static Map<String, String> query(String rawQuery) {
+		Map<String, String> query = new HashMap<String, String>();
+		if (rawQuery == null)
+			return query;
+		for (String param : rawQuery.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq < 0)
+				query.put(param, "");
+			else
+				query.put(param.substring(0, eq), param.substring(eq + 1));
+		}
+		return query;
+	}
+
+	private static void xml(HttpExchange exchange, String xml)
+			throws IOException {
+		byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml)
+				.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * Lists the keys with a prefix, by pages of max-keys after the marker.
+	 */
+	private void list(HttpExchange exchange, Map<String, String> query)
+			throws IOException {
+		String prefix = decode(query.get("prefix"));
+		String marker = decode(query.get("marker"));
+		int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query
+				.get("max-keys")) : 1000;
+		StringBuilder sb = new StringBuilder("<ListBucketResult><Name>")
+				.append(bucket).append("</Name>");
+		StringBuilder contents = new StringBuilder();
+		int count = 0;
+		String last = null;
+		boolean truncated = false;
+		for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+			String key = entry.getKey();
+			if ((prefix != null && !key.startsWith(prefix))
+					|| (marker != null && key.compareTo(marker) <= 0))
+				continue;
+			if (count == maxKeys) {
+				truncated = true;
+				break;
+			}
+			contents.append("<Contents><Key>").append(key)
+					.append("</Key><Size>")
+					.append(entry.getValue().content.length)
+					.append("</Size></Contents>");
+			last = key;
+			count++;
+		}
+		sb.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+		if (truncated)
+			sb.append("<NextMarker>").append(last).append("</NextMarker>");
+		sb.append(contents).append("</ListBucketResult>");
+		xml(exchange, sb.toString());
+	}
+
+	private static String decode(String value)
+			throws UnsupportedEncodingException {
+		return value == null ? null : URLDecoder.decode(value, "UTF-8");
+	}
+
+	private static void error(HttpExchange exchange, int status, String code)
+			throws IOException {
+		byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<Error><Code>" + code + "</Code><Message>" + code
+				+ "</Message><RequestId>mock</RequestId></Error>")
+				.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static String md5(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest)
+				sb.append(String.format("%02x", b & 0xff));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
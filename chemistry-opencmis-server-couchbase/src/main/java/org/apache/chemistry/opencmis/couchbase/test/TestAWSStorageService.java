@@ -0,0 +1,253 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.PartialContentStream;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.couchbase.AWSStorageService;
+import org.apache.chemistry.opencmis.couchbase.StorageException;
+import org.apache.chemistry.opencmis.couchbase.StorageInventory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestAWSStorageService {
+
+	static final String BUCKET = "cmis";
+	static final int SIZE = 256 * 1024;
+	static final int MB = 1024 * 1024;
+
+	MockS3Server s3 = null;
+	AWSStorageService storage = null;
+	byte[] content = null;
+
+	@Before
+	public void before() throws Exception {
+		s3 = new MockS3Server(BUCKET);
+		storage = new AWSStorageService(BUCKET, "", s3.client());
+		content = new byte[SIZE];
+		new Random(42).nextBytes(content);
+		storage.writeContent("doc", new ContentStreamImpl("doc.bin",
+				BigInteger.valueOf(SIZE), "text/plain",
+				new ByteArrayInputStream(content)));
+		s3.resetCounts();
+	}
+
+	@After
+	public void after() {
+		storage.close();
+		s3.stop();
+	}
+
+	@Test
+	public void testGetContent() throws Exception {
+		ContentStream stream = storage.getContent("doc", null, null, "doc.bin");
+		assertFalse(stream instanceof PartialContentStream);
+		assertEquals(SIZE, stream.getLength());
+		// the type given when written, not the one of the file name
+		assertEquals("text/plain", stream.getMimeType());
+		assertArrayEquals(content, read(stream));
+	}
+
+	@Test
+	public void testGetRange() throws Exception {
+		ContentStream stream = storage.getContent("doc",
+				BigInteger.valueOf(1000), BigInteger.valueOf(100), "doc.bin");
+		assertTrue(stream instanceof PartialContentStream);
+		assertEquals(100, stream.getLength());
+		assertArrayEquals(Arrays.copyOfRange(content, 1000, 1100),
+				read(stream));
+		// only the range was downloaded
+		assertEquals(100, s3.getBytesSent());
+	}
+
+	@Test
+	public void testGetFromOffset() throws Exception {
+		ContentStream stream = storage.getContent("doc",
+				BigInteger.valueOf(SIZE - 10), null, "doc.bin");
+		assertEquals(10, stream.getLength());
+		assertArrayEquals(Arrays.copyOfRange(content, SIZE - 10, SIZE),
+				read(stream));
+		assertEquals(10, s3.getBytesSent());
+	}
+
+	@Test(expected = StorageException.class)
+	public void testMissingContent() throws StorageException {
+		storage.getContent("missing", null, null, "missing.bin");
+	}
+
+	@Test
+	public void testDeleteContent() {
+		assertTrue(storage.exists("doc"));
+		assertTrue(storage.deleteContent("doc"));
+		assertFalse(storage.exists("doc"));
+	}
+
+	@Test
+	public void testOneRequestPerOperation() throws Exception {
+		// a few objects to list, if anything did
+		for (int i = 0; i < 20; i++)
+			storage.writeContent("other" + i, new ContentStreamImpl("other",
+					BigInteger.ONE, "text/plain", new ByteArrayInputStream(
+							new byte[] { 1 })));
+
+		s3.resetCounts();
+		storage.writeContent("one", new ContentStreamImpl("one.bin",
+				BigInteger.valueOf(SIZE), "text/plain",
+				new ByteArrayInputStream(content)));
+		assertEquals(1, s3.getRequestCount());
+
+		s3.resetCounts();
+		assertTrue(storage.exists("one"));
+		assertEquals(1, s3.getRequestCount());
+
+		s3.resetCounts();
+		read(storage.getContent("one", null, null, "one.bin"));
+		assertEquals(1, s3.getRequestCount());
+
+		s3.resetCounts();
+		assertTrue(storage.deleteContent("one"));
+		assertEquals(1, s3.getRequestCount());
+	}
+
+	@Test
+	public void testInventory() throws Exception {
+		for (int i = 0; i < 24; i++)
+			storage.writeContent("other" + i, new ContentStreamImpl("other",
+					BigInteger.valueOf(10), "text/plain",
+					new ByteArrayInputStream(new byte[10])));
+
+		StorageInventory inventory = storage.getInventory();
+		inventory.setPageSize(10);
+		inventory.setMaxReportKeys(5);
+		s3.resetCounts();
+		assertTrue(inventory.start());
+		inventory.await();
+
+		assertFalse(inventory.isRunning());
+		assertEquals(25, inventory.getObjectCount());
+		assertEquals(24 * 10 + SIZE, inventory.getTotalSize());
+		// three pages of keys
+		assertEquals(3, s3.getRequestCount());
+		String report = inventory.getReport();
+		assertEquals(report, 1 + 5 + 1, report.split("\n").length);
+		assertTrue(report, report.contains("... 20 more"));
+	}
+
+	@Test
+	public void testMultipartUpload() throws Exception {
+		storage.setMultipartThreshold(6 * MB);
+		storage.setPartSize(5 * MB);
+		s3.setPartDelay(100);
+		byte[] large = content(12 * MB + 1000);
+		storage.writeContent("large", new ContentStreamImpl("large.bin",
+				BigInteger.valueOf(large.length), "application/pdf",
+				new ByteArrayInputStream(large)));
+
+		assertArrayEquals(large, s3.getContent("large"));
+		assertEquals("application/pdf", s3.getContentType("large"));
+		assertEquals(0, s3.getUploadsInProgress());
+		// the three parts were uploaded together
+		assertTrue(s3.getMaxPartsInProgress() > 1);
+	}
+
+	@Test
+	public void testUnknownLength() throws Exception {
+		storage.setPartSize(5 * MB);
+		byte[] large = content(7 * MB);
+		// no length : uploaded in parts whatever the size
+		storage.writeContent("unknown", new ContentStreamImpl("unknown.bin",
+				null, "text/plain", new ByteArrayInputStream(large)));
+		assertArrayEquals(large, s3.getContent("unknown"));
+
+		storage.writeContent("empty", new ContentStreamImpl("empty.bin", null,
+				"text/plain", new ByteArrayInputStream(new byte[0])));
+		assertEquals(0, s3.getContent("empty").length);
+	}
+
+	@Test
+	public void testPartRetried() throws Exception {
+		storage.setMultipartThreshold(6 * MB);
+		storage.setPartSize(5 * MB);
+		s3.failPart(2, 2);
+		byte[] large = content(11 * MB);
+		storage.writeContent("retried", new ContentStreamImpl("retried.bin",
+				BigInteger.valueOf(large.length), "text/plain",
+				new ByteArrayInputStream(large)));
+		assertArrayEquals(large, s3.getContent("retried"));
+		assertEquals(0, s3.getAbortedUploads());
+	}
+
+	@Test
+	public void testFailedUploadAborted() throws Exception {
+		storage.setMultipartThreshold(6 * MB);
+		storage.setPartSize(5 * MB);
+		s3.failPart(2, 100);
+		byte[] large = content(11 * MB);
+		try {
+			storage.writeContent("failed", new ContentStreamImpl("failed.bin",
+					BigInteger.valueOf(large.length), "text/plain",
+					new ByteArrayInputStream(large)));
+			fail("the upload should fail");
+		} catch (StorageException e) {
+			// expected
+		}
+		assertFalse(s3.contains("failed"));
+		assertEquals(1, s3.getAbortedUploads());
+		assertEquals(0, s3.getUploadsInProgress());
+	}
+
+	@Test
+	public void testCopyContent() throws Exception {
+		assertTrue(storage.copyContent("doc", "copy"));
+		// the metadata, then the copy : nothing downloaded
+		assertEquals(2, s3.getRequestCount());
+		assertEquals(0, s3.getBytesSent());
+		assertArrayEquals(content, s3.getContent("copy"));
+		assertEquals("text/plain", s3.getContentType("copy"));
+
+		storage.moveContent("copy", "moved");
+		assertFalse(s3.contains("copy"));
+		assertArrayEquals(content, s3.getContent("moved"));
+	}
+
+	@Test
+	public void testCopyInParts() throws Exception {
+		storage.setCopyParts(6 * MB, 5 * MB);
+		byte[] large = content(11 * MB);
+		storage.writeContent("large", new ContentStreamImpl("large.bin",
+				BigInteger.valueOf(large.length), "application/pdf",
+				new ByteArrayInputStream(large)));
+		s3.resetCounts();
+
+		assertTrue(storage.copyContent("large", "copy"));
+		assertEquals(3, s3.getCopyCount());
+		assertEquals(0, s3.getBytesSent());
+		assertArrayEquals(large, s3.getContent("copy"));
+		assertEquals("application/pdf", s3.getContentType("copy"));
+		assertEquals(0, s3.getUploadsInProgress());
+	}
+
+	@Test(expected = StorageException.class)
+	public void testCopyMissingContent() throws StorageException {
+		storage.copyContent("missing", "copy");
+	}
+
+	private static byte[] content(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] read(ContentStream stream)
+			throws IOException {
+		return MockS3Server.read(stream.getStream());
+	}
+}
@@ -0,0 +1,99 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseUserManager;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput of the authentication of the requests, by one thread then by
+ * several at once, which should scale with the number of cores.
+ */
+public class TestAuthenticationBenchmark {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TestAuthenticationBenchmark.class);
+
+	static final int THREADS = 8;
+	static final int REQUESTS = 200000;
+
+	@Test
+	public void testPlainPasswords() throws Exception {
+		CouchbaseUserManager users = new CouchbaseUserManager();
+		for (int i = 0; i < 100; i++)
+			users.addLogin("user" + i, "password" + i);
+		run("plain", users, REQUESTS);
+	}
+
+	@Test
+	public void testHashedPasswords() throws Exception {
+		CouchbaseUserManager users = new CouchbaseUserManager();
+		for (int i = 0; i < 100; i++)
+			users.addLogin("user" + i,
+					CouchbaseUserManager.hashPassword("password" + i));
+		run("hashed", users, 200);
+
+		users.setVerifiedCacheTtl(60000);
+		run("hashed, verified cache", users, REQUESTS);
+	}
+
+	private static void run(String name, CouchbaseUserManager users,
+			int requests) throws Exception {
+		// warm up
+		authenticate(users, requests / 10, 0);
+		for (int threads : new int[] { 1, THREADS }) {
+			long nanos = authenticateConcurrently(users, requests, threads);
+			LOG.info("authenticate {}, {} thread(s) : {} in {} ms, {} ops/s",
+					name, threads, requests, nanos / 1000000, requests
+							* 1000000000L / Math.max(1, nanos));
+		}
+	}
+
+	private static long authenticateConcurrently(
+			final CouchbaseUserManager users, final int requests, int threads)
+			throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				final int count = requests / threads;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						authenticate(users, count, thread);
+						return null;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			for (Future<Void> future : executor.invokeAll(tasks))
+				future.get();
+			return System.nanoTime() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void authenticate(CouchbaseUserManager users, int count,
+			int seed) {
+		CallContext[] contexts = new CallContext[100];
+		for (int i = 0; i < contexts.length; i++)
+			contexts[i] = Fixtures.createContext("user" + i,
+					"password" + i, false);
+		for (int i = 0; i < count; i++) {
+			CallContext context = contexts[(i + seed) % contexts.length];
+			assertEquals(context.getUsername(), users.authenticate(context));
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.couchbase.AWSStorageService;
+import org.apache.chemistry.opencmis.couchbase.CachingStorageService;
+import org.apache.chemistry.opencmis.couchbase.LocalStorageService;
+import org.apache.chemistry.opencmis.couchbase.StorageException;
+import org.apache.chemistry.opencmis.couchbase.StorageService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCachingStorageService {
+
+	static final String BUCKET = "cmis";
+	static final int SIZE = 100 * 1024;
+
+	MockS3Server s3 = null;
+	File dir = null;
+	CachingStorageService cache = null;
+	byte[] content = null;
+
+	@Before
+	public void before() throws Exception {
+		s3 = new MockS3Server(BUCKET);
+		dir = File.createTempFile("storageCache", "");
+		dir.delete();
+		cache = new CachingStorageService(new AWSStorageService(BUCKET, "",
+				s3.client()), dir, 10 * SIZE);
+		content = new byte[SIZE];
+		new Random(42).nextBytes(content);
+		write(cache, "doc", content);
+		s3.resetCounts();
+	}
+
+	@After
+	public void after() {
+		cache.close();
+		s3.stop();
+		TestLocalStorageService.delete(dir);
+	}
+
+	@Test
+	public void testReadThrough() throws Exception {
+		assertArrayEquals(content, read(cache, "doc", null, null));
+		// the length, then the content once
+		assertEquals(2, s3.getRequestCount());
+		assertEquals(SIZE, s3.getBytesSent());
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(SIZE, cache.getSize());
+
+		s3.resetCounts();
+		ContentStream stream = cache.getContent("doc", null, null, "doc.bin");
+		assertEquals("text/plain", stream.getMimeType());
+		assertArrayEquals(content, MockS3Server.read(stream.getStream()));
+		assertEquals(0, s3.getRequestCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.5, cache.getHitRatio(), 0.001);
+	}
+
+	@Test
+	public void testRangeFromCache() throws Exception {
+		read(cache, "doc", null, null);
+		s3.resetCounts();
+		assertArrayEquals(Arrays.copyOfRange(content, 5000, 6000),
+				read(cache, "doc", 5000, 1000));
+		assertEquals(0, s3.getBytesSent());
+
+		// the first read of a range does not wait for the whole content
+		write(cache, "other", content);
+		s3.resetCounts();
+		assertArrayEquals(Arrays.copyOfRange(content, 10, 20),
+				read(cache, "other", 10, 10));
+		assertEquals(10, s3.getBytesSent());
+		assertEquals(1, cache.getEntryCount());
+
+		// cached by its first whole read
+		read(cache, "other", null, null);
+		assertEquals(2, cache.getEntryCount());
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		read(cache, "doc", null, null);
+		assertTrue(cache.deleteContent("doc"));
+		assertFalse(cache.exists("doc"));
+		assertEquals(0, cache.getEntryCount());
+
+		byte[] changed = new byte[] { 1, 2, 3 };
+		write(cache, "doc", changed);
+		assertArrayEquals(changed, read(cache, "doc", null, null));
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(changed.length, cache.getSize());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		for (int i = 0; i < 12; i++) {
+			write(cache, "doc" + i, content);
+			read(cache, "doc" + i, null, null);
+		}
+		assertEquals(10, cache.getEntryCount());
+		assertEquals(2, cache.getEvictionCount());
+		assertEquals(10 * SIZE, cache.getSize());
+		assertEquals(10, dir.listFiles().length);
+
+		// the least recently read are gone
+		s3.resetCounts();
+		read(cache, "doc0", null, null);
+		assertEquals(SIZE, s3.getBytesSent());
+		s3.resetCounts();
+		read(cache, "doc11", null, null);
+		assertEquals(0, s3.getRequestCount());
+	}
+
+	@Test
+	public void testAdmissionBySize() throws Exception {
+		cache.setMaxEntrySize(SIZE - 1);
+		assertArrayEquals(Arrays.copyOfRange(content, 0, 100),
+				read(cache, "doc", 0, 100));
+		// rejected from its length : downloaded once, by the reader
+		s3.resetCounts();
+		assertArrayEquals(content, read(cache, "doc", null, null));
+		assertEquals(2, s3.getRequestCount());
+		assertEquals(SIZE, s3.getBytesSent());
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, dir.listFiles().length);
+		assertEquals(1, cache.getRejectionCount());
+		// the range only, once known as too large
+		s3.resetCounts();
+		read(cache, "doc", 0, 100);
+		assertEquals(1, s3.getRequestCount());
+		assertEquals(100, s3.getBytesSent());
+	}
+
+	@Test
+	public void testSingleDownload() throws Exception {
+		final AtomicInteger downloads = new AtomicInteger();
+		File root = new File(dir, "local");
+		final CachingStorageService local = new CachingStorageService(
+				new LocalStorageService(root.getPath()) {
+					@Override
+					public ContentStream getContent(String dataId,
+							BigInteger offset, BigInteger length,
+							String filename) {
+						downloads.incrementAndGet();
+						try {
+							Thread.sleep(200);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return super.getContent(dataId, offset, length,
+								filename);
+					}
+				}, new File(dir, "cache"), 10 * SIZE);
+		write(local, "doc", content);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 8; i++)
+				futures.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return read(local, "doc", null, null);
+					}
+				}));
+			for (Future<byte[]> future : futures)
+				assertArrayEquals(content, future.get());
+		} finally {
+			executor.shutdown();
+			local.close();
+		}
+		assertEquals(1, downloads.get());
+		assertEquals(1, local.getFillCount());
+	}
+
+	@Test
+	public void testClosedBeforeTheEnd() throws Exception {
+		ContentStream stream = cache.getContent("doc", null, null, "doc");
+		assertTrue(stream.getStream().read() != -1);
+		stream.getStream().close();
+		// the rest was downloaded for the cache
+		assertEquals(1, cache.getEntryCount());
+		s3.resetCounts();
+		assertArrayEquals(content, read(cache, "doc", null, null));
+		assertEquals(0, s3.getRequestCount());
+	}
+
+	private static void write(StorageService storage, String dataId,
+			byte[] bytes) throws StorageException {
+		storage.writeContent(dataId, new ContentStreamImpl(dataId, BigInteger
+				.valueOf(bytes.length), "text/plain", new ByteArrayInputStream(
+				bytes)));
+	}
+
+	private static byte[] read(StorageService storage, String dataId,
+			Integer offset, Integer length) throws StorageException,
+			IOException {
+		ContentStream stream = storage.getContent(dataId,
+				offset == null ? null : BigInteger.valueOf(offset),
+				length == null ? null : BigInteger.valueOf(length), dataId);
+		return MockS3Server.read(stream.getStream());
+	}
+}
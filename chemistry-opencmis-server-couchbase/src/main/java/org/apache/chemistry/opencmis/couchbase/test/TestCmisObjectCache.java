@@ -0,0 +1,136 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.chemistry.opencmis.couchbase.CmisObject;
+import org.apache.chemistry.opencmis.couchbase.CmisObjectCache;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCmisObjectCache {
+
+	private CmisObject object(String id, long cas) {
+		CmisObject data = new CmisObject(id);
+		data.setName(id);
+		data.setCas(cas);
+		return data;
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		CmisObjectCache cache = new CmisObjectCache(10, 60000);
+		assertNull(cache.get("a"));
+		cache.put(object("a", 1));
+
+		CmisObject cached = cache.get("a");
+		assertNotNull(cached);
+		assertEquals(1, cached.getCas());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// the cached object is a copy
+		cached.setName("changed");
+		assertEquals("a", cache.get("a").getName());
+	}
+
+	@Test
+	public void testNoCas() {
+		CmisObjectCache cache = new CmisObjectCache(10, 60000);
+		cache.put(object("a", 0));
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void testInvalidate() {
+		CmisObjectCache cache = new CmisObjectCache(10, 60000);
+		cache.put(object("a", 1));
+		cache.invalidate("a");
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void testStalePut() {
+		CmisObjectCache cache = new CmisObjectCache(10, 60000);
+		// v1 is read, then v2 is written and invalidated before v1 is cached
+		long generation = cache.generation("a");
+		cache.invalidate("a");
+		cache.put(object("a", 1), generation);
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.getStalePuts());
+
+		cache.put(object("a", 2), cache.generation("a"));
+		assertEquals(2, cache.get("a").getCas());
+	}
+
+	@Test
+	public void testSizeEviction() {
+		CmisObjectCache cache = new CmisObjectCache(2, 60000);
+		cache.put(object("a", 1));
+		cache.put(object("b", 1));
+		// a is now the most recently used
+		assertNotNull(cache.get("a"));
+		cache.put(object("c", 1));
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void testSegments() {
+		CmisObjectCache cache = new CmisObjectCache(1000, 60000);
+		for (int i = 0; i < 2000; i++)
+			cache.put(object("o" + i, 1));
+
+		assertTrue(cache.size() <= 1000);
+		assertTrue(cache.size() > 900);
+		assertEquals(2000 - cache.size(), cache.getEvictions());
+		assertNotNull(cache.get("o1999"));
+		assertNull(cache.get("o0"));
+	}
+
+	@Test
+	public void testJmx() throws Exception {
+		CmisObjectCache cache = new CmisObjectCache(10, 60000);
+		cache.put(object("a", 1));
+		cache.get("a");
+		cache.get("b");
+
+		cache.register("test");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+					"org.apache.chemistry.opencmis.couchbase:type=ObjectCache,repository=\"test\"");
+			assertEquals(1L, server.getAttribute(name, "Hits"));
+			assertEquals(1L, server.getAttribute(name, "Misses"));
+			assertEquals(1, server.getAttribute(name, "Size"));
+			server.invoke(name, "clear", null, null);
+			assertEquals(0, cache.size());
+		} finally {
+			cache.unregister();
+		}
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		CmisObjectCache cache = new CmisObjectCache(10, 10);
+		cache.put(object("a", 1));
+		Thread.sleep(50);
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.getExpirations());
+	}
+
+	@Test
+	public void testDisabled() {
+		CmisObjectCache cache = new CmisObjectCache(0, 60000);
+		cache.put(object("a", 1));
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,148 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.couchbase.CmisObject;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseException;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseService;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.client.java.CouchbaseCluster;
+
+import static org.junit.Assert.*;
+
+/**
+ * Creates many documents in the same folder from several threads and checks
+ * that no child is lost by the concurrent updates of the folder.
+ */
+public class TestConcurrentChildren {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TestConcurrentChildren.class);
+
+	static final String bucketId = "cmismeta";
+	static final String folderName = "concurrentChildren";
+	static final int CHILDREN_COUNT = 10000;
+	static final int THREADS = 32;
+	/** Size of the pages of the child index. */
+	static final int PAGE_SIZE = 200;
+
+	static CouchbaseCluster cluster = null;
+	static CouchbaseService cbService = null;
+	static CmisObject folder = null;
+
+	@BeforeClass
+	static public void before() throws CouchbaseException {
+		cluster = CouchbaseCluster.create("192.168.56.105");
+		cbService = new CouchbaseService(cluster, bucketId);
+
+		CmisObject root = cbService.getCmisObject(CouchbaseRepository.ROOT_ID);
+		folder = cbService.createFolder(root, folderName, "test");
+	}
+
+	@AfterClass
+	static public void after() throws CouchbaseException {
+		if (cbService != null) {
+			if (folder != null) {
+				List<String> childrenIds = cbService.getChildrenIds(folder.getId(), 0, Integer.MAX_VALUE);
+				for (CmisObject child : cbService.getCmisObjects(childrenIds)) {
+					cbService.deleteProperties(child, "test");
+				}
+				cbService.deleteProperties(cbService.getCmisObject(folder.getId()), "test");
+			}
+			cbService.close();
+			cbService = null;
+		}
+	}
+
+	@Test
+	public void testConcurrentCreate() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < CHILDREN_COUNT; i++) {
+			final String name = "doc" + i + ".txt";
+			futures.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					// every writer starts from its own, soon stale, copy of the folder
+					CmisObject parent = cbService.getCmisObject(folder.getId());
+					ContentStream cStream = new ContentStreamImpl(name,
+							"text/plain", "concurrent document " + name);
+					return cbService.createDocument(parent, name, "test", cStream).getId();
+				}
+			}));
+		}
+
+		Set<String> created = new HashSet<String>();
+		long start = System.currentTimeMillis();
+		for (Future<String> future : futures) {
+			created.add(future.get());
+		}
+		executor.shutdown();
+		LOG.info("{} documents created by {} threads in {} ms",
+				CHILDREN_COUNT, THREADS, System.currentTimeMillis() - start);
+
+		assertEquals(CHILDREN_COUNT, created.size());
+		assertEquals(CHILDREN_COUNT, cbService.getChildrenCount(folder.getId()));
+
+		List<String> childrenIds = cbService.getChildrenIds(folder.getId(), 0, Integer.MAX_VALUE);
+		assertEquals(CHILDREN_COUNT, childrenIds.size());
+		assertEquals(created, new HashSet<String>(childrenIds));
+	}
+
+	/**
+	 * Pages emptied by removals are not read any more, and a page of
+	 * children deep in a folder is read from the pages holding it.
+	 */
+	@Test
+	public void testPagingAfterRemovals() throws Exception {
+		CmisObject root = cbService.getCmisObject(CouchbaseRepository.ROOT_ID);
+		CmisObject sparse = cbService.createFolder(root, "sparseChildren", "test");
+		try {
+			List<CmisObject> children = new ArrayList<CmisObject>();
+			for (int i = 0; i < 3 * PAGE_SIZE; i++) {
+				CmisObject parent = cbService.getCmisObject(sparse.getId());
+				children.add(cbService.createDocument(parent, "doc" + i + ".txt",
+						"test", new ContentStreamImpl("doc" + i + ".txt",
+								"text/plain", "document " + i)));
+			}
+			// the first two pages emptied but for their first child
+			List<String> kept = new ArrayList<String>();
+			for (int i = 0; i < children.size(); i++) {
+				if (i % PAGE_SIZE == 0 || i >= 2 * PAGE_SIZE)
+					kept.add(children.get(i).getId());
+				else
+					cbService.deleteProperties(cbService.getCmisObject(children
+							.get(i).getId()), "test");
+			}
+
+			assertEquals(kept.size(), cbService.getChildrenCount(sparse.getId()));
+			assertEquals(kept, cbService.getChildrenIds(sparse.getId(), 0,
+					Integer.MAX_VALUE));
+			assertEquals(kept.subList(1, 11), cbService.getChildrenIds(
+					sparse.getId(), 1, 10));
+			assertEquals(kept.subList(100, 110), cbService.getChildrenIds(
+					sparse.getId(), 100, 10));
+		} finally {
+			for (CmisObject child : cbService.getCmisObjects(cbService
+					.getChildrenIds(sparse.getId(), 0, Integer.MAX_VALUE))) {
+				cbService.deleteProperties(child, "test");
+			}
+			cbService.deleteProperties(cbService.getCmisObject(sparse.getId()), "test");
+		}
+	}
+}
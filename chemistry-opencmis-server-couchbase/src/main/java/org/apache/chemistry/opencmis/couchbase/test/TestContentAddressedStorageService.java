@@ -0,0 +1,220 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.couchbase.ContentAddressedStorageService;
+import org.apache.chemistry.opencmis.couchbase.InMemoryContentReferences;
+import org.apache.chemistry.opencmis.couchbase.LocalStorageService;
+import org.apache.chemistry.opencmis.couchbase.StorageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestContentAddressedStorageService {
+
+	static final int SIZE = 100 * 1024;
+
+	File root = null;
+	File temp = null;
+	InMemoryContentReferences references = null;
+	ContentAddressedStorageService storage = null;
+	byte[] content = null;
+
+	@Before
+	public void before() throws IOException {
+		root = File.createTempFile("casStorage", "");
+		root.delete();
+		root.mkdirs();
+		temp = new File(root, "temp");
+		temp.mkdirs();
+		references = new InMemoryContentReferences();
+		storage = new ContentAddressedStorageService(new LocalStorageService(
+				new File(root, "blobs").getPath()), references);
+		storage.setTempDir(temp);
+		content = new byte[SIZE];
+		new Random(42).nextBytes(content);
+	}
+
+	@After
+	public void after() {
+		storage.close();
+		TestLocalStorageService.delete(root);
+	}
+
+	@Test
+	public void testStoredOnce() throws Exception {
+		write("a", content);
+		write("b", content);
+		write("c", new byte[] { 1, 2, 3 });
+
+		assertEquals(2, blobs().size());
+		assertEquals(0, temp.listFiles().length);
+		assertArrayEquals(content, read("a"));
+		assertArrayEquals(content, read("b"));
+		assertEquals(2, references.getReferenceCount(references.getHash("a")));
+		assertEquals(references.getHash("a"), references.getHash("b"));
+	}
+
+	@Test
+	public void testMimeTypeOfEachContent() throws Exception {
+		write("a", content, "text/plain");
+		write("b", content, "application/pdf");
+		storage.copyContent("b", "copy");
+
+		assertEquals(1, blobs().size());
+		assertEquals("text/plain", storage.getContent("a", null, null, "a")
+				.getMimeType());
+		assertEquals("application/pdf", storage.getContent("b", null, null,
+				"b").getMimeType());
+		assertEquals("application/pdf", storage.getContent("copy", null,
+				null, "copy").getMimeType());
+	}
+
+	@Test
+	public void testDeletedWithTheLastReference() throws Exception {
+		write("a", content);
+		write("b", content);
+		String hash = references.getHash("a");
+
+		assertTrue(storage.deleteContent("a"));
+		assertFalse(storage.exists("a"));
+		assertEquals(1, blobs().size());
+		assertArrayEquals(content, read("b"));
+
+		assertTrue(storage.deleteContent("b"));
+		assertEquals(0, blobs().size());
+		assertEquals(0, references.getReferenceCount(hash));
+		assertFalse(storage.deleteContent("b"));
+
+		// stored again
+		write("a", content);
+		assertArrayEquals(content, read("a"));
+	}
+
+	@Test
+	public void testLateDeleter() throws Exception {
+		storage.close();
+		references = new InMemoryContentReferences() {
+			@Override
+			public synchronized boolean isDeleting(String hash) {
+				// the deletion was abandoned, and the blob written again
+				forget(hash);
+				try {
+					write("b", content);
+				} catch (StorageException e) {
+					throw new IllegalStateException(e);
+				}
+				return super.isDeleting(hash);
+			}
+		};
+		storage = new ContentAddressedStorageService(new LocalStorageService(
+				new File(root, "blobs").getPath()), references);
+		storage.setTempDir(temp);
+
+		write("a", content);
+		assertTrue(storage.deleteContent("a"));
+		// the late deleter left the blob of the new reference
+		assertEquals(1, blobs().size());
+		assertArrayEquals(content, read("b"));
+	}
+
+	@Test
+	public void testMoveAndCopy() throws Exception {
+		write("a", content);
+		File blob = blobs().get(0);
+		long modified = blob.lastModified();
+
+		storage.moveContent("a", "moved");
+		assertFalse(storage.exists("a"));
+		storage.copyContent("moved", "copy");
+		assertArrayEquals(content, read("moved"));
+		assertArrayEquals(content, read("copy"));
+		// the blob was neither rewritten nor copied
+		assertEquals(1, blobs().size());
+		assertEquals(modified, blob.lastModified());
+		assertEquals(2, references.getReferenceCount(references.getHash("copy")));
+	}
+
+	@Test
+	public void testAlreadyExists() throws Exception {
+		write("a", content);
+		write("b", new byte[] { 1 });
+		try {
+			write("a", new byte[] { 2 });
+			fail("the content exists");
+		} catch (StorageException e) {
+			// expected
+		}
+		try {
+			storage.copyContent("b", "a");
+			fail("the content exists");
+		} catch (StorageException e) {
+			// expected
+		}
+		assertEquals(2, blobs().size());
+		assertEquals(1, references.getReferenceCount(references.getHash("b")));
+		assertArrayEquals(content, read("a"));
+	}
+
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 32; i++) {
+				final String id = "doc" + i;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						write(id, content);
+						assertTrue(storage.deleteContent(id));
+						write(id, content);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures)
+				future.get();
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, blobs().size());
+		assertEquals(32, references.getReferenceCount(references.getHash("doc0")));
+		for (int i = 0; i < 32; i++)
+			assertArrayEquals(content, read("doc" + i));
+	}
+
+	private List<File> blobs() {
+		return TestLocalStorageService.files(new File(root, "blobs"));
+	}
+
+	private void write(String dataId, byte[] bytes) throws StorageException {
+		write(dataId, bytes, "application/octet-stream");
+	}
+
+	private void write(String dataId, byte[] bytes, String mimeType)
+			throws StorageException {
+		storage.writeContent(dataId, new ContentStreamImpl(dataId, BigInteger
+				.valueOf(bytes.length), mimeType, new ByteArrayInputStream(
+				bytes)));
+	}
+
+	private byte[] read(String dataId) throws Exception {
+		ContentStream stream = storage.getContent(dataId, null, null, dataId);
+		return MockS3Server.read(stream.getStream());
+	}
+}
@@ -0,0 +1,254 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.data.Properties;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.data.RepositoryInfo;
+import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
+import org.apache.chemistry.opencmis.commons.enums.CapabilityChanges;
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.InMemoryMetadataStore;
+import org.apache.chemistry.opencmis.couchbase.LocalStorageService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestContentChanges {
+
+	InMemoryMetadataStore store = null;
+	CouchbaseRepository repo = null;
+	CallContext context = null;
+	File storageDir = null;
+	/** Tokens counted, without their event yet. */
+	int reserved = 0;
+
+	@Before
+	public void before() throws Exception {
+		storageDir = File.createTempFile("contentChanges", "");
+		storageDir.delete();
+		storageDir.mkdirs();
+
+		store = new InMemoryMetadataStore() {
+			@Override
+			public long getLatestChangeToken() {
+				return super.getLatestChangeToken() + reserved;
+			}
+		};
+		repo = new CouchbaseRepository("test", new CouchbaseTypeManager());
+		repo.setMetadataStore(store);
+		repo.setStorageService(new LocalStorageService(storageDir.getPath()));
+		repo.setUserReadWrite("test");
+		context = Fixtures.createContext("test", "test", false);
+	}
+
+	@After
+	public void after() {
+		TestLocalStorageService.delete(storageDir);
+	}
+
+	@Test
+	public void testChangesInOrder() {
+		String folder = createFolder(CouchbaseRepository.ROOT_ID, "folder");
+		String doc = createDocument(CouchbaseRepository.ROOT_ID, "doc.txt");
+		repo.moveObject(context, new Holder<String>(doc), folder, null);
+		repo.deleteObject(context, doc);
+
+		Holder<String> token = new Holder<String>();
+		ObjectList changes = repo.getContentChanges(context, token, false,
+				null, null, null);
+		assertEquals(4, changes.getObjects().size());
+		assertChange(changes, 0, ChangeType.CREATED, folder);
+		assertChange(changes, 1, ChangeType.CREATED, doc);
+		assertChange(changes, 2, ChangeType.UPDATED, doc);
+		assertChange(changes, 3, ChangeType.DELETED, doc);
+		assertEquals("4", token.getValue());
+		assertFalse(changes.hasMoreItems());
+	}
+
+	@Test
+	public void testPaging() {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 5; i++)
+			ids.add(createFolder(CouchbaseRepository.ROOT_ID, "folder" + i));
+
+		Holder<String> token = new Holder<String>();
+		ObjectList changes = repo.getContentChanges(context, token, false,
+				null, BigInteger.valueOf(2), null);
+		assertEquals(2, changes.getObjects().size());
+		assertTrue(changes.hasMoreItems());
+		assertEquals("2", token.getValue());
+
+		// the change of the token is returned first
+		changes = repo.getContentChanges(context, token, false, null,
+				BigInteger.valueOf(10), null);
+		assertEquals(4, changes.getObjects().size());
+		assertChange(changes, 0, ChangeType.CREATED, ids.get(1));
+		assertChange(changes, 3, ChangeType.CREATED, ids.get(4));
+		assertFalse(changes.hasMoreItems());
+		assertEquals("5", token.getValue());
+
+		// nothing new : only the last change again
+		changes = repo.getContentChanges(context, token, false, null, null,
+				null);
+		assertEquals(1, changes.getObjects().size());
+		assertEquals("5", token.getValue());
+	}
+
+	@Test
+	public void testEventBeingWritten() {
+		createFolder(CouchbaseRepository.ROOT_ID, "folder1");
+		createFolder(CouchbaseRepository.ROOT_ID, "folder2");
+		// the counter of the next event is bumped, its event not written
+		reserved = 1;
+
+		Holder<String> token = new Holder<String>("3");
+		ObjectList changes = repo.getContentChanges(context, token, false,
+				null, null, null);
+		assertEquals(0, changes.getObjects().size());
+		assertTrue(changes.hasMoreItems());
+		// not skipped
+		assertEquals("3", token.getValue());
+
+		reserved = 0;
+		String folder3 = createFolder(CouchbaseRepository.ROOT_ID, "folder3");
+		changes = repo.getContentChanges(context, token, false, null, null,
+				null);
+		assertEquals(1, changes.getObjects().size());
+		assertChange(changes, 0, ChangeType.CREATED, folder3);
+		assertEquals("3", token.getValue());
+		assertFalse(changes.hasMoreItems());
+	}
+
+	@Test
+	public void testNoItems() {
+		createFolder(CouchbaseRepository.ROOT_ID, "folder");
+
+		Holder<String> token = new Holder<String>("1");
+		ObjectList changes = repo.getContentChanges(context, token, false,
+				null, BigInteger.ZERO, null);
+		assertEquals(0, changes.getObjects().size());
+		assertTrue(changes.hasMoreItems());
+		assertEquals("1", token.getValue());
+
+		// past the last change
+		token = new Holder<String>("2");
+		changes = repo.getContentChanges(context, token, false, null, null,
+				null);
+		assertFalse(changes.hasMoreItems());
+		assertEquals("2", token.getValue());
+	}
+
+	@Test
+	public void testIncludeProperties() {
+		String folder = createFolder(CouchbaseRepository.ROOT_ID, "folder");
+		String doc = createDocument(folder, "doc.txt");
+		List<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, "renamed"));
+		repo.updateProperties(context, new Holder<String>(folder),
+				new PropertiesImpl(propList), null);
+		repo.deleteObject(context, doc);
+
+		ObjectList changes = repo.getContentChanges(context,
+				new Holder<String>(), true, null, null, null);
+		assertEquals(4, changes.getObjects().size());
+		// the current properties of the objects still there
+		ObjectData created = changes.getObjects().get(0);
+		assertEquals("renamed", created.getProperties().getProperties()
+				.get(PropertyIds.NAME).getFirstValue());
+		assertChange(changes, 2, ChangeType.UPDATED, folder);
+		// only the id and the type of a deleted one
+		ObjectData deleted = changes.getObjects().get(3);
+		assertEquals(ChangeType.DELETED, deleted.getChangeEventInfo()
+				.getChangeType());
+		assertNull(deleted.getProperties().getProperties()
+				.get(PropertyIds.NAME));
+		assertEquals(BaseTypeId.CMIS_DOCUMENT.value(), deleted
+				.getProperties().getProperties().get(PropertyIds.BASE_TYPE_ID)
+				.getFirstValue());
+	}
+
+	@Test
+	public void testDeleteTree() {
+		String top = createFolder(CouchbaseRepository.ROOT_ID, "top");
+		String sub = createFolder(top, "sub");
+		String doc = createDocument(sub, "doc.txt");
+		repo.deleteTree(context, top, false);
+
+		ObjectList changes = repo.getContentChanges(context,
+				new Holder<String>("4"), false, null, null, null);
+		List<String> deleted = new ArrayList<String>();
+		for (ObjectData change : changes.getObjects()) {
+			assertEquals(ChangeType.DELETED, change.getChangeEventInfo()
+					.getChangeType());
+			deleted.add(change.getId());
+		}
+		assertEquals(3, deleted.size());
+		assertTrue(deleted.containsAll(Arrays.asList(top, sub, doc)));
+	}
+
+	@Test
+	public void testRepositoryInfo() {
+		RepositoryInfo info = repo.getRepositoryInfo(context);
+		assertEquals(CapabilityChanges.PROPERTIES, info.getCapabilities()
+				.getChangesCapability());
+		assertEquals("0", info.getLatestChangeLogToken());
+
+		createFolder(CouchbaseRepository.ROOT_ID, "folder");
+		assertEquals("1", repo.getRepositoryInfo(context)
+				.getLatestChangeLogToken());
+	}
+
+	@Test(expected = CmisInvalidArgumentException.class)
+	public void testInvalidToken() {
+		repo.getContentChanges(context, new Holder<String>("abc"), false,
+				null, null, null);
+	}
+
+	private static void assertChange(ObjectList changes, int index,
+			ChangeType type, String objectId) {
+		ObjectData change = changes.getObjects().get(index);
+		assertEquals(type, change.getChangeEventInfo().getChangeType());
+		assertEquals(objectId, change.getId());
+	}
+
+	private String createFolder(String parentId, String name) {
+		List<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID,
+				"cmis:folder"));
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, name));
+		return repo.createFolder(context, new PropertiesImpl(propList), parentId);
+	}
+
+	private String createDocument(String parentId, String name) {
+		Collection<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID,
+				"cmis:document"));
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, name));
+		Properties properties = new PropertiesImpl(propList);
+		byte[] content = name.getBytes();
+		return repo.createDocument(context, properties, parentId,
+				new ContentStreamImpl(name, BigInteger.valueOf(content.length),
+						"text/plain", new ByteArrayInputStream(content)), null);
+	}
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 
 import org.apache.chemistry.opencmis.commons.PropertyIds;
@@ -14,6 +15,7 @@ import org.apache.chemistry.opencmis.commons.data.PropertyData;
 import org.apache.chemistry.opencmis.commons.data.PropertyId;
 import org.apache.chemistry.opencmis.commons.data.PropertyString;
 import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
@@ -21,6 +23,7 @@ import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl
 import org.apache.chemistry.opencmis.commons.server.CallContext;
 import org.apache.chemistry.opencmis.commons.server.ObjectInfo;
 import org.apache.chemistry.opencmis.commons.server.ObjectInfoHandler;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
 import org.apache.chemistry.opencmis.couchbase.CmisObject;
 import org.apache.chemistry.opencmis.couchbase.CouchbaseException;
 import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
@@ -169,6 +172,60 @@ public class TestCouchbaseRepository {
 
 	
 
+	@Test
+	public void testMoveAndRename() throws CouchbaseException {
+		repo = new CouchbaseRepository(repoId, typeManager);
+		repo.setStorageService(storageService);
+		repo.setCouchbaseService(cbService);
+		repo.setUserReadWrite("test");
+		CallContext context = createFakeContext();
+
+		String folderA = repo.createFolder(context,
+				createFakeFolderProperties("moveA"), CouchbaseRepository.ROOT_ID);
+		String folderB = repo.createFolder(context,
+				createFakeFolderProperties("moveB"), CouchbaseRepository.ROOT_ID);
+		String folderC = repo.createFolder(context,
+				createFakeFolderProperties("moveC"), folderA);
+		try {
+			// the ids do not depend on the path
+			repo.moveObject(context, new Holder<String>(folderC), folderB,
+					createObjectInfoHandler());
+			assertEquals(folderB, cbService.getCmisObject(folderC).getParentId());
+			assertEquals(folderC, cbService.getChildId(folderB, "moveC"));
+			assertNull(cbService.getChildId(folderA, "moveC"));
+			assertEquals(0, cbService.getChildrenCount(folderA));
+			assertEquals(1, cbService.getChildrenCount(folderB));
+			assertEquals("/moveB/moveC",
+					cbService.getPath(cbService.getCmisObject(folderC)));
+			assertEquals(folderC, repo.getObjectByPath(context, "/moveB/moveC",
+					null, false, false, createObjectInfoHandler()).getId());
+
+			// a folder cannot go below itself
+			try {
+				repo.moveObject(context, new Holder<String>(folderB), folderC,
+						createObjectInfoHandler());
+				fail("folder moved into its own tree");
+			} catch (CmisConstraintException e) {
+				// expected
+			}
+
+			Properties rename = createFakeFolderProperties("renamedC");
+			repo.updateProperties(context, new Holder<String>(folderC),
+					new PropertiesImpl(Collections.<PropertyData<?>> singletonList(
+							rename.getProperties().get(PropertyIds.NAME))),
+					createObjectInfoHandler());
+			assertEquals("renamedC", cbService.getCmisObject(folderC).getName());
+			assertEquals(folderC, cbService.getChildId(folderB, "renamedC"));
+			assertNull(cbService.getChildId(folderB, "moveC"));
+			assertEquals(folderC, repo.getObjectByPath(context, "/moveB/renamedC",
+					null, false, false, createObjectInfoHandler()).getId());
+		} finally {
+			repo.deleteObject(context, folderC);
+			repo.deleteObject(context, folderB);
+			repo.deleteObject(context, folderA);
+		}
+	}
+
 	private Properties createFakeFolderProperties(String folderName) {
 
 		Collection<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
@@ -0,0 +1,88 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisPermissionDeniedException;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseUserManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCouchbaseUserManager {
+
+	CouchbaseUserManager users = null;
+
+	@Before
+	public void before() {
+		users = new CouchbaseUserManager();
+		users.addLogin("test", "test");
+		users.addLogin(" admin ", CouchbaseUserManager.hashPassword("secret"));
+	}
+
+	@Test
+	public void testPlainPassword() {
+		assertEquals("test", users.authenticate(Fixtures.createContext("test",
+				"test", false)));
+		assertFalse(accepts("test", "tesT"));
+		assertFalse(accepts("test", "test "));
+		assertFalse(accepts("test", null));
+		assertFalse(accepts("unknown", "test"));
+		assertFalse(accepts(null, "test"));
+	}
+
+	@Test
+	public void testHashedPassword() {
+		String hash = CouchbaseUserManager.hashPassword("secret");
+		assertTrue(hash.startsWith("{PBKDF2}"));
+		// salted
+		assertFalse(hash.equals(CouchbaseUserManager.hashPassword("secret")));
+
+		assertTrue(accepts("admin", "secret"));
+		assertFalse(accepts("admin", "secreT"));
+		assertFalse(accepts("admin", hash));
+	}
+
+	@Test
+	public void testVerifiedCache() throws InterruptedException {
+		users.setVerifiedCacheTtl(60000);
+		assertTrue(accepts("admin", "secret"));
+		assertTrue(accepts("admin", "secret"));
+		assertFalse(accepts("admin", "other"));
+		// the password verified last
+		assertTrue(accepts("admin", "secret"));
+
+		// a new password replaces the one remembered
+		users.addLogin("admin", CouchbaseUserManager.hashPassword("other"));
+		assertFalse(accepts("admin", "secret"));
+		assertTrue(accepts("admin", "other"));
+
+		users.setVerifiedCacheTtl(1);
+		assertTrue(accepts("admin", "other"));
+		Thread.sleep(5);
+		assertTrue(accepts("admin", "other"));
+		assertFalse(accepts("admin", "secret"));
+	}
+
+	@Test
+	public void testAddLogin() {
+		assertEquals(2, users.getLogins().size());
+		users.addLogin("test", "changed");
+		assertFalse(accepts("test", "test"));
+		assertTrue(accepts("test", "changed"));
+		assertEquals(2, users.getLogins().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidHash() {
+		users.addLogin("broken", "{PBKDF2}10000:abc");
+	}
+
+	private boolean accepts(String username, String password) {
+		try {
+			users.authenticate(Fixtures.createContext(username, password,
+					false));
+			return true;
+		} catch (CmisPermissionDeniedException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisContentAlreadyExistsException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.couchbase.CmisObject;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.InMemoryMetadataStore;
+import org.apache.chemistry.opencmis.couchbase.LocalStorageService;
+import org.apache.chemistry.opencmis.couchbase.StorageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCreateDocumentFromSource {
+
+	static final byte[] CONTENT = "the content of the source".getBytes();
+
+	InMemoryMetadataStore store = null;
+	CouchbaseRepository repo = null;
+	CallContext context = null;
+	File storageDir = null;
+	/** Copies made by the storage, and whether it can make them. */
+	AtomicInteger nativeCopies = new AtomicInteger();
+	boolean canCopy = true;
+
+	String folder, source;
+
+	@Before
+	public void before() throws IOException {
+		storageDir = File.createTempFile("fromSource", "");
+		storageDir.delete();
+		storageDir.mkdirs();
+
+		store = new InMemoryMetadataStore();
+		repo = new CouchbaseRepository("test", new CouchbaseTypeManager());
+		repo.setMetadataStore(store);
+		repo.setStorageService(new LocalStorageService(storageDir.getPath()) {
+			@Override
+			public boolean copyContent(String dataId, String newDataId)
+					throws StorageException {
+				if (!canCopy)
+					return false;
+				nativeCopies.incrementAndGet();
+				return super.copyContent(dataId, newDataId);
+			}
+		});
+		repo.setUserReadWrite("test");
+		context = Fixtures.createContext("test", "test", false);
+
+		folder = repo.createFolder(context, properties("cmis:folder", "folder"),
+				CouchbaseRepository.ROOT_ID);
+		source = repo.createDocument(context, properties("cmis:document",
+				"source.txt"), CouchbaseRepository.ROOT_ID,
+				new ContentStreamImpl("source.txt", BigInteger
+						.valueOf(CONTENT.length), "text/plain",
+						new ByteArrayInputStream(CONTENT)), null);
+	}
+
+	@After
+	public void after() {
+		TestLocalStorageService.delete(storageDir);
+	}
+
+	@Test
+	public void testCopy() throws Exception {
+		String copy = repo.createDocumentFromSource(context, source, null,
+				folder, null);
+		assertNotNull(copy);
+		assertFalse(source.equals(copy));
+		assertEquals(1, nativeCopies.get());
+
+		CmisObject data = store.getCmisObject(copy);
+		assertEquals("source.txt", data.getName());
+		assertEquals(folder, data.getParentId());
+		assertEquals("text/plain", data.getContentType());
+		assertEquals(CONTENT.length, data.getContentLength());
+		assertArrayEquals(CONTENT, read(copy));
+		assertArrayEquals(CONTENT, read(source));
+	}
+
+	@Test
+	public void testCopyWithNewName() throws Exception {
+		PropertiesImpl properties = new PropertiesImpl();
+		properties.addProperty(new PropertyStringImpl(PropertyIds.NAME,
+				"copy.txt"));
+		String copy = repo.createDocumentFromSource(context, source,
+				properties, CouchbaseRepository.ROOT_ID, null);
+		assertEquals("copy.txt", store.getCmisObject(copy).getName());
+		assertArrayEquals(CONTENT, read(copy));
+	}
+
+	@Test
+	public void testStreamedCopy() throws Exception {
+		canCopy = false;
+		String copy = repo.createDocumentFromSource(context, source, null,
+				folder, null);
+		assertEquals(0, nativeCopies.get());
+		assertArrayEquals(CONTENT, read(copy));
+	}
+
+	@Test
+	public void testNameTaken() throws Exception {
+		try {
+			repo.createDocumentFromSource(context, source, null,
+					CouchbaseRepository.ROOT_ID, null);
+			fail("the name is taken");
+		} catch (CmisContentAlreadyExistsException e) {
+			// expected
+		}
+		assertEquals(0, nativeCopies.get());
+		assertEquals(2, store.getChildrenCount(CouchbaseRepository.ROOT_ID));
+	}
+
+	@Test(expected = CmisObjectNotFoundException.class)
+	public void testSourceIsAFolder() {
+		repo.createDocumentFromSource(context, folder, null,
+				CouchbaseRepository.ROOT_ID, null);
+	}
+
+	private byte[] read(String id) throws IOException {
+		ContentStream stream = repo.getContentStream(context, id, null,
+				null);
+		return MockS3Server.read(stream.getStream());
+	}
+
+	private static PropertiesImpl properties(String typeId, String name) {
+		Collection<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID, typeId));
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, name));
+		return new PropertiesImpl(propList);
+	}
+}
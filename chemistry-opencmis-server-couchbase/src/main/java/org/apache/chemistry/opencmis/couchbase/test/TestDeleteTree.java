@@ -0,0 +1,173 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.FailedToDeleteData;
+import org.apache.chemistry.opencmis.commons.data.Properties;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseException;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.InMemoryMetadataStore;
+import org.apache.chemistry.opencmis.couchbase.LocalStorageService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestDeleteTree {
+
+	InMemoryMetadataStore store = null;
+	CouchbaseRepository repo = null;
+	CallContext context = null;
+	File storageDir = null;
+	/** Contents which cannot be deleted. */
+	Set<String> locked = new HashSet<String>();
+
+	String top, a, a1, deep, aTxt, b, topTxt;
+
+	/**
+	 * top/ { a/ { a1/ { deep.txt }, a.txt }, b/, top.txt }
+	 */
+	@Before
+	public void before() throws IOException {
+		storageDir = File.createTempFile("deleteTree", "");
+		storageDir.delete();
+		storageDir.mkdirs();
+
+		store = new InMemoryMetadataStore();
+		repo = new CouchbaseRepository("test", new CouchbaseTypeManager());
+		repo.setMetadataStore(store);
+		repo.setStorageService(new LocalStorageService(storageDir.getPath()) {
+			@Override
+			public boolean deleteContent(String dataId) {
+				if (locked.contains(dataId))
+					return false;
+				return super.deleteContent(dataId);
+			}
+		});
+		repo.setUserReadWrite("test");
+		context = Fixtures.createContext("test", "test", false);
+
+		top = createFolder(CouchbaseRepository.ROOT_ID, "top");
+		a = createFolder(top, "a");
+		a1 = createFolder(a, "a1");
+		deep = createDocument(a1, "deep.txt");
+		aTxt = createDocument(a, "a.txt");
+		b = createFolder(top, "b");
+		topTxt = createDocument(top, "top.txt");
+	}
+
+	@After
+	public void after() {
+		TestLocalStorageService.delete(storageDir);
+	}
+
+	@Test
+	public void testDeleteTree() throws CouchbaseException {
+		FailedToDeleteData failed = repo.deleteTree(context, top, false);
+		assertTrue(failed.getIds().isEmpty());
+
+		for (String id : new String[] { top, a, a1, deep, aTxt, b, topTxt })
+			assertFalse(exists(id));
+		assertEquals(0, TestLocalStorageService.files(storageDir).size());
+		assertEquals(0, store.getChildrenCount(CouchbaseRepository.ROOT_ID));
+		assertTrue(store.getDeletedTrees().isEmpty());
+		// the name is free again
+		createFolder(CouchbaseRepository.ROOT_ID, "top");
+	}
+
+	@Test
+	public void testFailureKeepsAncestors() throws CouchbaseException {
+		locked.add(deep);
+		FailedToDeleteData failed = repo.deleteTree(context, top, true);
+		assertEquals(set(deep, a1, a, top), new HashSet<String>(failed.getIds()));
+
+		assertTrue(exists(deep));
+		assertFalse(exists(aTxt));
+		assertFalse(exists(b));
+		assertFalse(exists(topTxt));
+		assertEquals(1, TestLocalStorageService.files(storageDir).size());
+		// the remains of the tree are not reachable
+		assertEquals(0, store.getChildrenCount(CouchbaseRepository.ROOT_ID));
+		assertEquals(set(top), new HashSet<String>(store.getDeletedTrees()));
+
+		// resumed once the content can be deleted
+		locked.clear();
+		repo.resumeDeleteTrees();
+		for (String id : new String[] { top, a, a1, deep })
+			assertFalse(exists(id));
+		assertEquals(0, TestLocalStorageService.files(storageDir).size());
+		assertTrue(store.getDeletedTrees().isEmpty());
+	}
+
+	@Test
+	public void testStopOnFailure() throws CouchbaseException {
+		locked.add(deep);
+		FailedToDeleteData failed = repo.deleteTree(context, top, false);
+		assertEquals(set(deep), new HashSet<String>(failed.getIds()));
+
+		// the levels above the failure are left
+		assertTrue(exists(aTxt));
+		assertTrue(exists(topTxt));
+		assertEquals(0, store.getChildrenCount(CouchbaseRepository.ROOT_ID));
+		assertEquals(set(top), new HashSet<String>(store.getDeletedTrees()));
+	}
+
+	@Test(expected = CmisConstraintException.class)
+	public void testNotAFolder() {
+		repo.deleteTree(context, topTxt, false);
+	}
+
+	private boolean exists(String id) {
+		try {
+			store.getCmisObject(id);
+			return true;
+		} catch (CouchbaseException e) {
+			return false;
+		}
+	}
+
+	private static Set<String> set(String... ids) {
+		Set<String> set = new HashSet<String>();
+		for (String id : ids)
+			set.add(id);
+		return set;
+	}
+
+	private String createFolder(String parentId, String name) {
+		List<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID,
+				"cmis:folder"));
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, name));
+		return repo.createFolder(context, new PropertiesImpl(propList), parentId);
+	}
+
+	private String createDocument(String parentId, String name) {
+		Collection<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID,
+				"cmis:document"));
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, name));
+		Properties properties = new PropertiesImpl(propList);
+		byte[] content = name.getBytes();
+		return repo.createDocument(context, properties, parentId,
+				new ContentStreamImpl(name, BigInteger.valueOf(content.length),
+						"text/plain", new ByteArrayInputStream(content)), null);
+	}
+}
@@ -0,0 +1,122 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderContainer;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.couchbase.CmisObject;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseException;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.InMemoryMetadataStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestDescendants {
+
+	InMemoryMetadataStore store = null;
+	CouchbaseRepository repo = null;
+	CallContext context = null;
+	String top = null;
+	int paths = 0;
+
+	/**
+	 * top/ { a/ { a1/ { deep.txt }, a.txt }, b/, top.txt }
+	 */
+	@Before
+	public void before() throws CouchbaseException {
+		store = new InMemoryMetadataStore() {
+			@Override
+			public String getPath(CmisObject data) throws CouchbaseException {
+				paths++;
+				return super.getPath(data);
+			}
+		};
+		repo = new CouchbaseRepository("test", new CouchbaseTypeManager());
+		repo.setMetadataStore(store);
+		repo.setUserReadWrite("test");
+		context = Fixtures.createContext("test", "test", true);
+
+		CmisObject root = store.getCmisObject(CouchbaseRepository.ROOT_ID);
+		CmisObject topFolder = store.createFolder(root, "top", "test");
+		CmisObject a = store.createFolder(topFolder, "a", "test");
+		CmisObject a1 = store.createFolder(a, "a1", "test");
+		createDocument(a1, "deep.txt");
+		createDocument(a, "a.txt");
+		store.createFolder(topFolder, "b", "test");
+		createDocument(topFolder, "top.txt");
+		top = topFolder.getId();
+	}
+
+	private void createDocument(CmisObject folder, String name)
+			throws CouchbaseException {
+		store.createDocument(folder, name, "test", new ContentStreamImpl(name,
+				"text/plain", name));
+	}
+
+	private List<ObjectInFolderContainer> descendants(Integer depth,
+			boolean foldersOnly) {
+		return repo.getDescendants(context, top, depth == null ? null
+				: BigInteger.valueOf(depth), null, false, true,
+				Fixtures.createObjectInfoHandler(), foldersOnly);
+	}
+
+	/**
+	 * The tree as "name{children}", in the order of the children.
+	 */
+	private String print(List<ObjectInFolderContainer> containers) {
+		StringBuilder sb = new StringBuilder();
+		for (ObjectInFolderContainer container : containers) {
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(container.getObject().getPathSegment());
+			if (container.getChildren() != null
+					&& !container.getChildren().isEmpty())
+				sb.append('{').append(print(container.getChildren())).append('}');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testDescendants() {
+		assertEquals("a{a1{deep.txt} a.txt} b top.txt", print(descendants(-1, false)));
+		// depth 2 by default
+		assertEquals("a{a1 a.txt} b top.txt", print(descendants(null, false)));
+		assertEquals("a b top.txt", print(descendants(1, false)));
+	}
+
+	@Test
+	public void testFolderTree() {
+		assertEquals("a{a1} b", print(descendants(-1, true)));
+		assertEquals("a b", print(descendants(1, true)));
+	}
+
+	@Test
+	public void testFilter() {
+		List<ObjectInFolderContainer> tree = repo.getDescendants(context, top,
+				BigInteger.ONE, PropertyIds.NAME, false, false,
+				Fixtures.createObjectInfoHandler(), false);
+		assertEquals(3, tree.size());
+		Map<String, PropertyData<?>> properties = tree.get(0).getObject()
+				.getObject().getProperties().getProperties();
+		assertTrue(properties.containsKey(PropertyIds.NAME));
+		assertFalse(properties.containsKey(PropertyIds.CREATED_BY));
+		// the path of the folders is not resolved when filtered out, only the
+		// one of the top folder for its object info
+		assertFalse(properties.containsKey(PropertyIds.PATH));
+		assertEquals(1, paths);
+	}
+
+	@Test(expected = CmisInvalidArgumentException.class)
+	public void testDepthZero() {
+		descendants(0, false);
+	}
+}
@@ -0,0 +1,108 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.util.List;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.couchbase.CmisObject;
+import org.apache.chemistry.opencmis.couchbase.CmisObjectCache;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseException;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseService;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.couchbase.client.java.CouchbaseCluster;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the latency of listing a large folder one child at a time with the
+ * bulk fetch used by getChildren.
+ */
+public class TestGetChildrenBenchmark {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TestGetChildrenBenchmark.class);
+
+	static final String bucketId = "cmismeta";
+	static final String folderName = "benchmarkChildren";
+	static final int CHILDREN_COUNT = 2000;
+	static final int PAGE_SIZE = 200;
+	static final int ROUNDS = 5;
+
+	static CouchbaseCluster cluster = null;
+	static CouchbaseService cbService = null;
+	static CmisObject folder = null;
+
+	@BeforeClass
+	static public void before() throws CouchbaseException {
+		cluster = CouchbaseCluster.create("192.168.56.105");
+		cbService = new CouchbaseService(cluster, bucketId);
+		// every round reads from Couchbase, not from the memory
+		cbService.setCache(new CmisObjectCache(0, 0));
+
+		CmisObject root = cbService.getCmisObject(CouchbaseRepository.ROOT_ID);
+		folder = cbService.createFolder(root, folderName, "test");
+		for (int i = 0; i < CHILDREN_COUNT; i++) {
+			ContentStream cStream = new ContentStreamImpl("doc" + i + ".txt",
+					"text/plain", "benchmark document " + i);
+			cbService.createDocument(folder, "doc" + i + ".txt", "test", cStream);
+		}
+		folder = cbService.getCmisObject(folder.getId());
+	}
+
+	@AfterClass
+	static public void after() throws CouchbaseException {
+		if (cbService != null) {
+			if (folder != null) {
+				List<String> childrenIds = cbService.getChildrenIds(folder.getId(), 0, Integer.MAX_VALUE);
+				for (CmisObject child : cbService.getCmisObjects(childrenIds)) {
+					cbService.deleteProperties(child, "test");
+				}
+				cbService.deleteProperties(cbService.getCmisObject(folder.getId()), "test");
+			}
+			cbService.close();
+			cbService = null;
+		}
+	}
+
+	@Test
+	public void testFolderListing() throws CouchbaseException {
+		List<String> childrenIds = cbService.getChildrenIds(folder.getId(), 0, Integer.MAX_VALUE);
+		assertEquals(CHILDREN_COUNT, childrenIds.size());
+		assertEquals(CHILDREN_COUNT, cbService.getChildrenCount(folder.getId()));
+
+		// warm up the connections
+		cbService.getCmisObjects(childrenIds.subList(0, PAGE_SIZE));
+
+		long serial = 0;
+		long bulk = 0;
+		long bulkPage = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (String childId : childrenIds) {
+				assertNotNull(cbService.getCmisObject(childId));
+			}
+			serial += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			assertEquals(CHILDREN_COUNT, cbService.getCmisObjects(childrenIds).size());
+			bulk += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			assertEquals(PAGE_SIZE, cbService.getCmisObjects(childrenIds.subList(0, PAGE_SIZE)).size());
+			bulkPage += System.nanoTime() - start;
+		}
+
+		LOG.info("getChildren {} children, one get per child : {} ms",
+				CHILDREN_COUNT, serial / ROUNDS / 1000000);
+		LOG.info("getChildren {} children, bulk get : {} ms", CHILDREN_COUNT,
+				bulk / ROUNDS / 1000000);
+		LOG.info("getChildren page of {}, bulk get : {} ms", PAGE_SIZE,
+				bulkPage / ROUNDS / 1000000);
+	}
+}
@@ -0,0 +1,169 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.couchbase.CmisObject;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseException;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.InMemoryMetadataStore;
+import org.apache.chemistry.opencmis.couchbase.MetadataQuery;
+import org.apache.chemistry.opencmis.couchbase.N1qlQueryTranslator;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestInMemoryMetadataStore {
+
+	InMemoryMetadataStore store = null;
+	CmisObject root = null;
+
+	@Before
+	public void before() throws CouchbaseException {
+		store = new InMemoryMetadataStore();
+		root = store.getCmisObject(CouchbaseRepository.ROOT_ID);
+	}
+
+	private CmisObject createDocument(CmisObject parent, String name)
+			throws CouchbaseException {
+		return store.createDocument(parent, name, "test", new ContentStreamImpl(
+				name, "text/plain", "content of " + name));
+	}
+
+	private List<String> names(List<CmisObject> objects) {
+		List<String> names = new ArrayList<String>();
+		for (CmisObject data : objects) {
+			names.add(data.getName());
+		}
+		return names;
+	}
+
+	private List<CmisObject> query(String statement, int skip, int max)
+			throws CouchbaseException {
+		MetadataQuery query = new N1qlQueryTranslator(new CouchbaseTypeManager(),
+				store.getBucketName(), store).translate(statement, skip, max);
+		return store.query(query);
+	}
+
+	@Test
+	public void testCreateAndRead() throws CouchbaseException {
+		CmisObject folder = store.createFolder(root, "folder", "test");
+		CmisObject doc = createDocument(folder, "doc.txt");
+
+		assertTrue(folder.isDirectory());
+		assertEquals(folder.getId(), doc.getParentId());
+		assertEquals("text/plain", doc.getContentType());
+		assertEquals("/folder/doc.txt", store.getPath(doc));
+		assertEquals(doc.getId(), store.getCmisObjectByPath("/folder/doc.txt").getId());
+		assertEquals(1, store.getChildrenCount(folder.getId()));
+		assertEquals(Arrays.asList(doc.getId()), store.getChildrenIds(folder.getId(), 0, 10));
+
+		// missing ids are skipped by the bulk get
+		List<CmisObject> objects = store.getCmisObjects(Arrays.asList(doc.getId(), "missing", folder.getId()));
+		assertEquals(Arrays.asList("doc.txt", "folder"), names(objects));
+
+		// the reads are copies
+		doc.setName("changed");
+		assertEquals("doc.txt", store.getCmisObject(doc.getId()).getName());
+
+		try {
+			store.getCmisObject("missing");
+			fail("missing object was read");
+		} catch (CouchbaseException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testNameIsUnique() throws Exception {
+		final CmisObject folder = store.createFolder(root, "folder", "test");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 16; i++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					try {
+						createDocument(folder, "same.txt");
+						return true;
+					} catch (CouchbaseException e) {
+						return false;
+					}
+				}
+			}));
+		}
+		int created = 0;
+		for (Future<Boolean> result : results) {
+			if (result.get())
+				created++;
+		}
+		executor.shutdown();
+
+		assertEquals(1, created);
+		assertEquals(1, store.getChildrenCount(folder.getId()));
+	}
+
+	@Test
+	public void testMoveRenameAndDelete() throws CouchbaseException {
+		CmisObject folderA = store.createFolder(root, "folderA", "test");
+		CmisObject folderB = store.createFolder(root, "folderB", "test");
+		CmisObject doc = createDocument(folderA, "doc.txt");
+		createDocument(folderB, "other.txt");
+
+		assertTrue(store.moveObject(doc, folderB, "test"));
+		assertEquals(0, store.getChildrenCount(folderA.getId()));
+		assertEquals(2, store.getChildrenCount(folderB.getId()));
+		assertEquals("/folderB/doc.txt", store.getPath(store.getCmisObject(doc.getId())));
+		assertTrue(store.isInTree(folderB, CouchbaseRepository.ROOT_ID));
+		assertFalse(store.isInTree(folderB, folderA.getId()));
+
+		assertFalse(store.renameObject(doc, "other.txt", "test"));
+		assertTrue(store.renameObject(doc, "renamed.txt", "test"));
+		assertEquals(doc.getId(), store.getCmisObjectByPath("/folderB/renamed.txt").getId());
+		assertFalse(store.async().hasChild(folderB.getId(), "doc.txt").toBlocking().single());
+
+		assertTrue(store.deleteProperties(store.getCmisObject(doc.getId()), "test"));
+		assertEquals(1, store.getChildrenCount(folderB.getId()));
+		assertTrue(store.async().getCmisObject(doc.getId()).isEmpty().toBlocking().single());
+	}
+
+	@Test
+	public void testQuery() throws CouchbaseException {
+		CmisObject folder = store.createFolder(root, "folder", "test");
+		CmisObject sub = store.createFolder(folder, "sub", "test");
+		createDocument(folder, "b.txt");
+		createDocument(folder, "a.txt");
+		createDocument(sub, "c.pdf");
+		createDocument(root, "d.txt");
+
+		assertEquals(Arrays.asList("a.txt", "b.txt", "c.pdf", "d.txt"),
+				names(query("SELECT * FROM cmis:document ORDER BY cmis:name", 0, -1)));
+		assertEquals(Arrays.asList("a.txt", "b.txt"),
+				names(query("SELECT * FROM cmis:document WHERE IN_FOLDER('" + folder.getId()
+						+ "') ORDER BY cmis:name", 0, -1)));
+		assertEquals(Arrays.asList("c.pdf", "b.txt", "a.txt"),
+				names(query("SELECT * FROM cmis:document WHERE IN_TREE('" + folder.getId()
+						+ "') ORDER BY cmis:name DESC", 0, -1)));
+		assertEquals(Arrays.asList("a.txt", "b.txt", "d.txt"),
+				names(query("SELECT * FROM cmis:document WHERE cmis:name LIKE '%.txt'"
+						+ " AND NOT cmis:name = 'x' ORDER BY cmis:name", 0, -1)));
+		assertEquals(Arrays.asList("folder", "sub"),
+				names(query("SELECT * FROM cmis:folder WHERE cmis:name IN ('folder', 'sub')"
+						+ " ORDER BY cmis:name", 0, -1)));
+
+		// one more row than the page, as the N1QL statement
+		assertEquals(Arrays.asList("b.txt", "c.pdf"),
+				names(query("SELECT * FROM cmis:document ORDER BY cmis:name", 1, 1)));
+		MetadataQuery count = new N1qlQueryTranslator(new CouchbaseTypeManager(),
+				store.getBucketName(), store).translate("SELECT * FROM cmis:document", 1, 1);
+		assertEquals(4L, store.async().count(count).toBlocking().single().longValue());
+	}
+}
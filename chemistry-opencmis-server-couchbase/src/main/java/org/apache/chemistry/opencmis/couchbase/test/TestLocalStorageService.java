@@ -0,0 +1,259 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.PartialContentStream;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.couchbase.FileChannelContentStream;
+import org.apache.chemistry.opencmis.couchbase.LocalStorageService;
+import org.apache.chemistry.opencmis.couchbase.StorageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLocalStorageService {
+
+	static final int SIZE = 200 * 1024;
+
+	File root = null;
+	LocalStorageService storage = null;
+	byte[] content = null;
+
+	@Before
+	public void before() throws IOException, StorageException {
+		root = File.createTempFile("localStorage", "");
+		root.delete();
+		root.mkdirs();
+		storage = new LocalStorageService(root.getPath());
+		content = new byte[SIZE];
+		new Random(42).nextBytes(content);
+		storage.writeContent("doc", new ContentStreamImpl("doc.bin",
+				BigInteger.valueOf(SIZE), "application/octet-stream",
+				new ByteArrayInputStream(content)));
+	}
+
+	@After
+	public void after() {
+		delete(root);
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	/**
+	 * The files below a directory, whatever their depth.
+	 */
+	static List<File> files(File dir) {
+		List<File> files = new ArrayList<File>();
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory())
+				files.addAll(files(file));
+			else
+				files.add(file);
+		}
+		return files;
+	}
+
+	@Test
+	public void testGetContent() throws IOException {
+		ContentStream stream = storage.getContent("doc", null, null, "doc.bin");
+		assertTrue(stream instanceof FileChannelContentStream);
+		assertFalse(stream instanceof PartialContentStream);
+		assertEquals(SIZE, stream.getLength());
+		assertArrayEquals(content, read(stream.getStream()));
+	}
+
+	@Test
+	public void testGetRange() throws IOException {
+		ContentStream stream = storage.getContent("doc",
+				BigInteger.valueOf(150000), BigInteger.valueOf(1000), "doc.bin");
+		assertTrue(stream instanceof PartialContentStream);
+		// the exact length of the range, known before reading
+		assertEquals(1000, stream.getLength());
+		assertArrayEquals(Arrays.copyOfRange(content, 150000, 151000),
+				read(stream.getStream()));
+
+		// up to the end of the file
+		stream = storage.getContent("doc", BigInteger.valueOf(SIZE - 10),
+				BigInteger.valueOf(1000), "doc.bin");
+		assertEquals(10, stream.getLength());
+		assertArrayEquals(Arrays.copyOfRange(content, SIZE - 10, SIZE),
+				read(stream.getStream()));
+
+		stream = storage.getContent("doc", BigInteger.valueOf(SIZE), null,
+				"doc.bin");
+		assertEquals(0, stream.getLength());
+		assertEquals(-1, stream.getStream().read());
+	}
+
+	@Test
+	public void testInvalidRange() throws IOException {
+		for (long length : new long[] { 0, -1 }) {
+			try {
+				storage.getContent("doc", BigInteger.ZERO,
+						BigInteger.valueOf(length), "doc.bin");
+				fail("length " + length + " accepted");
+			} catch (CmisConstraintException e) {
+				// expected
+			}
+		}
+		try {
+			storage.getContent("doc", BigInteger.valueOf(-1), null, "doc.bin");
+			fail("negative offset accepted");
+		} catch (CmisConstraintException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSkip() throws IOException {
+		ContentStream stream = storage.getContent("doc",
+				BigInteger.valueOf(100), BigInteger.valueOf(100), "doc.bin");
+		InputStream in = stream.getStream();
+		assertEquals(50, in.skip(50));
+		assertEquals(content[150] & 0xff, in.read());
+		assertEquals(49, in.skip(1000));
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	@Test
+	public void testTransferTo() throws IOException {
+		FileChannelContentStream stream = (FileChannelContentStream) storage
+				.getContent("doc", BigInteger.valueOf(1000),
+						BigInteger.valueOf(100000), "doc.bin");
+		File copy = new File(root, "copy");
+		RandomAccessFile out = new RandomAccessFile(copy, "rw");
+		FileChannel target = out.getChannel();
+		try {
+			assertEquals(100000, stream.transferTo(target));
+		} finally {
+			out.close();
+		}
+		assertFalse(stream.getChannel().isOpen());
+		assertArrayEquals(Arrays.copyOfRange(content, 1000, 101000),
+				read(storage.getContent("copy", null, null, "copy").getStream()));
+	}
+
+	@Test
+	public void testCopyContent() throws Exception {
+		assertTrue(storage.copyContent("doc", "copy"));
+		assertArrayEquals(content, read(storage.getContent("copy", null, null,
+				"copy").getStream()));
+		assertArrayEquals(content, read(storage.getContent("doc", null, null,
+				"doc").getStream()));
+		assertEquals(2, files(root).size());
+		try {
+			storage.copyContent("doc", "copy");
+			fail("the copy exists");
+		} catch (StorageException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testShardedLayout() throws Exception {
+		for (int i = 0; i < 50; i++)
+			storage.writeContent("doc" + i, new ContentStreamImpl("doc",
+					BigInteger.ONE, "text/plain", new ByteArrayInputStream(
+							new byte[] { (byte) i })));
+		// nothing in the root but the first level of shards
+		for (File file : root.listFiles()) {
+			assertTrue(file.isDirectory());
+			assertEquals(2, file.getName().length());
+			for (File shard : file.listFiles())
+				assertEquals(2, shard.getName().length());
+		}
+		assertEquals(51, files(root).size());
+		assertTrue(storage.exists("doc7"));
+		assertEquals(7, storage.getContent("doc7", null, null, "doc")
+				.getStream().read());
+	}
+
+	@Test
+	public void testFailedWriteLeavesNothing() throws Exception {
+		InputStream failing = new InputStream() {
+			int count = 0;
+
+			@Override
+			public int read() throws IOException {
+				if (++count > 1000)
+					throw new IOException("disconnected");
+				return 1;
+			}
+		};
+		try {
+			storage.writeContent("partial", new ContentStreamImpl("partial",
+					BigInteger.valueOf(SIZE), "text/plain", failing));
+			fail("the write should fail");
+		} catch (CmisStorageException e) {
+			// expected
+		}
+		assertFalse(storage.exists("partial"));
+		// no temporary file left behind
+		assertEquals(1, files(root).size());
+	}
+
+	@Test
+	public void testMigration() throws Exception {
+		LocalStorageService sync = new LocalStorageService(root.getPath());
+		sync.setSync(true);
+		sync.writeContent("synced", new ContentStreamImpl("synced",
+				BigInteger.ONE, "text/plain", new ByteArrayInputStream(
+						new byte[] { 1 })));
+
+		// stored flat by a former version, and an interrupted write
+		for (int i = 0; i < 10; i++) {
+			FileOutputStream out = new FileOutputStream(new File(root, "flat"
+					+ i));
+			out.write(i + 1);
+			out.close();
+		}
+		new File(root, ".tmp-123").createNewFile();
+		// found before the migration
+		assertTrue(storage.exists("flat3"));
+
+		assertEquals(10, storage.migrateToShards());
+		for (File file : root.listFiles())
+			assertTrue(file.isDirectory());
+		assertEquals(12, files(root).size());
+		assertEquals(4, storage.getContent("flat3", null, null, "flat3")
+				.getStream().read());
+		assertTrue(storage.deleteContent("flat3"));
+		assertFalse(storage.exists("flat3"));
+		// run again
+		assertEquals(0, storage.migrateToShards());
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[7000];
+		int n;
+		while ((n = in.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,161 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderList;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.data.Properties;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.InMemoryMetadataStore;
+import org.apache.chemistry.opencmis.couchbase.Tracing;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput of the metadata path of the repository, measured against the
+ * {@link InMemoryMetadataStore} so that it runs without a cluster : the
+ * numbers are those of the repository itself, not of Couchbase.
+ */
+public class TestMetadataStoreBenchmark {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TestMetadataStoreBenchmark.class);
+
+	static final int FOLDER_COUNT = 2000;
+	static final int PAGE_SIZE = 100;
+	static final int ROUNDS = 5;
+
+	static InMemoryMetadataStore store = null;
+	static CouchbaseRepository repo = null;
+	static CallContext context = null;
+	static String folderId = null;
+
+	@BeforeClass
+	static public void before() {
+		store = new InMemoryMetadataStore();
+		repo = new CouchbaseRepository("benchmark", new CouchbaseTypeManager());
+		repo.setMetadataStore(store);
+		repo.setUserReadWrite("test");
+		context = Fixtures.createContext("test", "test", true);
+		folderId = repo.createFolder(context, createFolderProperties("benchmark"),
+				CouchbaseRepository.ROOT_ID);
+	}
+
+	@AfterClass
+	static public void after() {
+		if (repo != null) {
+			repo.close();
+			repo = null;
+		}
+	}
+
+	@Test
+	public void testThroughput() {
+		// create
+		long start = System.nanoTime();
+		String[] ids = new String[FOLDER_COUNT];
+		for (int i = 0; i < FOLDER_COUNT; i++) {
+			ids[i] = repo.createFolder(context, createFolderProperties("folder" + i), folderId);
+		}
+		report("create", FOLDER_COUNT, System.nanoTime() - start);
+
+		// getChildren, page by page
+		int pages = 0;
+		start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int skip = 0; skip < FOLDER_COUNT; skip += PAGE_SIZE, pages++) {
+				ObjectInFolderList children = repo.getChildren(context, folderId, null, false,
+						false, BigInteger.valueOf(PAGE_SIZE), BigInteger.valueOf(skip),
+						Fixtures.createObjectInfoHandler());
+				assertEquals(PAGE_SIZE, children.getObjects().size());
+			}
+		}
+		report("getChildren page of " + PAGE_SIZE, pages, System.nanoTime() - start);
+
+		// getObject
+		start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++) {
+			for (String id : ids) {
+				assertNotNull(repo.getObject(context, id, null, null, false, false,
+						Fixtures.createObjectInfoHandler()));
+			}
+		}
+		report("getObject", ROUNDS * FOLDER_COUNT, System.nanoTime() - start);
+
+		// query, one page
+		start = System.nanoTime();
+		for (int round = 0; round < ROUNDS * 10; round++) {
+			ObjectList results = repo.query(context, "benchmark",
+					"SELECT * FROM cmis:folder WHERE IN_FOLDER('" + folderId
+							+ "') ORDER BY cmis:name",
+					false, false, null, null, BigInteger.valueOf(PAGE_SIZE), BigInteger.ZERO,
+					null, Fixtures.createObjectInfoHandler());
+			assertEquals(PAGE_SIZE, results.getObjects().size());
+			assertEquals(FOLDER_COUNT, results.getNumItems().intValue());
+		}
+		report("query page of " + PAGE_SIZE, ROUNDS * 10, System.nanoTime() - start);
+	}
+
+	/**
+	 * getChildren served as requests, none traced then all of them : the cost
+	 * of the debug output of the repository when it is not logged.
+	 */
+	@Test
+	public void testTracedGetChildren() {
+		String parentId = repo.createFolder(context,
+				createFolderProperties("traced"), CouchbaseRepository.ROOT_ID);
+		for (int i = 0; i < PAGE_SIZE; i++) {
+			repo.createFolder(context, createFolderProperties("folder" + i), parentId);
+		}
+
+		int sampleRate = Tracing.getSampleRate();
+		try {
+			for (int rate : new int[] { 0, 1 }) {
+				Tracing.setSampleRate(rate);
+				int requests = ROUNDS * FOLDER_COUNT / 10;
+				long start = System.nanoTime();
+				for (int i = 0; i < requests; i++) {
+					Tracing.begin("benchmark");
+					try {
+						ObjectInFolderList children = repo.getChildren(context, parentId, null,
+								false, false, BigInteger.valueOf(PAGE_SIZE), BigInteger.ZERO,
+								Fixtures.createObjectInfoHandler());
+						assertEquals(PAGE_SIZE, children.getObjects().size());
+					} finally {
+						Tracing.end();
+					}
+				}
+				report("getChildren page of " + PAGE_SIZE + ", sample rate " + rate,
+						requests, System.nanoTime() - start);
+			}
+		} finally {
+			Tracing.setSampleRate(sampleRate);
+		}
+	}
+
+	private static void report(String operation, int count, long nanos) {
+		LOG.info("{} : {} in {} ms, {} ops/s", operation, count,
+				nanos / 1000000, count * 1000000000L / Math.max(1, nanos));
+	}
+
+	private static Properties createFolderProperties(String folderName) {
+		Collection<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID, "cmis:folder"));
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, folderName));
+		return new PropertiesImpl(propList);
+	}
+}
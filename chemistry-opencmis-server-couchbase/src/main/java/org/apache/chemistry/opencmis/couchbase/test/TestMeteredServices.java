@@ -0,0 +1,89 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.data.Properties;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseRepository;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.InMemoryMetadataStore;
+import org.apache.chemistry.opencmis.couchbase.LocalStorageService;
+import org.apache.chemistry.opencmis.couchbase.MeteredMetadataStore;
+import org.apache.chemistry.opencmis.couchbase.MeteredStorageService;
+import org.apache.chemistry.opencmis.server.support.wrapper.CmisServiceMetrics;
+import org.apache.chemistry.opencmis.server.support.wrapper.LatencyHistogram;
+import org.apache.chemistry.opencmis.server.support.wrapper.OperationMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestMeteredServices {
+
+	CouchbaseRepository repo = null;
+	CallContext context = null;
+	File storageDir = null;
+	CmisServiceMetrics metrics = new CmisServiceMetrics(false);
+
+	@Before
+	public void before() throws Exception {
+		storageDir = File.createTempFile("metered", "");
+		storageDir.delete();
+		storageDir.mkdirs();
+
+		repo = new CouchbaseRepository("test", new CouchbaseTypeManager());
+		repo.setMetadataStore(new MeteredMetadataStore(
+				new InMemoryMetadataStore()));
+		repo.setStorageService(new MeteredStorageService(
+				new LocalStorageService(storageDir.getPath())));
+		repo.setUserReadWrite("test");
+		context = Fixtures.createContext("test", "test", false);
+	}
+
+	@After
+	public void after() {
+		TestLocalStorageService.delete(storageDir);
+	}
+
+	@Test
+	public void testSpans() {
+		OperationMetrics operation = metrics.getOperationMetrics("test",
+				"browser", "createDocument");
+		OperationMetrics previous = CmisServiceMetrics.enter(operation);
+		try {
+			createDocument(CouchbaseRepository.ROOT_ID, "doc.txt");
+		} finally {
+			CmisServiceMetrics.leave(previous);
+		}
+
+		Map<String, LatencyHistogram> spans = operation.getSpanLatencies();
+		assertTrue(spans.get("couchbase.kv").getCount() > 0);
+		assertEquals(1, spans.get("storage.local").getCount());
+		assertNull(spans.get("couchbase.n1ql"));
+	}
+
+	private String createDocument(String parentId, String name) {
+		Collection<PropertyData<?>> propList = new ArrayList<PropertyData<?>>();
+		propList.add(new PropertyIdImpl(PropertyIds.OBJECT_TYPE_ID,
+				"cmis:document"));
+		propList.add(new PropertyStringImpl(PropertyIds.NAME, name));
+		Properties properties = new PropertiesImpl(propList);
+		byte[] content = name.getBytes();
+		return repo.createDocument(context, properties, parentId,
+				new ContentStreamImpl(name, BigInteger.valueOf(content.length),
+						"text/plain", new ByteArrayInputStream(content)), null);
+	}
+}
@@ -0,0 +1,113 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import java.util.Arrays;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.couchbase.CouchbaseTypeManager;
+import org.apache.chemistry.opencmis.couchbase.MetadataQuery;
+import org.apache.chemistry.opencmis.couchbase.N1qlQueryTranslator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.couchbase.client.java.document.json.JsonArray;
+
+import static org.junit.Assert.*;
+
+public class TestN1qlQueryTranslator {
+
+	static final String bucketId = "cmismeta";
+	static final String SELECT = "SELECT META(m).id AS id FROM `cmismeta` m WHERE m.`cmis:objectTypeId` IN $1";
+
+	static CouchbaseTypeManager typeManager = null;
+
+	@BeforeClass
+	static public void before() {
+		typeManager = new CouchbaseTypeManager();
+	}
+
+	private MetadataQuery translate(String statement, int skip, int max) {
+		return new N1qlQueryTranslator(typeManager, bucketId, null).translate(
+				statement, skip, max);
+	}
+
+	@Test
+	public void testSelectAll() {
+		MetadataQuery query = translate("SELECT * FROM cmis:document", 0, -1);
+		assertEquals(SELECT + " ORDER BY META(m).id", query.getStatement());
+		assertEquals(
+				"SELECT COUNT(*) AS count FROM `cmismeta` m WHERE m.`cmis:objectTypeId` IN $1",
+				query.getCountStatement());
+		assertEquals(JsonArray.from(JsonArray.from("cmis:document")),
+				query.getParams());
+		assertNull(query.getFilter());
+		assertNull(query.getWhereTree());
+	}
+
+	@Test
+	public void testWhere() {
+		MetadataQuery query = translate(
+				"SELECT cmis:name FROM cmis:document WHERE cmis:name LIKE 'doc%' AND NOT (cmis:createdBy = 'test' OR cmis:contentStreamLength > 10)",
+				0, -1);
+		assertEquals(SELECT
+				+ " AND ((m.`cmis:name` LIKE $2 AND NOT ((m.`cmis:createdBy` = $3 OR m.`cmis:contentStreamLength` > $4))))"
+				+ " ORDER BY META(m).id", query.getStatement());
+		assertEquals("doc%", query.getParams().getString(1));
+		assertEquals("test", query.getParams().getString(2));
+		assertEquals(Long.valueOf(10), query.getParams().getLong(3));
+		assertEquals(1, query.getFilter().size());
+		assertTrue(query.getFilter().contains("cmis:name"));
+	}
+
+	@Test
+	public void testInAndNull() {
+		MetadataQuery query = translate(
+				"SELECT * FROM cmis:document WHERE cmis:createdBy IN ('a', 'b') AND cmis:contentStreamMimeType IS NULL",
+				0, -1);
+		assertEquals(SELECT
+				+ " AND ((m.`cmis:createdBy` IN $2 AND (m.`cmis:contentStreamMimeType` IS MISSING OR m.`cmis:contentStreamMimeType` IS NULL)))"
+				+ " ORDER BY META(m).id", query.getStatement());
+		assertEquals(JsonArray.from("a", "b"), query.getParams().getArray(1));
+	}
+
+	@Test
+	public void testTimestamp() {
+		MetadataQuery query = translate(
+				"SELECT * FROM cmis:document WHERE cmis:creationDate >= TIMESTAMP '2015-09-01T00:00:00.000Z'",
+				0, -1);
+		assertEquals(Long.valueOf(1441065600000L), query.getParams().getLong(1));
+	}
+
+	@Test
+	public void testInFolderAndRootTree() {
+		MetadataQuery query = translate(
+				"SELECT * FROM cmis:folder WHERE IN_FOLDER('abc') OR IN_TREE('@root@')",
+				0, -1);
+		assertEquals(SELECT
+				+ " AND ((m.`cmis:parentId` = $2 OR META(m).id != $3))"
+				+ " ORDER BY META(m).id", query.getStatement());
+		assertEquals(Arrays.asList((Object) "cmis:folder"), query.getParams()
+				.getArray(0).toList());
+	}
+
+	@Test
+	public void testOrderAndPage() {
+		MetadataQuery query = translate(
+				"SELECT * FROM cmis:document ORDER BY cmis:name DESC, cmis:creationDate",
+				20, 10);
+		assertEquals(SELECT
+				+ " ORDER BY m.`cmis:name` DESC, m.`cmis:creationDate` ASC, META(m).id"
+				+ " LIMIT 11 OFFSET 20", query.getStatement());
+		assertEquals(20, query.getSkipCount());
+		assertEquals(10, query.getMaxItems());
+	}
+
+	@Test(expected = CmisInvalidArgumentException.class)
+	public void testNotQueryable() {
+		translate("SELECT * FROM cmis:document WHERE cmis:isLatestVersion = true", 0, -1);
+	}
+
+	@Test(expected = CmisInvalidArgumentException.class)
+	public void testContains() {
+		translate("SELECT * FROM cmis:document WHERE CONTAINS('word')", 0, -1);
+	}
+}
@@ -0,0 +1,60 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import org.apache.chemistry.opencmis.couchbase.PathSegmentCache;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestPathSegmentCache {
+
+	@Test
+	public void testHitAndMiss() {
+		PathSegmentCache cache = new PathSegmentCache(10, 60000);
+		assertNull(cache.get("root", "a"));
+		cache.put("root", "a", "id-a");
+
+		assertEquals("id-a", cache.get("root", "a"));
+		assertNull(cache.get("other", "a"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testInvalidate() {
+		PathSegmentCache cache = new PathSegmentCache(10, 60000);
+		cache.put("root", "a", "id-a");
+		cache.invalidate("root", "a");
+		assertNull(cache.get("root", "a"));
+	}
+
+	@Test
+	public void testSizeEviction() {
+		PathSegmentCache cache = new PathSegmentCache(2, 60000);
+		cache.put("root", "a", "id-a");
+		cache.put("root", "b", "id-b");
+		// a is now the most recently used
+		assertNotNull(cache.get("root", "a"));
+		cache.put("root", "c", "id-c");
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get("root", "b"));
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		PathSegmentCache cache = new PathSegmentCache(10, 10);
+		cache.put("root", "a", "id-a");
+		Thread.sleep(50);
+		assertNull(cache.get("root", "a"));
+		assertEquals(1, cache.getExpirations());
+	}
+
+	@Test
+	public void testDisabled() {
+		PathSegmentCache cache = new PathSegmentCache(0, 60000);
+		cache.put("root", "a", "id-a");
+		assertNull(cache.get("root", "a"));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,61 @@
+package org.apache.chemistry.opencmis.couchbase.test;
+
+import org.apache.chemistry.opencmis.couchbase.Tracing;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTracing {
+
+	@After
+	public void after() {
+		Tracing.end();
+		Tracing.setSampleRate(1);
+	}
+
+	@Test
+	public void testOutOfRequest() {
+		Tracing.setSampleRate(0);
+		assertTrue(Tracing.isSampled());
+	}
+
+	@Test
+	public void testAllSampled() {
+		Tracing.setSampleRate(1);
+		for (int i = 0; i < 10; i++) {
+			Tracing.begin("test");
+			assertTrue(Tracing.isSampled());
+			Tracing.end();
+		}
+	}
+
+	@Test
+	public void testNoneSampled() {
+		Tracing.setSampleRate(0);
+		for (int i = 0; i < 10; i++) {
+			Tracing.begin("test");
+			assertFalse(Tracing.isSampled());
+			Tracing.end();
+			assertTrue(Tracing.isSampled());
+		}
+	}
+
+	@Test
+	public void testOneOutOfN() {
+		Tracing.setSampleRate(4);
+		int sampled = 0;
+		for (int i = 0; i < 100; i++) {
+			Tracing.begin("test");
+			if (Tracing.isSampled())
+				sampled++;
+			Tracing.end();
+		}
+		assertEquals(25, sampled);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeRate() {
+		Tracing.setSampleRate(-1);
+	}
+}
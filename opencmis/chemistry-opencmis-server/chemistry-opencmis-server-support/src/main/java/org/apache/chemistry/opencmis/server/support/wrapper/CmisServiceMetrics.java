@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.server.support.wrapper;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the {@link OperationMetrics} of the CMIS operations, by
+ * repository, binding and operation.
+ * <p>
+ * The operation being served by a thread is bound to it by the
+ * {@link MetricsCmisServiceWrapper}. The code below the service can then
+ * attribute a part of the time of the operation to a layer with
+ * {@link #startSpan(String)}, without any reference to the metrics:
+ * 
+ * <pre>
+ * CmisServiceMetrics.Span span = CmisServiceMetrics.startSpan(&quot;storage&quot;);
+ * try {
+ *     // read the content
+ * } finally {
+ *     span.end();
+ * }
+ * </pre>
+ * 
+ * Spans started outside of an operation, or without the wrapper, cost a
+ * thread local lookup and record nothing.
+ * <p>
+ * The repository id comes from the request. So that the number of metrics
+ * stays bounded, the calls for a repository which is not declared with
+ * {@link #addRepository(String)} are recorded under {@link #NONE}. As long as
+ * none is declared, the first {@link #setMaxRepositories(int) max}
+ * repository ids have their own metrics.
+ */
+public class CmisServiceMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CmisServiceMetrics.class);
+
+    public static final String JMX_DOMAIN = "org.apache.chemistry.opencmis";
+
+    /** Repository or binding of the calls without one, or not recorded apart. */
+    public static final String NONE = "<none>";
+
+    public static final int DEFAULT_MAX_REPOSITORIES = 16;
+
+    private static final CmisServiceMetrics INSTANCE = new CmisServiceMetrics(true);
+    private static final ThreadLocal<OperationMetrics> CURRENT = new ThreadLocal<OperationMetrics>();
+
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+    private final Set<String> repositories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final boolean jmx;
+    private volatile boolean declared = false;
+    private volatile int maxRepositories = DEFAULT_MAX_REPOSITORIES;
+
+    /**
+     * Creates a registry.
+     * 
+     * @param jmx
+     *            whether the metrics of each operation are registered as an
+     *            MBean
+     */
+    public CmisServiceMetrics(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * Returns the registry used by the {@link MetricsCmisServiceWrapper}.
+     */
+    public static CmisServiceMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Declares a repository of the server. Once one is, the calls for the
+     * others are all recorded under {@link #NONE}.
+     */
+    public void addRepository(String repositoryId) {
+        repositories.add(repositoryId);
+        declared = true;
+    }
+
+    /**
+     * Sets how many repositories have their own metrics when none is declared,
+     * {@value #DEFAULT_MAX_REPOSITORIES} by default.
+     */
+    public void setMaxRepositories(int maxRepositories) {
+        this.maxRepositories = maxRepositories;
+    }
+
+    /**
+     * Returns the metrics of an operation, created on the first call.
+     */
+    public OperationMetrics getOperationMetrics(String repositoryId, String binding, String operation) {
+        if (!isRecordedApart(repositoryId)) {
+            repositoryId = NONE;
+        }
+        String key = repositoryId + '\u0000' + binding + '\u0000' + operation;
+        OperationMetrics metrics = operations.get(key);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics(repositoryId, binding, operation);
+            metrics = operations.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                if (jmx) {
+                    register(created);
+                }
+            }
+        }
+
+        return metrics;
+    }
+
+    private boolean isRecordedApart(String repositoryId) {
+        if (NONE.equals(repositoryId) || repositories.contains(repositoryId)) {
+            return true;
+        }
+        if (declared || repositories.size() >= maxRepositories) {
+            return false;
+        }
+
+        repositories.add(repositoryId);
+        return true;
+    }
+
+    /**
+     * Returns the metrics of all the operations called so far, sorted by
+     * repository, binding and operation.
+     */
+    public List<OperationMetrics> getOperations() {
+        List<OperationMetrics> result = new ArrayList<OperationMetrics>(operations.values());
+        Collections.sort(result, new Comparator<OperationMetrics>() {
+            public int compare(OperationMetrics o1, OperationMetrics o2) {
+                int c = o1.getRepositoryId().compareTo(o2.getRepositoryId());
+                if (c == 0) {
+                    c = o1.getBinding().compareTo(o2.getBinding());
+                }
+                if (c == 0) {
+                    c = o1.getOperation().compareTo(o2.getOperation());
+                }
+                return c;
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Resets the metrics of all the operations.
+     */
+    public void reset() {
+        for (OperationMetrics metrics : operations.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Writes the metrics as text, one line per operation followed by one
+     * line per inner span. Times are in milliseconds.
+     */
+    public void writeText(Appendable out) throws IOException {
+        out.append("# repository binding operation [span] errors count mean p50 p90 p99 max (ms)\n");
+        for (OperationMetrics metrics : getOperations()) {
+            String prefix = metrics.getRepositoryId() + " " + metrics.getBinding() + " " + metrics.getOperation();
+            out.append(prefix).append(" errors=").append(String.valueOf(metrics.getErrors())).append(' ')
+                    .append(OperationMetrics.format(metrics.getLatency())).append('\n');
+            for (Map.Entry<String, LatencyHistogram> span : metrics.getSpanLatencies().entrySet()) {
+                out.append(prefix).append(" [").append(span.getKey()).append("] ")
+                        .append(OperationMetrics.format(span.getValue())).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Unregisters the MBeans of the operations.
+     */
+    public void unregister() {
+        if (!jmx) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (OperationMetrics metrics : operations.values()) {
+            try {
+                ObjectName name = getObjectName(metrics);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOG.warn("Cannot unregister the metrics of {}: {}", metrics.getOperation(), e.toString());
+            }
+        }
+    }
+
+    private void register(OperationMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, getObjectName(metrics));
+        } catch (InstanceAlreadyExistsException e) {
+            LOG.debug("Metrics of {} already registered", metrics.getOperation());
+        } catch (Exception e) {
+            LOG.warn("Cannot register the metrics of {}: {}", metrics.getOperation(), e.toString());
+        }
+    }
+
+    private static ObjectName getObjectName(OperationMetrics metrics) throws Exception {
+        return new ObjectName(JMX_DOMAIN + ":type=CmisServiceMetrics,repository="
+                + ObjectName.quote(metrics.getRepositoryId()) + ",binding=" + ObjectName.quote(metrics.getBinding())
+                + ",operation=" + metrics.getOperation());
+    }
+
+    // --- spans ---
+
+    /**
+     * Binds an operation to the current thread.
+     * 
+     * @return the operation bound before, to be given back to
+     *         {@link #leave(OperationMetrics)}
+     */
+    public static OperationMetrics enter(OperationMetrics metrics) {
+        OperationMetrics previous = CURRENT.get();
+        CURRENT.set(metrics);
+        return previous;
+    }
+
+    /**
+     * Binds the previous operation to the current thread again.
+     */
+    public static void leave(OperationMetrics previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Returns the operation served by the current thread, or {@code null}.
+     */
+    public static OperationMetrics current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a span of the operation served by the current thread.
+     * 
+     * @param name
+     *            the layer the time is spent in
+     */
+    public static Span startSpan(String name) {
+        OperationMetrics metrics = CURRENT.get();
+        if (metrics == null) {
+            return Span.NONE;
+        }
+
+        return new Span(metrics, name);
+    }
+
+    /**
+     * A part of the time of an operation, spent in a layer. A span can be
+     * ended in another thread than the one which started it.
+     */
+    public static final class Span {
+
+        static final Span NONE = new Span(null, null);
+
+        private final OperationMetrics metrics;
+        private final String name;
+        private final long start;
+
+        Span(OperationMetrics metrics, String name) {
+            this.metrics = metrics;
+            this.name = name;
+            this.start = metrics == null ? 0 : System.nanoTime();
+        }
+
+        /**
+         * Ends the span and records its duration.
+         */
+        public void end() {
+            if (metrics != null) {
+                metrics.recordSpan(name, System.nanoTime() - start);
+            }
+        }
+    }
+}
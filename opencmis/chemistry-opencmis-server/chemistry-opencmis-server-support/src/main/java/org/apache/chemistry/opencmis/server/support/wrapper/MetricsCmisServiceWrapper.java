@@ -0,0 +1,793 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.server.support.wrapper;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.apache.chemistry.opencmis.commons.data.Acl;
+import org.apache.chemistry.opencmis.commons.data.AllowableActions;
+import org.apache.chemistry.opencmis.commons.data.BulkUpdateObjectIdAndChangeToken;
+import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.ExtensionsData;
+import org.apache.chemistry.opencmis.commons.data.FailedToDeleteData;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderContainer;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderList;
+import org.apache.chemistry.opencmis.commons.data.ObjectList;
+import org.apache.chemistry.opencmis.commons.data.ObjectParentData;
+import org.apache.chemistry.opencmis.commons.data.Properties;
+import org.apache.chemistry.opencmis.commons.data.RenditionData;
+import org.apache.chemistry.opencmis.commons.data.RepositoryInfo;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionContainer;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionList;
+import org.apache.chemistry.opencmis.commons.enums.AclPropagation;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.enums.RelationshipDirection;
+import org.apache.chemistry.opencmis.commons.enums.UnfileObject;
+import org.apache.chemistry.opencmis.commons.enums.VersioningState;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.commons.server.CmisService;
+import org.apache.chemistry.opencmis.commons.spi.Holder;
+
+/**
+ * A CMIS service wrapper that records the call count, the error count and the
+ * latency of each CMIS operation, by repository and binding, in the
+ * {@link CmisServiceMetrics} registry.
+ * <p>
+ * The operation is bound to the thread while it runs, so that the layers
+ * below can attribute their part of the time with
+ * {@link CmisServiceMetrics#startSpan(String)}. The time of an operation
+ * does not include the streaming of a returned content, which is done by
+ * the binding afterwards.
+ * <p>
+ * The metrics are available over JMX and, as text, from the
+ * {@link MetricsServlet}.
+ */
+public class MetricsCmisServiceWrapper extends AbstractCmisServiceWrapper {
+
+    private CmisServiceMetrics metrics = CmisServiceMetrics.getInstance();
+
+    public MetricsCmisServiceWrapper(CmisService service) {
+        super(service);
+    }
+
+    /**
+     * Sets the registry of the metrics, the shared one by default.
+     */
+    public void setMetrics(CmisServiceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public CmisServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts timing a call and binds the operation to the thread.
+     */
+    protected Call begin(String operation, String repositoryId) {
+        CallContext context = getCallContext();
+        String binding = (context == null ? null : context.getBinding());
+        OperationMetrics operationMetrics = metrics.getOperationMetrics(
+                repositoryId == null ? CmisServiceMetrics.NONE : repositoryId,
+                binding == null ? CmisServiceMetrics.NONE : binding, operation);
+        return new Call(operationMetrics);
+    }
+
+    /**
+     * A call being timed.
+     */
+    protected static class Call {
+
+        private final OperationMetrics metrics;
+        private final OperationMetrics previous;
+        private final long start;
+        private boolean failed = false;
+
+        Call(OperationMetrics metrics) {
+            this.metrics = metrics;
+            this.previous = CmisServiceMetrics.enter(metrics);
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Marks the call as failed.
+         * 
+         * @return the exception, to be thrown again
+         */
+        public RuntimeException fail(RuntimeException e) {
+            failed = true;
+            return e;
+        }
+
+        /**
+         * Records the call and binds the previous operation to the thread.
+         */
+        public void end() {
+            metrics.recordCall(System.nanoTime() - start, failed);
+            CmisServiceMetrics.leave(previous);
+        }
+    }
+
+    public List<RepositoryInfo> getRepositoryInfos(ExtensionsData extension) {
+        Call call = begin("getRepositoryInfos", null);
+        try {
+            return getWrappedService().getRepositoryInfos(extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public RepositoryInfo getRepositoryInfo(String repositoryId, ExtensionsData extension) {
+        Call call = begin("getRepositoryInfo", repositoryId);
+        try {
+            return getWrappedService().getRepositoryInfo(repositoryId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public TypeDefinitionList getTypeChildren(String repositoryId, String typeId, Boolean includePropertyDefinitions,
+            BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+        Call call = begin("getTypeChildren", repositoryId);
+        try {
+            return getWrappedService().getTypeChildren(repositoryId, typeId, includePropertyDefinitions, maxItems,
+                    skipCount, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<TypeDefinitionContainer> getTypeDescendants(String repositoryId, String typeId, BigInteger depth,
+            Boolean includePropertyDefinitions, ExtensionsData extension) {
+        Call call = begin("getTypeDescendants", repositoryId);
+        try {
+            return getWrappedService().getTypeDescendants(repositoryId, typeId, depth, includePropertyDefinitions,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public TypeDefinition getTypeDefinition(String repositoryId, String typeId, ExtensionsData extension) {
+        Call call = begin("getTypeDefinition", repositoryId);
+        try {
+            return getWrappedService().getTypeDefinition(repositoryId, typeId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public TypeDefinition createType(String repositoryId, TypeDefinition type, ExtensionsData extension) {
+        Call call = begin("createType", repositoryId);
+        try {
+            return getWrappedService().createType(repositoryId, type, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public TypeDefinition updateType(String repositoryId, TypeDefinition type, ExtensionsData extension) {
+        Call call = begin("updateType", repositoryId);
+        try {
+            return getWrappedService().updateType(repositoryId, type, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void deleteType(String repositoryId, String typeId, ExtensionsData extension) {
+        Call call = begin("deleteType", repositoryId);
+        try {
+            getWrappedService().deleteType(repositoryId, typeId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectInFolderList getChildren(String repositoryId, String folderId, String filter, String orderBy,
+            Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+            Boolean includePathSegment, BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+        Call call = begin("getChildren", repositoryId);
+        try {
+            return getWrappedService().getChildren(repositoryId, folderId, filter, orderBy, includeAllowableActions,
+                    includeRelationships, renditionFilter, includePathSegment, maxItems, skipCount, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<ObjectInFolderContainer> getDescendants(String repositoryId, String folderId, BigInteger depth,
+            String filter, Boolean includeAllowableActions, IncludeRelationships includeRelationships,
+            String renditionFilter, Boolean includePathSegment, ExtensionsData extension) {
+        Call call = begin("getDescendants", repositoryId);
+        try {
+            return getWrappedService().getDescendants(repositoryId, folderId, depth, filter, includeAllowableActions,
+                    includeRelationships, renditionFilter, includePathSegment, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<ObjectInFolderContainer> getFolderTree(String repositoryId, String folderId, BigInteger depth,
+            String filter, Boolean includeAllowableActions, IncludeRelationships includeRelationships,
+            String renditionFilter, Boolean includePathSegment, ExtensionsData extension) {
+        Call call = begin("getFolderTree", repositoryId);
+        try {
+            return getWrappedService().getFolderTree(repositoryId, folderId, depth, filter, includeAllowableActions,
+                    includeRelationships, renditionFilter, includePathSegment, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<ObjectParentData> getObjectParents(String repositoryId, String objectId, String filter,
+            Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+            Boolean includeRelativePathSegment, ExtensionsData extension) {
+        Call call = begin("getObjectParents", repositoryId);
+        try {
+            return getWrappedService().getObjectParents(repositoryId, objectId, filter, includeAllowableActions,
+                    includeRelationships, renditionFilter, includeRelativePathSegment, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectData getFolderParent(String repositoryId, String folderId, String filter, ExtensionsData extension) {
+        Call call = begin("getFolderParent", repositoryId);
+        try {
+            return getWrappedService().getFolderParent(repositoryId, folderId, filter, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectList getCheckedOutDocs(String repositoryId, String folderId, String filter, String orderBy,
+            Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+            BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+        Call call = begin("getCheckedOutDocs", repositoryId);
+        try {
+            return getWrappedService().getCheckedOutDocs(repositoryId, folderId, filter, orderBy, includeAllowableActions,
+                    includeRelationships, renditionFilter, maxItems, skipCount, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public String createDocument(String repositoryId, Properties properties, String folderId,
+            ContentStream contentStream, VersioningState versioningState, List<String> policies, Acl addAces,
+            Acl removeAces, ExtensionsData extension) {
+        Call call = begin("createDocument", repositoryId);
+        try {
+            return getWrappedService().createDocument(repositoryId, properties, folderId, contentStream, versioningState,
+                    policies, addAces, removeAces, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public String createDocumentFromSource(String repositoryId, String sourceId, Properties properties,
+            String folderId, VersioningState versioningState, List<String> policies, Acl addAces, Acl removeAces,
+            ExtensionsData extension) {
+        Call call = begin("createDocumentFromSource", repositoryId);
+        try {
+            return getWrappedService().createDocumentFromSource(repositoryId, sourceId, properties, folderId,
+                    versioningState, policies, addAces, removeAces, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public String createFolder(String repositoryId, Properties properties, String folderId, List<String> policies,
+            Acl addAces, Acl removeAces, ExtensionsData extension) {
+        Call call = begin("createFolder", repositoryId);
+        try {
+            return getWrappedService().createFolder(repositoryId, properties, folderId, policies, addAces, removeAces,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public String createRelationship(String repositoryId, Properties properties, List<String> policies, Acl addAces,
+            Acl removeAces, ExtensionsData extension) {
+        Call call = begin("createRelationship", repositoryId);
+        try {
+            return getWrappedService().createRelationship(repositoryId, properties, policies, addAces, removeAces,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public String createPolicy(String repositoryId, Properties properties, String folderId, List<String> policies,
+            Acl addAces, Acl removeAces, ExtensionsData extension) {
+        Call call = begin("createPolicy", repositoryId);
+        try {
+            return getWrappedService().createPolicy(repositoryId, properties, folderId, policies, addAces, removeAces,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public String createItem(String repositoryId, Properties properties, String folderId, List<String> policies,
+            Acl addAces, Acl removeAces, ExtensionsData extension) {
+        Call call = begin("createItem", repositoryId);
+        try {
+            return getWrappedService().createItem(repositoryId, properties, folderId, policies, addAces, removeAces,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public AllowableActions getAllowableActions(String repositoryId, String objectId, ExtensionsData extension) {
+        Call call = begin("getAllowableActions", repositoryId);
+        try {
+            return getWrappedService().getAllowableActions(repositoryId, objectId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectData getObject(String repositoryId, String objectId, String filter, Boolean includeAllowableActions,
+            IncludeRelationships includeRelationships, String renditionFilter, Boolean includePolicyIds,
+            Boolean includeAcl, ExtensionsData extension) {
+        Call call = begin("getObject", repositoryId);
+        try {
+            return getWrappedService().getObject(repositoryId, objectId, filter, includeAllowableActions,
+                    includeRelationships, renditionFilter, includePolicyIds, includeAcl, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public Properties getProperties(String repositoryId, String objectId, String filter, ExtensionsData extension) {
+        Call call = begin("getProperties", repositoryId);
+        try {
+            return getWrappedService().getProperties(repositoryId, objectId, filter, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<RenditionData> getRenditions(String repositoryId, String objectId, String renditionFilter,
+            BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+        Call call = begin("getRenditions", repositoryId);
+        try {
+            return getWrappedService().getRenditions(repositoryId, objectId, renditionFilter, maxItems, skipCount,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectData getObjectByPath(String repositoryId, String path, String filter, Boolean includeAllowableActions,
+            IncludeRelationships includeRelationships, String renditionFilter, Boolean includePolicyIds,
+            Boolean includeAcl, ExtensionsData extension) {
+        Call call = begin("getObjectByPath", repositoryId);
+        try {
+            return getWrappedService().getObjectByPath(repositoryId, path, filter, includeAllowableActions,
+                    includeRelationships, renditionFilter, includePolicyIds, includeAcl, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ContentStream getContentStream(String repositoryId, String objectId, String streamId, BigInteger offset,
+            BigInteger length, ExtensionsData extension) {
+        Call call = begin("getContentStream", repositoryId);
+        try {
+            return getWrappedService().getContentStream(repositoryId, objectId, streamId, offset, length, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void updateProperties(String repositoryId, Holder<String> objectId, Holder<String> changeToken,
+            Properties properties, ExtensionsData extension) {
+        Call call = begin("updateProperties", repositoryId);
+        try {
+            getWrappedService().updateProperties(repositoryId, objectId, changeToken, properties, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<BulkUpdateObjectIdAndChangeToken> bulkUpdateProperties(String repositoryId,
+            List<BulkUpdateObjectIdAndChangeToken> objectIdsAndChangeTokens, Properties properties,
+            List<String> addSecondaryTypeIds, List<String> removeSecondaryTypeIds, ExtensionsData extension) {
+        Call call = begin("bulkUpdateProperties", repositoryId);
+        try {
+            return getWrappedService().bulkUpdateProperties(repositoryId, objectIdsAndChangeTokens, properties,
+                    addSecondaryTypeIds, removeSecondaryTypeIds, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void moveObject(String repositoryId, Holder<String> objectId, String targetFolderId, String sourceFolderId,
+            ExtensionsData extension) {
+        Call call = begin("moveObject", repositoryId);
+        try {
+            getWrappedService().moveObject(repositoryId, objectId, targetFolderId, sourceFolderId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void deleteObject(String repositoryId, String objectId, Boolean allVersions, ExtensionsData extension) {
+        Call call = begin("deleteObject", repositoryId);
+        try {
+            getWrappedService().deleteObject(repositoryId, objectId, allVersions, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public FailedToDeleteData deleteTree(String repositoryId, String folderId, Boolean allVersions,
+            UnfileObject unfileObjects, Boolean continueOnFailure, ExtensionsData extension) {
+        Call call = begin("deleteTree", repositoryId);
+        try {
+            return getWrappedService().deleteTree(repositoryId, folderId, allVersions, unfileObjects, continueOnFailure,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void setContentStream(String repositoryId, Holder<String> objectId, Boolean overwriteFlag,
+            Holder<String> changeToken, ContentStream contentStream, ExtensionsData extension) {
+        Call call = begin("setContentStream", repositoryId);
+        try {
+            getWrappedService().setContentStream(repositoryId, objectId, overwriteFlag, changeToken, contentStream,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void deleteContentStream(String repositoryId, Holder<String> objectId, Holder<String> changeToken,
+            ExtensionsData extension) {
+        Call call = begin("deleteContentStream", repositoryId);
+        try {
+            getWrappedService().deleteContentStream(repositoryId, objectId, changeToken, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void appendContentStream(String repositoryId, Holder<String> objectId, Holder<String> changeToken,
+            ContentStream contentStream, boolean isLastChunk, ExtensionsData extension) {
+        Call call = begin("appendContentStream", repositoryId);
+        try {
+            getWrappedService().appendContentStream(repositoryId, objectId, changeToken, contentStream, isLastChunk,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void checkOut(String repositoryId, Holder<String> objectId, ExtensionsData extension,
+            Holder<Boolean> contentCopied) {
+        Call call = begin("checkOut", repositoryId);
+        try {
+            getWrappedService().checkOut(repositoryId, objectId, extension, contentCopied);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void cancelCheckOut(String repositoryId, String objectId, ExtensionsData extension) {
+        Call call = begin("cancelCheckOut", repositoryId);
+        try {
+            getWrappedService().cancelCheckOut(repositoryId, objectId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void checkIn(String repositoryId, Holder<String> objectId, Boolean major, Properties properties,
+            ContentStream contentStream, String checkinComment, List<String> policies, Acl addAces, Acl removeAces,
+            ExtensionsData extension) {
+        Call call = begin("checkIn", repositoryId);
+        try {
+            getWrappedService().checkIn(repositoryId, objectId, major, properties, contentStream, checkinComment, policies,
+                    addAces, removeAces, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectData getObjectOfLatestVersion(String repositoryId, String objectId, String versionSeriesId,
+            Boolean major, String filter, Boolean includeAllowableActions, IncludeRelationships includeRelationships,
+            String renditionFilter, Boolean includePolicyIds, Boolean includeAcl, ExtensionsData extension) {
+        Call call = begin("getObjectOfLatestVersion", repositoryId);
+        try {
+            return getWrappedService()
+                    .getObjectOfLatestVersion(repositoryId, objectId, versionSeriesId, major, filter,
+                            includeAllowableActions, includeRelationships, renditionFilter, includePolicyIds, includeAcl,
+                            extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public Properties getPropertiesOfLatestVersion(String repositoryId, String objectId, String versionSeriesId,
+            Boolean major, String filter, ExtensionsData extension) {
+        Call call = begin("getPropertiesOfLatestVersion", repositoryId);
+        try {
+            return getWrappedService().getPropertiesOfLatestVersion(repositoryId, objectId, versionSeriesId, major, filter,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<ObjectData> getAllVersions(String repositoryId, String objectId, String versionSeriesId, String filter,
+            Boolean includeAllowableActions, ExtensionsData extension) {
+        Call call = begin("getAllVersions", repositoryId);
+        try {
+            return getWrappedService().getAllVersions(repositoryId, objectId, versionSeriesId, filter,
+                    includeAllowableActions, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectList query(String repositoryId, String statement, Boolean searchAllVersions,
+            Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+            BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+        Call call = begin("query", repositoryId);
+        try {
+            return getWrappedService().query(repositoryId, statement, searchAllVersions, includeAllowableActions,
+                    includeRelationships, renditionFilter, maxItems, skipCount, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectList getContentChanges(String repositoryId, Holder<String> changeLogToken, Boolean includeProperties,
+            String filter, Boolean includePolicyIds, Boolean includeAcl, BigInteger maxItems, ExtensionsData extension) {
+        Call call = begin("getContentChanges", repositoryId);
+        try {
+            return getWrappedService().getContentChanges(repositoryId, changeLogToken, includeProperties, filter,
+                    includePolicyIds, includeAcl, maxItems, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void addObjectToFolder(String repositoryId, String objectId, String folderId, Boolean allVersions,
+            ExtensionsData extension) {
+        Call call = begin("addObjectToFolder", repositoryId);
+        try {
+            getWrappedService().addObjectToFolder(repositoryId, objectId, folderId, allVersions, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void removeObjectFromFolder(String repositoryId, String objectId, String folderId, ExtensionsData extension) {
+        Call call = begin("removeObjectFromFolder", repositoryId);
+        try {
+            getWrappedService().removeObjectFromFolder(repositoryId, objectId, folderId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public ObjectList getObjectRelationships(String repositoryId, String objectId, Boolean includeSubRelationshipTypes,
+            RelationshipDirection relationshipDirection, String typeId, String filter, Boolean includeAllowableActions,
+            BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+        Call call = begin("getObjectRelationships", repositoryId);
+        try {
+            return getWrappedService().getObjectRelationships(repositoryId, objectId, includeSubRelationshipTypes,
+                    relationshipDirection, typeId, filter, includeAllowableActions, maxItems, skipCount, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public Acl getAcl(String repositoryId, String objectId, Boolean onlyBasicPermissions, ExtensionsData extension) {
+        Call call = begin("getAcl", repositoryId);
+        try {
+            return getWrappedService().getAcl(repositoryId, objectId, onlyBasicPermissions, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public Acl applyAcl(String repositoryId, String objectId, Acl addAces, Acl removeAces,
+            AclPropagation aclPropagation, ExtensionsData extension) {
+        Call call = begin("applyAcl", repositoryId);
+        try {
+            return getWrappedService().applyAcl(repositoryId, objectId, addAces, removeAces, aclPropagation, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void applyPolicy(String repositoryId, String policyId, String objectId, ExtensionsData extension) {
+        Call call = begin("applyPolicy", repositoryId);
+        try {
+            getWrappedService().applyPolicy(repositoryId, policyId, objectId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void removePolicy(String repositoryId, String policyId, String objectId, ExtensionsData extension) {
+        Call call = begin("removePolicy", repositoryId);
+        try {
+            getWrappedService().removePolicy(repositoryId, policyId, objectId, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public List<ObjectData> getAppliedPolicies(String repositoryId, String objectId, String filter,
+            ExtensionsData extension) {
+        Call call = begin("getAppliedPolicies", repositoryId);
+        try {
+            return getWrappedService().getAppliedPolicies(repositoryId, objectId, filter, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public String create(String repositoryId, Properties properties, String folderId, ContentStream contentStream,
+            VersioningState versioningState, List<String> policies, ExtensionsData extension) {
+        Call call = begin("create", repositoryId);
+        try {
+            return getWrappedService().create(repositoryId, properties, folderId, contentStream, versioningState, policies,
+                    extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public void deleteObjectOrCancelCheckOut(String repositoryId, String objectId, Boolean allVersions,
+            ExtensionsData extension) {
+        Call call = begin("deleteObjectOrCancelCheckOut", repositoryId);
+        try {
+            getWrappedService().deleteObjectOrCancelCheckOut(repositoryId, objectId, allVersions, extension);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+
+    public Acl applyAcl(String repositoryId, String objectId, Acl aces, AclPropagation aclPropagation) {
+        Call call = begin("applyAcl", repositoryId);
+        try {
+            return getWrappedService().applyAcl(repositoryId, objectId, aces, aclPropagation);
+        } catch (RuntimeException e) {
+            throw call.fail(e);
+        } finally {
+            call.end();
+        }
+    }
+}
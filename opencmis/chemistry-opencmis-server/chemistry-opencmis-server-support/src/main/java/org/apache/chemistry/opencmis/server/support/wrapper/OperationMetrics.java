@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.server.support.wrapper;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call count, error count and latency of a CMIS operation, for one
+ * repository and one binding, along with the time spent in the inner spans
+ * of the operation.
+ * 
+ * @see CmisServiceMetrics
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final String repositoryId;
+    private final String binding;
+    private final String operation;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentMap<String, LatencyHistogram> spans = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    public OperationMetrics(String repositoryId, String binding, String operation) {
+        this.repositoryId = repositoryId;
+        this.binding = binding;
+        this.operation = operation;
+    }
+
+    /**
+     * Records a call of the operation.
+     * 
+     * @param nanos
+     *            the duration of the call
+     * @param failed
+     *            whether the call threw an exception
+     */
+    public void recordCall(long nanos, boolean failed) {
+        calls.incrementAndGet();
+        if (failed) {
+            errors.incrementAndGet();
+        }
+        latency.recordNanos(nanos);
+    }
+
+    /**
+     * Records the time spent in an inner span of the operation.
+     */
+    public void recordSpan(String span, long nanos) {
+        LatencyHistogram histogram = spans.get(span);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = spans.putIfAbsent(span, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.recordNanos(nanos);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the histograms of the inner spans, by span name.
+     */
+    public Map<String, LatencyHistogram> getSpanLatencies() {
+        return new TreeMap<String, LatencyHistogram>(spans);
+    }
+
+    public String getRepositoryId() {
+        return repositoryId;
+    }
+
+    public String getBinding() {
+        return binding;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public double getMeanMillis() {
+        return latency.getMean() / 1000.0;
+    }
+
+    public double getMedianMillis() {
+        return latency.getPercentile(50) / 1000.0;
+    }
+
+    public double getP90Millis() {
+        return latency.getPercentile(90) / 1000.0;
+    }
+
+    public double getP99Millis() {
+        return latency.getPercentile(99) / 1000.0;
+    }
+
+    public double getMaxMillis() {
+        return latency.getMax() / 1000.0;
+    }
+
+    public String[] getSpans() {
+        Map<String, LatencyHistogram> sorted = getSpanLatencies();
+        String[] result = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            result[i++] = entry.getKey() + " " + format(entry.getValue());
+        }
+        return result;
+    }
+
+    public void reset() {
+        calls.set(0);
+        errors.set(0);
+        latency.reset();
+        for (LatencyHistogram histogram : spans.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Formats the statistics of a histogram, in milliseconds.
+     */
+    static String format(LatencyHistogram histogram) {
+        return String.format(Locale.ENGLISH, "count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f",
+                histogram.getCount(), histogram.getMean() / 1000.0, histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(90) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                histogram.getMax() / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return repositoryId + " " + binding + " " + operation + " errors=" + getErrors() + " " + format(latency);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.chemistry.opencmis.server.support.wrapper;
+
+/**
+ * JMX view of the metrics of a CMIS operation. Times are in milliseconds.
+ */
+public interface OperationMetricsMBean {
+
+    String getRepositoryId();
+
+    String getBinding();
+
+    String getOperation();
+
+    long getCalls();
+
+    long getErrors();
+
+    double getMeanMillis();
+
+    double getMedianMillis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+
+    /**
+     * Returns a summary of the time spent in each inner span, such as the
+     * metadata store or the content storage.
+     */
+    String[] getSpans();
+
+    void reset();
+}
@@ -0,0 +1,207 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.chemistry.opencmis.server.support.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.List;
+
+import org.apache.chemistry.opencmis.commons.data.ExtensionsData;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderList;
+import org.apache.chemistry.opencmis.commons.data.ObjectParentData;
+import org.apache.chemistry.opencmis.commons.data.RepositoryInfo;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionList;
+import org.apache.chemistry.opencmis.commons.enums.IncludeRelationships;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
+import org.apache.chemistry.opencmis.commons.impl.server.AbstractCmisService;
+import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.junit.Test;
+
+public class MetricsCmisServiceWrapperTest {
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500.0, histogram.getMean(), 0.001);
+        assertEquals(1000000, histogram.getMax());
+        assertWithin(500000, histogram.getPercentile(50));
+        assertWithin(990000, histogram.getPercentile(99));
+        assertEquals(1000000, histogram.getPercentile(100));
+
+        // exact below 32
+        histogram.reset();
+        histogram.record(7);
+        assertEquals(7, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 1000000; value += 7) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.lowerBound(index) <= value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value);
+        }
+    }
+
+    @Test
+    public void testWrapper() {
+        CmisServiceMetrics metrics = new CmisServiceMetrics(false);
+        MetricsCmisServiceWrapper wrapper = new MetricsCmisServiceWrapper(new DummyService());
+        wrapper.setMetrics(metrics);
+        wrapper.setCallContext(createCallContext("browser"));
+
+        wrapper.getChildren("repo", "folder", null, null, null, null, null, null, null, null, null);
+        wrapper.getChildren("repo", "folder", null, null, null, null, null, null, null, null, null);
+        try {
+            wrapper.getChildren("repo", "missing", null, null, null, null, null, null, null, null, null);
+            fail("the folder does not exist");
+        } catch (CmisObjectNotFoundException e) {
+            // expected
+        }
+        wrapper.getRepositoryInfos(null);
+
+        OperationMetrics children = metrics.getOperationMetrics("repo", "browser", "getChildren");
+        assertEquals(3, children.getCalls());
+        assertEquals(1, children.getErrors());
+        assertEquals(3, children.getLatency().getCount());
+        assertEquals(3, children.getSpanLatencies().get("metadata").getCount());
+        assertEquals(1, metrics.getOperationMetrics("<none>", "browser", "getRepositoryInfos").getCalls());
+        assertEquals(2, metrics.getOperations().size());
+
+        // nothing bound once the calls are done
+        assertNull(CmisServiceMetrics.current());
+        CmisServiceMetrics.startSpan("metadata").end();
+        assertEquals(3, children.getSpanLatencies().get("metadata").getCount());
+    }
+
+    @Test
+    public void testRepositories() {
+        CmisServiceMetrics metrics = new CmisServiceMetrics(false);
+        metrics.setMaxRepositories(2);
+        assertEquals("a", metrics.getOperationMetrics("a", "browser", "getObject").getRepositoryId());
+        assertEquals("b", metrics.getOperationMetrics("b", "browser", "getObject").getRepositoryId());
+        assertEquals("<none>", metrics.getOperationMetrics("c", "browser", "getObject").getRepositoryId());
+        assertEquals("a", metrics.getOperationMetrics("a", "browser", "getChildren").getRepositoryId());
+
+        // only the declared repositories once one is
+        metrics = new CmisServiceMetrics(false);
+        metrics.addRepository("repo");
+        assertEquals("repo", metrics.getOperationMetrics("repo", "browser", "getObject").getRepositoryId());
+        assertEquals("<none>", metrics.getOperationMetrics("a", "browser", "getObject").getRepositoryId());
+        assertEquals("<none>", metrics.getOperationMetrics("b", "browser", "getObject").getRepositoryId());
+        assertEquals(2, metrics.getOperations().size());
+    }
+
+    @Test
+    public void testText() throws Exception {
+        CmisServiceMetrics metrics = new CmisServiceMetrics(false);
+        metrics.getOperationMetrics("repo", "atompub", "getObject").recordCall(2000000, false);
+        metrics.getOperationMetrics("repo", "atompub", "getObject").recordSpan("storage", 1000000);
+
+        StringBuilder text = new StringBuilder();
+        metrics.writeText(text);
+        String[] lines = text.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[1].startsWith("repo atompub getObject errors=0 count=1 mean=2.000"));
+        assertTrue(lines[2].startsWith("repo atompub getObject [storage] count=1 mean=1.000"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getOperationMetrics("repo", "atompub", "getObject").getCalls());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not close to " + expected, Math.abs(actual - expected) <= expected / 16);
+    }
+
+    private static CallContext createCallContext(final String binding) {
+        return (CallContext) Proxy.newProxyInstance(CallContext.class.getClassLoader(),
+                new Class<?>[] { CallContext.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getBinding".equals(method.getName())) {
+                            return binding;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static class DummyService extends AbstractCmisService {
+
+        @Override
+        public List<RepositoryInfo> getRepositoryInfos(ExtensionsData extension) {
+            return null;
+        }
+
+        @Override
+        public TypeDefinitionList getTypeChildren(String repositoryId, String typeId,
+                Boolean includePropertyDefinitions, BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+            return null;
+        }
+
+        @Override
+        public TypeDefinition getTypeDefinition(String repositoryId, String typeId, ExtensionsData extension) {
+            return null;
+        }
+
+        @Override
+        public ObjectInFolderList getChildren(String repositoryId, String folderId, String filter, String orderBy,
+                Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+                Boolean includePathSegment, BigInteger maxItems, BigInteger skipCount, ExtensionsData extension) {
+            CmisServiceMetrics.Span span = CmisServiceMetrics.startSpan("metadata");
+            try {
+                if ("missing".equals(folderId)) {
+                    throw new CmisObjectNotFoundException(folderId);
+                }
+                return null;
+            } finally {
+                span.end();
+            }
+        }
+
+        @Override
+        public List<ObjectParentData> getObjectParents(String repositoryId, String objectId, String filter,
+                Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+                Boolean includeRelativePathSegment, ExtensionsData extension) {
+            return null;
+        }
+
+        @Override
+        public ObjectData getObject(String repositoryId, String objectId, String filter,
+                Boolean includeAllowableActions, IncludeRelationships includeRelationships, String renditionFilter,
+                Boolean includePolicyIds, Boolean includeAcl, ExtensionsData extension) {
+            return null;
+        }
+    }
+}